@@ -296,6 +296,25 @@ public class AnnotationUtils {
 		return getLocusFunction(array, conservative);
 	}
 
+	/**
+	 * Summarize a set of locus functions to the "best" annotation, where annotations like coding are preferred over intronic,intergenic.
+	 * @param locusFunctions The locus functions, as a bit per LocusFunction ordinal.
+	 * @return The best annotation, or INTERGENIC if there are no locus functions.
+	 */
+	public LocusFunction getLocusFunction (final int locusFunctions) {
+		int bestScore=Integer.MIN_VALUE;
+		LocusFunction bestFunction=LocusFunction.INTERGENIC;
+		for (LocusFunction f: LocusFunction.values()) {
+			if ((locusFunctions & (1 << f.ordinal()))==0) continue;
+			int score = functionScores.get(f);
+			if (score>bestScore) {
+				bestScore=score;
+				bestFunction=f;
+			}
+		}
+		return bestFunction;
+	}
+
 	/**
 	 * Summarize the locus functions that are at base-by-base level to a single annotation.
 	 *
@@ -0,0 +1,324 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.annotation;
+
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.OverlapDetector;
+import htsjdk.samtools.util.StringUtil;
+import org.broadinstitute.dropseqrna.utils.StringDictionary;
+import org.broadinstitute.dropseqrna.utils.io.VarInt;
+import picard.annotation.Gene;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A binary snapshot of the genes GTFReader loads from a GTF, so later runs can skip parsing it.
+ *
+ * Caching is off unless the system property dropseq.annotation_cache_dir names a directory to keep the snapshots in.
+ * The snapshot records the size and MD5 of the GTF and an MD5 of the sequence names of the dictionary used to filter it, and is only
+ * used if all of these still match.  Strings (contigs, gene names, transcript types...) are written once and then referenced by id.
+ * @author nemesh
+ */
+public class GTFCache {
+
+	private static final Log LOG = Log.getInstance(GTFCache.class);
+
+	public static final String CACHE_DIR_PROPERTY = "dropseq.annotation_cache_dir";
+	public static final String CACHE_EXTENSION = ".annotation_cache";
+	private static final int MAGIC = 0x44534743;
+	// The cache is only checked against the GTF and dictionary, not the code that parsed them, so change this when the
+	// layout of the cache changes or when GTFReader would load different genes from the same GTF.
+	private static final int VERSION = 1;
+
+	private final File gtfFile;
+	private final SAMSequenceDictionary sequenceDictionary;
+	private final File cacheFile;
+	// computed at most once, as reading a stale cache and then rewriting it both need it.
+	private byte [] gtfMD5;
+
+	/**
+	 * @param gtfFile The GTF to cache
+	 * @param sequenceDictionary The sequence dictionary used to filter the GTF
+	 * @param cacheDirectory The directory to keep the cache in
+	 */
+	public GTFCache (final File gtfFile, final SAMSequenceDictionary sequenceDictionary, final File cacheDirectory) {
+		this.gtfFile=gtfFile;
+		this.sequenceDictionary=sequenceDictionary;
+		this.cacheFile=getCacheFile(gtfFile, cacheDirectory);
+	}
+
+	/**
+	 * @return The directory named by the dropseq.annotation_cache_dir system property, or null if caching is off.
+	 */
+	public static File getCacheDirectory () {
+		final String dir = System.getProperty(CACHE_DIR_PROPERTY);
+		if (dir==null || dir.isEmpty()) return null;
+		return new File(dir);
+	}
+
+	/**
+	 * The cache is named after the GTF and its absolute path, so GTFs with the same name in different directories don't overwrite each other's cache.
+	 */
+	public static File getCacheFile (final File gtfFile, final File cacheDirectory) {
+		final String path = gtfFile.getAbsolutePath();
+		final String pathHash = StringUtil.bytesToHexString(getMD5().digest(path.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+		return new File(cacheDirectory, gtfFile.getName() + "." + pathHash + CACHE_EXTENSION);
+	}
+
+	public File getCacheFile () {
+		return this.cacheFile;
+	}
+
+	/**
+	 * Load the genes from the cache of the GTF.
+	 * @return The genes, or null if there is no cache or the cache doesn't match the GTF or sequence dictionary.
+	 */
+	public OverlapDetector<GeneFromGTF> read () {
+		if (!cacheFile.canRead()) return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), Defaults.BUFFER_SIZE));
+			if (in.readInt()!=MAGIC || in.readInt()!=VERSION ||
+					in.readLong()!=gtfFile.length() ||
+					!Arrays.equals(readBytes(in), getGTFMD5()) ||
+					!Arrays.equals(readBytes(in), md5(sequenceDictionary))) {
+				LOG.info("Annotation cache " + cacheFile + " is out of date");
+				return null;
+			}
+			final StringTableReader strings = new StringTableReader(in);
+			final OverlapDetector<GeneFromGTF> result = new OverlapDetector<>(0, 0);
+			final int numGenes = in.readInt();
+			for (int i=0; i<numGenes; i++) {
+				GeneFromGTF gene = readGene(in, strings);
+				result.addLhs(gene, gene);
+			}
+			LOG.info("Loaded [" + numGenes + "] genes from annotation cache " + cacheFile);
+			return result;
+		} catch (IOException e) {
+			LOG.warn(e, "Could not read annotation cache " + cacheFile + ", the GTF will be parsed instead");
+			return null;
+		} finally {
+			CloserUtil.close(in);
+		}
+	}
+
+	/**
+	 * Write a cache of the genes loaded from the GTF.  If the cache can't be written, a warning is logged and the GTF
+	 * is parsed again on the next run.
+	 */
+	public void write (final Collection<GeneFromGTF> genes) {
+		File tempFile = null;
+		try {
+			Files.createDirectories(cacheFile.getAbsoluteFile().getParentFile().toPath());
+			// write to a temporary file and rename it, so a concurrent run never reads a partial cache.
+			tempFile = File.createTempFile(gtfFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), Defaults.BUFFER_SIZE))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(gtfFile.length());
+				writeBytes(out, getGTFMD5());
+				writeBytes(out, md5(sequenceDictionary));
+				final StringTableWriter strings = new StringTableWriter(out);
+				out.writeInt(genes.size());
+				for (GeneFromGTF gene: genes)
+					writeGene(out, strings, gene);
+			}
+			Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LOG.info("Wrote annotation cache " + cacheFile);
+		} catch (IOException e) {
+			LOG.warn("Could not write annotation cache " + cacheFile + ": " + e.getMessage());
+			if (tempFile!=null) tempFile.delete();
+		}
+	}
+
+	private byte [] getGTFMD5 () throws IOException {
+		if (gtfMD5==null)
+			gtfMD5=md5(gtfFile);
+		return gtfMD5;
+	}
+
+	private static void writeGene (final DataOutputStream out, final StringTableWriter strings, final GeneFromGTF gene) throws IOException {
+		strings.write(gene.getContig());
+		out.writeInt(gene.getStart());
+		out.writeInt(gene.getEnd());
+		out.writeBoolean(gene.isNegativeStrand());
+		strings.write(gene.getName());
+		strings.write(gene.getFeatureType());
+		strings.write(gene.getGeneID());
+		strings.write(gene.getTranscriptType());
+		out.writeBoolean(gene.getGeneVersion()!=null);
+		if (gene.getGeneVersion()!=null) out.writeInt(gene.getGeneVersion());
+
+		final Collection<GeneFromGTF.TranscriptFromGTF> transcripts = gene.getTranscripts();
+		out.writeInt(transcripts.size());
+		for (GeneFromGTF.TranscriptFromGTF t: transcripts) {
+			strings.write(t.name);
+			out.writeInt(t.transcriptionStart);
+			out.writeInt(t.transcriptionEnd);
+			out.writeInt(t.codingStart);
+			out.writeInt(t.codingEnd);
+			strings.write(t.getTranscriptName());
+			strings.write(t.getTranscriptID());
+			strings.write(t.getTranscriptType());
+			out.writeInt(t.exons.length);
+			for (Gene.Transcript.Exon e: t.exons) {
+				out.writeInt(e.start);
+				out.writeInt(e.end);
+			}
+		}
+	}
+
+	private static GeneFromGTF readGene (final DataInputStream in, final StringTableReader strings) throws IOException {
+		final String contig = strings.read();
+		final int start = in.readInt();
+		final int end = in.readInt();
+		final boolean negativeStrand = in.readBoolean();
+		final String name = strings.read();
+		final String featureType = strings.read();
+		final String geneID = strings.read();
+		final String transcriptType = strings.read();
+		final Integer geneVersion = in.readBoolean() ? in.readInt() : null;
+		final GeneFromGTF gene = new GeneFromGTF(contig, start, end, negativeStrand, name, featureType, geneID, transcriptType, geneVersion);
+
+		final int numTranscripts = in.readInt();
+		for (int i=0; i<numTranscripts; i++) {
+			final String transcriptKey = strings.read();
+			final int transcriptionStart = in.readInt();
+			final int transcriptionEnd = in.readInt();
+			final int codingStart = in.readInt();
+			final int codingEnd = in.readInt();
+			final String transcriptName = strings.read();
+			final String transcriptID = strings.read();
+			final String tType = strings.read();
+			final int numExons = in.readInt();
+			final GeneFromGTF.TranscriptFromGTF tx = gene.addTranscript(transcriptKey, transcriptionStart, transcriptionEnd, codingStart, codingEnd,
+					numExons, transcriptName, transcriptID, tType);
+			for (int j=0; j<numExons; j++)
+				tx.addExon(in.readInt(), in.readInt());
+		}
+		return gene;
+	}
+
+	private static void writeBytes (final DataOutputStream out, final byte [] bytes) throws IOException {
+		VarInt.write(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte [] readBytes (final DataInputStream in) throws IOException {
+		final byte [] result = new byte [VarInt.read(in)];
+		in.readFully(result);
+		return result;
+	}
+
+	private static byte [] md5 (final File f) throws IOException {
+		final MessageDigest digest = getMD5();
+		final byte [] buffer = new byte [Defaults.BUFFER_SIZE];
+		try (InputStream in = new FileInputStream(f)) {
+			int n;
+			while ((n=in.read(buffer))>0)
+				digest.update(buffer, 0, n);
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * GTFReader only uses the sequence dictionary to skip records on unknown sequences, so only the names matter.
+	 */
+	private static byte [] md5 (final SAMSequenceDictionary sequenceDictionary) {
+		final MessageDigest digest = getMD5();
+		for (SAMSequenceRecord r: sequenceDictionary.getSequences()) {
+			digest.update(r.getSequenceName().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) '\n');
+		}
+		return digest.digest();
+	}
+
+	private static MessageDigest getMD5 () {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Writes each string once, and then as a reference to the first copy.  0 is null, 1 is a new string, and n>1 is the string with id n-2.
+	 */
+	private static class StringTableWriter {
+		private final DataOutputStream out;
+		private final StringDictionary dictionary = new StringDictionary();
+
+		StringTableWriter (final DataOutputStream out) {
+			this.out=out;
+		}
+
+		void write (final String s) throws IOException {
+			if (s==null) {
+				VarInt.write(out, 0);
+				return;
+			}
+			final int size = dictionary.size();
+			final int id = dictionary.getId(s);
+			if (id==size) {
+				VarInt.write(out, 1);
+				out.writeUTF(s);
+			} else
+				VarInt.write(out, id+2);
+		}
+	}
+
+	private static class StringTableReader {
+		private final DataInputStream in;
+		private final List<String> strings = new ArrayList<>();
+
+		StringTableReader (final DataInputStream in) {
+			this.in=in;
+		}
+
+		String read () throws IOException {
+			final int code = VarInt.read(in);
+			if (code==0) return null;
+			if (code==1) {
+				final String s = in.readUTF();
+				strings.add(s);
+				return s;
+			}
+			if (code-2>=strings.size()) throw new IOException("Malformed annotation cache");
+			return strings.get(code-2);
+		}
+	}
+}
@@ -62,9 +62,19 @@ public class GeneAnnotationReader {
 	}
 
 
+	/**
+	 * If caching is on (see GTFCache), loads the genes from the binary cache of the GTF if it's up to date, otherwise parses the GTF and writes the cache.
+	 */
 	private static OverlapDetector<Gene> loadGTFFile(final File gtfFile, final SAMSequenceDictionary sequenceDictionary) {
+		final File cacheDirectory = GTFCache.getCacheDirectory();
+		final GTFCache cache = cacheDirectory==null ? null : new GTFCache(gtfFile, sequenceDictionary, cacheDirectory);
+		OverlapDetector<GeneFromGTF> genes = cache==null ? null : cache.read();
+		if (genes==null) {
+			genes = GTFReader.load(gtfFile, sequenceDictionary);
+			if (cache!=null) cache.write(genes.getAll());
+		}
 		@SuppressWarnings({ "rawtypes", "unchecked" })
-		OverlapDetector<Gene> result = (OverlapDetector) GTFReader.load(gtfFile, sequenceDictionary);
+		OverlapDetector<Gene> result = (OverlapDetector) genes;
 		return result;
 	}
 
@@ -0,0 +1,389 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.annotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+import picard.annotation.Gene;
+import picard.annotation.LocusFunction;
+
+/**
+ * A compiled form of a gene annotation that gives the same answer as AnnotationUtils.getFunctionalDataForRead without
+ * querying an OverlapDetector and assigning a locus function to every base of every alignment block.
+ *
+ * Each contig is cut at every gene, transcript, exon and coding boundary, so within a segment every gene has a single locus function.
+ * Each segment points at a state: the list of genes that overlap it, and the locus function of each of those genes.  Looking up an alignment block
+ * is a binary search for the segment it starts in, and a walk over the segments until the end of the block.
+ *
+ * The per-read results are written to a reusable ReadFunctionalData, so there are no per-read allocations.  The index itself is
+ * immutable, and can be shared by threads that each have their own ReadFunctionalData.
+ *
+ * @author nemesh
+ */
+public class GeneFunctionIndex {
+
+	private static final LocusFunction [] FUNCTIONS = LocusFunction.values();
+	private static final int INTERGENIC_BIT = functionBit(LocusFunction.INTERGENIC);
+
+	private final Gene [] genes;
+	private final int [] geneStart;
+	private final int [] geneEnd;
+	// a transcript can extend past the ends of its gene, so the locus functions of a gene cover the extent of the gene and its transcripts.
+	private final int [] extentStart;
+	private final int [] extentEnd;
+	// genes are ranked by name, and genes that share a name share a rank.
+	private final int [] geneNameRank;
+
+	// state i is the genes stateGenes[stateOffsets[i]..stateOffsets[i+1]), with locus functions in stateFunctions.
+	private final int [] stateOffsets;
+	private final int [] stateGenes;
+	private final byte [] stateFunctions;
+
+	private final Map<String, ContigIndex> contigs;
+
+	public GeneFunctionIndex (final Collection<Gene> genes) {
+		this.genes = genes.toArray(new Gene[genes.size()]);
+		this.geneStart = new int [this.genes.length];
+		this.geneEnd = new int [this.genes.length];
+		this.extentStart = new int [this.genes.length];
+		this.extentEnd = new int [this.genes.length];
+		for (int i=0; i<this.genes.length; i++) {
+			this.geneStart[i]=this.genes[i].getStart();
+			this.geneEnd[i]=this.genes[i].getEnd();
+			this.extentStart[i]=this.geneStart[i];
+			this.extentEnd[i]=this.geneEnd[i];
+			for (Gene.Transcript t: this.genes[i]) {
+				this.extentStart[i]=Math.min(this.extentStart[i], t.transcriptionStart);
+				this.extentEnd[i]=Math.max(this.extentEnd[i], t.transcriptionEnd);
+			}
+		}
+		this.geneNameRank=rankGeneNames(this.genes);
+
+		// state 0 is no genes.
+		StateBuilder states = new StateBuilder();
+		Map<String, List<Integer>> genesByContig = new HashMap<>();
+		for (int i=0; i<this.genes.length; i++)
+			genesByContig.computeIfAbsent(this.genes[i].getContig(), k -> new ArrayList<>()).add(i);
+		this.contigs = new HashMap<>();
+		for (Map.Entry<String, List<Integer>> e: genesByContig.entrySet())
+			this.contigs.put(e.getKey(), buildContig(e.getValue(), states));
+
+		this.stateOffsets=states.getOffsets();
+		this.stateGenes=states.getGenes();
+		this.stateFunctions=states.getFunctions();
+	}
+
+	private static int [] rankGeneNames (final Gene [] genes) {
+		Integer [] order = new Integer [genes.length];
+		for (int i=0; i<order.length; i++)
+			order[i]=i;
+		Arrays.sort(order, Comparator.comparing(i -> genes[i].getName()));
+		int [] result = new int [genes.length];
+		int rank=-1;
+		for (int i=0; i<order.length; i++) {
+			if (i==0 || !genes[order[i]].getName().equals(genes[order[i-1]].getName()))
+				rank++;
+			result[order[i]]=rank;
+		}
+		return result;
+	}
+
+	/**
+	 * Cut the contig at every boundary where the locus function of a gene can change, and record the state of each segment.
+	 */
+	private ContigIndex buildContig (final List<Integer> contigGenes, final StateBuilder states) {
+		List<Integer> breakpoints = new ArrayList<>();
+		for (int g: contigGenes) {
+			breakpoints.add(this.geneStart[g]);
+			breakpoints.add(this.geneEnd[g]+1);
+			breakpoints.add(this.extentStart[g]);
+			breakpoints.add(this.extentEnd[g]+1);
+			for (Gene.Transcript t: this.genes[g]) {
+				breakpoints.add(t.transcriptionStart);
+				breakpoints.add(t.transcriptionEnd+1);
+				breakpoints.add(t.codingStart);
+				breakpoints.add(t.codingEnd+1);
+				for (Gene.Transcript.Exon exon: t.exons) {
+					breakpoints.add(exon.start);
+					breakpoints.add(exon.end+1);
+				}
+			}
+		}
+		int [] positions = breakpoints.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+
+		// sweep the breakpoints, tracking the genes that overlap each one.
+		List<Integer> byStart = new ArrayList<>(contigGenes);
+		byStart.sort(Comparator.comparingInt(g -> this.extentStart[g]));
+		List<Integer> active = new ArrayList<>();
+		int nextGene=0;
+
+		int [] segmentStarts = new int [positions.length];
+		int [] segmentStates = new int [positions.length];
+		int numSegments=0;
+		LocusFunction [] function = new LocusFunction [1];
+		for (int position: positions) {
+			while (nextGene<byStart.size() && this.extentStart[byStart.get(nextGene)]<=position)
+				active.add(byStart.get(nextGene++));
+			active.removeIf(g -> this.extentEnd[g]<position);
+			active.sort(null);
+
+			int [] stateGenes = new int [active.size()];
+			byte [] stateFunctions = new byte [active.size()];
+			for (int i=0; i<active.size(); i++) {
+				int g = active.get(i);
+				// same as AnnotationUtils.getLocusFunctionsByInterval for a single base.
+				function[0]=LocusFunction.INTERGENIC;
+				for (Gene.Transcript t: this.genes[g])
+					t.assignLocusFunctionForRange(position, function);
+				stateGenes[i]=g;
+				stateFunctions[i]=(byte) function[0].ordinal();
+			}
+			int state = states.getState(stateGenes, stateFunctions);
+			// merge with the previous segment if nothing changed.
+			if (numSegments>0 && segmentStates[numSegments-1]==state)
+				continue;
+			segmentStarts[numSegments]=position;
+			segmentStates[numSegments]=state;
+			numSegments++;
+		}
+		return new ContigIndex(Arrays.copyOf(segmentStarts, numSegments), Arrays.copyOf(segmentStates, numSegments));
+	}
+
+	/**
+	 * @return A reusable holder for the results of getFunctionalDataForRead.
+	 */
+	public ReadFunctionalData newReadFunctionalData () {
+		return new ReadFunctionalData(this.genes.length);
+	}
+
+	/**
+	 * For a read, find the genes that every alignment block overlaps, and the locus functions of each gene across all the
+	 * bases of the alignment blocks.  This is the same as AnnotationUtils.getFunctionalDataForRead, with the genes sorted by name.
+	 * @param rec The read
+	 * @param result Filled in with the genes and their locus functions.
+	 */
+	public void getFunctionalDataForRead (final SAMRecord rec, final ReadFunctionalData result) {
+		result.clear();
+		final ContigIndex contig = this.contigs.get(rec.getReferenceName());
+		if (contig==null) return;
+
+		final List<AlignmentBlock> alignmentBlocks = rec.getAlignmentBlocks();
+		final int numBlocks = alignmentBlocks.size();
+		for (int b=0; b<numBlocks; b++) {
+			final AlignmentBlock block = alignmentBlocks.get(b);
+			final int start = block.getReferenceStart();
+			final int end = start+block.getLength()-1;
+			for (int segment=Math.max(0, contig.findSegment(start)); segment<contig.segmentStarts.length && contig.segmentStarts[segment]<=end; segment++) {
+				final int state = contig.segmentStates[segment];
+				for (int i=this.stateOffsets[state]; i<this.stateOffsets[state+1]; i++) {
+					final int g = this.stateGenes[i];
+					// the block must overlap the gene itself, not just one of its transcripts.
+					if (this.geneStart[g]>end || this.geneEnd[g]<start) continue;
+					result.touch(g, b);
+					int functions = functionBit(FUNCTIONS[this.stateFunctions[i]]);
+					// bases of the block outside the gene and its transcripts are intergenic for the gene.
+					if (this.extentStart[g]>start || this.extentEnd[g]<end)
+						functions|=INTERGENIC_BIT;
+					result.functions[g]|=functions;
+				}
+			}
+		}
+		result.finish(numBlocks, this.geneNameRank);
+	}
+
+	public Gene getGene (final int geneId) {
+		return this.genes[geneId];
+	}
+
+	static int functionBit (final LocusFunction f) {
+		return 1 << f.ordinal();
+	}
+
+	/**
+	 * The genes a read overlaps, sorted by name, with the locus functions of each gene as a bit per LocusFunction ordinal.
+	 * This also holds the per-gene scratch space for the lookup, so each thread needs its own.
+	 */
+	public static class ReadFunctionalData {
+		// per gene, only valid if geneStamp[g]==stamp.
+		private final int [] geneStamp;
+		private final int [] lastBlock;
+		private final int [] numBlocks;
+		private final int [] functions;
+		private int stamp=0;
+
+		private final int [] touched;
+		private int numTouched=0;
+		private int size=0;
+		private boolean duplicateGeneNames=false;
+
+		ReadFunctionalData (final int numGenes) {
+			this.geneStamp = new int [numGenes];
+			this.lastBlock = new int [numGenes];
+			this.numBlocks = new int [numGenes];
+			this.functions = new int [numGenes];
+			this.touched = new int [numGenes];
+		}
+
+		private void clear () {
+			this.stamp++;
+			this.numTouched=0;
+			this.size=0;
+			this.duplicateGeneNames=false;
+		}
+
+		private void touch (final int g, final int block) {
+			if (this.geneStamp[g]!=this.stamp) {
+				this.geneStamp[g]=this.stamp;
+				this.lastBlock[g]=-1;
+				this.numBlocks[g]=0;
+				this.functions[g]=0;
+				this.touched[this.numTouched++]=g;
+			}
+			if (this.lastBlock[g]!=block) {
+				this.lastBlock[g]=block;
+				this.numBlocks[g]++;
+			}
+		}
+
+		/**
+		 * Keep the genes that overlap every block, and sort them by name.
+		 */
+		private void finish (final int totalBlocks, final int [] geneNameRank) {
+			for (int i=0; i<this.numTouched; i++) {
+				final int g = this.touched[i];
+				if (this.numBlocks[g]!=totalBlocks) continue;
+				// insertion sort, reads overlap very few genes.
+				int j=this.size++;
+				while (j>0 && geneNameRank[this.touched[j-1]]>geneNameRank[g]) {
+					this.touched[j]=this.touched[j-1];
+					j--;
+				}
+				if (j>0 && geneNameRank[this.touched[j-1]]==geneNameRank[g])
+					this.duplicateGeneNames=true;
+				if (j<this.size-1 && geneNameRank[this.touched[j+1]]==geneNameRank[g])
+					this.duplicateGeneNames=true;
+				this.touched[j]=g;
+			}
+		}
+
+		/**
+		 * @return The number of genes the read overlaps.
+		 */
+		public int size () {
+			return this.size;
+		}
+
+		/**
+		 * @return The id of the i-th gene, in name order.  Use GeneFunctionIndex.getGene to get the gene.
+		 */
+		public int getGeneId (final int i) {
+			return this.touched[i];
+		}
+
+		/**
+		 * @return The locus functions of the i-th gene, as a bit per LocusFunction ordinal.
+		 */
+		public int getFunctions (final int i) {
+			return this.functions[this.touched[i]];
+		}
+
+		/**
+		 * @return true if two of the genes have the same name.  Their order isn't defined by name in that case.
+		 */
+		public boolean hasDuplicateGeneNames () {
+			return this.duplicateGeneNames;
+		}
+	}
+
+	private static class ContigIndex {
+		private final int [] segmentStarts;
+		private final int [] segmentStates;
+
+		ContigIndex (final int [] segmentStarts, final int [] segmentStates) {
+			this.segmentStarts=segmentStarts;
+			this.segmentStates=segmentStates;
+		}
+
+		/**
+		 * @return The index of the segment that contains the position, or -1 if the position is before the first segment.
+		 */
+		int findSegment (final int position) {
+			int idx = Arrays.binarySearch(this.segmentStarts, position);
+			return idx>=0 ? idx : -idx-2;
+		}
+	}
+
+	/**
+	 * Assigns ids to distinct states, and flattens them into arrays.
+	 */
+	private static class StateBuilder {
+		private final Map<String, Integer> ids = new HashMap<>();
+		private final List<int []> genes = new ArrayList<>();
+		private final List<byte []> functions = new ArrayList<>();
+
+		StateBuilder () {
+			getState(new int [0], new byte [0]);
+		}
+
+		int getState (final int [] stateGenes, final byte [] stateFunctions) {
+			String key = Arrays.toString(stateGenes) + Arrays.toString(stateFunctions);
+			Integer id = this.ids.get(key);
+			if (id==null) {
+				id=this.genes.size();
+				this.ids.put(key, id);
+				this.genes.add(stateGenes);
+				this.functions.add(stateFunctions);
+			}
+			return id;
+		}
+
+		int [] getOffsets () {
+			int [] result = new int [this.genes.size()+1];
+			for (int i=0; i<this.genes.size(); i++)
+				result[i+1]=result[i]+this.genes.get(i).length;
+			return result;
+		}
+
+		int [] getGenes () {
+			return this.genes.stream().flatMapToInt(Arrays::stream).toArray();
+		}
+
+		byte [] getFunctions () {
+			byte [] result = new byte [getOffsets()[this.genes.size()]];
+			int i=0;
+			for (byte [] f: this.functions)
+				for (byte b: f)
+					result[i++]=b;
+			return result;
+		}
+	}
+}
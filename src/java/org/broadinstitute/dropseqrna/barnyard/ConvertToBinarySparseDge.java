@@ -0,0 +1,89 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard;
+
+import java.io.File;
+
+import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeader;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.tools.DGEMatrix;
+import org.broadinstitute.dropseqrna.cmdline.DropSeq;
+
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import picard.cmdline.CommandLineProgram;
+import picard.cmdline.StandardOptionDefinitions;
+
+@CommandLineProgramProperties(
+        summary = "Convert a DGE in tabular, Drop-seq Matrix Market or 10x Genomics Matrix Market format to binary sparse format.  " +
+                "The binary format stores the matrix both by gene and by cell, and is memory-mapped when read, so the expression " +
+                "of a single gene or cell can be read without parsing the whole matrix.  Any DGE header in the input is preserved.",
+        oneLineSummary = "Convert a DGE to binary sparse format",
+        programGroup = DropSeq.class)
+public class ConvertToBinarySparseDge extends CommandLineProgram {
+
+    private static final Log log = Log.getInstance(ConvertToBinarySparseDge.class);
+
+    @Argument(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc="The DGE to convert.  This supports zipped formats like gz and bz2.")
+    public File INPUT;
+
+    @Argument(doc="For 10x Genomics Matrix Market input, the file of gene names corresponding to the rows of INPUT.", optional = true)
+    public File GENES;
+
+    @Argument(doc="For 10x Genomics Matrix Market input, the file of cell barcodes corresponding to the columns of INPUT.", optional = true)
+    public File CELL_BARCODES;
+
+    @Argument(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc="The binary sparse DGE to write.  May not be gzipped.")
+    public File OUTPUT;
+
+    @Argument(doc="If true, expression values are rounded to integers.  Set to false for normalized expression.")
+    public boolean FORMAT_AS_INTEGER=true;
+
+    @Override
+    protected int doWork() {
+        IOUtil.assertFileIsReadable(INPUT);
+        IOUtil.assertFileIsWritable(OUTPUT);
+        if (GENES != null) IOUtil.assertFileIsReadable(GENES);
+        if (CELL_BARCODES != null) IOUtil.assertFileIsReadable(CELL_BARCODES);
+
+        final DGEMatrix dge = DGEMatrix.parseFile(INPUT, GENES, CELL_BARCODES, null);
+        final DgeHeader header = DGEMatrix.parseDgeHeader(INPUT);
+        header.addCommand(getCommandLine());
+        log.info("Writing [" + dge.getGenes().size() + "] genes and [" + dge.getCellBarcodes().size() + "] cells to " + OUTPUT.getAbsolutePath());
+        dge.writeFile(OUTPUT, FORMAT_AS_INTEGER, DGEMatrix.FileFormat.BINARY_SPARSE, header);
+        return 0;
+    }
+
+    @Override
+    protected String[] customCommandLineValidation() {
+        if ((GENES == null) != (CELL_BARCODES == null))
+            return new String[]{"GENES and CELL_BARCODES must be specified together"};
+        return super.customCommandLineValidation();
+    }
+
+    public static void main(final String[] args) {
+        new ConvertToBinarySparseDge().instanceMainWithExit(args);
+    }
+}
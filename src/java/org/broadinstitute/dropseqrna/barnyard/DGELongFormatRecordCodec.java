@@ -26,18 +26,33 @@ package org.broadinstitute.dropseqrna.barnyard;
 import htsjdk.samtools.util.RuntimeIOException;
 import htsjdk.samtools.util.SortingCollection;
 import htsjdk.samtools.util.SortingCollection.Codec;
+import org.broadinstitute.dropseqrna.utils.StringDictionary;
+import org.broadinstitute.dropseqrna.utils.io.VarInt;
 import picard.PicardException;
 
 import java.io.*;
 
+/**
+ * Spills DGELongFormatRecords as varint ids of the cell barcode and gene, followed by the count.
+ * The strings are looked up in a dictionary that is shared by all clones of this codec, so each cell barcode and gene
+ * is only held once, and the strings aren't re-parsed each time a record is read back.
+ */
 public class DGELongFormatRecordCodec implements SortingCollection.Codec<DGELongFormatRecord> {
 
+	private final StringDictionary dictionary;
 	private DataOutputStream outputStream = null;
 	private DataInputStream inputReader = null;
 
+	public DGELongFormatRecordCodec() {
+		this(new StringDictionary());
+	}
+
+	private DGELongFormatRecordCodec(final StringDictionary dictionary) {
+		this.dictionary=dictionary;
+	}
+
 	@Override
 	public void setOutputStream(final OutputStream stream) {
-		// this.outputStream = new ErrorCheckingPrintStream(stream);
 		this.outputStream = new DataOutputStream(stream);
 	}
 
@@ -49,9 +64,9 @@ public class DGELongFormatRecordCodec implements SortingCollection.Codec<DGELong
 	@Override
 	public void encode(final DGELongFormatRecord val) {
 		try {
-			this.outputStream.writeUTF(val.getCell());
-			this.outputStream.writeUTF(val.getGene());
-			this.outputStream.writeInt(val.getCount());
+			VarInt.write(this.outputStream, this.dictionary.getId(val.getCell()));
+			VarInt.write(this.outputStream, this.dictionary.getId(val.getGene()));
+			VarInt.write(this.outputStream, val.getCount());
 		} catch (final IOException ioe) {
 			throw new RuntimeIOException("Could not encode DGELongFormat record for a sorting collection: " + ioe.getMessage(), ioe);
 		}
@@ -59,20 +74,24 @@ public class DGELongFormatRecordCodec implements SortingCollection.Codec<DGELong
 
 	@Override
 	public DGELongFormatRecord decode() {
+		final int cell;
 		try {
-            return new DGELongFormatRecord (this.inputReader.readUTF(), this.inputReader.readUTF(), this.inputReader.readInt());
-        } catch (EOFException e) {
-            return null;
-        } catch (IOException e) {
-            throw new PicardException("Exception reading DGELongFormat from temporary file.", e);
-        }
+			cell = VarInt.read(this.inputReader);
+		} catch (EOFException e) {
+			return null;
+		} catch (IOException e) {
+			throw new PicardException("Exception reading DGELongFormat from temporary file.", e);
+		}
+		try {
+			return new DGELongFormatRecord (this.dictionary.get(cell), this.dictionary.get(VarInt.read(this.inputReader)), VarInt.read(this.inputReader));
+		} catch (IOException e) {
+			throw new PicardException("Exception reading DGELongFormat from temporary file.", e);
+		}
 	}
 
-
-
 	@Override
 	public Codec<DGELongFormatRecord> clone() {
-		return new DGELongFormatRecordCodec();
+		return new DGELongFormatRecordCodec(this.dictionary);
 	}
 
-}
\ No newline at end of file
+}
@@ -32,6 +32,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -39,11 +40,15 @@ import org.apache.commons.lang.StringUtils;
 import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.barnyard.DGELongFormatRecord.CellBarcodeOrderComparator;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.BinarySparseDgeWriter;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeader;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderCodec;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderLibrary;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.UMICollection;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
+import org.broadinstitute.dropseqrna.utils.ParallelTransformingIterator;
+import org.broadinstitute.dropseqrna.utils.TransformingIterator;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamFileMergeUtil;
 import org.broadinstitute.dropseqrna.utils.readiterators.UMIIterator;
@@ -95,6 +100,10 @@ public class DigitalExpression extends DGECommandLineBase {
     @Argument (doc="An alternate output of expression where each row represents a cell, gene, and count of UMIs.  Cell/Gene pairings with 0 UMIs are not emitted.", optional=true)
     public File OUTPUT_LONG_FORMAT;
 
+    @Argument (doc="An alternate output of the DGE in binary sparse format, which can be memory-mapped and read by gene or by cell " +
+    		"without parsing the whole matrix.  Contains the same genes as OUTPUT, and the DGE header if OUTPUT_HEADER=true.  May not be gzipped.", optional=true)
+    public File OUTPUT_BINARY_SPARSE;
+
     @Argument (doc="Output only genes with at least this total expression level, after summing across all cells", optional=true)
     public Integer MIN_SUM_EXPRESSION=null;
 
@@ -105,6 +114,10 @@ public class DigitalExpression extends DGECommandLineBase {
     @Argument(shortName = "UEI", doc="If OUTPUT_HEADER=true, this is required", optional = true)
     public String UNIQUE_EXPERIMENT_ID;
 
+    @Argument(doc="Number of threads to use for UMI edit distance collapse.  When greater than 1, gene/cell UMI collections are collapsed " +
+    		"in parallel while the input is read, and results are written in the original order, so the output is the same as with 1 thread.", minValue = 1)
+    public int NUM_THREADS=1;
+
     private boolean OUTPUT_EXPRESSED_GENES_ONLY=false;
 
     @Override
@@ -118,6 +131,7 @@ public class DigitalExpression extends DGECommandLineBase {
         IOUtil.assertFileIsReadable(INPUT);
         IOUtil.assertFileIsWritable(OUTPUT);
         if (OUTPUT_LONG_FORMAT!=null) IOUtil.assertFileIsWritable(OUTPUT_LONG_FORMAT);
+        if (OUTPUT_BINARY_SPARSE!=null) IOUtil.assertFileIsWritable(OUTPUT_BINARY_SPARSE);
         if (OUTPUT_HEADER == null)
 			OUTPUT_HEADER = (UNIQUE_EXPERIMENT_ID != null);
         if (this.SUMMARY!=null) IOUtil.assertFileIsWritable(this.SUMMARY);
@@ -178,8 +192,13 @@ public class DigitalExpression extends DGECommandLineBase {
     private void digitalExpression(final List<String> cellBarcodes) {
         PrintStream out = new ErrorCheckingPrintStream(IOUtil.openFileForWriting(OUTPUT));
 
-        if (OUTPUT_HEADER)
-			writeDgeHeader(out);
+        final DgeHeader dgeHeader = OUTPUT_HEADER? buildDgeHeader(): null;
+        if (dgeHeader!=null)
+			writeDgeHeader(out, dgeHeader);
+
+        BinarySparseDgeWriter binaryWriter = null;
+        if (this.OUTPUT_BINARY_SPARSE!=null)
+        	binaryWriter = new BinarySparseDgeWriter(this.OUTPUT_BINARY_SPARSE, MatrixMarketConstants.ElementType.integer, cellBarcodes, dgeHeader);
 
         writeHeader(out, cellBarcodes);
         //TODO should the ambiguous reads handling be a parameter?  It's set to false by default for DGE to get rid of ambiguous gene assignments on reads
@@ -198,59 +217,90 @@ public class DigitalExpression extends DGECommandLineBase {
         if (this.OUTPUT_LONG_FORMAT!=null)
         	longFormatRecordCollection=makeSortingCollection(cellBarcodes);
 
-        UMICollection batch;
-        while ((batch=umiIterator.next())!=null) {
-            if (batch==null || batch.isEmpty())
+        // UMI collapse is independent for each gene/cell, so it can be done on worker threads.
+        // Results come back in the order the UMIIterator produced them, so the output is the same either way.
+        Iterator<CellGeneCount> countIterator;
+        if (this.NUM_THREADS>1) {
+        	log.info("Collapsing UMIs with [" + this.NUM_THREADS + "] threads");
+        	countIterator = new ParallelTransformingIterator<>(umiIterator, this::countUMIs, this.NUM_THREADS);
+        } else
+			countIterator = new TransformingIterator<UMICollection, CellGeneCount>(umiIterator) {
+        		@Override
+        		public CellGeneCount next() {
+        			return countUMIs(this.underlyingIterator.next());
+        		}
+        	};
+
+        while (countIterator.hasNext()) {
+            CellGeneCount count = countIterator.next();
+            if (count==null)
 				continue;
-            String currentGene = batch.getGeneName();
+            String currentGene = count.gene;
             // if just starting the loop
             if (gene==null) gene=currentGene;
-            // if the gene is the same, you're still gathering expression on that gene.
-            if (gene.equals(currentGene)) {
-
-                if (this.RARE_UMI_FILTER_THRESHOLD>0) batch.filterByUMIFrequency(this.RARE_UMI_FILTER_THRESHOLD);
-                int molBCCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, this.OUTPUT_READS_INSTEAD);
-                transcriptCountMap.put(batch.getCellBarcode(), molBCCount);
-                int readCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, true);
-                readCountMap.put(batch.getCellBarcode(), readCount);
-
-                // if you're gather the long file format, do it here.
-                if (longFormatRecordCollection!=null)
-                	addLongFormatRecord(longFormatRecordCollection, batch.getCellBarcode(), batch.getGeneName(), molBCCount);
-            }
             // you've gathered all the data for the gene, write it out and start on the next.
             if (!gene.equals(currentGene)) {
-                writeStats (gene, transcriptCountMap, cellBarcodes, out);
+                writeStats (gene, transcriptCountMap, cellBarcodes, out, binaryWriter);
                 addToSummary(readCountMap, transcriptCountMap, summaryMap);
                 transcriptCountMap.clear();
                 // start the next gene
-                if (this.RARE_UMI_FILTER_THRESHOLD>0) batch.filterByUMIFrequency(this.RARE_UMI_FILTER_THRESHOLD);
-                int molBCCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, this.OUTPUT_READS_INSTEAD);
-                transcriptCountMap.put(batch.getCellBarcode(), molBCCount);
-                int readCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, true);
-                readCountMap.put(batch.getCellBarcode(), readCount);
                 gene=currentGene;
-                // if you're gather the long file format, do it here.
-                if (longFormatRecordCollection!=null)
-                	addLongFormatRecord(longFormatRecordCollection, batch.getCellBarcode(), batch.getGeneName(), molBCCount);
-
             }
+            transcriptCountMap.put(count.cellBarcode, count.molBCCount);
+            readCountMap.put(count.cellBarcode, count.readCount);
+            // if you're gather the long file format, do it here.
+            if (longFormatRecordCollection!=null)
+            	addLongFormatRecord(longFormatRecordCollection, count.cellBarcode, count.gene, count.molBCCount);
         }
         // write out remainder
         if (transcriptCountMap.isEmpty()==false) {
-            writeStats (gene, transcriptCountMap, cellBarcodes, out);
+            writeStats (gene, transcriptCountMap, cellBarcodes, out, binaryWriter);
             addToSummary(readCountMap, transcriptCountMap, summaryMap);
         }
         out.close();
+        if (binaryWriter!=null)
+			binaryWriter.close();
         if (this.SUMMARY!=null)
 			writeSummary(summaryMap.values(), this.SUMMARY);
 
         if (this.OUTPUT_LONG_FORMAT!=null)
 			writeLongOutputFormat(longFormatRecordCollection, this.OUTPUT_LONG_FORMAT);
-        CloserUtil.close(umiIterator);
+        CloserUtil.close(countIterator);
 
     }
 
+    /**
+     * Collapse the UMIs of a single gene/cell and count the transcripts and reads.
+     * This is called from worker threads when NUM_THREADS>1, so it must not touch any shared state.
+     * @param batch The UMIs for a gene/cell.  This is modified if RARE_UMI_FILTER_THRESHOLD is set.
+     * @return The counts for the gene/cell, or null if the batch is empty.
+     */
+    private CellGeneCount countUMIs (final UMICollection batch) {
+    	if (batch==null || batch.isEmpty())
+			return null;
+    	if (this.RARE_UMI_FILTER_THRESHOLD>0) batch.filterByUMIFrequency(this.RARE_UMI_FILTER_THRESHOLD);
+    	int molBCCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, this.OUTPUT_READS_INSTEAD);
+    	int readCount = batch.getDigitalExpression(this.MIN_BC_READ_THRESHOLD, this.EDIT_DISTANCE, true);
+    	return new CellGeneCount(batch.getCellBarcode(), batch.getGeneName(), molBCCount, readCount);
+    }
+
+    /**
+     * The expression of one gene in one cell, after UMI collapse.
+     */
+    private static class CellGeneCount {
+    	private final String cellBarcode;
+    	private final String gene;
+    	private final int molBCCount;
+    	private final int readCount;
+
+    	CellGeneCount (final String cellBarcode, final String gene, final int molBCCount, final int readCount) {
+    		this.cellBarcode=cellBarcode;
+    		this.gene=gene;
+    		this.molBCCount=molBCCount;
+    		this.readCount=readCount;
+    	}
+    }
+
     private void addLongFormatRecord (final SortingCollection<DGELongFormatRecord> longFormatRecords, final String cellBarcode, final String gene, final int umiCount) {
     	DGELongFormatRecord r = new DGELongFormatRecord(cellBarcode, gene, umiCount);
     	longFormatRecords.add(r);
@@ -278,7 +328,7 @@ public class DigitalExpression extends DGECommandLineBase {
     	CloserUtil.close(out);
     }
 
-    private void writeDgeHeader(final PrintStream out) {
+    private DgeHeader buildDgeHeader() {
         DgeHeader header = new DgeHeader();
         header.setExpressionFormat(DgeHeader.ExpressionFormat.raw);
         DgeHeaderLibrary lib = new DgeHeaderLibrary(UNIQUE_EXPERIMENT_ID);
@@ -306,6 +356,10 @@ public class DigitalExpression extends DGECommandLineBase {
         setDgeHeaderLibraryField(lib, "LOCUS_FUNCTION_LIST", this.LOCUS_FUNCTION_LIST.toString());
         header.addLibrary(lib);
         header.addCommand(getCommandLine());
+        return header;
+    }
+
+    private void writeDgeHeader(final PrintStream out, final DgeHeader header) {
         final OutputStreamWriter writer = new OutputStreamWriter(out);
         new DgeHeaderCodec().encode(writer, header);
         try {
@@ -327,7 +381,12 @@ public class DigitalExpression extends DGECommandLineBase {
 
 
 
-    private void writeStats (final String gene, final Map<String, Integer> countMap, final List<String> cellBarcodes, final PrintStream out) {
+    /**
+     * Write the expression of a gene, if it passes the expression filters.
+     * @param binaryWriter If non-null, the gene is also written here.
+     */
+    private void writeStats (final String gene, final Map<String, Integer> countMap, final List<String> cellBarcodes, final PrintStream out,
+    		final BinarySparseDgeWriter binaryWriter) {
 
         int totalCount=0;
         List<String> line = new ArrayList<>(cellBarcodes.size()+1);
@@ -347,6 +406,14 @@ public class DigitalExpression extends DGECommandLineBase {
         String h = StringUtils.join(line, "\t");
         out.println(h);
         //OutputWriterUtil.writeResult(h, out);
+        if (binaryWriter!=null) {
+        	binaryWriter.addGene(gene);
+        	for (int i=0; i<cellBarcodes.size(); i++) {
+        		Integer count = countMap.get(cellBarcodes.get(i));
+        		if (count!=null && count!=0)
+					binaryWriter.writeValue(i, count);
+        	}
+        }
     }
 
 
@@ -23,6 +23,9 @@
  */
 package org.broadinstitute.dropseqrna.barnyard;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
@@ -34,7 +37,9 @@ import org.broadinstitute.dropseqrna.barnyard.digitalexpression.UMICollection;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
 import org.broadinstitute.dropseqrna.utils.OutputWriterUtil;
+import org.broadinstitute.dropseqrna.utils.ReadCollector;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamFileMergeUtil;
+import org.broadinstitute.dropseqrna.utils.readiterators.SamHeaderAndIterator;
 import org.broadinstitute.dropseqrna.utils.readiterators.StrandStrategy;
 import org.broadinstitute.dropseqrna.utils.readiterators.UMIIterator;
 import picard.annotation.LocusFunction;
@@ -46,7 +51,10 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 @CommandLineProgramProperties(
         summary = "For each gene, count the number of times each molecular barcode is observed [The UMI]" +
@@ -73,20 +81,41 @@ public class GatherMolecularBarcodeDistributionByGene extends DGECommandLineBase
 
 		IOUtil.assertFileIsReadable(INPUT);
 		IOUtil.assertFileIsWritable(OUTPUT);
-		BufferedWriter out = IOUtil.openFileForBufferedWriting(OUTPUT);
 
-		writePerTranscriptHeader(out);
+		Set<String> cellBarcodes=getCellBarcodes();
+
+		UMIIterator umiIterator = new UMIIterator(SamFileMergeUtil.mergeInputs(Collections.singletonList(this.INPUT), false),
+				GENE_NAME_TAG, GENE_STRAND_TAG, GENE_FUNCTION_TAG,
+        		this.STRAND_STRATEGY, this.LOCUS_FUNCTION_LIST, this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG,
+        		this.READ_MQ, false, cellBarcodes, true);
+
+		writeOutput(umiIterator, cellBarcodes);
+		return 0;
+	}
 
+	/**
+	 * Gathers the molecular barcode distribution for this program's arguments, and writes it to OUTPUT when finished.
+	 * Lets this program share a pass over the BAM with other programs.
+	 *
+	 * Records are copied and handed to a background thread that sorts them and writes the output once all records have been seen.
+	 * If cell barcodes are selected by read, gene or transcript counts instead of CELL_BC_FILE, the BAM is scanned once up front to select them.
+	 * @param header The header of the BAM the records come from.
+	 */
+	public ReadCollector getReadCollector (final SAMFileHeader header) {
+		IOUtil.assertFileIsWritable(OUTPUT);
+		return new DistributionCollector(header, getCellBarcodes());
+	}
 
-		Set<String> cellBarcodes=new HashSet<>(new BarcodeListRetrieval().getCellBarcodes(this.INPUT, this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG,
+	private Set<String> getCellBarcodes () {
+		return new HashSet<>(new BarcodeListRetrieval().getCellBarcodes(this.INPUT, this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG,
                 this.GENE_NAME_TAG, this.GENE_STRAND_TAG, this.GENE_FUNCTION_TAG, this.STRAND_STRATEGY, this.LOCUS_FUNCTION_LIST,
                 this.CELL_BC_FILE, this.READ_MQ, this.MIN_NUM_TRANSCRIPTS_PER_CELL,
                 this.MIN_NUM_GENES_PER_CELL, this.MIN_NUM_READS_PER_CELL, this.NUM_CORE_BARCODES, this.EDIT_DISTANCE, this.MIN_BC_READ_THRESHOLD));
+	}
 
-		UMIIterator umiIterator = new UMIIterator(SamFileMergeUtil.mergeInputs(Collections.singletonList(this.INPUT), false),
-				GENE_NAME_TAG, GENE_STRAND_TAG, GENE_FUNCTION_TAG,
-        		this.STRAND_STRATEGY, this.LOCUS_FUNCTION_LIST, this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG,
-        		this.READ_MQ, false, cellBarcodes, true);
+	private void writeOutput (final UMIIterator umiIterator, final Set<String> cellBarcodes) {
+		BufferedWriter out = IOUtil.openFileForBufferedWriting(OUTPUT);
+		writePerTranscriptHeader(out);
 
 		UMICollection batch;
 
@@ -104,10 +133,110 @@ public class GatherMolecularBarcodeDistributionByGene extends DGECommandLineBase
 		} catch (IOException io) {
 			throw new TranscriptomeException("Problem writing file", io);
 		}
-
-		return 0;
 	}
 
+	/**
+	 * Feeds the records it accepts to a UMIIterator running on its own thread, as the UMIIterator needs to sort all records before it can
+	 * return the first UMI.  The records are copied, as the UMIIterator modifies them.
+	 */
+	private class DistributionCollector implements ReadCollector, Runnable {
+		private static final int MAX_RECORDS_IN_FLIGHT = 10000;
+
+		private final SAMFileHeader header;
+		private final Set<String> cellBarcodes;
+		private final BlockingQueue<SAMRecord> queue = new ArrayBlockingQueue<>(MAX_RECORDS_IN_FLIGHT);
+		// marks the end of the input in the queue.
+		private final SAMRecord endOfInput;
+		private final Thread thread;
+		private volatile Throwable failure=null;
+
+		DistributionCollector (final SAMFileHeader header, final Set<String> cellBarcodes) {
+			this.header=header;
+			this.cellBarcodes=cellBarcodes;
+			this.endOfInput=new SAMRecord(header);
+			this.thread=new Thread(this, DistributionCollector.class.getSimpleName());
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		@Override
+		public void acceptRead(final SAMRecord r) {
+			// the UMIIterator would drop these anyway, so don't bother copying them.
+			if (r.getAttribute(CELL_BARCODE_TAG)==null || r.getAttribute(GENE_NAME_TAG)==null || r.getAttribute(MOLECULAR_BARCODE_TAG)==null) return;
+			put(Utils.getClone(r));
+		}
+
+		@Override
+		public void finish() {
+			put(this.endOfInput);
+			try {
+				this.thread.join();
+			} catch (InterruptedException e) {
+				throw new TranscriptomeException("Interrupted while waiting for the molecular barcode distribution", e);
+			}
+			if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+			if (failure instanceof Error) throw (Error) failure;
+			if (failure!=null) throw new TranscriptomeException(failure.getMessage(), failure);
+		}
+
+		private void put (final SAMRecord r) {
+			try {
+				queue.put(r);
+			} catch (InterruptedException e) {
+				throw new TranscriptomeException("Interrupted while handing records to the molecular barcode distribution", e);
+			}
+		}
+
+		@Override
+		public void run() {
+			QueueIterator records = new QueueIterator();
+			try {
+				UMIIterator umiIterator = new UMIIterator(new SamHeaderAndIterator(header, records),
+						GENE_NAME_TAG, GENE_STRAND_TAG, GENE_FUNCTION_TAG,
+						STRAND_STRATEGY, LOCUS_FUNCTION_LIST, CELL_BARCODE_TAG, MOLECULAR_BARCODE_TAG,
+						READ_MQ, false, cellBarcodes, true);
+				writeOutput(umiIterator, cellBarcodes);
+			} catch (Throwable t) {
+				failure=t;
+				// keep taking records so the reader doesn't block.
+				while (records.hasNext())
+					records.next();
+			}
+		}
+
+		private class QueueIterator implements CloseableIterator<SAMRecord> {
+			private SAMRecord next=null;
+			private boolean exhausted=false;
+
+			@Override
+			public boolean hasNext() {
+				if (next==null && !exhausted) {
+					try {
+						next=queue.take();
+					} catch (InterruptedException e) {
+						throw new TranscriptomeException("Interrupted while waiting for the next record", e);
+					}
+					if (next==endOfInput) {
+						next=null;
+						exhausted=true;
+					}
+				}
+				return next!=null;
+			}
+
+			@Override
+			public SAMRecord next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				SAMRecord r = next;
+				next=null;
+				return r;
+			}
+
+			@Override
+			public void close() {
+			}
+		}
+	}
 
 	private void writePerTranscriptStats (final String gene, final String cellBarcode, final ObjectCounter<String> counts, final BufferedWriter out) {
 		for (String key: counts.getKeys()) {
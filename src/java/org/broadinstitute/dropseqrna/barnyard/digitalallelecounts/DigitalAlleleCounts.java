@@ -57,7 +57,8 @@ public class DigitalAlleleCounts {
 	private Character referenceBase=null;
 
 	private Map<String, ObjectCounter<Character>> umiReadCounts = new HashMap<String, ObjectCounter<Character>>();
-	private final MapBarcodesByEditDistance med = new MapBarcodesByEditDistance(false, 1, 0);
+	// single threaded collapse keeps no state between calls, so one instance is shared by every DAC on every thread.
+	private static final MapBarcodesByEditDistance med = new MapBarcodesByEditDistance(false, 1, 0);
 
 	/**
 	 * Construct a DAC for a single cell/gene/snp.
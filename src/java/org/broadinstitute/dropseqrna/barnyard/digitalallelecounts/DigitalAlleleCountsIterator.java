@@ -47,9 +47,19 @@ public class DigitalAlleleCountsIterator implements CloseableIterator<DigitalAll
 	private final SAMSequenceDictionary dict;
 
 	public DigitalAlleleCountsIterator (final SNPUMIBasePileupIterator iter, final int baseQualityThreshold) {
+		this(iter, iter.getSNPIntervals().getHeader().getSequenceDictionary(), baseQualityThreshold);
+	}
+
+	/**
+	 * Build DigitalAlleleCounts from pileups that are not read from a BAM, such as a query of a SNPUMIBasePileupStore.
+	 * @param iter The pileups, grouped by snp/gene/cell.
+	 * @param dict The sequence dictionary of the SNPs.
+	 * @param baseQualityThreshold
+	 */
+	public DigitalAlleleCountsIterator (final Iterator<SNPUMIBasePileup> iter, final SAMSequenceDictionary dict, final int baseQualityThreshold) {
 
 		this.baseQualityThreshold=baseQualityThreshold;
-		this.dict=iter.getSNPIntervals().getHeader().getSequenceDictionary();
+		this.dict=dict;
 
         final Comparator<SNPUMIBasePileup> groupingComparator = new Comparator<SNPUMIBasePileup>() {
             @Override
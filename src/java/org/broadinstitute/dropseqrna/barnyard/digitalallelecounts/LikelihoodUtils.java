@@ -25,6 +25,8 @@ package org.broadinstitute.dropseqrna.barnyard.digitalallelecounts;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.math3.stat.StatUtils;
 
@@ -41,11 +43,17 @@ public class LikelihoodUtils {
 
 	private static LikelihoodUtils instance = null;
 	// holds a list of phred to probability scores, ie: 10->0.9, 20->0.99, 30->0.999, etc.
-	private double [] phredToProbability;
+	private final double [] phredToProbability;
+	// per phred score likelihoods of a single observation, keyed by the maximumObservationProbability.
+	private final PhredTable uncappedTable;
+	private final Map<Double, PhredTable> cappedTables = new ConcurrentHashMap<>();
 
 	private LikelihoodUtils() {
 		phredToProbability=new double [128];
-		Arrays.fill(phredToProbability, -1d);
+		for (int i=0; i<phredToProbability.length; i++)
+			// if you divide by -10 as an integer you get a rounded number.
+			phredToProbability[i]=Math.pow(10, i/ (double)-10);
+		uncappedTable=new PhredTable(phredToProbability, null);
 	}
 
 	public static synchronized LikelihoodUtils getInstance() {
@@ -142,13 +150,64 @@ public class LikelihoodUtils {
 		if (genotypes.size()!=mixture.size())
 			throw new IllegalArgumentException("Genotype list and mixture list must be the same size.");
 
-		double result=0;
+		double [] mix = new double [mixture.size()];
+		for (int i=0; i<mix.length; i++)
+			mix[i]=mixture.get(i);
+		return getLogLikelihoodMixedModel(refAllele, altAllele, genotypes.toArray(new GenotypeType[genotypes.size()]), mix,
+				toArray(bases), toArray(qualities), missingDataPenality, genotypeProbability, maximumObservationProbability);
+	}
 
-		for (int i=0; i<bases.size(); i++) {
-			double likelihood = getLikelihoodMixedModel(refAllele, altAllele, genotypes, mixture, bases.get(i), qualities.get(i), missingDataPenality, genotypeProbability, maximumObservationProbability);			
-			result+=Math.log10(likelihood);						
+	/**
+	 * Calculate the likelihood for a pileup of bases and qualities using a mixture of different models.
+	 * The same as the List version, but the mixture is summed by genotype state up front, and the per observation likelihoods
+	 * come from lookup tables and are multiplied together, so there's no log per observation.
+	 * @see #getLogLikelihoodMixedModel(byte, byte, List, List, List, List, Double, Double, Double)
+	 */
+	public double getLogLikelihoodMixedModel (final byte refAllele, final byte altAllele, final GenotypeType [] genotypes,
+			final double [] mixture, final byte [] bases, final byte [] qualities, final Double missingDataPenality, final Double genotypeProbability, final Double maximumObservationProbability) {
+
+		if (genotypes.length!=mixture.length)
+			throw new IllegalArgumentException("Genotype list and mixture list must be the same size.");
+
+		// the mixture of each genotype state.
+		double homRef=0, homVar=0, het=0, missing=0, sumMixture=0;
+		for (int i=0; i<genotypes.length; i++) {
+			GenotypeType genotype = genotypes[i];
+			if ((genotype==GenotypeType.NO_CALL || genotype==GenotypeType.UNAVAILABLE) && missingDataPenality==null)
+				throw new IllegalArgumentException("If using NO_CALL or UNAVAILABLE genotypes, must set a missingDataPenality!");
+			sumMixture+=mixture[i];
+			switch (genotype) {
+			case HOM_REF: homRef+=mixture[i]; break;
+			case HOM_VAR: homVar+=mixture[i]; break;
+			case HET:
+				if (refAllele==altAllele)
+					throw new IllegalArgumentException("For heterozygous likelihood, ref allele [" + refAllele +"] and alt allele [" + altAllele+ "] must not match!");
+				het+=mixture[i]; break;
+			case NO_CALL:
+			case UNAVAILABLE: missing+=mixture[i]*missingDataPenality; break;
+			default:
+			}
 		}
-		return result;
+		double scale = (genotypeProbability==null ? 1 : genotypeProbability) / sumMixture;
+
+		PhredTable table = getPhredTable(maximumObservationProbability);
+		double product=1;
+		double result=0;
+		for (int i=0; i<bases.length; i++) {
+			int q = checkQuality(qualities[i]);
+			byte base = bases[i];
+			double correct=table.correct[q];
+			double error=table.error[q];
+			double likelihood = homRef*(base==refAllele ? correct : error) + homVar*(base==altAllele ? correct : error)
+					+ het*(base==refAllele || base==altAllele ? table.hetMatch[q] : error) + missing;
+			product*=likelihood*scale;
+			// move the product into log space before it underflows.
+			if (product < 1e-100) {
+				result+=Math.log10(product);
+				product=1;
+			}
+		}
+		return result+Math.log10(product);
 	}
 	
 	public double getLogLikelihoodMixedModel (double [] [] likelihoods, final List<Double> mixture) {
@@ -166,57 +225,6 @@ public class LikelihoodUtils {
 	}
 
 
-	/**
-	 * Calculates the likelihood for a list of genotype states for a single observation.
-	 * @param ref the reference allele for the variant
-	 * @param alt the alternate allele for the variant
-	 * @param genotypes The list of genotypes to calculate likelihoods for
-	 * @param mixture A list of mixture coefficientss for the list of genotypes.
-	 * @param base The observed base in the sequence pileup
-	 * @param quality The quality of the observed base
-	 * @param missingDataPenality a pre-computed likelihood to use instead of computing a likelihood for a genotype.
-	 * @param genotypeProbability The likelihood of the genotype.  Can be null to ignore.
-	 * @param maximumObservationProbability If set, this iss the maximum penalty that can be generated for a single observation.
-	 * @return the likelihood of the base/quality, given a mixture of genotypes.
-	 */
-	private double getLikelihoodMixedModel(final byte ref, final byte alt, final List<GenotypeType> genotypes, final List<Double> mixture,
-			final Byte base, final Byte quality, final Double missingDataPenality, final Double genotypeProbability, final Double maximumObservationProbability) {
-
-		double result=0;
-		double sumMixture=0;
-		// for each genotype model, calculate the likelihood, multiply by the mixture for that model, then add to the result.
-		for (int i=0; i<genotypes.size(); i++) {
-			GenotypeType genotype = genotypes.get(i);
-			if ((genotype==GenotypeType.NO_CALL || genotype==GenotypeType.UNAVAILABLE) && missingDataPenality==null)
-				throw new IllegalArgumentException("If using NO_CALL or UNAVAILABLE genotypes, must set a missingDataPenality!");
-			double mix = mixture.get(i);
-			sumMixture+=mix;
-			double likelihood = 0;
-			// calculate the single likelihood.
-			switch (genotype) {
-			case HOM_REF:
-				likelihood=getLikelihoodHomozygote(ref, ref, base, quality, null, maximumObservationProbability); break;
-			case HOM_VAR:
-				likelihood=getLikelihoodHomozygote(alt, alt, base, quality, null, maximumObservationProbability); break;
-			case HET:
-				likelihood=getLikelihoodHeterozygote(ref, alt, base, quality, null, maximumObservationProbability); break;
-			case NO_CALL:
-				likelihood=missingDataPenality; break;
-			case UNAVAILABLE:
-				likelihood=missingDataPenality; break;
-			default:
-			}
-			// multiply the calculated model likelihood by the ratio
-			likelihood=likelihood*mix;
-			// multiply the result by the genotype probability if it is not null
-			if (genotypeProbability!=null)
-				likelihood*=genotypeProbability;
-			result+=likelihood;
-		}
-		result=result/sumMixture;		
-		return result;
-	}
-	
 	/**
 	 * Calculates the likelihood for a list of genotype states for a single UMI observation.
 	 * Here, the likelihoods for the genotype states have been precomputed.  The number of likelihoods should be equal to the number of mixture coefficients.
@@ -253,32 +261,39 @@ public class LikelihoodUtils {
      */
 	public double [] getLikelihoodManyObservations (final byte ref, final byte alt, final List<GenotypeType> genotypes, final Byte base, final Byte quality, 
 			final Double missingDataPenality, final Double genotypeProbability, final Double maximumObservationProbability) {
-		
-		double [] result = new double [genotypes.size()];
-		
-		for (int i=0; i<genotypes.size(); i++) {
-			GenotypeType genotype = genotypes.get(i);
+		return getLikelihoodManyObservations(ref, alt, genotypes.toArray(new GenotypeType[genotypes.size()]), base.byteValue(), quality.byteValue(),
+				missingDataPenality, genotypeProbability, maximumObservationProbability);
+	}
+
+	/**
+	 * The same as the List version, but the likelihoods of the observation come from a single lookup table.
+	 * @see #getLikelihoodManyObservations(byte, byte, List, Byte, Byte, Double, Double, Double)
+	 */
+	public double [] getLikelihoodManyObservations (final byte ref, final byte alt, final GenotypeType [] genotypes, final byte base, final byte quality,
+			final Double missingDataPenality, final Double genotypeProbability, final Double maximumObservationProbability) {
+		PhredTable table = getPhredTable(maximumObservationProbability);
+		int q = checkQuality(quality);
+		double correct=table.correct[q];
+		double error=table.error[q];
+
+		double [] result = new double [genotypes.length];
+		for (int i=0; i<genotypes.length; i++) {
+			GenotypeType genotype = genotypes[i];
 			if ((genotype==GenotypeType.NO_CALL || genotype==GenotypeType.UNAVAILABLE) && missingDataPenality==null)
 				throw new IllegalArgumentException("If using NO_CALL or UNAVAILABLE genotypes, must set a missingDataPenality!");
-			double likelihood = 0;
-			// calculate the single likelihood.
 			switch (genotype) {
-			case HOM_REF:
-				likelihood=getLikelihoodHomozygote(ref, ref, base, quality, null, maximumObservationProbability); break;
-			case HOM_VAR:
-				likelihood=getLikelihoodHomozygote(alt, alt, base, quality, null, maximumObservationProbability); break;
+			case HOM_REF: result[i]= base==ref ? correct : error; break;
+			case HOM_VAR: result[i]= base==alt ? correct : error; break;
 			case HET:
-				likelihood=getLikelihoodHeterozygote(ref, alt, base, quality, null, maximumObservationProbability); break;
+				if (ref==alt)
+					throw new IllegalArgumentException("For heterozygous likelihood, ref allele [" + ref +"] and alt allele [" + alt+ "] must not match!");
+				result[i]= base==ref || base==alt ? table.hetMatch[q] : error; break;
 			case NO_CALL:
-				likelihood=missingDataPenality; break;
-			case UNAVAILABLE:
-				likelihood=missingDataPenality; break;
+			case UNAVAILABLE: result[i]=missingDataPenality; break;
 			default:
 			}
-			result[i]=likelihood;
-		}				
+		}
 		return result;
-		
 	}
 
 	public double getLogLikelihood (final char refAllele, final char altAllele, final List<Byte> bases, final List<Byte> qualities, final Double genotypeQuality, final Double maximumObservationProbability) {
@@ -288,13 +303,67 @@ public class LikelihoodUtils {
 	}
 
 	public double getLogLikelihood (final byte refAllele, final byte altAllele, final List<Byte> bases, final List<Byte> qualities, final Double genotypeQuality, final Double maximumObservationProbability) {
+		return getLogLikelihood(refAllele, altAllele, toArray(bases), toArray(qualities), genotypeQuality, maximumObservationProbability);
+	}
 
+	public double getLogLikelihood (final byte refAllele, final byte altAllele, final byte [] bases, final byte [] qualities, final Double genotypeQuality, final Double maximumObservationProbability) {
 		if (refAllele==altAllele)
 			return getLogLikelihoodHomozygote(refAllele, altAllele, bases, qualities, genotypeQuality, maximumObservationProbability);
 		else
 			return getLogLikelihoodHeterozygote(refAllele, altAllele, bases, qualities, genotypeQuality, maximumObservationProbability);
 	}
 
+	/**
+	 * Calculate the log likelihood of a pileup for many genotypes in a single pass over the observations.
+	 * For each genotype this is the same as getLogLikelihood with the genotype's alleles, and NO_CALL or UNAVAILABLE genotypes
+	 * score log10(missingDataPenality) per observation.
+	 * The log likelihoods of the homozygous reference, homozygous alternate and heterozygous states are summed once from lookup tables,
+	 * so scoring many donors at a SNP costs little more than scoring one.
+	 * @param refAllele the reference allele for the variant
+	 * @param altAllele the alternate allele for the variant
+	 * @param genotypes The genotypes to score, for example the genotype of each donor at the variant.
+	 * @param bases The bases observed
+	 * @param qualities The qualities of the bases observed, in the same order as the bases.
+	 * @param missingDataPenality The likelihood of an observation for NO_CALL or UNAVAILABLE genotypes.  Can be null if there are no such genotypes.
+	 * @param genotypeQuality Multiplies the likelihood of each observation for called genotypes.  Can be null to ignore.
+	 * @param maximumObservationProbability If set, this is the maximum penalty that can be generated for a single observation.
+	 * @return The log10 likelihood of each genotype, in the same order as the genotypes.
+	 */
+	public double [] getLogLikelihoods (final byte refAllele, final byte altAllele, final GenotypeType [] genotypes, final byte [] bases, final byte [] qualities,
+			final Double missingDataPenality, final Double genotypeQuality, final Double maximumObservationProbability) {
+		PhredTable table = getPhredTable(maximumObservationProbability);
+		double homRef=0, homVar=0, het=0;
+		for (int i=0; i<bases.length; i++) {
+			int q = checkQuality(qualities[i]);
+			byte base = bases[i];
+			double logCorrect=table.logCorrect[q];
+			double logError=table.logError[q];
+			homRef+= base==refAllele ? logCorrect : logError;
+			homVar+= base==altAllele ? logCorrect : logError;
+			het+= base==refAllele || base==altAllele ? table.logHetMatch[q] : logError;
+		}
+		double logGenotypeQuality = genotypeQuality==null ? 0 : bases.length*Math.log10(genotypeQuality);
+
+		double [] result = new double [genotypes.length];
+		for (int i=0; i<genotypes.length; i++) {
+			GenotypeType genotype = genotypes[i];
+			if ((genotype==GenotypeType.NO_CALL || genotype==GenotypeType.UNAVAILABLE) && missingDataPenality==null)
+				throw new IllegalArgumentException("If using NO_CALL or UNAVAILABLE genotypes, must set a missingDataPenality!");
+			switch (genotype) {
+			case HOM_REF: result[i]=homRef+logGenotypeQuality; break;
+			case HOM_VAR: result[i]=homVar+logGenotypeQuality; break;
+			case HET:
+				if (refAllele==altAllele)
+					throw new IllegalArgumentException("For heterozygous likelihood, ref allele [" + refAllele +"] and alt allele [" + altAllele+ "] must not match!");
+				result[i]=het+logGenotypeQuality; break;
+			case NO_CALL:
+			case UNAVAILABLE: result[i]=bases.length*Math.log10(missingDataPenality); break;
+			default:
+			}
+		}
+		return result;
+	}
+
 	public double getLikelihood (final byte refAllele, final byte altAllele, final Byte base, final Byte quality, final Double genotypeQuality, final Double maximumObservationProbability) {
 		if (refAllele==altAllele)
 			return getLikelihoodHomozygote(refAllele, altAllele, base, quality, genotypeQuality, maximumObservationProbability);
@@ -312,17 +381,20 @@ public class LikelihoodUtils {
 	 * @param qualities
 	 * @return
 	 */
-	private double getLogLikelihoodHomozygote (final byte refAllele, final byte altAllele, final List<Byte> bases, final List<Byte> qualities, final Double genotypeQuality, final Double maximumObservationProbability) {
+	private double getLogLikelihoodHomozygote (final byte refAllele, final byte altAllele, final byte [] bases, final byte [] qualities, final Double genotypeQuality, final Double maximumObservationProbability) {
 		if (refAllele!=altAllele)
 			throw new IllegalArgumentException("For homozygous likelihood, ref allele [" + refAllele +"] and alt allele [" + altAllele+ "] must match!");
 
+		PhredTable table = getPhredTable(maximumObservationProbability);
 		double logScore=0;
 		// iterate over bases and sum the log scores.
-		for (int i=0; i<bases.size(); i++)
-			logScore+=Math.log10(getLikelihoodHomozygote(refAllele, altAllele, bases.get(i), qualities.get(i), genotypeQuality, maximumObservationProbability));
+		for (int i=0; i<bases.length; i++) {
+			int q = checkQuality(qualities[i]);
+			logScore+= bases[i]==refAllele ? table.logCorrect[q] : table.logError[q];
+		}
+		if (genotypeQuality!=null)
+			logScore+=bases.length*Math.log10(genotypeQuality);
 		return logScore;
-		
-		
 	}
 
 	/**
@@ -334,13 +406,13 @@ public class LikelihoodUtils {
 	 * @return
 	 */
 	private double getLikelihoodHomozygote (final byte refAllele, final byte altAllele, final Byte base, final Byte quality, final Double genotypeQuality, final Double maximumObservationProbability) {
-		double prob = phredScoreToErrorProbability(quality);
-		prob=getMaxErrorScore(prob, maximumObservationProbability);
+		PhredTable table = getPhredTable(maximumObservationProbability);
+		int q = checkQuality(quality);
 		double score;
 		if (base==refAllele)
-			score = 1-prob;
+			score = table.correct[q];
 		else
-			score = prob;
+			score = table.error[q];
 		if (genotypeQuality!=null)
 			score*=genotypeQuality;
 		return score;
@@ -356,17 +428,20 @@ public class LikelihoodUtils {
 	 * @param qualities
 	 * @return
 	 */
-	private double getLogLikelihoodHeterozygote (final byte refAllele, final byte altAllele, final List<Byte> bases, final List<Byte> qualities, final Double genotypeQuality, final Double maximumObservationProbability) {
+	private double getLogLikelihoodHeterozygote (final byte refAllele, final byte altAllele, final byte [] bases, final byte [] qualities, final Double genotypeQuality, final Double maximumObservationProbability) {
 		if (refAllele==altAllele)
 			throw new IllegalArgumentException("For heterozygous likelihood, ref allele [" + refAllele +"] and alt allele [" + altAllele+ "] must not match!");
 
+		PhredTable table = getPhredTable(maximumObservationProbability);
 		double logScore=0;
 		// iterate over bases and sum the log scores.
-		for (int i=0; i<bases.size(); i++) {
-			//accumulate
-			double score = getLikelihoodHeterozygote(refAllele, altAllele, bases.get(i), qualities.get(i), genotypeQuality, maximumObservationProbability);
-			logScore+=Math.log10(score);
+		for (int i=0; i<bases.length; i++) {
+			int q = checkQuality(qualities[i]);
+			byte base = bases[i];
+			logScore+= base==refAllele || base==altAllele ? table.logHetMatch[q] : table.logError[q];
 		}
+		if (genotypeQuality!=null)
+			logScore+=bases.length*Math.log10(genotypeQuality);
 		return logScore;
 	}
 
@@ -382,24 +457,71 @@ public class LikelihoodUtils {
 		if (refAllele==altAllele)
 			throw new IllegalArgumentException("For heterozygous likelihood, ref allele [" + refAllele +"] and alt allele [" + altAllele+ "] must not match!");
 
-		double errorProb = phredScoreToErrorProbability(quality);
-		errorProb=getMaxErrorScore(errorProb, maximumObservationProbability);
+		PhredTable table = getPhredTable(maximumObservationProbability);
+		int q = checkQuality(quality);
 		double score;
 		if (base==refAllele || base==altAllele)
-			score=((1-errorProb)/2)+(errorProb/2);
+			score=table.hetMatch[q];
 		else
-			score=errorProb;
+			score=table.error[q];
 		if (genotypeQuality!=null)
 			score*=genotypeQuality;
 		return (score);
 	}
 
-	private double getMaxErrorScore(final double errorProb, final Double maximumObservationProbability) {
+	private static double getMaxErrorScore(final double errorProb, final Double maximumObservationProbability) {
 		if (maximumObservationProbability==null)
 			return errorProb;
 		return Math.max(errorProb, maximumObservationProbability);
 	}
 
+	private PhredTable getPhredTable (final Double maximumObservationProbability) {
+		if (maximumObservationProbability==null)
+			return this.uncappedTable;
+		return this.cappedTables.computeIfAbsent(maximumObservationProbability, p -> new PhredTable(this.phredToProbability, p));
+	}
+
+	private static int checkQuality (final byte quality) {
+		if (quality<0)
+			throw new IllegalArgumentException("Phred score must be between 0 and 127.");
+		return quality;
+	}
+
+	private static byte [] toArray (final List<Byte> list) {
+		byte [] result = new byte [list.size()];
+		for (int i=0; i<result.length; i++)
+			result[i]=list.get(i);
+		return result;
+	}
+
+	/**
+	 * The likelihood of a single observation at each phred score, and their logs.
+	 * The error probability is raised to the maximumObservationProbability if one is set.
+	 */
+	private static class PhredTable {
+		// the base matches a homozygous genotype: 1-error
+		private final double [] correct = new double [128];
+		// the base doesn't match the genotype: error
+		private final double [] error = new double [128];
+		// the base matches either allele of a heterozygous genotype: (1-error)/2 + error/2
+		private final double [] hetMatch = new double [128];
+		private final double [] logCorrect = new double [128];
+		private final double [] logError = new double [128];
+		private final double [] logHetMatch = new double [128];
+
+		private PhredTable (final double [] phredToProbability, final Double maximumObservationProbability) {
+			for (int q=0; q<phredToProbability.length; q++) {
+				double errorProb = getMaxErrorScore(phredToProbability[q], maximumObservationProbability);
+				correct[q]=1-errorProb;
+				error[q]=errorProb;
+				hetMatch[q]=((1-errorProb)/2)+(errorProb/2);
+				logCorrect[q]=Math.log10(correct[q]);
+				logError[q]=Math.log10(error[q]);
+				logHetMatch[q]=Math.log10(hetMatch[q]);
+			}
+		}
+	}
+
 	//convert to regular probability from Phred base quality: 10^(quality/-10)
 	/**
 	 * Converts from the phread score to the probability the base was called incorrectly.
@@ -409,16 +531,7 @@ public class LikelihoodUtils {
 	public double phredScoreToErrorProbability (final byte phreadScore) {
 		if (phreadScore<0 || phreadScore>127)
 			throw new IllegalArgumentException("Phred score must be between 0 and 127.");
-		// check cache.
-		double cachedResult = this.phredToProbability[phreadScore];
-		if (cachedResult!=-1)
-			return cachedResult;
-
-		// if you divide by -10 as an integer you get a rounded number.
-		double d1= phreadScore/ (double)-10;
-		double r = Math.pow(10, d1);
-		this.phredToProbability[phreadScore]=r;
-		return (r);
+		return this.phredToProbability[phreadScore];
 	}
 
 
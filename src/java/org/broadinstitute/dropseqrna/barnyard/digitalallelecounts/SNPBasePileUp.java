@@ -128,12 +128,27 @@ public abstract class SNPBasePileUp {
 	 * @return A length 2 byte array containing the base and quality.  Empty if the read does not overlap the interval.
 	 */
 	public byte [] getBaseAndQualityOverlappingInterval (final SAMRecord r) {
-		byte [] result = new byte [2];
+		int offset = getReadOffset(r, this.getPosition());
+		// if the position is assigned, then add to the pileup.
+		if (offset!=-1) {
+			byte [] result = new byte [2];
+			result[0]=r.getReadBases()[offset];
+			result[1]=r.getBaseQualities()[offset];
+			return (result);
+		}
+		return (ArrayUtils.EMPTY_BYTE_ARRAY);
+	}
 
+	/**
+	 * Find the read base aligned to a reference position.
+	 * @param r The read
+	 * @param position The 1-based reference position
+	 * @return The 0-based offset into the read bases and qualities, or -1 if the position is not inside an alignment block of the read.
+	 */
+	static int getReadOffset (final SAMRecord r, final int position) {
 		List<CigarElement> elements = r.getCigar().getCigarElements();
 		Iterator<AlignmentBlock> blocks = r.getAlignmentBlocks().iterator();
 
-		int finalSNPLocalPosition=-1;
 		int lengthTraversed=0;
 
 		for (CigarElement ce: elements) {
@@ -143,35 +158,20 @@ public abstract class SNPBasePileUp {
 				// get the next alignment block
 				AlignmentBlock b = blocks.next();
 				int refStart = b.getReferenceStart();
-				int snpLocalPos=this.getPosition() - refStart +1;
+				int snpLocalPos=position - refStart +1;
 				int blockLength=b.getLength();
 
 				// is the local position inside this alignment block?
 				// if not, move onto the next block.
-				if (snpLocalPos >0 && snpLocalPos<=blockLength) {
-					// found it!  Done.
-					finalSNPLocalPosition=snpLocalPos+lengthTraversed;
-					break;
-				}
+				if (snpLocalPos >0 && snpLocalPos<=blockLength)
+					// found it!  arrays 0 based.
+					return snpLocalPos+lengthTraversed-1;
 			}
 			// consume the bases if necessary and move on to the next element.
 			if (co.consumesReadBases())
 				lengthTraversed+=ce.getLength();
 		}
-
-		// if the position is assigned, then add to the pileup.
-		if (finalSNPLocalPosition!=-1) {
-			// arrays 0 based.
-			byte [] quals = r.getBaseQualities();
-			byte [] bases = r.getReadBases();
-			byte base = bases[finalSNPLocalPosition-1];
-			// char baseChar = StringUtil.byteToChar(base);
-			byte qual = quals[finalSNPLocalPosition-1];
-			result[0]=base;
-			result[1]=qual;
-			return (result);
-		}
-		return (ArrayUtils.EMPTY_BYTE_ARRAY);
+		return -1;
 	}
 
 	public abstract void addRead (final SAMRecord r);
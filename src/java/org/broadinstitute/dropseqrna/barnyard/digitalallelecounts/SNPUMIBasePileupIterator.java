@@ -25,6 +25,7 @@ package org.broadinstitute.dropseqrna.barnyard.digitalallelecounts;
 
 import java.io.File;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -43,6 +44,7 @@ import org.broadinstitute.dropseqrna.utils.readiterators.SamHeaderAndIterator;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamRecordSortingIteratorFactory;
 import org.broadinstitute.dropseqrna.utils.readiterators.StrandStrategy;
 
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.util.CloseableIterator;
@@ -57,6 +59,9 @@ import picard.annotation.LocusFunction;
 public class SNPUMIBasePileupIterator implements CloseableIterator<SNPUMIBasePileup>{
     private static final Log LOG = Log.getInstance(SNPUMIBasePileupIterator.class);
 	private final GroupingIterator<SAMRecord> atoi;
+	private final SNPUMICellReadIteratorWrapper snpumiCellReadIterator;
+	// set instead of atoi when the reads can be piled up without sorting.
+	private final StreamingSNPUMIBasePileupIterator streamingIterator;
 	private final String geneTag;
 	private final String cellBarcodeTag;
 	private final String molecularBarcodeTag;
@@ -154,7 +159,16 @@ public class SNPUMIBasePileupIterator implements CloseableIterator<SNPUMIBasePil
      	// Filter/assign reads based on functional annotations
      	GeneFunctionIteratorWrapper gfteratorWrapper = new GeneFunctionIteratorWrapper(filteringIterator2, geneTag, geneStrandTag, geneFunctionTag, assignReadsToAllGenes, strandStrategy, acceptedLociFunctions);
 
-        SNPUMICellReadIteratorWrapper snpumiCellReadIterator = new SNPUMICellReadIteratorWrapper(gfteratorWrapper, snpIntervals, cellBarcodeTag, cellBarcodes, geneTag, snpTag, readMQ);
+        // SNP ordered pileups of coordinate sorted reads can be built as the reads go by.
+        if (canStream(headerAndIter.header, snpIntervals, order)) {
+        	this.streamingIterator = new StreamingSNPUMIBasePileupIterator(gfteratorWrapper, snpIntervals, cellBarcodeTag, cellBarcodes, geneTag, molecularBarcodeTag, functionTag, order);
+        	this.atoi=null;
+        	this.snpumiCellReadIterator=null;
+        	return;
+        }
+        this.streamingIterator=null;
+
+        this.snpumiCellReadIterator = new SNPUMICellReadIteratorWrapper(gfteratorWrapper, snpIntervals, cellBarcodeTag, cellBarcodes, geneTag, snpTag, readMQ);
 
         // create comparators in the order the data should be sorted
         SAMSequenceDictionary sd = snpIntervals.getHeader().getSequenceDictionary();
@@ -190,12 +204,37 @@ public class SNPUMIBasePileupIterator implements CloseableIterator<SNPUMIBasePil
 		this.atoi = new GroupingIterator<>(sortingIterator, multiComparator);
 	}
 
+	/**
+	 * Reads can be piled up without sorting if they are coordinate sorted, the output is ordered by SNP first,
+	 * and the contigs of the SNPs are in the same order in the BAM and SNP sequence dictionaries.
+	 */
+	static boolean canStream (final SAMFileHeader header, final IntervalList snpIntervals, final SortOrder order) {
+		if (order==SortOrder.CELL_SNP || header.getSortOrder()!=SAMFileHeader.SortOrder.coordinate)
+			return false;
+		SAMSequenceDictionary snpDict = snpIntervals.getHeader().getSequenceDictionary();
+		SAMSequenceDictionary bamDict = header.getSequenceDictionary();
+		List<String> contigs = snpIntervals.getIntervals().stream().map(Interval::getContig).distinct().collect(Collectors.toList());
+		if (contigs.stream().anyMatch(c -> snpDict.getSequenceIndex(c)==-1))
+			return false;
+		contigs.sort(Comparator.comparingInt(snpDict::getSequenceIndex));
+		int previous=-1;
+		for (String c: contigs) {
+			int index = bamDict.getSequenceIndex(c);
+			if (index==-1) continue; // no reads on this contig.
+			if (index < previous) return false;
+			previous=index;
+		}
+		return true;
+	}
+
 	public SortOrder getSortOrder() {
 		return this.sortOrder;
 	}
 	
 	@Override
 	public SNPUMIBasePileup next() {
+		if (this.streamingIterator!=null)
+			return this.streamingIterator.hasNext() ? this.streamingIterator.next() : null;
 		if (!this.atoi.hasNext())
 			return null;
 
@@ -214,8 +253,7 @@ public class SNPUMIBasePileupIterator implements CloseableIterator<SNPUMIBasePil
 	}
 
 	private SNPUMIBasePileup getInitialPileup (final SAMRecord rec) {
-		String snpID=rec.getStringAttribute(this.snpTag);
-		Interval snpInterval = IntervalTagComparator.fromString(snpID);
+		Interval snpInterval = this.snpumiCellReadIterator.getSNPInterval(rec);
 		String gene=rec.getStringAttribute(this.geneTag);
 		String cell =rec.getStringAttribute(this.cellBarcodeTag);
 		String molecularBarcode = rec.getStringAttribute(this.molecularBarcodeTag);
@@ -242,16 +280,21 @@ public class SNPUMIBasePileupIterator implements CloseableIterator<SNPUMIBasePil
 		
 	@Override
 	public void remove() {
-		this.atoi.remove();
+		if (this.streamingIterator!=null)
+			this.streamingIterator.remove();
+		else
+			this.atoi.remove();
 	}
 
 	@Override
 	public void close() {
-        CloserUtil.close(this.atoi);
+        CloserUtil.close(this.streamingIterator!=null ? this.streamingIterator : this.atoi);
 	}
 
 	@Override
 	public boolean hasNext() {
+		if (this.streamingIterator!=null)
+			return this.streamingIterator.hasNext();
 		return this.atoi.hasNext();
 	}
 
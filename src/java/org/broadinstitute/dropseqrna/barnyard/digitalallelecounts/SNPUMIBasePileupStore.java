@@ -0,0 +1,559 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalallelecounts;
+
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import org.broadinstitute.dropseqrna.utils.IntervalTagComparator;
+import org.broadinstitute.dropseqrna.utils.StringDictionary;
+import org.broadinstitute.dropseqrna.utils.io.VarInt;
+import picard.annotation.LocusFunction;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A file of SNPUMIBasePileup objects, indexed so the pileups of a few SNPs or cells can be read back without another pass over the BAM.
+ *
+ * The pileups of each SNP are written as one block, one column at a time (genes, cells, UMIs, locus functions, base counts, bases, qualities).
+ * After the blocks, the file holds the sequence dictionary, the locus function names, the gene and cell names, one entry per SNP with the offset of its block,
+ * and for each cell the list of SNPs it has pileups for.  The SNP entries are in genomic order, so an interval query is a binary search
+ * and a seek to each overlapping block.
+ *
+ * Pileups are written with a Writer in the order SNPUMIBasePileupIterator produces them with SortOrder SNP_GENE or SNP_CELL, and queries
+ * return them in the same order, so they can be fed to DigitalAlleleCountsIterator again.  A store is not thread-safe.
+ * @author nemesh
+ */
+public class SNPUMIBasePileupStore implements Closeable {
+
+	private static final Log log = Log.getInstance(SNPUMIBasePileupStore.class);
+
+	public static final String STORE_EXTENSION = ".snp_pileups";
+	private static final int MAGIC = 0x44535053;
+	// change this when the format changes.
+	private static final int VERSION = 2;
+
+	private final File file;
+	private final RandomAccessFile in;
+	private final SAMSequenceDictionary dict;
+	// the locus function of each bit in a block's locus function column.  The names are stored, so the file doesn't depend on the order of the enum.
+	private final LocusFunction [] locusFunctions;
+	private final List<String> names;
+	private final int numCells;
+	// the cell ids in the name table, in the order they were first seen.
+	private final int [] cellIds;
+	// the SNPs in genomic order, and the file offset of the block with each SNP's pileups.
+	private final Interval [] snps;
+	private final long [] offsets;
+	// the longest SNP, so an interval query knows how far before its start to look.
+	private final int maxSNPLength;
+	// for each cell in cellIds, the indexes of the SNPs the cell has pileups at.
+	private final int [][] cellSNPs;
+
+	/**
+	 * Open a store and load its index.  The blocks of pileups are only read by queries.
+	 */
+	public SNPUMIBasePileupStore (final File file) {
+		IOUtil.assertFileIsReadable(file);
+		this.file=file;
+		try {
+			this.in = new RandomAccessFile(file, "r");
+			if (in.readInt()!=MAGIC)
+				throw new IllegalArgumentException(file + " is not a SNP pileup store");
+			final int version = in.readInt();
+			if (version!=VERSION)
+				throw new IllegalArgumentException("SNP pileup store " + file + " has version [" + version + "], expected [" + VERSION + "]");
+			in.seek(in.length()-Long.BYTES);
+			final long indexOffset = in.readLong();
+			// a store whose writer was never closed has no index.
+			if (indexOffset<Integer.BYTES*2 || indexOffset>in.length()-Long.BYTES)
+				throw new IllegalArgumentException("SNP pileup store " + file + " has no index, it may not have been written completely");
+			final byte [] indexBytes = new byte [(int) (in.length()-Long.BYTES-indexOffset)];
+			in.seek(indexOffset);
+			in.readFully(indexBytes);
+			final DataInputStream index = new DataInputStream(new ByteArrayInputStream(indexBytes));
+
+			final List<SAMSequenceRecord> sequences = new ArrayList<>();
+			final int numSequences = VarInt.read(index);
+			for (int i=0; i<numSequences; i++)
+				sequences.add(new SAMSequenceRecord(index.readUTF(), index.readInt()));
+			this.dict = new SAMSequenceDictionary(sequences);
+
+			this.locusFunctions = new LocusFunction [VarInt.read(index)];
+			for (int i=0; i<locusFunctions.length; i++) {
+				final String name = index.readUTF();
+				try {
+					locusFunctions[i] = LocusFunction.valueOf(name);
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("SNP pileup store " + file + " has an unknown locus function [" + name + "]", e);
+				}
+			}
+
+			final int numNames = VarInt.read(index);
+			this.names = new ArrayList<>(numNames);
+			for (int i=0; i<numNames; i++)
+				this.names.add(index.readUTF());
+
+			final int numSNPs = VarInt.read(index);
+			this.snps = new Interval [numSNPs];
+			this.offsets = new long [numSNPs];
+			int maxLength=0;
+			for (int i=0; i<numSNPs; i++) {
+				final String contig = dict.getSequence(VarInt.read(index)).getSequenceName();
+				final int start = index.readInt();
+				final int end = index.readInt();
+				final boolean negativeStrand = index.readBoolean();
+				final String name = index.readBoolean() ? index.readUTF() : null;
+				this.snps[i] = new Interval(contig, start, end, negativeStrand, name);
+				this.offsets[i] = index.readLong();
+				maxLength = Math.max(maxLength, end-start+1);
+			}
+			this.maxSNPLength=maxLength;
+
+			this.numCells = VarInt.read(index);
+			this.cellIds = new int [numCells];
+			this.cellSNPs = new int [numCells][];
+			for (int i=0; i<numCells; i++) {
+				this.cellIds[i] = VarInt.read(index);
+				final int [] snpIndexes = new int [VarInt.read(index)];
+				int previous=0;
+				for (int j=0; j<snpIndexes.length; j++) {
+					previous += VarInt.read(index);
+					snpIndexes[j]=previous;
+				}
+				this.cellSNPs[i]=snpIndexes;
+			}
+		} catch (IOException e) {
+			throw new RuntimeIOException("Error reading SNP pileup store " + file, e);
+		}
+		log.info("Opened SNP pileup store " + file + " with [" + snps.length + "] SNPs and [" + numCells + "] cells");
+	}
+
+	public SAMSequenceDictionary getSequenceDictionary() {
+		return this.dict;
+	}
+
+	/**
+	 * @return The SNPs that have pileups, in genomic order.
+	 */
+	public List<Interval> getSNPIntervals() {
+		return Collections.unmodifiableList(Arrays.asList(this.snps));
+	}
+
+	/**
+	 * @return The cell barcodes that have pileups, in the order they were first written.
+	 */
+	public List<String> getCellBarcodes() {
+		final List<String> result = new ArrayList<>(numCells);
+		for (int id: cellIds)
+			result.add(names.get(id));
+		return result;
+	}
+
+	/**
+	 * @return All pileups in the store.
+	 */
+	public Iterator<SNPUMIBasePileup> iterator () {
+		return query(null, null);
+	}
+
+	/**
+	 * @return The pileups of all SNPs that overlap the interval.
+	 */
+	public Iterator<SNPUMIBasePileup> query (final Interval interval) {
+		return query(interval, null);
+	}
+
+	/**
+	 * @return The pileups of these cells at all SNPs.
+	 */
+	public Iterator<SNPUMIBasePileup> queryCells (final Collection<String> cellBarcodes) {
+		return query(null, cellBarcodes);
+	}
+
+	/**
+	 * Get the pileups of a set of cells at the SNPs that overlap an interval.
+	 * Only the blocks of SNPs that overlap the interval and have pileups for at least one of the cells are read.
+	 * @param interval The interval to query, or null for all SNPs.
+	 * @param cellBarcodes The cells to query, or null for all cells.
+	 * @return The pileups, in the order they were written.
+	 */
+	public Iterator<SNPUMIBasePileup> query (final Interval interval, final Collection<String> cellBarcodes) {
+		int first=0;
+		int last=snps.length;
+		if (interval!=null) {
+			final int contigIndex = dict.getSequenceIndex(interval.getContig());
+			if (contigIndex==-1) return Collections.emptyIterator();
+			// SNPs are sorted by start, so the first SNP that can overlap starts at most maxSNPLength-1 bases before the interval.
+			first = lowerBound(contigIndex, interval.getStart()-maxSNPLength+1);
+			last = lowerBound(contigIndex, interval.getEnd()+1);
+		}
+		Set<Integer> cellSet=null;
+		boolean [] selected = new boolean [snps.length];
+		if (cellBarcodes==null)
+			Arrays.fill(selected, first, last, true);
+		else {
+			cellSet = new HashSet<>();
+			final Set<String> wanted = new HashSet<>(cellBarcodes);
+			for (int i=0; i<numCells; i++)
+				if (wanted.contains(names.get(cellIds[i]))) {
+					cellSet.add(cellIds[i]);
+					for (int snpIndex: cellSNPs[i])
+						if (snpIndex>=first && snpIndex<last)
+							selected[snpIndex]=true;
+				}
+		}
+		final List<Integer> snpIndexes = new ArrayList<>();
+		for (int i=first; i<last; i++)
+			if (selected[i] && (interval==null || snps[i].overlaps(interval)))
+				snpIndexes.add(i);
+		return new BlockIterator(snpIndexes.iterator(), cellSet);
+	}
+
+	/**
+	 * @return The index of the first SNP at or after the position on the contig.
+	 */
+	private int lowerBound (final int contigIndex, final int position) {
+		int low=0;
+		int high=snps.length;
+		while (low<high) {
+			final int mid = (low+high) >>> 1;
+			final int cmp = compare(snps[mid], contigIndex, position);
+			if (cmp<0) low=mid+1;
+			else high=mid;
+		}
+		return low;
+	}
+
+	private int compare (final Interval snp, final int contigIndex, final int position) {
+		final int result = Integer.compare(dict.getSequenceIndex(snp.getContig()), contigIndex);
+		if (result!=0) return result;
+		return Integer.compare(snp.getStart(), position);
+	}
+
+	private List<SNPUMIBasePileup> readBlock (final int snpIndex, final Set<Integer> cellSet) {
+		final byte [] block;
+		try {
+			in.seek(offsets[snpIndex]);
+			block = new byte [in.readInt()];
+			in.readFully(block);
+		} catch (IOException e) {
+			throw new RuntimeIOException("Error reading SNP pileup store " + file, e);
+		}
+		final DataInputStream data = new DataInputStream(new ByteArrayInputStream(block));
+		try {
+			final int n = VarInt.read(data);
+			final int [] genes = readVarInts(data, n);
+			final int [] cells = readVarInts(data, n);
+			final String [] umis = new String [n];
+			for (int i=0; i<n; i++)
+				umis[i]=data.readUTF();
+			final int [] functions = readVarInts(data, n);
+			final int [] numBases = readVarInts(data, n);
+			int totalBases=0;
+			for (int count: numBases)
+				totalBases+=count;
+			final byte [] bases = new byte [totalBases];
+			data.readFully(bases);
+			final byte [] qualities = new byte [totalBases];
+			data.readFully(qualities);
+
+			final Interval snp = snps[snpIndex];
+			final List<SNPUMIBasePileup> result = new ArrayList<>(n);
+			int offset=0;
+			for (int i=0; i<n; i++) {
+				final int end = offset+numBases[i];
+				if (cellSet==null || cellSet.contains(cells[i])) {
+					final SNPUMIBasePileup p = new SNPUMIBasePileup(snp, names.get(genes[i]), names.get(cells[i]), umis[i]);
+					for (int f=0; f<locusFunctions.length; f++)
+						if ((functions[i] & (1 << f))!=0)
+							p.addLocusFunction(locusFunctions[f]);
+					p.setBasesAndQualities(Arrays.copyOfRange(bases, offset, end), Arrays.copyOfRange(qualities, offset, end));
+					result.add(p);
+				}
+				offset=end;
+			}
+			return result;
+		} catch (IOException e) {
+			throw new RuntimeIOException("Malformed block in SNP pileup store " + file, e);
+		}
+	}
+
+	private static int [] readVarInts (final DataInputStream in, final int n) throws IOException {
+		final int [] result = new int [n];
+		for (int i=0; i<n; i++)
+			result[i]=VarInt.read(in);
+		return result;
+	}
+
+	@Override
+	public void close() {
+		CloserUtil.close(this.in);
+	}
+
+	/**
+	 * Reads the blocks of a list of SNPs one at a time.
+	 */
+	private class BlockIterator implements Iterator<SNPUMIBasePileup> {
+		private final Iterator<Integer> snpIndexes;
+		private final Set<Integer> cellSet;
+		private Iterator<SNPUMIBasePileup> current = Collections.emptyIterator();
+
+		BlockIterator (final Iterator<Integer> snpIndexes, final Set<Integer> cellSet) {
+			this.snpIndexes=snpIndexes;
+			this.cellSet=cellSet;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!current.hasNext() && snpIndexes.hasNext())
+				current = readBlock(snpIndexes.next(), cellSet).iterator();
+			return current.hasNext();
+		}
+
+		@Override
+		public SNPUMIBasePileup next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return current.next();
+		}
+	}
+
+	/**
+	 * Writes pileups to a store.  The pileups of a SNP must be added together, and SNPs must be added in the order of the sequence dictionary.
+	 */
+	public static class Writer implements Closeable {
+		private final File file;
+		private final SAMSequenceDictionary dict;
+		private final DataOutputStream out;
+		private long position;
+		// gene and cell names share one table.
+		private final StringDictionary names = new StringDictionary();
+		private final List<Interval> snps = new ArrayList<>();
+		private final List<Long> offsets = new ArrayList<>();
+		// the name ids of the cells in the order they were first seen, and the SNPs each cell has pileups at.
+		private final List<Integer> cellIds = new ArrayList<>();
+		private final List<int []> cellSNPs = new ArrayList<>();
+		private final List<Integer> cellSNPCounts = new ArrayList<>();
+		// the position of each name id in cellIds, or -1 for genes.
+		private int [] cellIndexes = new int [0];
+
+		private final List<SNPUMIBasePileup> block = new ArrayList<>();
+		private boolean closed=false;
+
+		public Writer (final File file, final SAMSequenceDictionary dict) {
+			IOUtil.assertFileIsWritable(file);
+			this.file=file;
+			this.dict=dict;
+			try {
+				this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), Defaults.BUFFER_SIZE));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+			} catch (IOException e) {
+				throw new RuntimeIOException("Error writing SNP pileup store " + file, e);
+			}
+			this.position = out.size();
+		}
+
+		public void add (final SNPUMIBasePileup p) {
+			if (closed) throw new IllegalStateException("SNP pileup store " + file + " is closed");
+			if (!block.isEmpty()) {
+				final int cmp = IntervalTagComparator.compare(block.get(0).getSNPInterval(), p.getSNPInterval(), dict);
+				if (cmp>0)
+					throw new IllegalArgumentException("Pileups must be added in SNP order, but SNP [" + p.getSNPInterval() +
+							"] was added after [" + block.get(0).getSNPInterval() + "]");
+				if (cmp<0)
+					writeBlock();
+			}
+			block.add(p);
+		}
+
+		/**
+		 * Add all the pileups from an iterator.
+		 */
+		public void addAll (final Iterator<SNPUMIBasePileup> iter) {
+			while (iter.hasNext())
+				add(iter.next());
+		}
+
+		private void writeBlock () {
+			final Interval snp = block.get(0).getSNPInterval();
+			if (dict.getSequenceIndex(snp.getContig())==-1)
+				throw new IllegalArgumentException("SNP [" + snp + "] is on a contig that is not in the sequence dictionary");
+			final int snpIndex = snps.size();
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream data = new DataOutputStream(bytes);
+			try {
+				VarInt.write(data, block.size());
+				for (SNPUMIBasePileup p: block)
+					VarInt.write(data, names.getId(p.getGene()));
+				for (SNPUMIBasePileup p: block) {
+					final int cellId = names.getId(p.getCell());
+					VarInt.write(data, cellId);
+					addCellSNP(cellId, snpIndex);
+				}
+				for (SNPUMIBasePileup p: block)
+					data.writeUTF(p.getMolecularBarcode());
+				// bit i is the locus function with ordinal i, and the index records their names.
+				for (SNPUMIBasePileup p: block) {
+					int functions=0;
+					for (LocusFunction f: p.getLocusFunctions())
+						functions |= 1 << f.ordinal();
+					VarInt.write(data, functions);
+				}
+				for (SNPUMIBasePileup p: block)
+					VarInt.write(data, p.getNumBases());
+				for (SNPUMIBasePileup p: block)
+					for (Byte b: p.getBases())
+						data.writeByte(b);
+				for (SNPUMIBasePileup p: block)
+					for (Byte q: p.getQualities())
+						data.writeByte(q);
+
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			} catch (IOException e) {
+				throw new RuntimeIOException("Error writing SNP pileup store " + file, e);
+			}
+			snps.add(snp);
+			offsets.add(position);
+			position += Integer.BYTES + bytes.size();
+			block.clear();
+		}
+
+		/**
+		 * Record that a cell has pileups at a SNP.  Blocks are written in SNP order, so each cell's list stays sorted.
+		 */
+		private void addCellSNP (final int cellId, final int snpIndex) {
+			if (cellId>=cellIndexes.length) {
+				final int oldLength = cellIndexes.length;
+				cellIndexes = Arrays.copyOf(cellIndexes, Math.max(cellId+1, oldLength*2));
+				Arrays.fill(cellIndexes, oldLength, cellIndexes.length, -1);
+			}
+			if (cellIndexes[cellId]==-1) {
+				cellIndexes[cellId]=cellIds.size();
+				cellIds.add(cellId);
+				cellSNPs.add(new int [4]);
+				cellSNPCounts.add(0);
+			}
+			final int cell = cellIndexes[cellId];
+			int [] list = cellSNPs.get(cell);
+			final int count = cellSNPCounts.get(cell);
+			if (count>0 && list[count-1]==snpIndex) return;
+			if (count==list.length) {
+				list = Arrays.copyOf(list, count*2);
+				cellSNPs.set(cell, list);
+			}
+			list[count]=snpIndex;
+			cellSNPCounts.set(cell, count+1);
+		}
+
+		/**
+		 * Write the last block and the index.  Calling this more than once has no effect.
+		 */
+		@Override
+		public void close() {
+			if (closed) return;
+			closed=true;
+			if (!block.isEmpty())
+				writeBlock();
+			try {
+				final long indexOffset = position;
+				VarInt.write(out, dict.size());
+				for (SAMSequenceRecord r: dict.getSequences()) {
+					out.writeUTF(r.getSequenceName());
+					out.writeInt(r.getSequenceLength());
+				}
+				final LocusFunction [] locusFunctions = LocusFunction.values();
+				VarInt.write(out, locusFunctions.length);
+				for (LocusFunction f: locusFunctions)
+					out.writeUTF(f.name());
+				VarInt.write(out, names.size());
+				for (int i=0; i<names.size(); i++)
+					out.writeUTF(names.get(i));
+				VarInt.write(out, snps.size());
+				for (int i=0; i<snps.size(); i++) {
+					final Interval snp = snps.get(i);
+					VarInt.write(out, dict.getSequenceIndex(snp.getContig()));
+					out.writeInt(snp.getStart());
+					out.writeInt(snp.getEnd());
+					out.writeBoolean(snp.isNegativeStrand());
+					out.writeBoolean(snp.getName()!=null);
+					if (snp.getName()!=null) out.writeUTF(snp.getName());
+					out.writeLong(offsets.get(i));
+				}
+				VarInt.write(out, cellIds.size());
+				for (int i=0; i<cellIds.size(); i++) {
+					VarInt.write(out, cellIds.get(i));
+					final int [] list = cellSNPs.get(i);
+					final int count = cellSNPCounts.get(i);
+					VarInt.write(out, count);
+					// the SNP indexes are sorted, so write the differences.
+					int previous=0;
+					for (int j=0; j<count; j++) {
+						VarInt.write(out, list[j]-previous);
+						previous=list[j];
+					}
+				}
+				out.writeLong(indexOffset);
+				out.close();
+			} catch (IOException e) {
+				throw new RuntimeIOException("Error writing SNP pileup store " + file, e);
+			}
+			log.info("Wrote [" + snps.size() + "] SNPs to SNP pileup store " + file);
+		}
+
+		/**
+		 * Stop writing and delete the file, for when the pileups could not all be added.  Calling this after close has no effect.
+		 */
+		public void discard() {
+			if (closed) return;
+			closed=true;
+			CloserUtil.close(out);
+			IOUtil.deleteFiles(file);
+		}
+	}
+}
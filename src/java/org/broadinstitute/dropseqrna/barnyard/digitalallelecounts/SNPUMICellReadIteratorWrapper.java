@@ -25,6 +25,7 @@ package org.broadinstitute.dropseqrna.barnyard.digitalallelecounts;
 
 import htsjdk.samtools.AlignmentBlock;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMRecord.SAMTagAndValue;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
@@ -41,7 +42,10 @@ public class SNPUMICellReadIteratorWrapper extends CountChangingIteratorWrapper<
 	private Set<String> cellBarcodeList;
 	private String geneTag;
 	private final String snpTag;
-	private final OverlapDetector<Interval> snpIntervals;
+	private final SAMSequenceDictionary dict;
+	// decodes the index stored in the SNP tag.
+	private final List<Interval> snps;
+	private final OverlapDetector<Integer> snpIntervals;
 
 
 	/**
@@ -73,11 +77,39 @@ public class SNPUMICellReadIteratorWrapper extends CountChangingIteratorWrapper<
 
 
 		// construct OverlapDetector
-		OverlapDetector<Interval> od = new OverlapDetector<>(0, 0);
-		od.addAll(snpIntervals.getIntervals(), snpIntervals.getIntervals());
+		this.dict=snpIntervals.getHeader().getSequenceDictionary();
+		this.snps=getSortedSNPs(snpIntervals);
+		OverlapDetector<Integer> od = new OverlapDetector<>(0, 0);
+		for (int i=0; i<this.snps.size(); i++)
+			od.addLhs(i, this.snps.get(i));
 		this.snpIntervals=od;
 	}
 
+	/**
+	 * The SNPs in tag sort order.  Only the first SNP at each position is kept.
+	 * The intervals are round tripped through the String tag encoding, so they carry the same name and strand as a String tagged SNP.
+	 */
+	static List<Interval> getSortedSNPs (final IntervalList snpIntervals) {
+		SAMSequenceDictionary dict = snpIntervals.getHeader().getSequenceDictionary();
+		Set<Interval> seen = new HashSet<>();
+		List<Interval> result = new ArrayList<>();
+		for (Interval i: snpIntervals.getIntervals())
+			if (seen.add(i))
+				result.add(IntervalTagComparator.fromString(IntervalTagComparator.toString(i)));
+		result.sort((i1, i2) -> IntervalTagComparator.compare(i1, i2, dict));
+		return result;
+	}
+
+	/**
+	 * Decode the SNP tag of a read produced by this iterator.
+	 * @param r A read tagged by this iterator
+	 * @return The SNP the read was tagged with.
+	 */
+	public Interval getSNPInterval (final SAMRecord r) {
+		int [] value = (int []) r.getAttribute(this.snpTag);
+		return this.snps.get(value[3]);
+	}
+
     @Override
     protected void processRecord(final SAMRecord r) {
         String cellBC=r.getStringAttribute(cellBarcodeTag);
@@ -95,27 +127,27 @@ public class SNPUMICellReadIteratorWrapper extends CountChangingIteratorWrapper<
 	/**
 	 * Check if a read overlaps any SNPs in the OverlapDetector.  Tag reads with SNPs.
 	 * If more than 1 SNP tags a read, make a read for each SNP.
+	 * The tag is the binary encoding of the SNP, with the index of the SNP in the sorted SNP list to break ties and decode the tag.
 	 * Simplified since data goes through GeneFunctionIteratorWrapper to take care of how reads/genes interact.
 	 */
 	private void processSNP (final SAMRecord r) {
 		List<AlignmentBlock> blocks = r.getAlignmentBlocks();
 
-		Collection<String> snps = new HashSet<>();
+		Collection<Integer> snps = new LinkedHashSet<>();
 
 		for (AlignmentBlock b: blocks) {
 			int start = b.getReferenceStart();
 			int end = start + b.getLength() -1;
 
 			Interval i = new Interval(r.getReferenceName(), start, end);
-			Collection<Interval> overlaps = this.snpIntervals.getOverlaps(i);
-			for (Interval o: overlaps)
-				snps.add(IntervalTagComparator.toString(o));
+			snps.addAll(this.snpIntervals.getOverlaps(i));
 		}
 
 		// 1 read per SNP.
-		for (String snp:snps) {
+		for (int snp:snps) {
+			Interval o = this.snps.get(snp);
 			SAMRecord rr = Utils.getClone(r);
-			rr.setAttribute(this.snpTag, snp);
+			rr.setAttribute(this.snpTag, IntervalTagComparator.toBinary(this.dict.getSequenceIndex(o.getContig()), o.getStart(), o.getEnd(), snp));
 			queueRecordForOutput(rr);
 		}
 	}
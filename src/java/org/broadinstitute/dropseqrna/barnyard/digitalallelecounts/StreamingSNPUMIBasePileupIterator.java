@@ -0,0 +1,301 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalallelecounts;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import picard.annotation.LocusFunction;
+
+/**
+ * Generates SNPUMIBasePileup objects from coordinate sorted reads without cloning or sorting the reads.
+ *
+ * The SNPs are walked in step with the reads.  Each read that overlaps a SNP records its gene, cell, UMI, base and quality
+ * in that SNP's buffer.  Once the reads have moved past a SNP, the buffer is grouped by gene/cell/UMI (or cell/gene/UMI) and
+ * the pileups are returned, so memory scales with the reads overlapping the SNPs currently open rather than the whole BAM.
+ * Pileups are returned in the same order as SNPUMIBasePileupIterator produces them by sorting with SortOrder.SNP_GENE or SortOrder.SNP_CELL.
+ * @author nemesh
+ *
+ */
+class StreamingSNPUMIBasePileupIterator implements CloseableIterator<SNPUMIBasePileup> {
+
+	private final Iterator<SAMRecord> underlyingIterator;
+	private final String geneTag;
+	private final String cellBarcodeTag;
+	private final String molecularBarcodeTag;
+	private final String functionTag;
+	private final Set<String> cellBarcodes;
+	private final boolean cellFirst;
+	private final SAMSequenceDictionary dict;
+	private final Map<String, List<Interval>> snpsByContig;
+
+	private final ArrayDeque<SNPBuffer> openSNPs = new ArrayDeque<>();
+	private final ArrayDeque<SNPUMIBasePileup> pileups = new ArrayDeque<>();
+
+	private String currentContig=null;
+	private int currentContigIndex=-1;
+	private List<Interval> contigSNPs=Collections.emptyList();
+	private int nextSNP=0;
+	private int lastReadStart=0;
+
+	/**
+	 * @param underlyingIterator Coordinate sorted reads, already filtered on map quality, missing tags and gene function.
+	 * @param snpIntervals The SNPs to pile up.
+	 * @param cellBarcodeTag The cell barcode tag on BAM records
+	 * @param cellBarcodes Only reads with these cell barcodes are used.  If set to null, all cell barcodes are used.
+	 * @param geneTag The gene tag on BAM records.  Comma separated genes are piled up once per gene.
+	 * @param molecularBarcodeTag The molecular barcode tag on BAM records
+	 * @param functionTag The locus function tag on BAM records, or null to not record locus functions.
+	 * @param order SortOrder.SNP_GENE or SortOrder.SNP_CELL.
+	 */
+	StreamingSNPUMIBasePileupIterator (final Iterator<SAMRecord> underlyingIterator, final IntervalList snpIntervals,
+			final String cellBarcodeTag, final Collection<String> cellBarcodes, final String geneTag,
+			final String molecularBarcodeTag, final String functionTag, final SortOrder order) {
+		if (order!=SortOrder.SNP_GENE && order!=SortOrder.SNP_CELL)
+			throw new IllegalArgumentException("Sort order " + order +" unsupported");
+		this.underlyingIterator=underlyingIterator;
+		this.geneTag=geneTag;
+		this.cellBarcodeTag=cellBarcodeTag;
+		this.molecularBarcodeTag=molecularBarcodeTag;
+		this.functionTag=functionTag;
+		this.cellBarcodes = cellBarcodes==null ? null : new HashSet<>(cellBarcodes);
+		this.cellFirst = order==SortOrder.SNP_CELL;
+		this.dict=snpIntervals.getHeader().getSequenceDictionary();
+		this.snpsByContig=groupSNPs(snpIntervals);
+	}
+
+	/**
+	 * Group the SNPs by contig, each in the order SNPUMICellReadIteratorWrapper tags sort in.
+	 */
+	private static Map<String, List<Interval>> groupSNPs (final IntervalList snpIntervals) {
+		Map<String, List<Interval>> result = new HashMap<>();
+		for (Interval i: SNPUMICellReadIteratorWrapper.getSortedSNPs(snpIntervals))
+			result.computeIfAbsent(i.getContig(), k -> new ArrayList<>()).add(i);
+		return result;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (this.pileups.isEmpty()) {
+			if (this.underlyingIterator.hasNext())
+				processRead(this.underlyingIterator.next());
+			else if (!this.openSNPs.isEmpty())
+				flush(this.openSNPs.pollFirst());
+			else
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public SNPUMIBasePileup next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return this.pileups.pollFirst();
+	}
+
+	private void processRead (final SAMRecord r) {
+		final int start = r.getAlignmentStart();
+		if (!r.getReferenceName().equals(this.currentContig))
+			startContig(r);
+		else if (start < this.lastReadStart)
+			throw new IllegalStateException("Reads must be coordinate sorted, but " + r.getReadName() + " is out of order");
+		this.lastReadStart=start;
+
+		// SNPs that end before this read can't gain any more reads.  Finish them in order.
+		while (!this.openSNPs.isEmpty() && this.openSNPs.peekFirst().snp.getEnd() < start)
+			flush(this.openSNPs.pollFirst());
+
+		// open the SNPs that start inside this read.
+		final int end = r.getAlignmentEnd();
+		while (this.nextSNP < this.contigSNPs.size() && this.contigSNPs.get(this.nextSNP).getStart() <= end) {
+			Interval snp = this.contigSNPs.get(this.nextSNP++);
+			if (snp.getEnd() >= start)
+				this.openSNPs.addLast(new SNPBuffer(snp));
+		}
+		if (this.openSNPs.isEmpty())
+			return;
+
+		String cell = r.getStringAttribute(this.cellBarcodeTag);
+		if (this.cellBarcodes!=null && !this.cellBarcodes.contains(cell))
+			return;
+		String geneList = r.getStringAttribute(this.geneTag);
+		if (geneList==null)
+			return;
+		String [] genes = geneList.split(",");
+		String umi = r.getStringAttribute(this.molecularBarcodeTag);
+		LocusFunction function = getLocusFunction(r);
+
+		List<AlignmentBlock> blocks = r.getAlignmentBlocks();
+		for (SNPBuffer b: this.openSNPs) {
+			if (!overlaps(blocks, b.snp))
+				continue;
+			int offset = SNPBasePileUp.getReadOffset(r, b.snp.getStart());
+			for (String gene: genes)
+				b.add(r, offset, gene, cell, umi, function);
+		}
+	}
+
+	private void startContig (final SAMRecord r) {
+		while (!this.openSNPs.isEmpty())
+			flush(this.openSNPs.pollFirst());
+		// contigs must arrive in the SNP dictionary order for the output to be sorted by SNP.
+		int contigIndex = this.dict.getSequenceIndex(r.getReferenceName());
+		if (contigIndex < this.currentContigIndex)
+			throw new IllegalStateException("Reads must be coordinate sorted in the order of the SNP sequence dictionary, but " + r.getReadName() + " is out of order");
+		this.currentContig=r.getReferenceName();
+		this.currentContigIndex=contigIndex;
+		this.contigSNPs=this.snpsByContig.getOrDefault(this.currentContig, Collections.emptyList());
+		this.nextSNP=0;
+		this.lastReadStart=0;
+	}
+
+	private static boolean overlaps (final List<AlignmentBlock> blocks, final Interval snp) {
+		for (AlignmentBlock b: blocks) {
+			int start = b.getReferenceStart();
+			int end = start + b.getLength() -1;
+			if (start <= snp.getEnd() && end >= snp.getStart())
+				return true;
+		}
+		return false;
+	}
+
+	private LocusFunction getLocusFunction (final SAMRecord r) {
+		if (this.functionTag==null) return null;
+		String lfValue = r.getStringAttribute(this.functionTag);
+		if (lfValue==null) return null;
+		return LocusFunction.valueOf(lfValue);
+	}
+
+	/**
+	 * Group the reads of a finished SNP into pileups.  Reads in a pileup keep the order they were read in.
+	 */
+	private void flush (final SNPBuffer b) {
+		if (b.size==0)
+			return;
+		Integer [] order = new Integer[b.size];
+		for (int i=0; i<order.length; i++)
+			order[i]=i;
+		final String [] first = this.cellFirst ? b.cells : b.genes;
+		final String [] second = this.cellFirst ? b.genes : b.cells;
+		Comparator<Integer> comparator = (i, j) -> {
+			int result = compareStrings(first[i], first[j]);
+			if (result==0) result = compareStrings(second[i], second[j]);
+			if (result==0) result = compareStrings(b.umis[i], b.umis[j]);
+			return result;
+		};
+		Arrays.sort(order, comparator);
+
+		SNPUMIBasePileup current = null;
+		int previous = -1;
+		for (int idx: order) {
+			if (current==null || comparator.compare(previous, idx)!=0) {
+				current = new SNPUMIBasePileup(b.snp, b.genes[idx], b.cells[idx], b.umis[idx]);
+				this.pileups.add(current);
+			}
+			if (b.hasBase[idx])
+				current.addBaseAndQuality(b.bases[idx], b.qualities[idx]);
+			if (b.functions[idx]!=null)
+				current.addLocusFunction(b.functions[idx]);
+			previous=idx;
+		}
+	}
+
+	// same ordering as StringTagComparator
+	private static int compareStrings (final String s1, final String s2) {
+		if (s1==null) return s2==null ? 0 : -1;
+		if (s2==null) return 1;
+		return s1.compareTo(s2);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		CloserUtil.close(this.underlyingIterator);
+	}
+
+	/**
+	 * The gene, cell, UMI, base and quality of each read overlapping a SNP, in read order.
+	 */
+	private static class SNPBuffer {
+		private final Interval snp;
+		private int size=0;
+		private String [] genes = new String[16];
+		private String [] cells = new String[16];
+		private String [] umis = new String[16];
+		private byte [] bases = new byte[16];
+		private byte [] qualities = new byte[16];
+		private boolean [] hasBase = new boolean[16];
+		private LocusFunction [] functions = new LocusFunction[16];
+
+		SNPBuffer (final Interval snp) {
+			this.snp=snp;
+		}
+
+		void add (final SAMRecord r, final int offset, final String gene, final String cell, final String umi, final LocusFunction function) {
+			if (size==genes.length) {
+				int capacity = size*2;
+				genes=Arrays.copyOf(genes, capacity);
+				cells=Arrays.copyOf(cells, capacity);
+				umis=Arrays.copyOf(umis, capacity);
+				bases=Arrays.copyOf(bases, capacity);
+				qualities=Arrays.copyOf(qualities, capacity);
+				hasBase=Arrays.copyOf(hasBase, capacity);
+				functions=Arrays.copyOf(functions, capacity);
+			}
+			genes[size]=gene;
+			cells[size]=cell;
+			umis[size]=umi;
+			if (offset!=-1) {
+				bases[size]=r.getReadBases()[offset];
+				qualities[size]=r.getBaseQualities()[offset];
+				hasBase[size]=true;
+			}
+			functions[size]=function;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalexpression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Reads a DGE stored in binary sparse format, as written by {@link BinarySparseDgeWriter}.
+ * The expression values are stored twice: compressed sparse row (one row per gene) and compressed sparse column
+ * (one column per cell), so that both the expression of a gene across cells and the expression of a cell across
+ * genes can be read without touching the rest of the file.
+ *
+ * The file is memory-mapped, and the slices returned by {@link #getGene(int)} and {@link #getCell(int)} are views of
+ * the mapped file, so nothing is copied or parsed until a value is read.  The file may not be gzipped.
+ *
+ * Layout (all values big-endian, each section starts on an 8 byte boundary):
+ * <pre>
+ * magic "DGEB", int version, int element type (0=real, 1=integer), int #genes, int #cells, long #non-zero
+ * int length, UTF-8 DGE header text, as written by {@link DgeHeaderCodec}
+ * gene names, then cell barcodes, each as int length, UTF-8 bytes
+ * CSR: long[#genes+1] gene pointers, int[#non-zero] cell indices, values[#non-zero]
+ * CSC: long[#cells+1] cell pointers, int[#non-zero] gene indices, values[#non-zero]
+ * </pre>
+ * Values are int for an integer matrix, and double for a real matrix.
+ * @author nemesh
+ */
+public class BinarySparseDge implements Closeable {
+
+	static final byte[] MAGIC = "DGEB".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int ALIGNMENT = 8;
+	// element type codes in the file.  These are fixed rather than ElementType.ordinal(), so reordering the enum can't change the meaning of existing files.
+	static final int REAL_CODE = 0;
+	static final int INTEGER_CODE = 1;
+
+	private final File input;
+	private final FileChannel channel;
+	private final MatrixMarketConstants.ElementType elementType;
+	private final DgeHeader header;
+	private final List<String> genes;
+	private final List<String> cellBarcodes;
+	private final long numNonZero;
+	private final Section byGene;
+	private final Section byCell;
+
+	private Map<String, Integer> geneIndexMap;
+	private Map<String, Integer> cellIndexMap;
+
+	public BinarySparseDge(final File input) {
+		IOUtil.assertFileIsReadable(input);
+		this.input = input;
+		final int numGenes;
+		final int numCells;
+		final long offset;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(input)));
+			final byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IllegalArgumentException(input.getAbsolutePath() + " is not a binary sparse DGE");
+			final int version = in.readInt();
+			if (version != VERSION)
+				throw new IllegalArgumentException("Unsupported binary sparse DGE version " + version + " in " + input.getAbsolutePath());
+			this.elementType = decodeElementType(in.readInt(), input);
+			numGenes = in.readInt();
+			numCells = in.readInt();
+			this.numNonZero = in.readLong();
+			long position = MAGIC.length + Integer.BYTES * 4 + Long.BYTES;
+
+			final byte[] headerBytes = new byte[in.readInt()];
+			in.readFully(headerBytes);
+			position += Integer.BYTES + headerBytes.length;
+			this.header = new DgeHeaderCodec().decode(
+					new BufferedReader(new StringReader(new String(headerBytes, StandardCharsets.UTF_8))), input.getAbsolutePath());
+
+			final List<String> geneNames = new ArrayList<>(numGenes);
+			position += readNames(in, numGenes, geneNames);
+			final List<String> cellNames = new ArrayList<>(numCells);
+			position += readNames(in, numCells, cellNames);
+			this.genes = Collections.unmodifiableList(geneNames);
+			this.cellBarcodes = Collections.unmodifiableList(cellNames);
+			offset = align(position);
+		} catch (IOException e) {
+			throw new RuntimeIOException("Exception reading " + input.getAbsolutePath(), e);
+		} finally {
+			CloserUtil.close(in);
+		}
+
+		try {
+			this.channel = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+			this.byGene = new Section(offset, numGenes);
+			this.byCell = new Section(byGene.end, numCells);
+		} catch (IOException e) {
+			throw new RuntimeIOException("Exception mapping " + input.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * @return true if the file starts with the binary sparse DGE magic number.
+	 */
+	public static boolean isBinarySparseDge(final File input) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(input));
+			final byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			return Arrays.equals(magic, MAGIC);
+		} catch (IOException e) {
+			// Too short to be a binary DGE.
+			return false;
+		} finally {
+			CloserUtil.close(in);
+		}
+	}
+
+	public File getFile() {
+		return input;
+	}
+
+	public MatrixMarketConstants.ElementType getElementType() {
+		return elementType;
+	}
+
+	public DgeHeader getHeader() {
+		return header;
+	}
+
+	public List<String> getGenes() {
+		return genes;
+	}
+
+	public List<String> getCellBarcodes() {
+		return cellBarcodes;
+	}
+
+	public int getNumGenes() {
+		return genes.size();
+	}
+
+	public int getNumCells() {
+		return cellBarcodes.size();
+	}
+
+	public long getNumNonZero() {
+		return numNonZero;
+	}
+
+	/**
+	 * @return the 0-based index of the gene, or -1 if the gene is not in this DGE.
+	 */
+	public int getGeneIndex(final String gene) {
+		if (geneIndexMap == null)
+			geneIndexMap = listToMap(genes);
+		return geneIndexMap.getOrDefault(gene, -1);
+	}
+
+	/**
+	 * @return the 0-based index of the cell barcode, or -1 if the cell is not in this DGE.
+	 */
+	public int getCellIndex(final String cellBarcode) {
+		if (cellIndexMap == null)
+			cellIndexMap = listToMap(cellBarcodes);
+		return cellIndexMap.getOrDefault(cellBarcode, -1);
+	}
+
+	/**
+	 * @return The non-zero expression of a gene, indexed by cell index, in ascending cell order.
+	 */
+	public Slice getGene(final int geneIndex) {
+		return byGene.getSlice(geneIndex);
+	}
+
+	/**
+	 * @return The non-zero expression of a cell, indexed by gene index, in ascending gene order.
+	 */
+	public Slice getCell(final int cellIndex) {
+		return byCell.getSlice(cellIndex);
+	}
+
+	@Override
+	public void close() {
+		CloserUtil.close(channel);
+	}
+
+	/**
+	 * The non-zero values of one row or column of the matrix.  Index i of the slice holds the value at
+	 * column (or row) getIndex(i).
+	 */
+	public static class Slice {
+		private final IntBuffer indices;
+		private final IntBuffer intValues;
+		private final DoubleBuffer realValues;
+
+		private Slice(final IntBuffer indices, final IntBuffer intValues, final DoubleBuffer realValues) {
+			this.indices = indices;
+			this.intValues = intValues;
+			this.realValues = realValues;
+		}
+
+		public int size() {
+			return indices.limit();
+		}
+
+		public int getIndex(final int i) {
+			return indices.get(i);
+		}
+
+		/**
+		 * It is illegal to call this method on a real matrix.
+		 */
+		public int getIntValue(final int i) {
+			if (intValues == null)
+				throw new UnsupportedOperationException("Cannot read integer value from real matrix");
+			return intValues.get(i);
+		}
+
+		/**
+		 * It is legal to call this method regardless of whether the matrix is integer or real.
+		 */
+		public double getRealValue(final int i) {
+			if (intValues != null)
+				return intValues.get(i);
+			return realValues.get(i);
+		}
+	}
+
+	/**
+	 * One of the two compressed copies of the matrix: pointers into the index and value arrays for each
+	 * row (or column), the indices of the other dimension, and the values.
+	 */
+	private class Section {
+		private final LongBuffer pointers;
+		private final IntBuffer indices;
+		private final IntBuffer intValues;
+		private final DoubleBuffer realValues;
+		private final long end;
+
+		Section(final long start, final int numSlices) throws IOException {
+			long position = start;
+			this.pointers = map(position, (numSlices + 1L) * Long.BYTES).asLongBuffer();
+			position = align(position + (numSlices + 1L) * Long.BYTES);
+			this.indices = map(position, numNonZero * Integer.BYTES).asIntBuffer();
+			position = align(position + numNonZero * Integer.BYTES);
+			if (elementType == MatrixMarketConstants.ElementType.integer) {
+				this.intValues = map(position, numNonZero * Integer.BYTES).asIntBuffer();
+				this.realValues = null;
+				position = align(position + numNonZero * Integer.BYTES);
+			} else {
+				this.intValues = null;
+				this.realValues = map(position, numNonZero * Double.BYTES).asDoubleBuffer();
+				position = align(position + numNonZero * Double.BYTES);
+			}
+			this.end = position;
+		}
+
+		Slice getSlice(final int i) {
+			final int from = (int) pointers.get(i);
+			final int to = (int) pointers.get(i + 1);
+			return new Slice(slice(indices, from, to),
+					intValues == null ? null : slice(intValues, from, to),
+					realValues == null ? null : slice(realValues, from, to));
+		}
+	}
+
+	private ByteBuffer map(final long position, final long size) throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Section of " + input.getAbsolutePath() + " is too large to map: " + size + " bytes");
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+	}
+
+	private static IntBuffer slice(final IntBuffer buffer, final int from, final int to) {
+		final IntBuffer ret = buffer.duplicate();
+		ret.limit(to);
+		ret.position(from);
+		return ret.slice();
+	}
+
+	private static DoubleBuffer slice(final DoubleBuffer buffer, final int from, final int to) {
+		final DoubleBuffer ret = buffer.duplicate();
+		ret.limit(to);
+		ret.position(from);
+		return ret.slice();
+	}
+
+	private static long readNames(final DataInputStream in, final int numNames, final List<String> names) throws IOException {
+		long bytesRead = 0;
+		for (int i = 0; i < numNames; ++i) {
+			final byte[] name = new byte[in.readInt()];
+			in.readFully(name);
+			names.add(new String(name, StandardCharsets.UTF_8));
+			bytesRead += Integer.BYTES + name.length;
+		}
+		return bytesRead;
+	}
+
+	private static Map<String, Integer> listToMap(final List<String> list) {
+		final Map<String, Integer> result = new HashMap<>();
+		for (int i = 0; i < list.size(); i++)
+			result.put(list.get(i), i);
+		return result;
+	}
+
+	static int encodeElementType(final MatrixMarketConstants.ElementType elementType) {
+		switch (elementType) {
+			case real: return REAL_CODE;
+			case integer: return INTEGER_CODE;
+			default: throw new IllegalArgumentException("Unsupported element type " + elementType);
+		}
+	}
+
+	private static MatrixMarketConstants.ElementType decodeElementType(final int code, final File input) {
+		switch (code) {
+			case REAL_CODE: return MatrixMarketConstants.ElementType.real;
+			case INTEGER_CODE: return MatrixMarketConstants.ElementType.integer;
+			default: throw new IllegalArgumentException("Unknown element type code " + code + " in " + input.getAbsolutePath());
+		}
+	}
+
+	static long align(final long position) {
+		return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalexpression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Writes a DGE in the binary sparse format read by {@link BinarySparseDge}.
+ * Genes are written one at a time: call {@link #addGene(String)}, then writeValue() for each non-zero cell of that gene
+ * in ascending cell order.  The gene-ordered copy of the matrix is spooled to temporary files as it is written, and
+ * the cell-ordered copy is built from them when the writer is closed, so memory use does not depend on the number of
+ * non-zero values.
+ * @author nemesh
+ */
+public class BinarySparseDgeWriter implements Closeable {
+
+	private final File output;
+	private final MatrixMarketConstants.ElementType elementType;
+	private final List<String> cellBarcodes;
+	private final DgeHeader header;
+
+	private final List<String> genes = new ArrayList<>();
+	// genePointers[i] is the position of the first value of gene i in the gene-ordered arrays.
+	private long[] genePointers = new long[1024];
+	private final int[] valuesPerCell;
+	private long numNonZero = 0;
+	private int lastCellIndex;
+
+	private final File indexFile;
+	private final File valueFile;
+	private final DataOutputStream indexOut;
+	private final DataOutputStream valueOut;
+
+	/**
+	 * @param output The binary DGE to write.  Must not be gzipped, because the file is memory-mapped when read.
+	 * @param elementType integer for raw counts, real for normalized expression.
+	 * @param cellBarcodes The columns of the matrix.
+	 * @param header If non-null, a DGE header to embed in the file.
+	 */
+	public BinarySparseDgeWriter(final File output, final MatrixMarketConstants.ElementType elementType,
+								 final List<String> cellBarcodes, final DgeHeader header) {
+		IOUtil.assertFileIsWritable(output);
+		this.output = output;
+		this.elementType = elementType;
+		this.cellBarcodes = new ArrayList<>(cellBarcodes);
+		this.header = header;
+		this.valuesPerCell = new int[cellBarcodes.size()];
+		try {
+			indexFile = File.createTempFile("BinarySparseDge.", ".index.tmp");
+			valueFile = File.createTempFile("BinarySparseDge.", ".value.tmp");
+			indexFile.deleteOnExit();
+			valueFile.deleteOnExit();
+			indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+			valueOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(valueFile)));
+		} catch (IOException e) {
+			throw new RuntimeIOException("Exception creating temporary files for " + output.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Start the next row of the matrix.  Values written after this call belong to this gene.
+	 */
+	public void addGene(final String gene) {
+		final int geneIndex = genes.size();
+		if (geneIndex + 1 >= genePointers.length)
+			genePointers = Arrays.copyOf(genePointers, genePointers.length * 2);
+		genePointers[geneIndex] = numNonZero;
+		genes.add(gene);
+		lastCellIndex = -1;
+	}
+
+	/**
+	 * It is legal to call this overload regardless of whether writing integer or real format.
+	 * @param cellIndex 0-based index into the cell barcodes, greater than the previous cell written for this gene.
+	 */
+	public void writeValue(final int cellIndex, final int value) {
+		try {
+			assertGoodIndex(cellIndex);
+			if (elementType == MatrixMarketConstants.ElementType.integer)
+				valueOut.writeInt(value);
+			else
+				valueOut.writeDouble(value);
+		} catch (IOException e) {
+			throw new RuntimeIOException("Exception writing " + output.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * It is illegal to call this overload if writing integer format.
+	 * @param cellIndex 0-based index into the cell barcodes, greater than the previous cell written for this gene.
+	 */
+	public void writeValue(final int cellIndex, final double value) {
+		try {
+			if (elementType != MatrixMarketConstants.ElementType.real)
+				throw new UnsupportedOperationException("Cannot write floating-point value to integer matrix");
+			assertGoodIndex(cellIndex);
+			valueOut.writeDouble(value);
+		} catch (IOException e) {
+			throw new RuntimeIOException("Exception writing " + output.getAbsolutePath(), e);
+		}
+	}
+
+	private void assertGoodIndex(final int cellIndex) throws IOException {
+		if (genes.isEmpty())
+			throw new IllegalStateException("addGene must be called before writing values");
+		if (cellIndex >= cellBarcodes.size() || cellIndex < 0)
+			throw new IllegalArgumentException(String.format("cellIndex(%d) out of range for numCells(%d)", cellIndex, cellBarcodes.size()));
+		if (cellIndex <= lastCellIndex)
+			throw new IllegalArgumentException(String.format("cellIndex(%d) <= previous cellIndex(%d) for gene %s",
+					cellIndex, lastCellIndex, genes.get(genes.size() - 1)));
+		lastCellIndex = cellIndex;
+		indexOut.writeInt(cellIndex);
+		++valuesPerCell[cellIndex];
+		++numNonZero;
+	}
+
+	/**
+	 * Writes the file.  The gene-ordered arrays are copied from the temporary files, and the cell-ordered arrays are
+	 * filled in by reading them back and scattering each value into its cell.
+	 */
+	@Override
+	public void close() {
+		FileChannel channel = null;
+		try {
+			indexOut.close();
+			valueOut.close();
+			final int numGenes = genes.size();
+			final int numCells = cellBarcodes.size();
+			genePointers[numGenes] = numNonZero;
+			final int valueSize = elementType == MatrixMarketConstants.ElementType.integer ? Integer.BYTES : Double.BYTES;
+
+			channel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long position = writeFully(channel, 0, encodePreamble());
+
+			// gene-ordered copy
+			position = writeFully(channel, position, encodePointers(genePointers, numGenes + 1));
+			position = transferAligned(channel, position, indexFile);
+			position = transferAligned(channel, position, valueFile);
+
+			// cell-ordered copy
+			final long[] cellPointers = new long[numCells + 1];
+			for (int i = 0; i < numCells; ++i)
+				cellPointers[i + 1] = cellPointers[i] + valuesPerCell[i];
+			position = writeFully(channel, position, encodePointers(cellPointers, numCells + 1));
+			final MappedByteBuffer geneIndices = map(channel, position, numNonZero * Integer.BYTES);
+			position = BinarySparseDge.align(position + numNonZero * Integer.BYTES);
+			final MappedByteBuffer values = map(channel, position, numNonZero * valueSize);
+			position = BinarySparseDge.align(position + numNonZero * valueSize);
+			scatterByCell(cellPointers, geneIndices, values, valueSize);
+			geneIndices.force();
+			values.force();
+			// Make sure the trailing padding is part of the file.
+			if (channel.size() < position)
+				channel.write(ByteBuffer.allocate((int) (position - channel.size())), channel.size());
+		} catch (IOException e) {
+			throw new RuntimeIOException("Exception writing " + output.getAbsolutePath(), e);
+		} finally {
+			CloserUtil.close(channel);
+			indexFile.delete();
+			valueFile.delete();
+		}
+	}
+
+	private void scatterByCell(final long[] cellPointers, final ByteBuffer geneIndices, final ByteBuffer values,
+							   final int valueSize) throws IOException {
+		final long[] nextPosition = Arrays.copyOf(cellPointers, cellPointers.length - 1);
+		try (DataInputStream indexIn = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			 DataInputStream valueIn = new DataInputStream(new BufferedInputStream(new FileInputStream(valueFile)))) {
+			for (int geneIndex = 0; geneIndex < genes.size(); ++geneIndex)
+				for (long i = genePointers[geneIndex]; i < genePointers[geneIndex + 1]; ++i) {
+					final int cellIndex = indexIn.readInt();
+					final int destination = (int) nextPosition[cellIndex]++;
+					geneIndices.putInt(destination * Integer.BYTES, geneIndex);
+					if (valueSize == Integer.BYTES)
+						values.putInt(destination * Integer.BYTES, valueIn.readInt());
+					else
+						values.putDouble(destination * Double.BYTES, valueIn.readDouble());
+				}
+		}
+	}
+
+	private ByteBuffer encodePreamble() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.write(BinarySparseDge.MAGIC);
+		out.writeInt(BinarySparseDge.VERSION);
+		out.writeInt(BinarySparseDge.encodeElementType(elementType));
+		out.writeInt(genes.size());
+		out.writeInt(cellBarcodes.size());
+		out.writeLong(numNonZero);
+		final byte[] headerBytes = encodeHeader();
+		out.writeInt(headerBytes.length);
+		out.write(headerBytes);
+		writeNames(out, genes);
+		writeNames(out, cellBarcodes);
+		out.write(new byte[(int) (BinarySparseDge.align(out.size()) - out.size())]);
+		out.close();
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	private byte[] encodeHeader() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if (header != null) {
+			final Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+			new DgeHeaderCodec().encode(writer, header);
+			writer.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeNames(final DataOutputStream out, final List<String> names) throws IOException {
+		for (final String name : names) {
+			final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static ByteBuffer encodePointers(final long[] pointers, final int length) {
+		final ByteBuffer ret = ByteBuffer.allocate((int) BinarySparseDge.align((long) length * Long.BYTES));
+		for (int i = 0; i < length; ++i)
+			ret.putLong(pointers[i]);
+		ret.position(0);
+		return ret;
+	}
+
+	private static long writeFully(final FileChannel channel, long position, final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+		return position;
+	}
+
+	private static long transferAligned(final FileChannel channel, long position, final File file) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final long size = in.size();
+			long transferred = 0;
+			while (transferred < size)
+				transferred += in.transferTo(transferred, size - transferred, channel.position(position + transferred));
+			final long aligned = BinarySparseDge.align(position + size);
+			return writeFully(channel, position + size, ByteBuffer.allocate((int) (aligned - position - size)));
+		}
+	}
+
+	private MappedByteBuffer map(final FileChannel channel, final long position, final long size) throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many non-zero values to write to " + output.getAbsolutePath() + ": " + numNonZero);
+		return channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+	}
+}
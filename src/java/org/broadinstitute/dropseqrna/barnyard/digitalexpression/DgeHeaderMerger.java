@@ -119,9 +119,16 @@ public class DgeHeaderMerger {
         final DgeHeaderCodec codec = new DgeHeaderCodec();
         for (int i = 0; i < input.size(); ++i) {
             final File file = input.get(i);
-            final BufferedReader reader = IOUtil.openFileForBufferedReading(file);
-            final DgeHeader dgeHeader = codec.decode(reader, file.getAbsolutePath());
-            CloserUtil.close(reader);
+            final DgeHeader dgeHeader;
+            if (BinarySparseDge.isBinarySparseDge(file)) {
+                final BinarySparseDge dge = new BinarySparseDge(file);
+                dgeHeader = dge.getHeader();
+                dge.close();
+            } else {
+                final BufferedReader reader = IOUtil.openFileForBufferedReading(file);
+                dgeHeader = codec.decode(reader, file.getAbsolutePath());
+                CloserUtil.close(reader);
+            }
             if (!prefix.isEmpty()) {
                 if (dgeHeader.getNumLibraries() > 1) {
                     throw new DgeMergerException("Cannot set PREFIX when input DGE has more than one LIBRARY");
@@ -31,15 +31,19 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.BinarySparseDge;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.BinarySparseDgeWriter;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeader;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderCodec;
 import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
@@ -52,6 +56,7 @@ import org.la4j.matrix.SparseMatrix;
 import org.la4j.matrix.sparse.CRSMatrix;
 import org.la4j.vector.functor.VectorAccumulator;
 
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
@@ -68,7 +73,7 @@ import picard.util.TabbedInputParser;
  */
 public class DGEMatrix {
 	public enum FileFormat {
-		DENSE, MM_SPARSE, MM_SPARSE_10X
+		DENSE, MM_SPARSE, MM_SPARSE_10X, BINARY_SPARSE
 	}
 
 	private static final Log log = Log.getInstance(DGEMatrix.class);
@@ -83,6 +88,8 @@ public class DGEMatrix {
 	// the expression data in a matrix
 	private Matrix expressionMatrix;
 	private final double SPARSE_VALUE=0;
+	// threads used to parse and format Matrix Market files.
+	private static final int MATRIX_MARKET_THREADS=Math.min(4, Runtime.getRuntime().availableProcessors());
 
 	public DGEMatrix(final List<String> cellBarcodes, final List<String> geneNames, final double [] [] expressionMatrix) {
 		if (expressionMatrix.length!=geneNames.size())
@@ -185,23 +192,14 @@ public class DGEMatrix {
 	 * @param cellBarcodes A list of cell barcodes to remove from all genes.
 	 */
 	public void removeCellBarcodes (final Collection <String> cellBarcodes) {
-		// get the indexes where data will be removed.
-		List<Integer> toRemove = new ArrayList<>();
+		BitSet cellsToRetain = new BitSet(this.cellBarcodeMap.size());
+		cellsToRetain.set(0, this.cellBarcodeMap.size());
 		for (String cell: cellBarcodes) {
 			Integer idx = this.cellBarcodeMap.get(cell);
-			if (idx!=null) 
-				toRemove.add(idx);							
+			if (idx!=null)
+				cellsToRetain.clear(idx);
 		}
-		// remove the indexes from the map
-		for (String cell: cellBarcodes) {
-			removeFromMap(cell, this.cellBarcodeMap);
-		}
-		
-		Collections.sort(toRemove);
-		Collections.reverse(toRemove);
-		// if I remove elements from the end and work forward, I will not mess up if columns are filling in the gaps behind me.
-		for (Integer idx: toRemove)
-			this.expressionMatrix=this.expressionMatrix.removeColumn(idx);
+		retain(null, cellsToRetain);
 	}
 
 	/**
@@ -210,14 +208,12 @@ public class DGEMatrix {
 	 */
 	public void removeCellsWithLowExpression(final int numGenes) {
 		if (numGenes==0) return;  // short circuit.
-		VectorAccumulator nonZeroAccumulator = nonZeroAccumulator();
-		double [] nonZeroExpression = this.expressionMatrix.foldColumns(nonZeroAccumulator);
-		List<String> cells = this.getCellBarcodes();
-		List<String> cellsToRemove = new ArrayList<>();
+		int [] nonZeroExpression = countNonZero(false);
+		BitSet cellsToRetain = new BitSet(nonZeroExpression.length);
 		for (int i=0; i<nonZeroExpression.length; i++)
-			if (nonZeroExpression[i]<=numGenes)
-				cellsToRemove.add(cells.get(i));
-		this.removeCellBarcodes(cellsToRemove);
+			if (nonZeroExpression[i]>numGenes)
+				cellsToRetain.set(i);
+		retain(null, cellsToRetain);
 	}
 
 	/**
@@ -226,16 +222,151 @@ public class DGEMatrix {
 	 */
 	public void removeGenesWithLowExpression(final int numCells) {
 		if (numCells==0) return; // short circuit.
-		VectorAccumulator nonZeroAccumulator = nonZeroAccumulator();
-		double [] nonZeroExpression = this.expressionMatrix.foldRows(nonZeroAccumulator);
-		List<String> genes = this.getGenes();
-		List<String> genesToRemove = new ArrayList<>();
+		int [] nonZeroExpression = countNonZero(true);
+		BitSet genesToRetain = new BitSet(nonZeroExpression.length);
 		for (int i=0; i<nonZeroExpression.length; i++)
-			if (nonZeroExpression[i]<=numCells)
-				genesToRemove.add(genes.get(i));
-		this.removeGenes(genesToRemove);
+			if (nonZeroExpression[i]>numCells)
+				genesToRetain.set(i);
+		retain(genesToRetain, null);
+	}
+
+	/**
+	 * Counts the number of non-zero entries in each row or column in a single pass over the matrix.
+	 * @param perRow if true count for each gene, otherwise for each cell.
+	 */
+	private int [] countNonZero (final boolean perRow) {
+		if (!(this.expressionMatrix instanceof SparseMatrix)) {
+			VectorAccumulator nonZeroAccumulator = nonZeroAccumulator();
+			double [] nonZero = perRow? this.expressionMatrix.foldRows(nonZeroAccumulator): this.expressionMatrix.foldColumns(nonZeroAccumulator);
+			int [] result = new int [nonZero.length];
+			for (int i=0; i<nonZero.length; i++)
+				result[i]=(int) nonZero[i];
+			return (result);
+		}
+		int [] result = new int [perRow? this.expressionMatrix.rows(): this.expressionMatrix.columns()];
+		MatrixIterator it = ((SparseMatrix) this.expressionMatrix).nonZeroIterator();
+		while (it.hasNext()) {
+			double value = it.next();
+			if (value!=SPARSE_VALUE)
+				result[perRow? it.rowIndex(): it.columnIndex()]++;
+		}
+		return (result);
+	}
+
+	/**
+	 * Keeps only the genes (rows) and cell barcodes (columns) whose bits are set, and drops everything else.
+	 * Retained genes and cells stay in their original order.  Unlike removing one row or column at a time, the
+	 * filtered matrix is built in a single pass over the non-zero values, so removing most of a large matrix is cheap.
+	 * @param genesToRetain indices (as in getGenes()) of the rows to keep, or null to keep all genes.
+	 * @param cellsToRetain indices (as in getCellBarcodes()) of the columns to keep, or null to keep all cells.
+	 */
+	public void retain (final BitSet genesToRetain, final BitSet cellsToRetain) {
+		int [] rowMap = makeIndexMap(genesToRetain, this.expressionMatrix.rows());
+		int [] colMap = makeIndexMap(cellsToRetain, this.expressionMatrix.columns());
+		int numRows = retainInMap(this.geneMap, rowMap);
+		int numCols = retainInMap(this.cellBarcodeMap, colMap);
+
+		if (this.expressionMatrix instanceof CRSMatrix)
+			this.expressionMatrix = retainCRS((CRSMatrix) this.expressionMatrix, rowMap, colMap, numRows, numCols);
+		else
+			this.expressionMatrix = this.expressionMatrix.select(retainedIndices(rowMap, numRows), retainedIndices(colMap, numCols));
 	}
 
+	/**
+	 * Convenience method to retain genes by name.  Genes not in this data set are ignored.
+	 * @param geneNames The genes to keep.
+	 */
+	public void retainGenes (final Collection<String> geneNames) {
+		retain(namesToBitSet(geneNames, this.geneMap), null);
+	}
+
+	/**
+	 * Convenience method to retain cell barcodes by name.  Cell barcodes not in this data set are ignored.
+	 * @param cellBarcodes The cell barcodes to keep.
+	 */
+	public void retainCellBarcodes (final Collection<String> cellBarcodes) {
+		retain(null, namesToBitSet(cellBarcodes, this.cellBarcodeMap));
+	}
+
+	private BitSet namesToBitSet (final Collection<String> names, final Map<String, Integer> map) {
+		BitSet result = new BitSet(map.size());
+		for (String name: names) {
+			Integer idx = map.get(name);
+			if (idx!=null)
+				result.set(idx);
+		}
+		return (result);
+	}
+
+	/**
+	 * @return for each old index, the new index, or -1 if the index is not retained.
+	 */
+	private int [] makeIndexMap (final BitSet toRetain, final int size) {
+		int [] result = new int [size];
+		int next=0;
+		for (int i=0; i<size; i++)
+			result[i] = (toRetain==null || toRetain.get(i)) ? next++ : -1;
+		return (result);
+	}
+
+	private int [] retainedIndices (final int [] indexMap, final int numRetained) {
+		int [] result = new int [numRetained];
+		for (int i=0; i<indexMap.length; i++)
+			if (indexMap[i]!=-1)
+				result[indexMap[i]]=i;
+		return (result);
+	}
+
+	/**
+	 * Renumbers the map in place according to indexMap, dropping keys that are not retained.
+	 * @return the number of keys left in the map.
+	 */
+	private int retainInMap (final Map<String, Integer> map, final int [] indexMap) {
+		Iterator<Map.Entry<String, Integer>> it = map.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Integer> e = it.next();
+			int newIndex = indexMap[e.getValue()];
+			if (newIndex==-1)
+				it.remove();
+			else
+				e.setValue(newIndex);
+		}
+		return (map.size());
+	}
+
+	/**
+	 * Builds the compressed row arrays of the filtered matrix directly.  Setting elements one at a time would
+	 * shift the row pointers of every following row on each insert.
+	 */
+	private static CRSMatrix retainCRS (final CRSMatrix m, final int [] rowMap, final int [] colMap, final int numRows, final int numCols) {
+		int cardinality=0;
+		MatrixIterator it = m.nonZeroRowMajorIterator();
+		while (it.hasNext()) {
+			it.next();
+			if (rowMap[it.rowIndex()]!=-1 && colMap[it.columnIndex()]!=-1)
+				cardinality++;
+		}
+		double [] values = new double [cardinality];
+		int [] columnIndices = new int [cardinality];
+		int [] rowPointers = new int [numRows+1];
+		int pos=0;
+		it = m.nonZeroRowMajorIterator();
+		while (it.hasNext()) {
+			double value = it.next();
+			int row = rowMap[it.rowIndex()];
+			int col = colMap[it.columnIndex()];
+			if (row==-1 || col==-1)
+				continue;
+			values[pos]=value;
+			columnIndices[pos++]=col;
+			rowPointers[row+1]=pos;
+		}
+		// rows with no retained values start where the previous row ended.
+		for (int i=1; i<rowPointers.length; i++)
+			if (rowPointers[i]<rowPointers[i-1])
+				rowPointers[i]=rowPointers[i-1];
+		return (new CRSMatrix(numRows, numCols, cardinality, values, columnIndices, rowPointers));
+	}
 
 	/**
 	 * @return a list of genes in this data set.
@@ -247,61 +378,19 @@ public class DGEMatrix {
 
 	/**
 	 * Remove genes from this data set.  Removes the rows of expression that have these genes.
-	 * TODO: For LARGE data sets, this is horribly slow....
 	 * @param geneNames A list of genes.
 	 */
 	public void removeGenes(final List<String> geneNames) {
-		// get the indexes where data will be removed.
-		List<Integer> toRemove = new ArrayList<>();
+		BitSet genesToRetain = new BitSet(this.geneMap.size());
+		genesToRetain.set(0, this.geneMap.size());
 		for (String gene : geneNames) {
 			Integer idx = this.geneMap.get(gene);
 			if (idx != null)
-				toRemove.add(idx);
-		}
-
-		// remove from map.
-		for (String gene : geneNames)
-			removeFromMap(gene, this.geneMap);
-
-		Collections.sort(toRemove);
-		Collections.reverse(toRemove);
-
-		/*
-		 *this is ridiculously, horribly slow.
-		if (this.expressionMatrix instanceof CRSMatrix) {
-			log.info("Converting Matrix");
-			this.expressionMatrix=this.expressionMatrix.toColumnMajorSparseMatrix();
-			log.info("Matrix Converted");
-		}
-		*/
-		// if I remove elements from the end and work forward, I will not mess
-		// up if columns are filling in the gaps behind me.
-		int counter=0;
-		for (Integer idx : toRemove) {
-			counter++;
-			this.expressionMatrix = this.expressionMatrix.removeRow(idx);
-			// if (counter%100==0) log.info("Removed " + counter + "genes of [" + toRemove.size() +"]");
+				genesToRetain.clear(idx);
 		}
+		retain(genesToRetain, null);
 	}
 
-	/**
-	 * After items are removed from the map, need to shift the indexes to point at the right indexes.
-	 * For example, if you have 5 entries from 0-4 and entry 2 is removed, you'd need to shift all indexes
-	 * past the removal to the left by 1.
-	 */
-	private void removeFromMap (final String key, final Map<String, Integer> map) {
-		Integer idx = map.get(key);
-		if (idx==null) return;
-		map.remove(key);
-		for (String k: map.keySet()) {
-			Integer value = map.get(k);
-			if (value>idx) {
-				value--;
-				map.put(k, value);
-			}
-		}
-
-	}
 	/**
 	 * Returns expression for a gene, or null if the gene does not exist.
 	 * The cells represented are in the same order as getCellBarcodes() returns.
@@ -473,11 +562,18 @@ public class DGEMatrix {
 
         if (format == FileFormat.DENSE)
 			return parseDenseFile(input, cellBarcodePrefix);
+		else if (format == FileFormat.BINARY_SPARSE)
+			return parseBinarySparseDge(input, cellBarcodePrefix);
 		else
 			return parseDropSeqMatrixMarket(input, cellBarcodePrefix);
     }
 
 	public static DgeHeader parseDgeHeader(final File input) {
+        if (BinarySparseDge.isBinarySparseDge(input)) {
+            final BinarySparseDge dge = new BinarySparseDge(input);
+            dge.close();
+            return dge.getHeader();
+        }
         BufferedReader reader = null;
         try {
             reader = IOUtil.openFileForBufferedReading(input);
@@ -495,6 +591,8 @@ public class DGEMatrix {
 			return parseDropSeqMatrixMarket(input, cellBarcodePrefix);
 		if (format == FileFormat.MM_SPARSE_10X && cells!=null && genes!=null)
 			return parse10XGenomicsMatrixMarket(input, genes, cells, cellBarcodePrefix);
+		if (format == FileFormat.BINARY_SPARSE && cells==null && genes==null)
+			return parseBinarySparseDge(input, cellBarcodePrefix);
 		else
 			throw new IllegalArgumentException("Cell and Gene files passed in, but doesn't look like 10x Genomics data.  Not sure what to do!");
 	}
@@ -613,16 +711,81 @@ public class DGEMatrix {
             throw new RuntimeException("Number of columns in matrix does not agree with length of cell barcode list in " + matrixReader.getFilename());
         log.info("Found [" + rows + "] genes and [" + cols +"] cells");
 
-        // initialize the sparse matrix
-        CRSMatrix m = CRSMatrix.zero(rows, cols);
-        for (final MatrixMarketReader.Element element: matrixReader)
-			m.set(element.row, element.col, element.realValue());
-
+        // parse in blocks of primitive arrays, then build the sparse matrix in one go.
+        List<MatrixMarketReader.ElementBlock> blocks = new ArrayList<>();
+        CloseableIterator<MatrixMarketReader.ElementBlock> it = matrixReader.blockIterator(MATRIX_MARKET_THREADS);
+        while (it.hasNext())
+			blocks.add(it.next());
+        it.close();
         CloserUtil.close(matrixReader);
+
+        CRSMatrix m = buildCRSMatrix(blocks, rows, cols);
+        if (m==null) {
+			// elements out of order within a row, or repeated; let the matrix sort it out.
+			m = CRSMatrix.zero(rows, cols);
+			for (MatrixMarketReader.ElementBlock block: blocks)
+				for (int i=0; i<block.size; i++)
+					m.set(block.rows[i], block.cols[i], block.realValue(i));
+		}
 		return (new DGEMatrix(cellBarcodes, geneNames, m));
 
     }
 
+    /**
+     * Fills the compressed row arrays directly from the parsed elements, which avoids shifting the row pointers
+     * on every insert.
+     * @return the matrix, or null if the columns within a row are not strictly increasing in the input.
+     */
+    private static CRSMatrix buildCRSMatrix (final List<MatrixMarketReader.ElementBlock> blocks, final int rows, final int cols) {
+		int [] rowPointers = new int [rows+1];
+		for (MatrixMarketReader.ElementBlock block: blocks)
+			for (int i=0; i<block.size; i++)
+				if (block.realValue(i)!=0)
+					rowPointers[block.rows[i]+1]++;
+		for (int i=0; i<rows; i++)
+			rowPointers[i+1]+=rowPointers[i];
+		int cardinality=rowPointers[rows];
+		double [] values = new double [cardinality];
+		int [] columnIndices = new int [cardinality];
+		int [] next = Arrays.copyOf(rowPointers, rows);
+		for (MatrixMarketReader.ElementBlock block: blocks)
+			for (int i=0; i<block.size; i++) {
+				double value = block.realValue(i);
+				if (value==0) continue;
+				int row = block.rows[i];
+				int pos = next[row]++;
+				if (pos>rowPointers[row] && columnIndices[pos-1]>=block.cols[i])
+					return (null);
+				columnIndices[pos]=block.cols[i];
+				values[pos]=value;
+			}
+		return (new CRSMatrix(rows, cols, cardinality, values, columnIndices, rowPointers));
+    }
+
+    /**
+     * Parse a DGE in the binary sparse format written by {@link BinarySparseDgeWriter}.
+     * Genes are read one row at a time from the memory-mapped file, so the matrix is filled in row order.
+     * @param input The binary DGE
+     * @param cellBarcodePrefix A prefix to add at the front of all cell barcodes.
+     */
+    public static DGEMatrix parseBinarySparseDge(final File input, final String cellBarcodePrefix) {
+        final BinarySparseDge dge = new BinarySparseDge(input);
+        final List<String> cellBarcodes = new ArrayList<>(dge.getCellBarcodes());
+        if (cellBarcodePrefix != null && !cellBarcodePrefix.isEmpty())
+            for (int i = 0; i < cellBarcodes.size(); ++i)
+                cellBarcodes.set(i, cellBarcodePrefix + cellBarcodes.get(i));
+        log.info("Found [" + dge.getNumGenes() + "] genes and [" + dge.getNumCells() +"] cells");
+
+        final CRSMatrix m = CRSMatrix.zero(dge.getNumGenes(), dge.getNumCells(), (int) dge.getNumNonZero());
+        for (int geneIndex = 0; geneIndex < dge.getNumGenes(); ++geneIndex) {
+            final BinarySparseDge.Slice slice = dge.getGene(geneIndex);
+            for (int i = 0; i < slice.size(); ++i)
+                m.set(geneIndex, slice.getIndex(i), slice.getRealValue(i));
+        }
+        dge.close();
+        return (new DGEMatrix(cellBarcodes, new ArrayList<>(dge.getGenes()), m));
+    }
+
     /**
 	 * Parses a DGE file.  If there are no lines in the file, return an empty {@link DGEMatrix} with no rows and no cells.
 	 * The format of the DGE file is tab delimited and the rows/columns are as follows:
@@ -653,6 +816,8 @@ public class DGEMatrix {
     }
 
 	private static FileFormat detectFileFormat(final File input) {
+        if (BinarySparseDge.isBinarySparseDge(input))
+            return FileFormat.BINARY_SPARSE;
         BufferedReader reader = null;
         try {
             reader = IOUtil.openFileForBufferedReading(input);
@@ -682,7 +847,9 @@ public class DGEMatrix {
             if (header != null)
 				throw new IllegalArgumentException("DGE header not support for sparse matrix formats");
             writeDropSeqMatrixMarket(output, formatAsInteger, false);
-        } else
+        } else if (format == FileFormat.BINARY_SPARSE)
+            writeBinarySparseDge(output, formatAsInteger, header);
+		else
 			throw new IllegalArgumentException(format.name() + " Not yet supported for output.");
 	}
 
@@ -744,7 +911,7 @@ public class DGEMatrix {
 					transpose? expressionMatrix.columns(): expressionMatrix.rows(),
 					transpose? expressionMatrix.rows(): expressionMatrix.columns(),
 					cardinality, this.getGenes(),this.getCellBarcodes(),
-					MatrixMarketConstants.GENES, MatrixMarketConstants.CELL_BARCODES);
+					MatrixMarketConstants.GENES, MatrixMarketConstants.CELL_BARCODES, MATRIX_MARKET_THREADS);
 			if (expressionMatrix instanceof SparseMatrix) {
                 final SparseMatrix mat = (SparseMatrix)expressionMatrix;
                 final MatrixIterator it = mat.nonZeroIterator();
@@ -767,6 +934,31 @@ public class DGEMatrix {
 		}
 	}
 
+	/**
+	 * Write this object out in the binary sparse format, which can be memory-mapped and read by gene or by cell
+	 * with {@link BinarySparseDge}.
+	 * @param dgeHeader If non-null, embedded in the output.
+	 */
+	public void writeBinarySparseDge(final File output, final boolean formatAsInteger, final DgeHeader dgeHeader) {
+		final BinarySparseDgeWriter writer = new BinarySparseDgeWriter(output,
+				formatAsInteger? MatrixMarketConstants.ElementType.integer: MatrixMarketConstants.ElementType.real,
+				this.getCellBarcodes(), dgeHeader);
+		for (String gene: this.getGenes()) {
+			writer.addGene(gene);
+			double [] expressionByGene = this.getExpression(gene);
+			for (int cellIndex = 0; cellIndex < expressionByGene.length; ++cellIndex) {
+				final double exp = expressionByGene[cellIndex];
+				if (exp == SPARSE_VALUE)
+					continue;
+				if (formatAsInteger)
+					writer.writeValue(cellIndex, (int)Math.round(exp));
+				else
+					writer.writeValue(cellIndex, exp);
+			}
+		}
+		writer.close();
+	}
+
 	private void writeMatrixMarketTriplet(final MatrixMarketWriter writer, int row, int col, final double val,
 										  final boolean formatAsInteger, final boolean transpose) {
     	if (transpose) {
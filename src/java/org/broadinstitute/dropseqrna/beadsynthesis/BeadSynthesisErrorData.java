@@ -24,12 +24,11 @@
 package org.broadinstitute.dropseqrna.beadsynthesis;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.List;
 
 import org.apache.commons.lang.math.NumberUtils;
-import org.broadinstitute.dropseqrna.utils.BaseDistributionMetric;
 import org.broadinstitute.dropseqrna.utils.BaseDistributionMetricCollection;
 import org.broadinstitute.dropseqrna.utils.Bases;
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
@@ -40,8 +39,13 @@ public class BeadSynthesisErrorData implements Serializable {
 	 *
 	 */
 	private static final long serialVersionUID = 2086873042168761563L;
+	private static final Bases[] BASES = Bases.values();
+
 	private final String cellBarcode;
-	private BaseDistributionMetricCollection baseCounts;
+	// The count of each base at each UMI position: the count of BASES[b] at position p is at [p*BASES.length+b].
+	// This is much smaller than a BaseDistributionMetricCollection, which is only built when asked for.
+	private int[] baseCounts;
+	private int baseLength;
 	private ObjectCounter<String> umiCounts;
 	private int numReads;
 	private int numTranscripts;
@@ -56,7 +60,8 @@ public class BeadSynthesisErrorData implements Serializable {
 
 	public BeadSynthesisErrorData (final String cellBarcode) {
 		this.cellBarcode=cellBarcode;
-		this.baseCounts = new BaseDistributionMetricCollection();
+		this.baseCounts = new int[0];
+		this.baseLength=0;
 		this.umiCounts = new ObjectCounter<>();
 		this.dataChanged=true;
 		this.numReads=0;
@@ -68,7 +73,7 @@ public class BeadSynthesisErrorData implements Serializable {
 	public String toString() {
 		StringBuilder b = new StringBuilder();
 		b.append("Cell Barcode ["+ this.cellBarcode +"] num reads ["+ this.numReads+"] num transcripts ["+ this.numTranscripts+"]" + " num umis ["+ this.numUMIs+"]");
-		if (this.baseCounts!=null) b.append("\n" + this.baseCounts.toString());
+		if (this.baseCounts!=null) b.append("\n" + getBaseCounts().toString());
 		if (this.umiCounts!=null) b.append("\n" + this.umiCounts.toString());
 		return b.toString();
 	}
@@ -101,10 +106,41 @@ public class BeadSynthesisErrorData implements Serializable {
 	public void addUMI (final String umi) {
 		//umiCounts++;
 		this.umiCounts.increment(umi);
-		baseCounts.addBases(umi);
+		addBases(umi);
 		this.dataChanged=true;
 	}
 
+	private void addBases (final String umi) {
+		if (umi.length()>this.baseLength) {
+			this.baseCounts=Arrays.copyOf(this.baseCounts, umi.length()*BASES.length);
+			this.baseLength=umi.length();
+		}
+		for (int position=0; position<umi.length(); position++)
+			this.baseCounts[position*BASES.length+baseIndex(umi.charAt(position))]++;
+	}
+
+	private static int baseIndex (final char base) {
+		switch (base) {
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			case 'N': return 4;
+			default: throw new IllegalArgumentException("Unexpected base [" + base + "] in UMI");
+		}
+	}
+
+	private int getCount (final int position, final Bases base) {
+		return this.baseCounts[position*BASES.length+base.ordinal()];
+	}
+
+	private int getTotalCount (final int position) {
+		int count=0;
+		for (int i=position*BASES.length; i<(position+1)*BASES.length; i++)
+			count+=this.baseCounts[i];
+		return count;
+	}
+
 	public void addUMI (final Collection <String> umis) {
 		for (String umi: umis)
 			addUMI(umi);
@@ -155,11 +191,15 @@ public class BeadSynthesisErrorData implements Serializable {
 	}
 
 	public BaseDistributionMetricCollection getBaseCounts () {
-		return this.baseCounts;
+		BaseDistributionMetricCollection result = new BaseDistributionMetricCollection();
+		for (int position=0; position<this.baseLength; position++)
+			for (Bases b: BASES)
+				result.addBase(b.getBase(), position, getCount(position, b));
+		return result;
 	}
 
 	public int getBaseLength () {
-		return this.baseCounts.getPositions().size();
+		return this.baseLength;
 	}
 
 	/**
@@ -285,12 +325,9 @@ public class BeadSynthesisErrorData implements Serializable {
 		//if (!this.dataChanged & this.polyTFreq!=null) return (this.polyTFreq);
 		this.dataChanged=false;
 
-		char base = Bases.T.getBase();
-		List<Integer> basePositions = baseCounts.getPositions();
-		double [] result = new double [basePositions.size()];
+		double [] result = new double [this.baseLength];
 		for (int position=0; position<result.length; position++) {
-			BaseDistributionMetric bdm =this.baseCounts.getDistributionAtPosition(position);
-			double freq = (double) bdm.getCount(base) / (double) bdm.getTotalCount();
+			double freq = (double) getCount(position, Bases.T) / (double) getTotalCount(position);
 			result[position]=freq;
 		}
 		// cache results if you needed to compute.
@@ -358,10 +395,9 @@ public class BeadSynthesisErrorData implements Serializable {
 	public double [] synthesisErrorMetric() {
 		//if (!this.dataChanged & this.synthesisErrorMetric!=null) return (this.synthesisErrorMetric);
 		this.dataChanged=false;
-		List<Integer> basePositions = baseCounts.getPositions();
-		double [] result = new double [basePositions.size()];
+		double [] result = new double [this.baseLength];
 
-		for (int i: basePositions)
+		for (int i=0; i<result.length; i++)
 			result[i]=getMostCommonBaseFrequency(i);
 		//this.synthesisErrorMetric=result;
 		return result;
@@ -373,14 +409,12 @@ public class BeadSynthesisErrorData implements Serializable {
 	 * @return
 	 */
 	private double getMostCommonBaseFrequency (final int position) {
-		BaseDistributionMetric bdm =this.baseCounts.getDistributionAtPosition(position);
 		// cast as double once to avoid doing it over and over.
-		double totalCount = bdm.getTotalCount();
+		double totalCount = getTotalCount(position);
 		double maxFreq=0;
 
-		for (Bases b: Bases.values()) {
-			char bb = b.getBase();
-			int count = bdm.getCount(bb);
+		for (Bases b: BASES) {
+			int count = getCount(position, b);
 			double freq = count / totalCount;
 			if (freq>maxFreq)
 				maxFreq=freq;
@@ -31,6 +31,7 @@ import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -49,10 +50,12 @@ import org.broadinstitute.dropseqrna.utils.BaseDistributionMetricCollection;
 import org.broadinstitute.dropseqrna.utils.Bases;
 import org.broadinstitute.dropseqrna.utils.GroupingIterator;
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.broadinstitute.dropseqrna.utils.ParallelTransformingIterator;
 import org.broadinstitute.dropseqrna.utils.SamHeaderUtil;
-import org.broadinstitute.dropseqrna.utils.StringInterner;
+import org.broadinstitute.dropseqrna.utils.TransformingIterator;
 import org.broadinstitute.dropseqrna.utils.editdistance.MapBarcodesByEditDistance;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
+import org.broadinstitute.dropseqrna.utils.io.SamIOUtil;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamFileMergeUtil;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamHeaderAndIterator;
 import org.broadinstitute.dropseqrna.utils.readiterators.UMIIterator;
@@ -66,9 +69,7 @@ import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.IterableAdapter;
 import htsjdk.samtools.util.Log;
-import htsjdk.samtools.util.PeekableIterator;
 import htsjdk.samtools.util.ProgressLogger;
-import htsjdk.samtools.util.SortingCollection;
 import picard.cmdline.StandardOptionDefinitions;
 
 /**
@@ -145,9 +146,13 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 	@Argument (doc="Which base to scan for UMI bias when repairing intended sequences with substitution errors.  This is typically the last base of the UMI.  If set to null, program will use the last base of the UMI.  This argument only needs to be set if you've done something unusual with your data.", optional=true)
 	public Integer UMI_BIAS_BASE=null;
 
-	@Argument(doc="Number of threads to use for edit distance collapse.  Defaults to 1.")
+	@Argument(doc="Number of threads to use for edit distance collapse.  When greater than 1, the UMIs of each cell/gene are also "
+			+ "collapsed in parallel while the input is read.  Defaults to 1.", minValue=1)
 	public int NUM_THREADS=1;
 
+	@Argument(doc=SamIOUtil.NUM_IO_THREADS_DOC, minValue=1)
+	public int NUM_IO_THREADS=1;
+
 	Double EXTREME_BASE_RATIO=0.8;
 	DetectPrimerInUMI detectPrimerTool=null;
 
@@ -155,7 +160,6 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 
 	private Character PAD_CHARACTER='N';
 	private static DecimalFormat df2 = new DecimalFormat("#.##");
-	int MAX_BARCODE_ERRORS_IN_RAM=10000;
 
 	@Override
 	protected int doWork() {
@@ -250,33 +254,42 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 	 * @param out the verbose output stream.
 	 * @param outSummary The summary output stream.
 	 *
-	 * TODO: A less memory-hog version of this would write out the summary file as it runs.  Could even write this out to a SortingIteratorFactory by implementing a codec...
-	 * Only need to hang onto errors that are SYNTH_MISSING_BASE, and leave the rest null (and check for that when running barcode repair.)
+	 * Each cell is reduced to the counts of each base at each UMI position as soon as all of its UMIs have been seen, so the data held for
+	 * the report is small and fixed size per cell, and is sorted in memory rather than spilled to disk.
 	 *
 	 * @return A collection of biased cell barcodes.
 	 */
 	private BiasedBarcodeCollection findBiasedBarcodes (final UMIIterator iter, final PrintStream out, final File outSummary, final Integer lastUMIBase) {
 		log.info("Finding Cell Barcodes with UMI errors");
-		// Group the stream of UMICollections into groups with the same cell barcode.
-        GroupingIterator<UMICollection> groupingIterator = new GroupingIterator<>(iter,
-                new Comparator<UMICollection>() {
+
+		// UMI collapse is independent for each cell/gene, so it can be done on worker threads.
+		// Results come back in the order the UMIIterator produced them, so the output is the same either way.
+		Iterator<CellGeneUMIs> umiCountIterator;
+		if (this.NUM_THREADS>1)
+			umiCountIterator = new ParallelTransformingIterator<>(iter, this::countUMIs, this.NUM_THREADS);
+		else
+			umiCountIterator = new TransformingIterator<UMICollection, CellGeneUMIs>(iter) {
+				@Override
+				public CellGeneUMIs next() {
+					return countUMIs(this.underlyingIterator.next());
+				}
+			};
+
+		// Group the stream of cell/gene UMIs into groups with the same cell barcode.
+        GroupingIterator<CellGeneUMIs> groupingIterator = new GroupingIterator<>(umiCountIterator,
+                new Comparator<CellGeneUMIs>() {
                     @Override
-                    public int compare(final UMICollection o1, final UMICollection o2) {
-                        return o1.getCellBarcode().compareTo(o2.getCellBarcode());
+                    public int compare(final CellGeneUMIs o1, final CellGeneUMIs o2) {
+                        return o1.cellBarcode.compareTo(o2.cellBarcode);
                     }
                 });
 
-
 		// for holding barcodes results.  The key is the cell barcode, the value is the first base to pad.
 		// Used for cleanup of BAMs.
 		Map<String, BeadSynthesisErrorData> errorBarcodesWithPositions = new HashMap<>();
 
- 		// for holding UMI Strings efficiently
-		// TODO: evaluate if this is needed this anymore now that the report is written out disk immediately.
-		StringInterner  umiStringCache = new StringInterner();
-
-		// a sorting collection so big data can spill to disk before it's sorted and written out as a report.
-		SortingCollection<BeadSynthesisErrorData> sortingCollection= SortingCollection.newInstance(BeadSynthesisErrorData.class, new BeadSynthesisErrorDataCodec(), new BeadSynthesisErrorData.SizeComparator(), this.MAX_BARCODE_ERRORS_IN_RAM);
+		// the data for the report, which is sorted by size once all cells are seen.
+		List<BeadSynthesisErrorData> reportData = new ArrayList<>();
 
         // gather up summary stats
      	BeadSynthesisErrorsSummaryMetric summary = new BeadSynthesisErrorsSummaryMetric();
@@ -292,8 +305,8 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 
      	// main data generation loop.
      	// to ease memory usage, after generating the BeadSynthesisErrorData object, use its cell barcode string for registering additional data.
-        for (final List<UMICollection> umiCollectionList : groupingIterator) {
-            BeadSynthesisErrorData bsed = buildBeadSynthesisErrorData(umiCollectionList, umiStringCache, prog);
+        for (final List<CellGeneUMIs> umiCollectionList : groupingIterator) {
+            BeadSynthesisErrorData bsed = buildBeadSynthesisErrorData(umiCollectionList, prog);
             // if the cell has too few UMIs, then go to the next cell and skip all processing.
             if (bsed.getNumTranscripts() < this.MIN_UMIS_PER_CELL)
 				// not sure I even want to track this...
@@ -325,42 +338,62 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
             if (bsed.getUMICount()>=this.MIN_UMIS_PER_CELL && errorType==BeadSynthesisErrorType.SYNTH_MISSING_BASE)
             	errorBarcodesWithPositions.put(bsed.getCellBarcode(), bsed);
 
-            // add to sorting collection if you have enough UMIs.
-            sortingCollection.add(bsed);
+            reportData.add(bsed);
         }
-
-        PeekableIterator<BeadSynthesisErrorData> bsedIter = new PeekableIterator<>(sortingCollection.iterator());
+        CloserUtil.close(umiCountIterator);
 
         log.info("Writing Biased UMI reports");
-        // write out the records from the sorting collection.
-        writeFile(bsedIter, out);
+        reportData.sort(new BeadSynthesisErrorData.SizeComparator());
+        writeFile(reportData, out);
         // write out the summary
         writeSummary(summary, outSummary);
-        CloserUtil.close(bsedIter);
 
         // the error barcodes we want to fix.
         BiasedBarcodeCollection result = new BiasedBarcodeCollection(errorBarcodesWithPositions, umisPerCellBarcode, umiBias);
         return result;
 	}
 
+	/**
+	 * Collapse the UMIs of a single cell/gene.
+	 * This is called from worker threads when NUM_THREADS>1, so it must not touch any shared state.
+	 */
+	private CellGeneUMIs countUMIs (final UMICollection umis) {
+		int transcriptCounts = umis.getDigitalExpression(1, 1, false);
+		int readCounts = umis.getDigitalExpression(1, 1, true);
+		return new CellGeneUMIs(umis.getCellBarcode(), umis.getMolecularBarcodes(), transcriptCounts, readCounts);
+	}
+
+	/**
+	 * The UMIs of one gene in one cell, with the number of transcripts after UMI collapse and the number of reads.
+	 */
+	private static class CellGeneUMIs {
+		private final String cellBarcode;
+		private final Collection<String> molecularBarcodes;
+		private final int transcriptCount;
+		private final int readCount;
+
+		CellGeneUMIs (final String cellBarcode, final Collection<String> molecularBarcodes, final int transcriptCount, final int readCount) {
+			this.cellBarcode=cellBarcode;
+			this.molecularBarcodes=molecularBarcodes;
+			this.transcriptCount=transcriptCount;
+			this.readCount=readCount;
+		}
+	}
+
 	/**
 	 * For a single cell barcode, gather up all the reads/UMIs to test for UMI errors.
+	 * UMI strings are shared by the UMIIterator, so the same UMI on different genes is held once.
 	 * @param umiCollectionList A collection of UMIs for a cell.
-	 * @param umiStringCache A cache to save space on UMIs - there are only 4^length possible UMIs, and length is usually 8-9, so UMIs are often repeated.
 	 * @param prog A progress logger.
 	 * @return A BeadSynthesisErrorData object for a single cell barcode across all UMIs.
 	 */
-	private BeadSynthesisErrorData buildBeadSynthesisErrorData (final List<UMICollection> umiCollectionList, final StringInterner umiStringCache, final ProgressLogger prog) {
-		final String cellBarcode = umiCollectionList.get(0).getCellBarcode();
+	private BeadSynthesisErrorData buildBeadSynthesisErrorData (final List<CellGeneUMIs> umiCollectionList, final ProgressLogger prog) {
+		final String cellBarcode = umiCollectionList.get(0).cellBarcode;
 		BeadSynthesisErrorData bsed = new BeadSynthesisErrorData(cellBarcode);
-		for (final UMICollection umis : umiCollectionList) {
-			int transcriptCounts = umis.getDigitalExpression(1, 1, false);
-			int readCounts = umis.getDigitalExpression(1, 1, true);
-			Collection<String> umiCol = umis.getMolecularBarcodes();
-			umiCol = getUMIsFromCache(umiCol, umiStringCache);
-			bsed.addUMI(umiCol);
-			bsed.incrementReads(readCounts);
-			bsed.incrementTranscripts(transcriptCounts);
+		for (final CellGeneUMIs umis : umiCollectionList) {
+			bsed.addUMI(umis.molecularBarcodes);
+			bsed.incrementReads(umis.readCount);
+			bsed.incrementTranscripts(umis.transcriptCount);
 			prog.record(null, 0);
 		}
 		return bsed;
@@ -396,17 +429,27 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 	/**
 	 * For each problematic cell, replace cell barcodes positions with N.
 	 * Take the replaced bases and prepend them to the UMI, and trim the last <X> bases off the end of the UMI.
+	 * The repair for each cell barcode is decided once up front, so reads from unaffected cells only cost a map lookup.
 	 */
 	private void cleanBAM (final Map<String, BeadSynthesisErrorData> errorBarcodesWithPositions, final Map<String, String> intendedSequenceMap) {
 		log.info("Cleaning BAM");
-        final SamHeaderAndIterator headerAndIterator = SamFileMergeUtil.mergeInputs(INPUT, true);
+		final Map<String, BarcodeRepair> repairs = new HashMap<>();
+		for (BeadSynthesisErrorData bsed: errorBarcodesWithPositions.values()) {
+			BarcodeRepair repair = getBarcodeRepair(bsed, intendedSequenceMap, this.EXTREME_BASE_RATIO);
+			if (repair!=null)
+				repairs.put(bsed.getCellBarcode(), repair);
+		}
+
+        final SamHeaderAndIterator headerAndIterator = SamFileMergeUtil.mergeInputs(INPUT, true, SamReaderFactory.makeDefault(), NUM_IO_THREADS);
 		SamHeaderUtil.addPgRecord(headerAndIterator.header, this);
 
-		SAMFileWriter writer= new SAMFileWriterFactory().setCreateIndex(CREATE_INDEX).makeSAMOrBAMWriter(headerAndIterator.header, true, OUTPUT);
+		SAMFileWriter writer= SamIOUtil.makeSAMOrBAMWriter(new SAMFileWriterFactory(), CREATE_INDEX, CREATE_MD5_FILE, headerAndIterator.header, true, OUTPUT, NUM_IO_THREADS);
 		ProgressLogger pl = new ProgressLogger(log);
 		for (SAMRecord r: new IterableAdapter<>(headerAndIterator.iterator)) {
 			pl.record(r);
-			r=padCellBarcodeFix(r, errorBarcodesWithPositions, intendedSequenceMap, this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG, this.EXTREME_BASE_RATIO);
+			BarcodeRepair repair = repairs.get(r.getStringAttribute(this.CELL_BARCODE_TAG));
+			if (repair!=null)
+				r=repairRead(r, repair, this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG);
 			if (r!=null)
 				writer.addAlignment(r);
 		}
@@ -424,37 +467,72 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 		BeadSynthesisErrorData bsed = errorBarcodesWithPositions.get(cellBC);
 		if (bsed==null) return (r); // no correction data, no fix.
 
+		BarcodeRepair repair = getBarcodeRepair(bsed, intendedSequenceMap, extremeBaseRatio);
+		if (repair==null) return (r);
+		return repairRead(r, repair, cellBarcodeTag, molecularBarcodeTag);
+	}
+
+	/**
+	 * Decide how reads from a cell with an error are repaired.
+	 * @return null if the cell has no error, and the reads are left as they are.
+	 */
+	private BarcodeRepair getBarcodeRepair (final BeadSynthesisErrorData bsed, final Map<String, String> intendedSequenceMap, final double extremeBaseRatio) {
 		// we're only going to fix cells where there's one or more synthesis errors
 		BeadSynthesisErrorType bset = bsed.getErrorType(extremeBaseRatio, this.detectPrimerTool, this.EDIT_DISTANCE);
-		if (bset==BeadSynthesisErrorType.NO_ERROR) return (r); // no error, return.
+		if (bset==BeadSynthesisErrorType.NO_ERROR) return (null); // no error, return.
 		// has an error, not a synthesis error...
 		if (bset!=BeadSynthesisErrorType.SYNTH_MISSING_BASE)
-			return (null);
+			return (BarcodeRepair.DROP);
 
 		// has a synthesis error
 		int polyTErrorPosition = bsed.getPolyTErrorPosition(this.EXTREME_BASE_RATIO);
 		int umiLength = bsed.getBaseLength();
 		int numErrors= umiLength-polyTErrorPosition+1;
-		// if there are too many errors, or the errors aren't all polyT, return null.
+		// if there are too many errors, or the errors aren't all polyT, drop the reads.
 		if (numErrors > MAX_NUM_ERRORS)
-			return null;
+			return (BarcodeRepair.DROP);
 
-		// apply the fix and return the fixed read.
-		String umi = r.getStringAttribute(molecularBarcodeTag);
+		String cellBC = bsed.getCellBarcode();
 		String cellBCFixed = padCellBarcode(cellBC, polyTErrorPosition, umiLength);
-		String umiFixed = fixUMI(cellBC, umi, polyTErrorPosition);
-
 		// if there's an intended sequence, use that instead of the default padded cell barcode.
 		String intendedSeq = intendedSequenceMap.get(cellBC);
 		if (intendedSeq!=null)
 			cellBCFixed=intendedSeq;
+		return new BarcodeRepair(cellBC, cellBCFixed, polyTErrorPosition);
+	}
+
+	/**
+	 * How the reads of one cell barcode with a synthesis error are rewritten.
+	 */
+	private static class BarcodeRepair {
+		// reads from cells with errors that can't be fixed are removed from the output.
+		private static final BarcodeRepair DROP = new BarcodeRepair(null, null, -1);
+
+		private final String cellBarcode;
+		private final String fixedCellBarcode;
+		private final int polyTErrorPosition;
+
+		BarcodeRepair (final String cellBarcode, final String fixedCellBarcode, final int polyTErrorPosition) {
+			this.cellBarcode=cellBarcode;
+			this.fixedCellBarcode=fixedCellBarcode;
+			this.polyTErrorPosition=polyTErrorPosition;
+		}
+	}
 
-		r.setAttribute(cellBarcodeTag, cellBCFixed);
+	/**
+	 * Apply the fix for the read's cell.
+	 * @return null if the read should not be included in the output BAM.
+	 */
+	private SAMRecord repairRead (final SAMRecord r, final BarcodeRepair repair, final String cellBarcodeTag, final String molecularBarcodeTag) {
+		if (repair==BarcodeRepair.DROP)
+			return null;
+		String umi = r.getStringAttribute(molecularBarcodeTag);
+		String umiFixed = fixUMI(repair.cellBarcode, umi, repair.polyTErrorPosition);
+		r.setAttribute(cellBarcodeTag, repair.fixedCellBarcode);
 		r.setAttribute(molecularBarcodeTag, umiFixed);
 		return r;
 	}
 
-
 	private void writeSummary(final BeadSynthesisErrorsSummaryMetric summary, final File out) {
 		MetricsFile<BeadSynthesisErrorsSummaryMetric, Integer> outFile = new MetricsFile<>();
 		outFile.addMetric(summary);
@@ -479,19 +557,16 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 	}
 
 
-	private void writeFile (final PeekableIterator <BeadSynthesisErrorData> iter, final PrintStream out) {
-		if (!iter.hasNext()) {
+	private void writeFile (final List<BeadSynthesisErrorData> data, final PrintStream out) {
+		if (data.isEmpty()) {
 			out.close();
 			return;
 		}
 
-		BeadSynthesisErrorData first = iter.peek();
-		int umiLength = first.getBaseLength();
+		int umiLength = data.get(0).getBaseLength();
 		writeBadBarcodeStatisticsFileHeader(umiLength, out);
-		while (iter.hasNext()) {
-			BeadSynthesisErrorData bsed = iter.next();
+		for (BeadSynthesisErrorData bsed: data)
 			writeBadBarcodeStatisticsFileEntry(bsed, out);
-		}
 		out.close();
 	}
 
@@ -547,20 +622,6 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 	}
 
 
-	/**
-	 * Gets a reference to the UMI strings from the cache.  Has the side effect of populating the cache with additional
-	 * strings.  This reduces total memory footprint by returning references to repeated strings instead of
-	 * holding new objects for the same UMI over and over.
-	 * @param umis A list of strings to get references to
-	 * @param umiStringCache The cache of strings holding references.
-	 */
-	private Collection<String> getUMIsFromCache (final Collection<String> umis, final StringInterner umiStringCache) {
-		List<String> result = new ArrayList<>(umis.size());
-		for (String umi: umis)
-			result.add(umiStringCache.intern(umi));
-		return (result);
-	}
-
 	/**
 	 * Take the original cell barcode and UMI, and move bases from the end of the cell barcode to the start of the UMI,
 	 * then trim an equal number of bases off the end of the UMI so the length is the same.
@@ -593,7 +654,7 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 	public UMIIterator prepareUMIIterator() {
 		List<String> barcodes=getCellBarcodes();
 
-		UMIIterator umiIterator = new UMIIterator(SamFileMergeUtil.mergeInputs(INPUT, false, samReaderFactory),
+		UMIIterator umiIterator = new UMIIterator(SamFileMergeUtil.mergeInputs(INPUT, false, samReaderFactory, NUM_IO_THREADS),
 				GENE_NAME_TAG, GENE_STRAND_TAG, GENE_FUNCTION_TAG,
         		this.STRAND_STRATEGY, this.LOCUS_FUNCTION_LIST, this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG,
         		this.READ_MQ, false, barcodes, true);
@@ -615,7 +676,7 @@ public class DetectBeadSynthesisErrors extends GeneFunctionCommandLineBase {
 		}
 		log.info("Gathering barcodes for the top [" + this.NUM_BARCODES +"] cells");
         return new BarcodeListRetrieval().getListCellBarcodesByReadCount(
-                SamFileMergeUtil.mergeInputs(INPUT, false, samReaderFactory).iterator,
+                SamFileMergeUtil.mergeInputs(INPUT, false, samReaderFactory, NUM_IO_THREADS).iterator,
                 this.CELL_BARCODE_TAG, this.READ_MQ, null, this.NUM_BARCODES);
 	}
 
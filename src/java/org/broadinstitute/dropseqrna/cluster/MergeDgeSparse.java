@@ -44,6 +44,7 @@ import org.broadinstitute.dropseqrna.cmdline.CustomCommandLineValidationHelper;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.yaml.snakeyaml.Yaml;
 
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.RuntimeIOException;
@@ -63,7 +64,7 @@ public class MergeDgeSparse
 
     @Argument(shortName = "Y", doc="Input file containing list of data sets as for clustering workflow.\n" +
             "The file is expected to contain a 'datasets' list.  Each element of the list will contain:\n\n" +
-            "path: the location of the DGE. (required)\n" +
+            "path: the location of the DGE, in tabular, Matrix Market or binary sparse format. (required)\n" +
             "name: a prefix to prepend to each cell barcode (plus underscore).  (optional)\n" +
             "cell_count: If present and non-zero, take this many cells from the input DGE, selecting the largest. (optional)\n\n" +
             "YAML argument is")
@@ -160,32 +161,36 @@ public class MergeDgeSparse
 
         final GeneFiltererSorter geneFiltererSorter = new GeneFiltererSorter(MIN_CELLS, dges);
 
-        int totalNumElements = 0;
         final List<String> cellBarcodes = new ArrayList<>();
         for (final SparseDge dge : dges) {
-            totalNumElements += dge.getNumNonZeroEntries();
             for (int i = 0; i < dge.getNumCells(); ++i)
 				cellBarcodes.add(dge.getCellBarcode(i));
         }
 
         final MergeDgeOutputWriter writer = new MergeDgeOutputWriter(RAW_DGE_OUTPUT_FILE, SCALED_DGE_OUTPUT_FILE,
-                totalNumElements, geneFiltererSorter.getSortedGeneNames(), cellBarcodes);
+                geneFiltererSorter.getNumOutputElements(), geneFiltererSorter.getSortedGeneNames(), cellBarcodes);
 
+        // Stream each DGE a row at a time, so that memory use does not depend on the number of non-zero elements.
         int cellIndexOffset = 0;
         int numFilteredElements = 0;
         for (final SparseDge dge : dges) {
             LOG.info("Merging DGE " + dge.getFile().getAbsolutePath());
-            for (final SparseDge.Triplet triplet: dge.getTriplets()) {
-                final int geneIndex = geneFiltererSorter.getOutputGeneIndex(triplet.geneIndex);
+            final CloseableIterator<SparseDge.Row> rows = dge.iterator();
+            while (rows.hasNext()) {
+                final SparseDge.Row row = rows.next();
+                final int geneIndex = geneFiltererSorter.getOutputGeneIndex(row.geneIndex);
                 if (geneIndex < 0) {
                     // Gene was filtered by a threshold.
-                    ++numFilteredElements;
+                    numFilteredElements += row.size();
                     continue;
                 }
-                final int cellIndex = cellIndexOffset + triplet.cellIndex;
-                final double scaled = triplet.value/(double)dge.getNumTranscripts(triplet.cellIndex);
-                writer.writeValue(geneIndex, cellIndex, triplet.value, scaled);
+                for (int i = 0; i < row.size(); ++i) {
+                    final int cellIndex = cellIndexOffset + row.cellIndex[i];
+                    final double scaled = row.value[i]/(double)dge.getNumTranscripts(row.cellIndex[i]);
+                    writer.writeValue(geneIndex, cellIndex, row.value[i], scaled);
+                }
             }
+            rows.close();
             cellIndexOffset += dge.getNumCells();
         }
         writer.close();
@@ -230,6 +235,7 @@ public class MergeDgeSparse
 
     private class GeneFiltererSorter {
         private int numOutputGenes = 0;
+        private int numOutputElements = 0;
         private final int[] geneIdMapping;
         private final List<String> sortedGeneNames;
 
@@ -238,9 +244,10 @@ public class MergeDgeSparse
             geneIdMapping = new int[geneEnumerator.getGenes().size()];
             final Map<String, Integer> geneMap = new TreeMap<>();
             for (int i = 0; i < geneIdMapping.length; ++i)
-				if (cellsPerGene[i] >= minCellsPerGene)
+				if (cellsPerGene[i] >= minCellsPerGene) {
 					geneMap.put(geneEnumerator.getGeneName(i), i);
-				else
+					numOutputElements += cellsPerGene[i];
+				} else
 					geneIdMapping[i] = -1;
             for (final Map.Entry<String, Integer> entry : geneMap.entrySet())
 				geneIdMapping[entry.getValue()] = numOutputGenes++;
@@ -249,12 +256,25 @@ public class MergeDgeSparse
 
         private int[] countCellsPerGene(final List<SparseDge> dges) {
             final int[] cellsPerGene = new int[geneEnumerator.getGenes().size()];
-            for (final SparseDge dge : dges)
-				for (final SparseDge.Triplet triplet : dge.getTriplets())
-					++cellsPerGene[triplet.geneIndex];
+            for (final SparseDge dge : dges) {
+                LOG.info("Counting cells per gene in " + dge.getFile().getAbsolutePath());
+                final CloseableIterator<SparseDge.Row> rows = dge.iterator();
+                while (rows.hasNext()) {
+                    final SparseDge.Row row = rows.next();
+                    cellsPerGene[row.geneIndex] += row.size();
+                }
+                rows.close();
+            }
             return cellsPerGene;
         }
 
+        /**
+         * @return the number of non-zero elements in genes that pass the filter.
+         */
+        public int getNumOutputElements() {
+            return numOutputElements;
+        }
+
         public int getNumOutputGenes() {
             return numOutputGenes;
         }
@@ -25,111 +25,130 @@ package org.broadinstitute.dropseqrna.cluster;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.InputStreamReader;
 import java.lang.reflect.Array;
 import java.util.*;
 
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.BinarySparseDge;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeader;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderCodec;
 import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
 import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketReader;
 
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import picard.util.TabbedInputParser;
 
 /**
- * Reads a DGE text file (in tabular or Drop-seq Matrix Market format) and stores it in sparse format.
+ * Reads a DGE file (tabular or Drop-seq Matrix Market text, or binary sparse) one gene row at a time.
+ * Only per-cell totals are held in memory; the expression values are streamed from the file each time
+ * {@link #iterator()} is called, so any number of DGEs can be merged without loading them.
  * Currently any DGE header is ignored.
  * Cells are sorted in descending order by size.
  */
-public class SparseDge {
+public class SparseDge implements Iterable<SparseDge.Row> {
     private static final String GENE = "GENE";
 
-    // If memory becomes an issue (which is likely) consider using FastUtil or Trove
-    public static class Triplet {
+    /**
+     * The non-zero expression of one gene, restricted to the cells that have not been discarded.
+     * Cell indices are in the current (sorted, filtered) cell order.
+     */
+    public static class Row {
         final int geneIndex;
-        int cellIndex;
-        final int value;
+        final int[] cellIndex;
+        final int[] value;
 
-        Triplet(final int geneIndex, final int cellIndex, final int value) {
+        Row(final int geneIndex, final int[] cellIndex, final int[] value) {
             this.geneIndex = geneIndex;
             this.cellIndex = cellIndex;
             this.value = value;
         }
+
+        public int size() {
+            return cellIndex.length;
+        }
     }
 
     private final File input;
+    private final GeneEnumerator geneEnumerator;
     private final DgeHeader header;
     private int numTranscripts[];
     private int numGenes[];
     private String cellBarcode[];
-    private final Collection<Triplet> triplets;
+    // Maps column in the file to current cell index, or -1 if the cell has been discarded.
+    private final int[] cellIndexMap;
     private final ArrayList<String> discardedCells = new ArrayList<>();
 
     /**
-     * Load a DGE into a sparse in-memory format.
-     * @param input Either tabular DGE text, or Drop-seq Matrix Market sparse format.  May be gzipped.
+     * Scan a DGE to compute the size of each cell.
+     * @param input Either tabular DGE text, Drop-seq Matrix Market sparse format, or integer binary sparse format.
+     *              Text formats may be gzipped.
      * @param geneEnumerator Genes are assigned indices by this.
      */
     public SparseDge(final File input, final GeneEnumerator geneEnumerator) {
+        this.input = input;
+        this.geneEnumerator = geneEnumerator;
+        final RawRowReader reader = openRawRowReader();
         try {
-            this.input = input;
-            final BufferedInputStream inputStream = new BufferedInputStream(IOUtil.openFileForReading(input));
-            final RawLoadedDge rawLoadedDge;
-            if (MatrixMarketReader.isMatrixMarketInteger(input))
-				rawLoadedDge = loadDropSeqSparseDge(inputStream, input, geneEnumerator);
-			else
-				rawLoadedDge = loadTabularDge(inputStream, input, geneEnumerator);
-            CloserUtil.close(inputStream);
-            header = rawLoadedDge.header;
-            triplets = rawLoadedDge.rawTriplets;
-            sortAndFilterRawDge(rawLoadedDge);
+            header = reader.header;
+            final int[] rawNumTranscripts = new int[reader.cellBarcodes.length];
+            final int[] rawNumGenes = new int[reader.cellBarcodes.length];
+            while (reader.next())
+				for (int i = 0; i < reader.size; ++i) {
+                    rawNumTranscripts[reader.cellIndex[i]] += reader.value[i];
+                    ++rawNumGenes[reader.cellIndex[i]];
+                }
+            cellIndexMap = sortCells(reader.cellBarcodes, rawNumTranscripts, rawNumGenes);
         } catch (Exception e) {
             throw new RuntimeException("Problem reading " + input.getAbsolutePath(), e);
+        } finally {
+            CloserUtil.close(reader);
         }
     }
 
-    private void sortAndFilterRawDge(final RawLoadedDge rawLoadedDge) {
-
-        // Sort cells by rawNumTranscripts (descending)
+    /**
+     * Sort cells by number of transcripts (descending).
+     * @return mapping from column in the file to sorted cell index.
+     */
+    private int[] sortCells(final String[] rawCellBarcode, final int[] rawNumTranscripts, final int[] rawNumGenes) {
         // Need Integer in order to use Arrays.sort() with custom comparator
-        final Integer[] indices = new Integer[rawLoadedDge.rawCellBarcode.length];
+        final Integer[] indices = new Integer[rawCellBarcode.length];
         for (int i = 0; i < indices.length; ++i)
 			indices[i] = i;
-        Arrays.sort(indices, (o1, o2) -> Integer.compare(rawLoadedDge.rawNumTranscripts[o2], rawLoadedDge.rawNumTranscripts[o1]));
+        Arrays.sort(indices, (o1, o2) -> Integer.compare(rawNumTranscripts[o2], rawNumTranscripts[o1]));
 
         // Sort cell-oriented outputs according to new sort order
-        this.numTranscripts = new int[rawLoadedDge.rawNumTranscripts.length];
-        this.numGenes = new int[rawLoadedDge.rawNumGenes.length];
-        this.cellBarcode = new String[rawLoadedDge.rawCellBarcode.length];
+        this.numTranscripts = new int[rawNumTranscripts.length];
+        this.numGenes = new int[rawNumGenes.length];
+        this.cellBarcode = new String[rawCellBarcode.length];
         for (int i = 0; i < indices.length; ++i) {
             final int unsortedIndex = indices[i];
-            this.numTranscripts[i] = rawLoadedDge.rawNumTranscripts[unsortedIndex];
-            this.numGenes[i] = rawLoadedDge.rawNumGenes[unsortedIndex];
-            this.cellBarcode[i] = rawLoadedDge.rawCellBarcode[unsortedIndex];
+            this.numTranscripts[i] = rawNumTranscripts[unsortedIndex];
+            this.numGenes[i] = rawNumGenes[unsortedIndex];
+            this.cellBarcode[i] = rawCellBarcode[unsortedIndex];
         }
 
-        // Renumber triplet according to new sort order
         final int[] oldToNewCellIndexMapping = new int[indices.length];
         for (int i = 0; i < indices.length; ++i)
 			oldToNewCellIndexMapping[indices[i]] = i;
-
-        for (final Triplet t: triplets)
-			t.cellIndex = oldToNewCellIndexMapping[t.cellIndex];
+        return oldToNewCellIndexMapping;
     }
 
     public int getNumCells() {
         return cellBarcode.length;
     }
 
-    public int getNumNonZeroEntries() {
-        return triplets.size();
-    }
-
-    public Collection<Triplet> getTriplets() {
-        return Collections.unmodifiableCollection(triplets);
+    /**
+     * Re-read the DGE, returning the non-zero expression of each gene in the remaining cells.  Genes rejected by
+     * the GeneEnumerator are skipped.  A gene may be returned in more than one Row if its values are not contiguous
+     * in a Matrix Market file.
+     */
+    @Override
+    public CloseableIterator<Row> iterator() {
+        return new RowIterator(openRawRowReader());
     }
 
     public int getNumTranscripts(final int cellIndex) {
@@ -160,7 +179,9 @@ public class SparseDge {
         numGenes = Arrays.copyOfRange(numGenes, 0, numCellsToKeep);
         cellBarcode = Arrays.copyOfRange(cellBarcode, 0, numCellsToKeep);
 
-        triplets.removeIf(t -> t.cellIndex >= numCellsToKeep);
+        for (int i = 0; i < cellIndexMap.length; ++i)
+			if (cellIndexMap[i] >= numCellsToKeep)
+				cellIndexMap[i] = -1;
     }
 
     public void retainOnlyTheseCells(final Set<String> cellBarcodesToRetain) {
@@ -189,27 +210,22 @@ public class SparseDge {
 
     private void discardCells(final BitSet cellsToDiscard) {
         if (!cellsToDiscard.isEmpty()) {
-            final int[] cellIndexMap = new int[getNumCells()];
-            int newCellIndex = 0;
-            for (int i = 0; i < cellIndexMap.length; ++i) {
+            final int[] newCellIndex = new int[getNumCells()];
+            int nextCellIndex = 0;
+            for (int i = 0; i < newCellIndex.length; ++i) {
                 if (cellsToDiscard.get(i)) {
-                    cellIndexMap[i] = -1;
+                    newCellIndex[i] = -1;
                 } else {
-                    cellIndexMap[i] = newCellIndex++;
+                    newCellIndex[i] = nextCellIndex++;
                 }
             }
             captureDiscardedCellBarcodes(cellsToDiscard);
             numTranscripts = removeElements(numTranscripts, cellsToDiscard);
             numGenes = removeElements(numGenes, cellsToDiscard);
             cellBarcode = removeElements(cellBarcode, cellsToDiscard);
-            final Iterator<Triplet> it = triplets.iterator();
-            while (it.hasNext()) {
-                final Triplet t = it.next();
-                if (cellsToDiscard.get(t.cellIndex))
-					it.remove();
-				else
-					t.cellIndex = cellIndexMap[t.cellIndex];
-            }
+            for (int i = 0; i < cellIndexMap.length; ++i)
+				if (cellIndexMap[i] != -1)
+					cellIndexMap[i] = newCellIndex[cellIndexMap[i]];
         }
     }
 
@@ -251,85 +267,246 @@ public class SparseDge {
         }
     }
 
+    public Collection<String> getDiscardedCells() {
+        return Collections.unmodifiableCollection(discardedCells);
+    }
+
     /**
-     * Holds DGE as loaded from sparse or dense input, before sorting has been done.
+     * Translates rows as they appear in the file to the current cell order, dropping discarded cells.
      */
-    private static class RawLoadedDge {
-        int[] rawNumTranscripts;
-        int[] rawNumGenes;
-        String[] rawCellBarcode;
-        private final Collection<Triplet> rawTriplets = new LinkedList<>();
-        private DgeHeader header;
+    private class RowIterator implements CloseableIterator<Row> {
+        private final RawRowReader reader;
+        private Row next;
+
+        RowIterator(final RawRowReader reader) {
+            this.reader = reader;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            try {
+                while (next == null && reader.next()) {
+                    int numCells = 0;
+                    for (int i = 0; i < reader.size; ++i)
+						if (cellIndexMap[reader.cellIndex[i]] != -1)
+							++numCells;
+                    if (numCells == 0)
+						continue;
+                    final int[] cellIndex = new int[numCells];
+                    final int[] value = new int[numCells];
+                    numCells = 0;
+                    for (int i = 0; i < reader.size; ++i) {
+                        final int index = cellIndexMap[reader.cellIndex[i]];
+                        if (index != -1) {
+                            cellIndex[numCells] = index;
+                            value[numCells++] = reader.value[i];
+                        }
+                    }
+                    next = new Row(reader.geneIndex, cellIndex, value);
+                }
+            } catch (Exception e) {
+                close();
+                throw new RuntimeException("Problem reading " + input.getAbsolutePath(), e);
+            }
+            if (next == null)
+				close();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext())
+				throw new NoSuchElementException();
+            final Row ret = next;
+            advance();
+            return ret;
+        }
+
+        @Override
+        public void close() {
+            CloserUtil.close(reader);
+        }
     }
 
-    private static RawLoadedDge loadTabularDge(
-            final BufferedInputStream inputStream,
-            final File input,
-            final GeneEnumerator geneEnumerator) {
-        final RawLoadedDge ret = new RawLoadedDge();
-        ret.header = new DgeHeaderCodec().decode(inputStream, input.getAbsolutePath());
-
-        TabbedInputParser parser = new TabbedInputParser(false, inputStream);
-        String headers[] = parser.next();
-        if (!headers[0].equals(GENE))
-			throw new RuntimeException("Unexpected first word in DGE: '" + headers[0] + "' in file " + input.getAbsolutePath());
-        // Initialized to 0 by default
-        ret.rawNumTranscripts = new int[headers.length - 1];
-        ret.rawNumGenes = new int[headers.length - 1];
-        ret.rawCellBarcode = Arrays.copyOfRange(headers, 1, headers.length);
-
-        // Read the file
-        int i = 1;
-        while (parser.hasNext()) {
-            ++i;
-            final String[] dgeLine = parser.next();
-            if (dgeLine.length != ret.rawCellBarcode.length + 1)
-				throw new RuntimeException("Unexpected number of cellIndex in file " + input.getAbsolutePath() + "; line " + i);
-            final int geneId = geneEnumerator.getGeneIndex(dgeLine[0]);
-            if (geneId == -1)
-				// E.g. for an MT gene
-                continue;
-            for (int j = 0; j < dgeLine.length - 1; ++j) {
-                final String expressionStr = dgeLine[j+1];
-                if (expressionStr.equals("0"))
-					continue;
-                final int expression = Integer.parseInt(expressionStr);
-                ret.rawNumTranscripts[j] += expression;
-                ++ret.rawNumGenes[j];
-                ret.rawTriplets.add(new Triplet(geneId, j, expression));
+    private RawRowReader openRawRowReader() {
+        try {
+            if (BinarySparseDge.isBinarySparseDge(input))
+				return new BinaryRowReader(input, geneEnumerator);
+            final BufferedInputStream inputStream = new BufferedInputStream(IOUtil.openFileForReading(input));
+            if (MatrixMarketReader.isMatrixMarketInteger(input))
+				return new DropSeqSparseRowReader(inputStream, input, geneEnumerator);
+			else
+				return new TabularRowReader(inputStream, input, geneEnumerator);
+        } catch (Exception e) {
+            throw new RuntimeException("Problem reading " + input.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Produces the non-zero values of a DGE one gene at a time, with cells indexed by column in the file.
+     * The buffers are reused from one row to the next.
+     */
+    private static abstract class RawRowReader implements Closeable {
+        DgeHeader header;
+        String[] cellBarcodes;
+        int geneIndex;
+        int size;
+        int[] cellIndex = new int[16];
+        int[] value = new int[16];
+
+        /**
+         * Load the next row that has a gene accepted by the GeneEnumerator.
+         * @return false if there are no more rows.
+         */
+        abstract boolean next();
+
+        void add(final int cell, final int expression) {
+            if (size == cellIndex.length) {
+                cellIndex = Arrays.copyOf(cellIndex, size * 2);
+                value = Arrays.copyOf(value, size * 2);
             }
+            cellIndex[size] = cell;
+            value[size++] = expression;
         }
-        return ret;
     }
 
-    private static RawLoadedDge loadDropSeqSparseDge(
-            final BufferedInputStream inputStream,
-            final File input,
-            final GeneEnumerator geneEnumerator) {
-        final MatrixMarketReader mmReader = new MatrixMarketReader(new BufferedReader(new InputStreamReader(inputStream)),
-                input.getAbsolutePath(), MatrixMarketConstants.GENES, MatrixMarketConstants.CELL_BARCODES);
-        final RawLoadedDge ret = new RawLoadedDge();
-        ret.rawNumTranscripts = new int[mmReader.getNumCols()];
-        ret.rawNumGenes = new int[mmReader.getNumCols()];
-        ret.rawCellBarcode = mmReader.getColNames().toArray(new String[mmReader.getColNames().size()]);
-        final String[] genes = mmReader.getRowNames().toArray(new String[mmReader.getRowNames().size()]);
-        final int[] geneIndices = new int[genes.length];
-        for (int i = 0; i < genes.length; ++i)
-			geneIndices[i] = geneEnumerator.getGeneIndex(genes[i]);
-        for (final MatrixMarketReader.Element element: mmReader) {
-            final int geneId = geneIndices[element.row];
-            if (geneId == -1)
-				// E.g. for an MT gene
-                continue;
-            final int expression = ((MatrixMarketReader.IntElement) element).val;
-            ret.rawNumTranscripts[element.col] += expression;
-            ++ret.rawNumGenes[element.col];
-            ret.rawTriplets.add(new Triplet(geneId, element.col, expression));
+    private static class TabularRowReader extends RawRowReader {
+        private final BufferedInputStream inputStream;
+        private final File input;
+        private final GeneEnumerator geneEnumerator;
+        private final TabbedInputParser parser;
+        private int lineNumber = 1;
+
+        TabularRowReader(final BufferedInputStream inputStream, final File input, final GeneEnumerator geneEnumerator) {
+            this.inputStream = inputStream;
+            this.input = input;
+            this.geneEnumerator = geneEnumerator;
+            header = new DgeHeaderCodec().decode(inputStream, input.getAbsolutePath());
+            parser = new TabbedInputParser(false, inputStream);
+            final String headers[] = parser.next();
+            if (!headers[0].equals(GENE))
+				throw new RuntimeException("Unexpected first word in DGE: '" + headers[0] + "' in file " + input.getAbsolutePath());
+            cellBarcodes = Arrays.copyOfRange(headers, 1, headers.length);
+        }
+
+        @Override
+        boolean next() {
+            while (parser.hasNext()) {
+                ++lineNumber;
+                final String[] dgeLine = parser.next();
+                if (dgeLine.length != cellBarcodes.length + 1)
+					throw new RuntimeException("Unexpected number of cellIndex in file " + input.getAbsolutePath() + "; line " + lineNumber);
+                geneIndex = geneEnumerator.getGeneIndex(dgeLine[0]);
+                if (geneIndex == -1)
+					// E.g. for an MT gene
+                    continue;
+                size = 0;
+                for (int j = 0; j < dgeLine.length - 1; ++j) {
+                    final String expressionStr = dgeLine[j+1];
+                    if (expressionStr.equals("0"))
+						continue;
+                    add(j, Integer.parseInt(expressionStr));
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            CloserUtil.close(parser);
+            CloserUtil.close(inputStream);
         }
-        return ret;
     }
 
-    public Collection<String> getDiscardedCells() {
-        return Collections.unmodifiableCollection(discardedCells);
+    /**
+     * Consecutive elements with the same row are returned together.
+     */
+    private static class DropSeqSparseRowReader extends RawRowReader {
+        private final MatrixMarketReader mmReader;
+        private final Iterator<MatrixMarketReader.Element> elements;
+        private final int[] geneIndices;
+        private MatrixMarketReader.Element pending;
+
+        DropSeqSparseRowReader(final BufferedInputStream inputStream, final File input, final GeneEnumerator geneEnumerator) {
+            mmReader = new MatrixMarketReader(new BufferedReader(new InputStreamReader(inputStream)),
+                    input.getAbsolutePath(), MatrixMarketConstants.GENES, MatrixMarketConstants.CELL_BARCODES);
+            cellBarcodes = mmReader.getColNames().toArray(new String[mmReader.getColNames().size()]);
+            final List<String> genes = mmReader.getRowNames();
+            geneIndices = new int[genes.size()];
+            for (int i = 0; i < geneIndices.length; ++i)
+				geneIndices[i] = geneEnumerator.getGeneIndex(genes.get(i));
+            elements = mmReader.iterator();
+            pending = elements.hasNext()? elements.next(): null;
+        }
+
+        @Override
+        boolean next() {
+            while (pending != null) {
+                final int row = pending.row;
+                size = 0;
+                geneIndex = geneIndices[row];
+                do {
+                    if (geneIndex != -1)
+						add(pending.col, ((MatrixMarketReader.IntElement) pending).val);
+                    pending = elements.hasNext()? elements.next(): null;
+                } while (pending != null && pending.row == row);
+                if (geneIndex != -1)
+					return true;
+                // else e.g. for an MT gene
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            CloserUtil.close(mmReader);
+        }
+    }
+
+    private static class BinaryRowReader extends RawRowReader {
+        private final BinarySparseDge dge;
+        private final int[] geneIndices;
+        private int nextGene = 0;
+
+        BinaryRowReader(final File input, final GeneEnumerator geneEnumerator) {
+            dge = new BinarySparseDge(input);
+            if (dge.getElementType() != MatrixMarketConstants.ElementType.integer) {
+                dge.close();
+                throw new RuntimeException("Binary sparse DGE does not contain integer values: " + input.getAbsolutePath());
+            }
+            header = dge.getHeader();
+            cellBarcodes = dge.getCellBarcodes().toArray(new String[dge.getNumCells()]);
+            geneIndices = new int[dge.getNumGenes()];
+            for (int i = 0; i < geneIndices.length; ++i)
+				geneIndices[i] = geneEnumerator.getGeneIndex(dge.getGenes().get(i));
+        }
+
+        @Override
+        boolean next() {
+            while (nextGene < geneIndices.length) {
+                final int fileGeneIndex = nextGene++;
+                geneIndex = geneIndices[fileGeneIndex];
+                if (geneIndex == -1)
+					// E.g. for an MT gene
+                    continue;
+                final BinarySparseDge.Slice slice = dge.getGene(fileGeneIndex);
+                size = 0;
+                for (int i = 0; i < slice.size(); ++i)
+					add(slice.getIndex(i), slice.getIntValue(i));
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            dge.close();
+        }
     }
 }
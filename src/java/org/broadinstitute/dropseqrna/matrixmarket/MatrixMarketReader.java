@@ -23,10 +23,13 @@
  */
 package org.broadinstitute.dropseqrna.matrixmarket;
 
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.RuntimeIOException;
 
+import org.broadinstitute.dropseqrna.utils.ParallelTransformingIterator;
+
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
@@ -107,6 +110,9 @@ public class MatrixMarketReader
         }
     }
 
+    // Approximate number of characters in each block returned by blockIterator().
+    public static final int BLOCK_SIZE = 1 << 20;
+
     private final Pattern whitespace = Pattern.compile("\\s+");
     private final String filename;
     private final BufferedReader reader;
@@ -292,6 +298,245 @@ public class MatrixMarketReader
         }
     }
 
+    /**
+     * The elements parsed from a block of data lines, held in primitive arrays rather than one object per element.
+     * For an integer matrix intValues is set and realValues is null, and vice versa for a real matrix.
+     */
+    public static class ElementBlock {
+        public final int size;
+        public final int[] rows;
+        public final int[] cols;
+        public final int[] intValues;
+        public final double[] realValues;
+
+        ElementBlock(final int size, final int[] rows, final int[] cols, final int[] intValues, final double[] realValues) {
+            this.size = size;
+            this.rows = rows;
+            this.cols = cols;
+            this.intValues = intValues;
+            this.realValues = realValues;
+        }
+
+        /**
+         * If the matrix is real, the value is rounded with Math.round, as with Element.intValue().
+         */
+        public int intValue(final int i) {
+            return intValues != null? intValues[i]: (int)Math.round(realValues[i]);
+        }
+
+        public double realValue(final int i) {
+            return realValues != null? realValues[i]: intValues[i];
+        }
+    }
+
+    /**
+     * Reads the data lines in line-aligned blocks of roughly BLOCK_SIZE characters, and parses the blocks into
+     * primitive arrays on a pool of worker threads.  Blocks are returned in file order.  This is much faster than
+     * iterator() for large matrices, because no object is allocated per element and numbers are parsed directly from
+     * the character buffer.  Only one of iterator() and blockIterator() may be used on a reader.
+     * @param numThreads number of threads to parse blocks on.
+     */
+    public CloseableIterator<ElementBlock> blockIterator(final int numThreads) {
+        return new ParallelTransformingIterator<>(new CharBlockIterator(), this::parseBlock, numThreads);
+    }
+
+    /**
+     * A run of complete data lines.
+     */
+    private static class CharBlock {
+        final char[] buf;
+        final int length;
+
+        CharBlock(final char[] buf, final int length) {
+            this.buf = buf;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Splits the remainder of the file into blocks that end at a line boundary.  The partial line at the end of
+     * each read is carried into the next block.
+     */
+    private class CharBlockIterator implements Iterator<CharBlock>, Closeable {
+        private char[] carry = new char[0];
+        private int carryLength = 0;
+        private CharBlock next;
+
+        CharBlockIterator() {
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            if (closed && carryLength == 0) {
+                return;
+            }
+            try {
+                char[] buf = new char[Math.max(BLOCK_SIZE, carryLength * 2)];
+                System.arraycopy(carry, 0, buf, 0, carryLength);
+                int length = carryLength;
+                while (true) {
+                    while (!closed && length < buf.length) {
+                        final int charsRead = reader.read(buf, length, buf.length - length);
+                        if (charsRead == -1) {
+                            close();
+                        } else {
+                            length += charsRead;
+                        }
+                    }
+                    if (closed) {
+                        // The last line need not be terminated.
+                        carryLength = 0;
+                        if (length > 0) {
+                            next = new CharBlock(buf, length);
+                        }
+                        return;
+                    }
+                    int end = length;
+                    while (end > 0 && buf[end - 1] != '\n') {
+                        --end;
+                    }
+                    if (end > 0) {
+                        carryLength = length - end;
+                        if (carry.length < carryLength) {
+                            carry = new char[carryLength];
+                        }
+                        System.arraycopy(buf, end, carry, 0, carryLength);
+                        next = new CharBlock(buf, end);
+                        return;
+                    }
+                    // A line longer than the buffer.
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            } catch (IOException e) {
+                throw new RuntimeIOException("Exception reading " + filename, e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public CharBlock next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final CharBlock ret = next;
+            advance();
+            return ret;
+        }
+
+        @Override
+        public void close() throws IOException {
+            MatrixMarketReader.this.close();
+        }
+    }
+
+    private ElementBlock parseBlock(final CharBlock block) {
+        final char[] buf = block.buf;
+        int numLines = 0;
+        for (int i = 0; i < block.length; ++i) {
+            if (buf[i] == '\n') {
+                ++numLines;
+            }
+        }
+        if (block.length > 0 && buf[block.length - 1] != '\n') {
+            ++numLines;
+        }
+        final int[] rows = new int[numLines];
+        final int[] cols = new int[numLines];
+        final int[] intValues = elementType == MatrixMarketConstants.ElementType.integer? new int[numLines]: null;
+        final double[] realValues = intValues == null? new double[numLines]: null;
+        final int[] position = new int[1];
+        int lineStart = 0;
+        int size = 0;
+        while (lineStart < block.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < block.length && buf[lineEnd] != '\n') {
+                ++lineEnd;
+            }
+            position[0] = lineStart;
+            final long oneBasedRow = parseLong(buf, position, lineEnd);
+            final long oneBasedCol = parseLong(buf, position, lineEnd);
+            if (oneBasedRow == Long.MIN_VALUE || oneBasedCol == Long.MIN_VALUE) {
+                throw new RuntimeException(filename + " has a bad data line: " + getLine(buf, lineStart, lineEnd));
+            }
+            if (oneBasedRow < 1 || oneBasedRow > numRows || oneBasedCol < 1 || oneBasedCol > numCols) {
+                throw new RuntimeException("Element line has index out of range: " + getLine(buf, lineStart, lineEnd));
+            }
+            rows[size] = (int)oneBasedRow - 1;
+            cols[size] = (int)oneBasedCol - 1;
+            if (intValues != null) {
+                final long val = parseLong(buf, position, lineEnd);
+                if (val < Integer.MIN_VALUE || val > Integer.MAX_VALUE) {
+                    throw new RuntimeException(filename + " has a bad data line: " + getLine(buf, lineStart, lineEnd));
+                }
+                intValues[size] = (int)val;
+            } else {
+                final int start = skipWhitespace(buf, position[0], lineEnd);
+                int end = start;
+                while (end < lineEnd && !isWhitespace(buf[end])) {
+                    ++end;
+                }
+                if (start == end) {
+                    throw new RuntimeException(filename + " has a bad data line: " + getLine(buf, lineStart, lineEnd));
+                }
+                realValues[size] = Double.parseDouble(new String(buf, start, end - start));
+                position[0] = end;
+            }
+            if (skipWhitespace(buf, position[0], lineEnd) != lineEnd) {
+                throw new RuntimeException(filename + " has a bad data line: " + getLine(buf, lineStart, lineEnd));
+            }
+            ++size;
+            lineStart = lineEnd + 1;
+        }
+        return new ElementBlock(size, rows, cols, intValues, realValues);
+    }
+
+    /**
+     * Parses a whitespace-delimited decimal integer starting at position[0], and advances position[0] past it.
+     * @return the value, or Long.MIN_VALUE if there is no valid integer.
+     */
+    private static long parseLong(final char[] buf, final int[] position, final int end) {
+        int i = skipWhitespace(buf, position[0], end);
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            ++i;
+        }
+        final int digitsStart = i;
+        long val = 0;
+        while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+            val = val * 10 + (buf[i] - '0');
+            if (val > Integer.MAX_VALUE + 1L) {
+                return Long.MIN_VALUE;
+            }
+            ++i;
+        }
+        if (i == digitsStart || (i < end && !isWhitespace(buf[i]))) {
+            return Long.MIN_VALUE;
+        }
+        position[0] = i;
+        return negative? -val: val;
+    }
+
+    private static int skipWhitespace(final char[] buf, int i, final int end) {
+        while (i < end && isWhitespace(buf[i])) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+
+    private static String getLine(final char[] buf, final int start, final int end) {
+        return new String(buf, start, Math.min(end - start, 200));
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public Iterator<Element> iterator() {
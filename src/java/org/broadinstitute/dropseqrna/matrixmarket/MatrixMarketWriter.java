@@ -31,11 +31,26 @@ import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Formatter;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Triplets are buffered in blocks, and each block is formatted as text in one go.  If constructed with more than one
+ * thread, blocks are formatted on a pool of worker threads and written in order, with the number of blocks in flight
+ * bounded so that a slow output holds back the caller.
+ */
 public class MatrixMarketWriter
         implements Closeable {
 
+    // Maximum number of triplets in a block.
+    private static final int BLOCK_SIZE = 1 << 16;
+
     private final BufferedWriter writer;
     private final String filename;
     private final MatrixMarketConstants.ElementType elementType;
@@ -43,6 +58,12 @@ public class MatrixMarketWriter
     private final int numCols;
     private final int numNonZeroElements;
     private int numElementsWritten;
+    private final ExecutorService workers;
+    private final int maxBlocksInFlight;
+    private final Queue<Future<String>> pending = new ArrayDeque<>();
+    // Created on the first write after each block is submitted, and sized to the triplets remaining.
+    private TripletBlock block = null;
+    private boolean closed = false;
 
     /**
      *
@@ -62,8 +83,24 @@ public class MatrixMarketWriter
                               final List<String> colNames,
                               final String rowNamesLabel,
                               final String colNamesLabel) {
+        this(outputFile, elementType, numRows, numCols, numNonZeroElements, rowNames, colNames, rowNamesLabel, colNamesLabel, 1);
+    }
+
+    /**
+     * As above, but formats blocks of triplets on numThreads threads.
+     */
+    public MatrixMarketWriter(final File outputFile,
+                              final MatrixMarketConstants.ElementType elementType,
+                              final int numRows,
+                              final int numCols,
+                              final int numNonZeroElements,
+                              final List<String> rowNames,
+                              final List<String> colNames,
+                              final String rowNamesLabel,
+                              final String colNamesLabel,
+                              final int numThreads) {
         this(IOUtil.openFileForBufferedWriting(outputFile), outputFile.getAbsolutePath(), elementType,
-                numRows, numCols, numNonZeroElements, rowNames, colNames, rowNamesLabel, colNamesLabel);
+                numRows, numCols, numNonZeroElements, rowNames, colNames, rowNamesLabel, colNamesLabel, numThreads);
     }
 
     /**
@@ -75,6 +112,22 @@ public class MatrixMarketWriter
      * @param rowNamesLabel If non-null, a label for the rowNames in the header.  If null, "ROWS" is used.
      * @param colNamesLabel If non-null, a label for the rowNames in the header.  If null, "COLS" is used.
      */
+    public MatrixMarketWriter(final BufferedWriter writer,
+                              final String filename,
+                              final MatrixMarketConstants.ElementType elementType,
+                              final int numRows,
+                              final int numCols,
+                              final int numNonZeroElements,
+                              final List<String> rowNames,
+                              final List<String> colNames,
+                              final String rowNamesLabel,
+                              final String colNamesLabel) {
+        this(writer, filename, elementType, numRows, numCols, numNonZeroElements, rowNames, colNames, rowNamesLabel, colNamesLabel, 1);
+    }
+
+    /**
+     * As above, but formats blocks of triplets on numThreads threads.
+     */
     public MatrixMarketWriter(final BufferedWriter writer,
                               final String filename,
                               final MatrixMarketConstants.ElementType elementType,
@@ -84,7 +137,21 @@ public class MatrixMarketWriter
                               final List<String> rowNames,
                               final List<String> colNames,
                               String rowNamesLabel,
-                              String colNamesLabel) {
+                              String colNamesLabel,
+                              final int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be at least 1");
+        }
+        if (numThreads > 1) {
+            workers = Executors.newFixedThreadPool(numThreads, r -> {
+                Thread t = new Thread(r, MatrixMarketWriter.class.getSimpleName() + "-worker");
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            workers = null;
+        }
+        this.maxBlocksInFlight = numThreads * 4;
         try {
             this.writer = writer;
             this.filename = filename;
@@ -121,7 +188,21 @@ public class MatrixMarketWriter
 
     @Override
     public void close() throws IOException {
-        writer.close();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submitBlock();
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+            writer.close();
+        }
     }
 
     private void WriteDimensionLabels(final String dimensionName, final List<String> names) {
@@ -147,8 +228,9 @@ public class MatrixMarketWriter
      */
     public void writeTriplet(final int row, final int col, final int val) {
         try {
+            assertOpen();
             assertGoodIndices(row, col);
-            writer.write(String.format("%d\t%d\t%d\n", row+1, col+1, val));
+            addTriplet(row, col, val, true);
         } catch (IOException e) {
             throw new RuntimeIOException("Exception writing " + filename, e);
         }
@@ -164,13 +246,20 @@ public class MatrixMarketWriter
             if (elementType != MatrixMarketConstants.ElementType.real) {
                 throw new UnsupportedOperationException("Cannot write floating-point value to integer matrix");
             }
+            assertOpen();
             assertGoodIndices(row, col);
-            writer.write(String.format("%d\t%d\t%.8g\n", row + 1, col + 1, val));
+            addTriplet(row, col, val, false);
         } catch (IOException e) {
             throw new RuntimeIOException("Exception writing " + filename, e);
         }
     }
 
+    private void assertOpen() {
+        if (closed) {
+            throw new IllegalStateException("Cannot write to " + filename + " after it has been closed");
+        }
+    }
+
     private void assertGoodIndices(final int row, final int col) {
         if (row >= numRows) {
             throw new IllegalArgumentException(String.format("row(%d) >= numRows(%d)", row, numRows));
@@ -182,4 +271,85 @@ public class MatrixMarketWriter
             throw new IllegalArgumentException("More elements written than requested in ctor:" + numNonZeroElements);
         }
     }
+
+    private void addTriplet(final int row, final int col, final double val, final boolean intValue) throws IOException {
+        if (block == null) {
+            // numElementsWritten already counts this triplet.
+            block = new TripletBlock(Math.min(BLOCK_SIZE, numNonZeroElements - numElementsWritten + 1));
+        }
+        block.add(row, col, val, intValue);
+        if (block.size == block.rows.length) {
+            submitBlock();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (block == null) {
+            return;
+        }
+        final TripletBlock toFormat = block;
+        block = null;
+        if (workers == null) {
+            writer.write(toFormat.format());
+        } else {
+            pending.add(workers.submit(toFormat::format));
+            if (pending.size() > maxBlocksInFlight) {
+                writeNext();
+            }
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            writer.write(pending.remove().get());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for a block to be formatted", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Triplets waiting to be formatted.  Integer values are held as doubles, which is exact, and are flagged so that
+     * they are formatted as integers even in a real matrix.
+     */
+    private static class TripletBlock {
+        final int[] rows;
+        final int[] cols;
+        final double[] values;
+        final boolean[] isInt;
+        int size = 0;
+
+        TripletBlock(final int capacity) {
+            rows = new int[capacity];
+            cols = new int[capacity];
+            values = new double[capacity];
+            isInt = new boolean[capacity];
+        }
+
+        void add(final int row, final int col, final double val, final boolean intValue) {
+            rows[size] = row;
+            cols[size] = col;
+            values[size] = val;
+            isInt[size++] = intValue;
+        }
+
+        String format() {
+            final StringBuilder sb = new StringBuilder(size * 16);
+            final Formatter formatter = new Formatter(sb);
+            for (int i = 0; i < size; ++i) {
+                sb.append(rows[i] + 1).append('\t').append(cols[i] + 1).append('\t');
+                if (isInt[i]) {
+                    sb.append((int) values[i]);
+                } else {
+                    formatter.format("%.8g", values[i]);
+                }
+                sb.append('\n');
+            }
+            return sb.toString();
+        }
+    }
 }
@@ -34,6 +34,7 @@ import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.broadinstitute.dropseqrna.utils.ReadCollector;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
 
 import htsjdk.samtools.SAMRecord;
@@ -80,6 +81,20 @@ public class BamTagHistogram extends CommandLineProgram {
 		IOUtil.assertFileIsWritable(OUTPUT);
 
 		ObjectCounter<String> counter=getBamTagCounts(INPUT, this.TAG, this.MINIMUM_MAPPING_QUALITY, this.FILTER_PCR_DUPLICATES);
+		writeOutput(counter);
+		return 0;
+	}
+
+	/**
+	 * Gathers the histogram for this program's arguments, and writes it to OUTPUT when finished.
+	 * Lets this program share a pass over the BAM with other programs.
+	 */
+	public ReadCollector getReadCollector () {
+		IOUtil.assertFileIsWritable(OUTPUT);
+		return new TagCountCollector(this.TAG, this.MINIMUM_MAPPING_QUALITY, this.FILTER_PCR_DUPLICATES, true);
+	}
+
+	private void writeOutput (final ObjectCounter<String> counter) {
 		List<String> tagsByCount=counter.getKeysOrderedByCount(true);
 
 		PrintStream writer = new ErrorCheckingPrintStream(IOUtil.openFileForWriting(OUTPUT));
@@ -93,7 +108,6 @@ public class BamTagHistogram extends CommandLineProgram {
 			writer.flush();
 		}
 		writer.close();
-		return 0;
 	}
 
 	public void writeHeader (final PrintStream writer) {
@@ -119,19 +133,42 @@ public class BamTagHistogram extends CommandLineProgram {
     public ObjectCounter<String> getBamTagCounts (final Iterator<SAMRecord> iterator, final String tag, final int readQuality, final boolean filterPCRDuplicates) {
         ProgressLogger pl = new ProgressLogger(log, 10000000);
 
-        ObjectCounter<String> counter = new ObjectCounter<>();
+        TagCountCollector collector = new TagCountCollector(tag, readQuality, filterPCRDuplicates, false);
 
         for (final SAMRecord r : new IterableAdapter<>(iterator)) {
             pl.record(r);
-            if (filterPCRDuplicates && r.getDuplicateReadFlag()) continue;
-            if (r.getMappingQuality()<readQuality) continue;
-            if (r.isSecondaryOrSupplementary()) continue;
-            //String s1 = r.getStringAttribute(tag);
+            collector.acceptRead(r);
+        }
+        return (collector.counter);
+    }
+
+    private class TagCountCollector implements ReadCollector {
+    	private final String tag;
+    	private final int readQuality;
+    	private final boolean filterPCRDuplicates;
+    	private final boolean writeOutput;
+    	private final ObjectCounter<String> counter = new ObjectCounter<>();
+
+    	TagCountCollector (final String tag, final int readQuality, final boolean filterPCRDuplicates, final boolean writeOutput) {
+    		this.tag=tag;
+    		this.readQuality=readQuality;
+    		this.filterPCRDuplicates=filterPCRDuplicates;
+    		this.writeOutput=writeOutput;
+    	}
+
+    	@Override
+    	public void acceptRead(final SAMRecord r) {
+            if (filterPCRDuplicates && r.getDuplicateReadFlag()) return;
+            if (r.getMappingQuality()<readQuality) return;
+            if (r.isSecondaryOrSupplementary()) return;
             String s1 = getAnyTagAsString(r, tag);
             if (s1!=null && s1!="") counter.increment(s1); // if the tag doesn't have a value, don't increment it.
+    	}
 
-        }
-        return (counter);
+    	@Override
+    	public void finish() {
+    		if (writeOutput) writeOutput(counter);
+    	}
     }
 
 
@@ -25,21 +25,25 @@ package org.broadinstitute.dropseqrna.metrics;
 
 import java.io.File;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
-import org.broadinstitute.dropseqrna.utils.CustomBAMIterators;
+import org.broadinstitute.dropseqrna.utils.ReadCollector;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
@@ -88,71 +92,110 @@ private static final Log log = Log.getInstance(BamTagOfTagCounts.class);
 
 		IOUtil.assertFileIsReadable(INPUT);
 		IOUtil.assertFileIsWritable(OUTPUT);
-		PrintStream out = new ErrorCheckingPrintStream(IOUtil.openFileForWriting(OUTPUT));
-
-		writeHeader(out);
 
 		TagOfTagResults<String,String> results= getResults(this.INPUT, this.PRIMARY_TAG, this.SECONDARY_TAG, this.FILTER_PCR_DUPLICATES, this.MINIMUM_MAPPING_QUALITY);
+		writeOutput(results);
+		return(0);
+	}
 
+	/**
+	 * Gathers tag of tag counts for this program's arguments, and writes them to OUTPUT when finished.
+	 * Lets this program share a pass over the BAM with other programs.
+	 */
+	public ReadCollector getReadCollector () {
+		IOUtil.assertFileIsWritable(OUTPUT);
+		return new TagOfTagCollector(this.PRIMARY_TAG, this.SECONDARY_TAG, this.FILTER_PCR_DUPLICATES, this.MINIMUM_MAPPING_QUALITY, true);
+	}
+
+	private void writeOutput (final TagOfTagResults<String,String> results) {
+		PrintStream out = new ErrorCheckingPrintStream(IOUtil.openFileForWriting(OUTPUT));
+		writeHeader(out);
 		for (String k: results.getKeys()) {
 			Set<String> values = results.getValues(k);
 			writeStats(k, values, out);
 		}
 		out.close();
-
-		return(0);
 	}
 
 	public TagOfTagResults<String,String> getResults (final File inputBAM, final String primaryTag, final String secondaryTag, final boolean filterPCRDuplicates, final Integer readQuality) {
-		TagOfTagResults<String,String> result = new TagOfTagResults<>();
+		TagOfTagCollector collector = new TagOfTagCollector(primaryTag, secondaryTag, filterPCRDuplicates, readQuality, false);
 		SamReader reader = SamReaderFactory.makeDefault().open(inputBAM);
-		CloseableIterator<SAMRecord> iter = CustomBAMIterators.getReadsInTagOrder(reader, primaryTag);
+		ProgressLogger progress = new ProgressLogger(log);
+		for (SAMRecord r: reader) {
+			progress.record(r);
+			collector.acceptRead(r);
+		}
 		CloserUtil.close(reader);
-		String currentTag="";
-		Set<String> otherTagCollection=new HashSet<>();
+		return (collector.getResult());
+	}
 
-		ProgressLogger progress = new ProgressLogger(log);
+	private class TagOfTagCollector implements ReadCollector {
+		private final String primaryTag;
+		private final String secondaryTag;
+		private final boolean filterPCRDuplicates;
+		private final int readQuality;
+		private final boolean writeOutput;
+		// values for each primary tag, in the order they were first seen.  Reads without the primary tag are grouped under the empty string.
+		private final Map<String, Set<String>> valuesByTag = new HashMap<>();
+
+		TagOfTagCollector (final String primaryTag, final String secondaryTag, final boolean filterPCRDuplicates, final int readQuality, final boolean writeOutput) {
+			this.primaryTag=primaryTag;
+			this.secondaryTag=secondaryTag;
+			this.filterPCRDuplicates=filterPCRDuplicates;
+			this.readQuality=readQuality;
+			this.writeOutput=writeOutput;
+		}
 
-		while (iter.hasNext()) {
-			SAMRecord r = iter.next();
-			progress.record(r);
+		@Override
+		public void acceptRead(final SAMRecord r) {
 			// skip reads that don't pass filters.
-			boolean discardResult=(filterPCRDuplicates && r.getDuplicateReadFlag()) || r.getMappingQuality()<readQuality || r.isSecondaryOrSupplementary();
-			// short circuit if read is below the quality to be considered.
-			if (discardResult) continue;
+			if ((filterPCRDuplicates && r.getDuplicateReadFlag()) || r.getMappingQuality()<readQuality || r.isSecondaryOrSupplementary()) return;
 
 			Object d = r.getAttribute(secondaryTag);
 			// short circuit if there's no tag for this read.
-			if (d==null) continue;
+			if (d==null) return;
 
-			String data=null;
+			String tag = r.getStringAttribute(primaryTag);
+			if (tag==null)
+				tag="";
 
+			String data=null;
 			if (d instanceof String)
-				data=r.getStringAttribute(secondaryTag);
+				data=(String) d;
 			else if (d instanceof Integer)
-				data=Integer.toString(r.getIntegerAttribute(secondaryTag));
-
-
-			String newTag = r.getStringAttribute(primaryTag);
-			if (newTag==null)
-				newTag="";
+				data=Integer.toString((Integer) d);
+
+			Set<String> values = valuesByTag.get(tag);
+			if (values==null) {
+				values = new LinkedHashSet<>();
+				valuesByTag.put(tag, values);
+			}
+			addTagToCollection(data, values);
+		}
 
-			// if you see a new tag.
-			if (!currentTag.equals(newTag)) {
-				// write out tag results, if any.
-				if (!currentTag.equals("") && otherTagCollection.size()>0)
-					result.addEntries(currentTag, otherTagCollection);
-				currentTag=newTag;
+		/**
+		 * Replays the values in primary tag order through a single reused set, which gives exactly the same result
+		 * (including the order values are reported in) as reading the BAM sorted by the primary tag.
+		 * As with the sorted read, values for reads without the primary tag are only reported if no read has the tag.
+		 */
+		TagOfTagResults<String,String> getResult () {
+			TagOfTagResults<String,String> result = new TagOfTagResults<>();
+			List<String> tags = new ArrayList<>(valuesByTag.keySet());
+			Collections.sort(tags);
+			Set<String> otherTagCollection=new HashSet<>();
+			for (String tag: tags) {
 				otherTagCollection.clear();
-				if (!discardResult) otherTagCollection=addTagToCollection (data,otherTagCollection);
-
-			} else // gather stats
-			if (!discardResult) otherTagCollection=addTagToCollection (data,otherTagCollection);
+				otherTagCollection.addAll(valuesByTag.remove(tag));
+				if (!tag.equals("") || tags.size()==1)
+					result.addEntries(tag, otherTagCollection);
+			}
+			return (result);
 		}
-		if (otherTagCollection.size()>0)
-			result.addEntries(currentTag, otherTagCollection);
 
-		return (result);
+		@Override
+		public void finish() {
+			if (writeOutput) writeOutput(getResult());
+		}
 	}
 
 	private Set<String> addTagToCollection (final String data, final Set<String> collection) {
@@ -0,0 +1,226 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.metrics;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
+import org.broadinstitute.dropseqrna.barnyard.DGECommandLineBase;
+import org.broadinstitute.dropseqrna.barnyard.GatherMolecularBarcodeDistributionByGene;
+import org.broadinstitute.dropseqrna.cmdline.CustomCommandLineValidationHelper;
+import org.broadinstitute.dropseqrna.cmdline.DropSeq;
+import org.broadinstitute.dropseqrna.utils.BaseDistributionAtReadPosition;
+import org.broadinstitute.dropseqrna.utils.MultiReadCollector;
+import org.broadinstitute.dropseqrna.utils.ReadCollector;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+
+/**
+ * Runs several of the BAM metrics programs over a single pass of the BAM, instead of reading the BAM once per program.
+ * Each requested output is the same file the corresponding program would write.
+ * @author nemesh
+ *
+ */
+@CommandLineProgramProperties(
+        summary = "Gathers the outputs of BamTagHistogram, GatherReadQualityMetrics, BaseDistributionAtReadPosition, BamTagOfTagCounts and " +
+        		"GatherMolecularBarcodeDistributionByGene while reading the BAM only once.  Each output is only generated if its output file is set, " +
+        		"and is the same as the output of the individual program run with the equivalent arguments.  READ_MQ is used as the minimum mapping quality for all outputs.",
+        oneLineSummary = "Gather several BAM metrics in a single pass over the BAM",
+        programGroup = DropSeq.class
+)
+public class GatherMultipleBamMetrics extends DGECommandLineBase {
+
+	private static final Log log = Log.getInstance(GatherMultipleBamMetrics.class);
+
+	@Argument(doc="Number of threads to run the metrics on.  With 1, every metric is gathered on the thread that reads the BAM.  "
+			+ "With more, the metrics are spread over that many threads, each fed from a bounded buffer of records.", minValue = 1)
+	public int NUM_THREADS=1;
+
+	@Argument(doc="Tags to create histograms of, as in BamTagHistogram.  Each tag is written to the TAG_HISTOGRAM_OUTPUT at the same position.", optional=true)
+	public List<String> TAG_HISTOGRAM_TAG = new ArrayList<>();
+
+	@Argument(doc="Output files for the tag histograms, one per TAG_HISTOGRAM_TAG.", optional=true)
+	public List<File> TAG_HISTOGRAM_OUTPUT = new ArrayList<>();
+
+	@Argument(doc="Filter PCR Duplicates from the tag histograms.")
+	public boolean TAG_HISTOGRAM_FILTER_PCR_DUPLICATES=false;
+
+	@Argument(doc="Output file of read quality metrics, as in GatherReadQualityMetrics.", optional=true)
+	public File READ_QUALITY_METRICS_OUTPUT;
+
+	@Argument(doc="Optionally aggregate read quality metrics by a tag.", optional=true)
+	public String READ_QUALITY_METRICS_TAG;
+
+	@Argument(doc="Include non-PF reads when gathering read quality metrics")
+	public boolean INCLUDE_NON_PF_READS=false;
+
+	@Argument(doc="Read numbers [1/2] to gather base distributions on, as in BaseDistributionAtReadPosition.  Each read is written to the BASE_DISTRIBUTION_READ_OUTPUT at the same position.", optional=true)
+	public List<Integer> BASE_DISTRIBUTION_READ_NUMBER = new ArrayList<>();
+
+	@Argument(doc="Output files for the read base distributions, one per BASE_DISTRIBUTION_READ_NUMBER.", optional=true)
+	public List<File> BASE_DISTRIBUTION_READ_OUTPUT = new ArrayList<>();
+
+	@Argument(doc="Tags to gather base distributions on, as in BaseDistributionAtReadPosition.  Each tag is written to the BASE_DISTRIBUTION_TAG_OUTPUT at the same position.", optional=true)
+	public List<String> BASE_DISTRIBUTION_TAG = new ArrayList<>();
+
+	@Argument(doc="Output files for the tag base distributions, one per BASE_DISTRIBUTION_TAG.", optional=true)
+	public List<File> BASE_DISTRIBUTION_TAG_OUTPUT = new ArrayList<>();
+
+	@Argument(doc="Output file of tag of tag counts, as in BamTagOfTagCounts.", optional=true)
+	public File TAG_OF_TAG_OUTPUT;
+
+	@Argument(doc="Primary Tag to extract for the tag of tag counts", optional=true)
+	public String TAG_OF_TAG_PRIMARY_TAG;
+
+	@Argument(doc="Secondary Tag to extract for the tag of tag counts", optional=true)
+	public String TAG_OF_TAG_SECONDARY_TAG;
+
+	@Argument(doc="Remove Singleton Results from the tag of tag counts")
+	public boolean TAG_OF_TAG_REMOVE_SINGLETONS=false;
+
+	@Argument(doc="Filter PCR Duplicates from the tag of tag counts.  Defaults to true")
+	public boolean TAG_OF_TAG_FILTER_PCR_DUPLICATES=true;
+
+	@Argument(doc="If the secondary tag can occur multiple times, break it up with this delimiter.", optional=true)
+	public String TAG_OF_TAG_SECONDARY_DELIMITER;
+
+	@Argument(doc="Output file of the number of observations of each molecular barcode per cell and gene, as in GatherMolecularBarcodeDistributionByGene.  "
+			+ "Cell barcodes are selected as that program does.  Selecting them by anything other than CELL_BC_FILE requires an extra pass over the BAM.", optional=true)
+	public File MOLECULAR_BARCODE_DISTRIBUTION_OUTPUT;
+
+	@Override
+	protected int doWork() {
+		IOUtil.assertFileIsReadable(INPUT);
+		List<ReadCollector> collectors = getCollectors();
+		log.info("Gathering [" + collectors.size() + "] metrics in one pass over " + INPUT.getAbsolutePath());
+		new MultiReadCollector(collectors, this.NUM_THREADS).collect(INPUT);
+		return 0;
+	}
+
+	private List<ReadCollector> getCollectors () {
+		List<ReadCollector> result = new ArrayList<>();
+
+		for (int i=0; i<TAG_HISTOGRAM_TAG.size(); i++) {
+			BamTagHistogram p = new BamTagHistogram();
+			p.INPUT=INPUT;
+			p.OUTPUT=TAG_HISTOGRAM_OUTPUT.get(i);
+			p.TAG=TAG_HISTOGRAM_TAG.get(i);
+			p.FILTER_PCR_DUPLICATES=TAG_HISTOGRAM_FILTER_PCR_DUPLICATES;
+			p.MINIMUM_MAPPING_QUALITY=READ_MQ;
+			result.add(p.getReadCollector());
+		}
+
+		if (READ_QUALITY_METRICS_OUTPUT!=null) {
+			GatherReadQualityMetrics p = new GatherReadQualityMetrics();
+			p.INPUT=INPUT;
+			p.OUTPUT=READ_QUALITY_METRICS_OUTPUT;
+			p.TAG=READ_QUALITY_METRICS_TAG;
+			p.INCLUDE_NON_PF_READS=INCLUDE_NON_PF_READS;
+			p.MINIMUM_MAPPING_QUALITY=READ_MQ;
+			result.add(p.getReadCollector());
+		}
+
+		for (int i=0; i<BASE_DISTRIBUTION_READ_NUMBER.size(); i++) {
+			BaseDistributionAtReadPosition p = new BaseDistributionAtReadPosition();
+			p.INPUT=INPUT;
+			p.OUTPUT=BASE_DISTRIBUTION_READ_OUTPUT.get(i);
+			p.READ_NUMBER=BASE_DISTRIBUTION_READ_NUMBER.get(i);
+			result.add(p.getReadCollector());
+		}
+
+		for (int i=0; i<BASE_DISTRIBUTION_TAG.size(); i++) {
+			BaseDistributionAtReadPosition p = new BaseDistributionAtReadPosition();
+			p.INPUT=INPUT;
+			p.OUTPUT=BASE_DISTRIBUTION_TAG_OUTPUT.get(i);
+			p.TAG=BASE_DISTRIBUTION_TAG.get(i);
+			result.add(p.getReadCollector());
+		}
+
+		if (TAG_OF_TAG_OUTPUT!=null) {
+			BamTagOfTagCounts p = new BamTagOfTagCounts();
+			p.INPUT=INPUT;
+			p.OUTPUT=TAG_OF_TAG_OUTPUT;
+			p.PRIMARY_TAG=TAG_OF_TAG_PRIMARY_TAG;
+			p.SECONDARY_TAG=TAG_OF_TAG_SECONDARY_TAG;
+			p.REMOVE_SINGLETONS=TAG_OF_TAG_REMOVE_SINGLETONS;
+			p.FILTER_PCR_DUPLICATES=TAG_OF_TAG_FILTER_PCR_DUPLICATES;
+			p.SECONDARY_DELIMITER=TAG_OF_TAG_SECONDARY_DELIMITER;
+			p.MINIMUM_MAPPING_QUALITY=READ_MQ;
+			result.add(p.getReadCollector());
+		}
+
+		if (MOLECULAR_BARCODE_DISTRIBUTION_OUTPUT!=null) {
+			GatherMolecularBarcodeDistributionByGene p = new GatherMolecularBarcodeDistributionByGene();
+			p.INPUT=INPUT;
+			p.OUTPUT=MOLECULAR_BARCODE_DISTRIBUTION_OUTPUT;
+			p.CELL_BARCODE_TAG=CELL_BARCODE_TAG;
+			p.MOLECULAR_BARCODE_TAG=MOLECULAR_BARCODE_TAG;
+			p.EDIT_DISTANCE=EDIT_DISTANCE;
+			p.READ_MQ=READ_MQ;
+			p.MIN_BC_READ_THRESHOLD=MIN_BC_READ_THRESHOLD;
+			p.MIN_NUM_READS_PER_CELL=MIN_NUM_READS_PER_CELL;
+			p.MIN_NUM_GENES_PER_CELL=MIN_NUM_GENES_PER_CELL;
+			p.MIN_NUM_TRANSCRIPTS_PER_CELL=MIN_NUM_TRANSCRIPTS_PER_CELL;
+			p.NUM_CORE_BARCODES=NUM_CORE_BARCODES;
+			p.CELL_BC_FILE=CELL_BC_FILE;
+			p.GENE_NAME_TAG=GENE_NAME_TAG;
+			p.GENE_STRAND_TAG=GENE_STRAND_TAG;
+			p.GENE_FUNCTION_TAG=GENE_FUNCTION_TAG;
+			p.STRAND_STRATEGY=STRAND_STRATEGY;
+			p.LOCUS_FUNCTION_LIST=LOCUS_FUNCTION_LIST;
+			SAMFileHeader header = SamReaderFactory.makeDefault().getFileHeader(INPUT);
+			result.add(p.getReadCollector(header));
+		}
+		return (result);
+	}
+
+	@Override
+	protected String[] customCommandLineValidation() {
+		List<String> errors = new ArrayList<>();
+		if (TAG_HISTOGRAM_TAG.size()!=TAG_HISTOGRAM_OUTPUT.size())
+			errors.add("TAG_HISTOGRAM_TAG and TAG_HISTOGRAM_OUTPUT must be specified the same number of times");
+		if (BASE_DISTRIBUTION_READ_NUMBER.size()!=BASE_DISTRIBUTION_READ_OUTPUT.size())
+			errors.add("BASE_DISTRIBUTION_READ_NUMBER and BASE_DISTRIBUTION_READ_OUTPUT must be specified the same number of times");
+		if (BASE_DISTRIBUTION_TAG.size()!=BASE_DISTRIBUTION_TAG_OUTPUT.size())
+			errors.add("BASE_DISTRIBUTION_TAG and BASE_DISTRIBUTION_TAG_OUTPUT must be specified the same number of times");
+		if (TAG_OF_TAG_OUTPUT!=null && (TAG_OF_TAG_PRIMARY_TAG==null || TAG_OF_TAG_SECONDARY_TAG==null))
+			errors.add("TAG_OF_TAG_PRIMARY_TAG and TAG_OF_TAG_SECONDARY_TAG are required when TAG_OF_TAG_OUTPUT is set");
+		if (TAG_HISTOGRAM_OUTPUT.isEmpty() && READ_QUALITY_METRICS_OUTPUT==null && BASE_DISTRIBUTION_READ_OUTPUT.isEmpty() &&
+				BASE_DISTRIBUTION_TAG_OUTPUT.isEmpty() && TAG_OF_TAG_OUTPUT==null && MOLECULAR_BARCODE_DISTRIBUTION_OUTPUT==null)
+			errors.add("At least one output must be set");
+		return CustomCommandLineValidationHelper.makeValue(super.customCommandLineValidation(), errors);
+	}
+
+	/** Stock main method. */
+	public static void main(final String[] args) {
+		System.exit(new GatherMultipleBamMetrics().instanceMain(args));
+	}
+
+}
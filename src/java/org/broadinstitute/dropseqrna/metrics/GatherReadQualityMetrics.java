@@ -33,6 +33,7 @@ import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.TranscriptomeException;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
+import org.broadinstitute.dropseqrna.utils.ReadCollector;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
@@ -86,6 +87,20 @@ public class GatherReadQualityMetrics extends CommandLineProgram {
 		IOUtil.assertFileIsReadable(INPUT);
 		IOUtil.assertFileIsWritable(OUTPUT);
 		Map<String, ReadQualityMetrics> metricsMap = gatherMetrics(INPUT);
+		writeOutput(metricsMap);
+		return 0;
+	}
+
+	/**
+	 * Gathers metrics for this program's arguments, and writes them to OUTPUT when finished.
+	 * Lets this program share a pass over the BAM with other programs.
+	 */
+	public ReadCollector getReadCollector () {
+		IOUtil.assertFileIsWritable(OUTPUT);
+		return new MetricsCollector(true);
+	}
+
+	private void writeOutput (final Map<String, ReadQualityMetrics> metricsMap) {
 		MetricsFile<ReadQualityMetrics, Integer> outFile = new MetricsFile<>();
 		outFile.addHistogram(metricsMap.get(this.GLOBAL).getHistogram());
 		for (ReadQualityMetrics metrics: metricsMap.values())
@@ -98,29 +113,50 @@ public class GatherReadQualityMetrics extends CommandLineProgram {
 		} catch (IOException io) {
 			throw new TranscriptomeException("Problem writing file", io);
 		}
-		return 0;
 	}
 
 	public Map<String, ReadQualityMetrics> gatherMetrics(final File inputSamOrBamFile) {
 		ProgressLogger p = new ProgressLogger(this.log);
-		Map<String, ReadQualityMetrics> result = new HashMap<>();
-
-		ReadQualityMetrics globalMetrics = new ReadQualityMetrics(this.MINIMUM_MAPPING_QUALITY, this.GLOBAL, true);
+		MetricsCollector collector = new MetricsCollector(false);
 
 		SamReader in = SamReaderFactory.makeDefault().open(INPUT);
 
-		for (final SAMRecord r : in)
+		for (final SAMRecord r : in) {
+			p.record(r);
+			collector.acceptRead(r);
+		}
+
+		CloserUtil.close(in);
+		return (collector.getResult());
+	}
+
+	private class MetricsCollector implements ReadCollector {
+		private final ReadQualityMetrics globalMetrics = new ReadQualityMetrics(MINIMUM_MAPPING_QUALITY, GLOBAL, true);
+		private Map<String, ReadQualityMetrics> result = new HashMap<>();
+		private final boolean writeOutput;
+
+		MetricsCollector (final boolean writeOutput) {
+			this.writeOutput=writeOutput;
+		}
+
+		@Override
+		public void acceptRead(final SAMRecord r) {
 			if (!r.getReadFailsVendorQualityCheckFlag() || INCLUDE_NON_PF_READS) {
-                p.record(r);
+				globalMetrics.addRead(r);
+				// gather per tag metrics if required.
+				result = addMetricsPerTag(r, result);
+			}
+		}
 
-                globalMetrics.addRead(r);
-                // gather per tag metrics if required.
-                result = addMetricsPerTag(r, result);
-            }
+		Map<String, ReadQualityMetrics> getResult () {
+			result.put(GLOBAL, globalMetrics);
+			return (result);
+		}
 
-		CloserUtil.close(in);
-		result.put(this.GLOBAL, globalMetrics);
-		return (result);
+		@Override
+		public void finish() {
+			if (writeOutput) writeOutput(getResult());
+		}
 	}
 
 	private Map<String, ReadQualityMetrics> addMetricsPerTag (final SAMRecord r, final Map<String, ReadQualityMetrics> result) {
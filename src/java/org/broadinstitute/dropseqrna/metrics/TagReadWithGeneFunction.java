@@ -23,6 +23,7 @@
  */
 package org.broadinstitute.dropseqrna.metrics;
 
+import com.google.common.collect.Iterators;
 import htsjdk.samtools.*;
 import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
@@ -31,9 +32,12 @@ import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.annotation.AnnotationUtils;
 import org.broadinstitute.dropseqrna.annotation.GeneAnnotationReader;
+import org.broadinstitute.dropseqrna.annotation.GeneFunctionIndex;
 import org.broadinstitute.dropseqrna.barnyard.Utils;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
+import org.broadinstitute.dropseqrna.utils.ParallelTransformingIterator;
 import org.broadinstitute.dropseqrna.utils.SamHeaderUtil;
+import org.broadinstitute.dropseqrna.utils.io.SamIOUtil;
 import picard.annotation.Gene;
 import picard.annotation.LocusFunction;
 import picard.cmdline.CommandLineProgram;
@@ -92,11 +96,25 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 	@Argument(doc="Use strand info to determine what gene to assign the read to.  If this is on, reads can be assigned to a maximum one one gene.  This is used for the READ_FUNCTION_TAG output only.")
 	public boolean USE_STRAND_INFO=true;
 
+	@Argument(doc=SamIOUtil.NUM_IO_THREADS_DOC, minValue=1)
+	public int NUM_IO_THREADS=1;
+
+	@Argument(doc="Number of threads to tag reads on.  Reads are tagged in batches on worker threads and written in input order, so the output does not depend on the number of threads.", minValue=1)
+	public int NUM_THREADS=1;
+
 	// @Option(doc="Allow a read to span the exons of multiple genes.  If set to true, the gene name will be set to all of the gene/exons the read spans.  In that case, the gene names will be comma separated.")
 	private boolean ALLOW_MULTI_GENE_READS=false;
 
 	private ReadTaggingMetric metrics = new ReadTaggingMetric();
 
+	// the number of reads each worker tags at a time when NUM_THREADS>1.
+	private static final int BATCH_SIZE=1000;
+
+	// the compiled annotations for the last OverlapDetector seen by setAnnotations.
+	private OverlapDetector<Gene> indexedOverlapDetector=null;
+	private GeneFunctionIndex geneFunctionIndex=null;
+	private GeneFunctionIndex.ReadFunctionalData readFunctionalData=null;
+
 	@Override
 	protected int doWork() {
 		IOUtil.assertFileIsReadable(this.INPUT);
@@ -104,23 +122,27 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 		if (this.SUMMARY!=null) IOUtil.assertFileIsWritable(this.SUMMARY);
 		IOUtil.assertFileIsWritable(this.OUTPUT);
 
-		SamReader inputSam = SamReaderFactory.makeDefault().open(INPUT);
+		SamReader inputSam = SamIOUtil.openReader(SamReaderFactory.makeDefault(), INPUT, NUM_IO_THREADS);
 
 		SAMFileHeader header = inputSam.getFileHeader();
 		SamHeaderUtil.addPgRecord(header, this);
 		SAMSequenceDictionary bamDict = header.getSequenceDictionary();
 
         final OverlapDetector<Gene> geneOverlapDetector = GeneAnnotationReader.loadAnnotationsFile(ANNOTATIONS_FILE, bamDict);
-        SAMFileWriter writer= new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT);
+        SAMFileWriter writer= SamIOUtil.makeSAMOrBAMWriter(header, true, OUTPUT, NUM_IO_THREADS);
 
-        for (SAMRecord r: inputSam) {
-        	pl.record(r);
+        if (this.NUM_THREADS>1) {
+        	log.info("Tagging reads with [" + this.NUM_THREADS + "] threads");
+        	tagReadsInParallel(inputSam.iterator(), geneOverlapDetector, writer);
+        } else
+			for (SAMRecord r: inputSam) {
+	        	pl.record(r);
 
-        	if (!r.getReadUnmappedFlag())
-				// r=	setGeneExons(r, geneOverlapDetector, this.ALLOW_MULTI_GENE_READS);
-        		r= setAnnotations(r, geneOverlapDetector, this.ALLOW_MULTI_GENE_READS);
-        	writer.addAlignment(r);
-        }
+	        	if (!r.getReadUnmappedFlag())
+					// r=	setGeneExons(r, geneOverlapDetector, this.ALLOW_MULTI_GENE_READS);
+	        		r= setAnnotations(r, geneOverlapDetector, this.ALLOW_MULTI_GENE_READS);
+	        	writer.addAlignment(r);
+	        }
 
 		CloserUtil.close(inputSam);
 		writer.close();
@@ -171,13 +193,130 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 		return (r);
 	}
 	*/
+	/**
+	 * Tag reads on a pool of worker threads.  Each batch of reads is tagged with its own metrics, which are added to the
+	 * totals as the batches are written, in input order.
+	 */
+	private void tagReadsInParallel (final Iterator<SAMRecord> iter, final OverlapDetector<Gene> geneOverlapDetector, final SAMFileWriter writer) {
+		indexAnnotations(geneOverlapDetector);
+		// the singleton initializes shared state, so create it before the workers start.
+		AnnotationUtils.getInstance();
+		final ThreadLocal<GeneFunctionIndex.ReadFunctionalData> readData = ThreadLocal.withInitial(this.geneFunctionIndex::newReadFunctionalData);
+
+		ParallelTransformingIterator<List<SAMRecord>, TaggedBatch> batches = new ParallelTransformingIterator<>(Iterators.partition(iter, BATCH_SIZE),
+				batch -> {
+					ReadTaggingMetric batchMetrics = new ReadTaggingMetric();
+					for (SAMRecord r: batch)
+						if (!r.getReadUnmappedFlag())
+							setAnnotations(r, geneOverlapDetector, readData.get(), batchMetrics);
+					return new TaggedBatch(batch, batchMetrics);
+				}, this.NUM_THREADS);
+
+		while (batches.hasNext()) {
+			TaggedBatch batch = batches.next();
+			for (SAMRecord r: batch.reads) {
+				pl.record(r);
+				writer.addAlignment(r);
+			}
+			this.metrics.add(batch.metrics);
+		}
+		batches.close();
+	}
+
+	private static class TaggedBatch {
+		private final List<SAMRecord> reads;
+		private final ReadTaggingMetric metrics;
+
+		TaggedBatch (final List<SAMRecord> reads, final ReadTaggingMetric metrics) {
+			this.reads=reads;
+			this.metrics=metrics;
+		}
+	}
+
+	/**
+	 * Compile the annotations into a GeneFunctionIndex, if they aren't already.
+	 */
+	private void indexAnnotations (final OverlapDetector<Gene> geneOverlapDetector) {
+		if (this.indexedOverlapDetector!=geneOverlapDetector) {
+			this.geneFunctionIndex = new GeneFunctionIndex(geneOverlapDetector.getAll());
+			this.readFunctionalData = this.geneFunctionIndex.newReadFunctionalData();
+			this.indexedOverlapDetector=geneOverlapDetector;
+		}
+	}
+
 	/**
 	 * Add functional annotations for this read.
+	 * The annotations are compiled into a GeneFunctionIndex the first time an OverlapDetector is seen, and reads are looked up in the index.
 	 * @param r
 	 * @param geneOverlapDetector
 	 * @return
 	 */
 	public SAMRecord setAnnotations (final SAMRecord r, final OverlapDetector<Gene> geneOverlapDetector, final boolean allowMultiReadGenes) {
+		indexAnnotations(geneOverlapDetector);
+		return setAnnotations(r, geneOverlapDetector, this.readFunctionalData, this.metrics);
+	}
+
+	/**
+	 * Add functional annotations for this read, using the index built by indexAnnotations.
+	 * This is called from worker threads when NUM_THREADS>1, so each thread needs its own data and metrics.
+	 */
+	private SAMRecord setAnnotations (final SAMRecord r, final OverlapDetector<Gene> geneOverlapDetector, final GeneFunctionIndex.ReadFunctionalData data,
+			final ReadTaggingMetric metrics) {
+		this.geneFunctionIndex.getFunctionalDataForRead(r, data);
+		// genes that share a name have no defined order, so use the same ordering as the interval lookup.
+		if (data.hasDuplicateGeneNames())
+			return setAnnotationsByInterval(r, geneOverlapDetector, metrics);
+
+		StringBuilder geneNames = new StringBuilder();
+		StringBuilder geneStrands = new StringBuilder();
+		StringBuilder geneFunctions = new StringBuilder();
+		boolean negativeStrandRead = r.getReadNegativeStrandFlag();
+		int sameStrandFunctions=0;
+		int numSameStrand=0;
+		int numOppositeStrand=0;
+		for (int i=0; i<data.size(); i++) {
+			Gene g = this.geneFunctionIndex.getGene(data.getGeneId(i));
+			int functions = data.getFunctions(i);
+			String strand = Utils.strandToString(g.isPositiveStrand());
+			// functions are output in reverse order, as in setAnnotationsByInterval.
+			for (int f=LOCUS_FUNCTIONS.length-1; f>=0; f--) {
+				if ((functions & (1 << f))==0) continue;
+				if (geneNames.length()>0) {
+					geneNames.append(",");
+					geneStrands.append(",");
+					geneFunctions.append(",");
+				}
+				geneNames.append(g.getName());
+				geneStrands.append(strand);
+				geneFunctions.append(LOCUS_FUNCTIONS[f].name());
+			}
+			if (!this.USE_STRAND_INFO || negativeStrandRead==g.isNegativeStrand()) {
+				sameStrandFunctions|=functions;
+				numSameStrand++;
+			} else
+				numOppositeStrand++;
+		}
+
+		boolean hasGenes = geneNames.length()>0;
+		r.setAttribute(this.GENE_FUNCTION_TAG, hasGenes ? geneFunctions.toString() : null);
+		r.setAttribute(this.GENE_NAME_TAG, hasGenes ? geneNames.toString() : null);
+		r.setAttribute(this.GENE_STRAND_TAG, hasGenes ? geneStrands.toString() : null);
+
+		if (USE_STRAND_INFO && !recordStrandMetrics(numSameStrand, numOppositeStrand, metrics))
+			sameStrandFunctions=0;
+
+		// pick the summary locus function for genes that were consistent.
+		LocusFunction f = AnnotationUtils.getInstance().getLocusFunction(sameStrandFunctions);
+		r.setAttribute(this.READ_FUNCTION_TAG, f.name());
+		return (r);
+	}
+
+	private static final LocusFunction [] LOCUS_FUNCTIONS = LocusFunction.values();
+
+	/**
+	 * Add functional annotations for this read by querying the OverlapDetector for each alignment block.
+	 */
+	private SAMRecord setAnnotationsByInterval (final SAMRecord r, final OverlapDetector<Gene> geneOverlapDetector, final ReadTaggingMetric metrics) {
 		Map<Gene, List<LocusFunction>> map = AnnotationUtils.getInstance().getFunctionalDataForRead (r, geneOverlapDetector);
 		List<Gene> genes = new ArrayList<Gene>(map.keySet());
 		// sort genes by name alphabetically to maintain some consistent ordering.
@@ -209,7 +348,7 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 		// filter Gene/Locus Function map down to correct strand for read tags for the summary function
 
 		if (USE_STRAND_INFO)
-			genes = getGenesConsistentWithReadStrand(genes, r);
+			genes = getGenesConsistentWithReadStrand(genes, r, metrics);
 
 
 		List<LocusFunction> finalFunctionList = new ArrayList<LocusFunction>();
@@ -263,9 +402,7 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 	 * @param r
 	 * @return returns the gene the read is consistent with.
 	 */
-	private List<Gene> getGenesConsistentWithReadStrand(final List<Gene> genes, final SAMRecord r) {
-		this.metrics.TOTAL_READS++;
-
+	private List<Gene> getGenesConsistentWithReadStrand(final List<Gene> genes, final SAMRecord r, final ReadTaggingMetric metrics) {
 		List<Gene> sameStrand = new ArrayList<Gene>();
 		List<Gene> oppositeStrand = new ArrayList<Gene>();
 
@@ -279,9 +416,20 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 				oppositeStrand.add(g);
 		}
 
-		if (sameStrand.size()==0 && oppositeStrand.size()>0) {
-			this.metrics.READS_WRONG_STRAND++;
+		if (!recordStrandMetrics(sameStrand.size(), oppositeStrand.size(), metrics))
 			return new ArrayList<Gene>();
+		return sameStrand;
+	}
+
+	/**
+	 * Gather the metrics on the strand/gene assignment of a read, given the number of genes on each strand.
+	 * @return false if the read is on the wrong strand for all the genes it overlaps, and should not be assigned a function.
+	 */
+	private boolean recordStrandMetrics (final int numSameStrand, final int numOppositeStrand, final ReadTaggingMetric metrics) {
+		metrics.TOTAL_READS++;
+		if (numSameStrand==0 && numOppositeStrand>0) {
+			metrics.READS_WRONG_STRAND++;
+			return false;
 		}
 
 		/**
@@ -291,11 +439,11 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 		}
 		*/
 		// otherwise, the read is unambiguously assigned to a gene on the correct strand - the sameStrandSize must be 1 as it's not 0 and not > 1.
-		if (oppositeStrand.size()>0)
-			this.metrics.READ_AMBIGUOUS_GENE_FIXED++;
+		if (numOppositeStrand>0)
+			metrics.READ_AMBIGUOUS_GENE_FIXED++;
 
-		this.metrics.READS_RIGHT_STRAND++;
-		return sameStrand;
+		metrics.READS_RIGHT_STRAND++;
+		return true;
 
 	}
 
@@ -360,6 +508,14 @@ public class TagReadWithGeneFunction extends CommandLineProgram {
 		public int READ_AMBIGUOUS_GENE_FIXED=0;
 		public int AMBIGUOUS_READS_REJECTED=0;
 
+		public void add (final ReadTaggingMetric other) {
+			this.TOTAL_READS+=other.TOTAL_READS;
+			this.READS_WRONG_STRAND+=other.READS_WRONG_STRAND;
+			this.READS_RIGHT_STRAND+=other.READS_RIGHT_STRAND;
+			this.READ_AMBIGUOUS_GENE_FIXED+=other.READ_AMBIGUOUS_GENE_FIXED;
+			this.AMBIGUOUS_READS_REJECTED+=other.AMBIGUOUS_READS_REJECTED;
+		}
+
 		@Override
 		public String toString () {
 			return("TOTAL READS [" + this.TOTAL_READS + "] CORRECT_STRAND [" + this.READS_RIGHT_STRAND +"]  WRONG_STRAND [" + this.READS_WRONG_STRAND +"] AMBIGUOUS_STRAND_FIXED [" + this.READ_AMBIGUOUS_GENE_FIXED +"] AMBIGUOUS REJECTED READS ["+ this.AMBIGUOUS_READS_REJECTED+"]" );
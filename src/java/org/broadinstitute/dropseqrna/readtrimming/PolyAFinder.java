@@ -25,6 +25,8 @@ package org.broadinstitute.dropseqrna.readtrimming;
 
 import htsjdk.samtools.SAMRecord;
 
+import java.util.List;
+
 public interface PolyAFinder {
     public static int NO_MATCH = -1;
 
@@ -35,6 +37,18 @@ public interface PolyAFinder {
 	 */
     PolyARun getPolyAStart(final SAMRecord rec);
 
+    /**
+     * Gets the polyA runs for a batch of reads.
+     * @param recs the reads to test.
+     * @return The polyA run of each read, in the same order as the reads.
+     */
+    default PolyARun[] getPolyAStarts(final List<SAMRecord> recs) {
+        final PolyARun[] result = new PolyARun[recs.size()];
+        for (int i = 0; i < result.length; ++i)
+            result[i] = getPolyAStart(recs.get(i));
+        return result;
+    }
+
     public static class PolyARun {
         /** 0-based start of poly A run, or NO_MATCH if none found */
         public final int startPos;
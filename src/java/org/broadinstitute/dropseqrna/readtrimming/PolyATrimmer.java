@@ -23,6 +23,7 @@
  */
 package org.broadinstitute.dropseqrna.readtrimming;
 
+import com.google.common.collect.Iterators;
 import htsjdk.samtools.*;
 import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
@@ -30,7 +31,10 @@ import htsjdk.samtools.util.*;
 import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
+import org.broadinstitute.dropseqrna.utils.ParallelTransformingIterator;
 import org.broadinstitute.dropseqrna.utils.SamHeaderUtil;
+import org.broadinstitute.dropseqrna.utils.TransformingIterator;
+import org.broadinstitute.dropseqrna.utils.io.SamIOUtil;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.util.ClippingUtility;
@@ -38,6 +42,8 @@ import picard.util.ClippingUtility;
 import java.io.File;
 import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 
 @CommandLineProgramProperties(summary = "", oneLineSummary = "", programGroup = DropSeq.class)
 public class PolyATrimmer extends CommandLineProgram {
@@ -94,6 +100,15 @@ public class PolyATrimmer extends CommandLineProgram {
 	@Argument(doc = "When looking for poly A, allow this fraction of bases not to be A (new trim algo)")
 	public double MAX_POLY_A_ERROR_RATE = 0.1;
 
+	@Argument(doc=SamIOUtil.NUM_IO_THREADS_DOC, minValue=1)
+	public int NUM_IO_THREADS=1;
+
+	@Argument(doc="Number of threads to search for poly A on.  Reads are searched in batches on worker threads, and trimmed and written in input order, so the output does not depend on the number of threads.", minValue=1)
+	public int NUM_THREADS=1;
+
+	// the number of reads searched for poly A at a time.
+	private static final int BATCH_SIZE=1000;
+
 	private Integer readsTrimmed = 0;
 	private int readsCompletelyTrimmed = 0;
 	final private Histogram<Integer> numBasesTrimmed = new Histogram<>();
@@ -110,51 +125,105 @@ public class PolyATrimmer extends CommandLineProgram {
 		IOUtil.assertFileIsWritable(OUTPUT);
 		final ProgressLogger progress = new ProgressLogger(log);
 
-		final SamReader bamReader = SamReaderFactory.makeDefault().open(INPUT);
+		final SamReader bamReader = SamIOUtil.openReader(SamReaderFactory.makeDefault(), INPUT, NUM_IO_THREADS);
 		final SAMFileHeader header = bamReader.getFileHeader();
 		SamHeaderUtil.addPgRecord(header, this);
-		final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT);
-		PolyAFinder simplePolyAFinder = new SimplePolyAFinder(this.NUM_BASES, this.MISMATCHES);
-		PolyAFinder polyAWithAdapterFinder = new PolyAWithAdapterFinder(ADAPTER, MIN_ADAPTER_MATCH,
+		final SAMFileWriter writer = SamIOUtil.makeSAMOrBAMWriter(header, true, OUTPUT, NUM_IO_THREADS);
+		final Iterator<SAMRecord> iter = getTrimmingIterator(bamReader.iterator(), progress);
+		while (iter.hasNext())
+			writer.addAlignment(iter.next());
+		CloserUtil.close(bamReader);
+		writer.close();
+		log.info("Total " + progress.getCount() + " reads processed.");
+		report();
+
+		return 0;
+	}
+
+	/**
+	 * Trim reads as they are read from an iterator.  Once the iterator has been consumed, call report to log the number of
+	 * reads trimmed and write the OUTPUT_SUMMARY.
+	 */
+	public Iterator<SAMRecord> getTrimmingIterator(final Iterator<SAMRecord> reads, final ProgressLogger progress) {
+		final PolyAFinder simplePolyAFinder = new SimplePolyAFinder(this.NUM_BASES, this.MISMATCHES);
+		final PolyAFinder polyAWithAdapterFinder = new PolyAWithAdapterFinder(ADAPTER, MIN_ADAPTER_MATCH,
 				MAX_ADAPTER_ERROR_RATE, MIN_POLY_A_LENGTH, MIN_POLY_A_LENGTH_NO_ADAPTER_MATCH, MAX_POLY_A_ERROR_RATE,
 				DUBIOUS_ADAPTER_MATCH_LENGTH);
 		final PolyAFinder polyAFinder;
-		if (USE_NEW_TRIMMER)
+		final PolyAFinder otherPolyAFinder;
+		if (USE_NEW_TRIMMER) {
 			polyAFinder = polyAWithAdapterFinder;
-		else
+			otherPolyAFinder = simplePolyAFinder;
+		} else {
 			polyAFinder = simplePolyAFinder;
-		for (SAMRecord r : bamReader) {
-			final SimplePolyAFinder.PolyARun polyARun = polyAFinder.getPolyAStart(r);
-			final int polyAStart = polyARun.startPos;
-
-			if (log.isEnabled(Log.LogLevel.DEBUG)) {
-				final PolyAFinder.PolyARun simple;
-				final PolyAFinder.PolyARun withAdapter;
-				if (USE_NEW_TRIMMER) {
-					withAdapter = polyARun;
-					simple = simplePolyAFinder.getPolyAStart(r);
-				} else {
-					simple = polyARun;
-					withAdapter = polyAWithAdapterFinder.getPolyAStart(r);
+			otherPolyAFinder = polyAWithAdapterFinder;
+		}
+		// only compare the two finders in debug mode.
+		final boolean debug = log.isEnabled(Log.LogLevel.DEBUG);
+
+		// the search is independent for each read, so it can be done on worker threads.  Trimming updates the
+		// counters, so it's done as the reads are returned, in input order.
+		final Iterator<List<SAMRecord>> batches = Iterators.partition(reads, BATCH_SIZE);
+		final Iterator<PolyARunBatch> runs;
+		if (this.NUM_THREADS>1) {
+			log.info("Searching for poly A with [" + this.NUM_THREADS + "] threads");
+			runs = new ParallelTransformingIterator<>(batches, b -> new PolyARunBatch(b, polyAFinder, debug ? otherPolyAFinder : null), this.NUM_THREADS);
+		} else
+			runs = new TransformingIterator<List<SAMRecord>, PolyARunBatch>(batches) {
+				@Override
+				public PolyARunBatch next() {
+					return new PolyARunBatch(this.underlyingIterator.next(), polyAFinder, debug ? otherPolyAFinder : null);
 				}
-				logTrimDifference(simple, withAdapter, r);
-			}
+			};
+		return Iterators.concat(Iterators.transform(runs, b -> trimBatch(b, progress)));
+	}
 
-			hardClipPolyAFromRecord(r, polyAStart);
-			writer.addAlignment(r);
+	/**
+	 * Trim a batch of reads at their poly A runs.
+	 * @return The trimmed reads.
+	 */
+	private Iterator<SAMRecord> trimBatch(final PolyARunBatch batch, final ProgressLogger progress) {
+		for (int i = 0; i < batch.reads.size(); ++i) {
+			final SAMRecord r = batch.reads.get(i);
+			final PolyAFinder.PolyARun polyARun = batch.runs[i];
+			if (batch.otherRuns != null) {
+				if (USE_NEW_TRIMMER)
+					logTrimDifference(batch.otherRuns[i], polyARun, r);
+				else
+					logTrimDifference(polyARun, batch.otherRuns[i], r);
+			}
+			hardClipPolyAFromRecord(r, polyARun.startPos);
 			progress.record(r);
 		}
-		CloserUtil.close(bamReader);
-		writer.close();
-		log.info("Total " + progress.getCount() + " reads processed.");
+		return batch.reads.iterator();
+	}
+
+	/**
+	 * The poly A runs found for a batch of reads.
+	 */
+	private static class PolyARunBatch {
+		private final List<SAMRecord> reads;
+		private final PolyAFinder.PolyARun[] runs;
+		// the runs from the finder that isn't used for trimming, for debugging.  Null if not debugging.
+		private final PolyAFinder.PolyARun[] otherRuns;
+
+		PolyARunBatch(final List<SAMRecord> reads, final PolyAFinder polyAFinder, final PolyAFinder otherPolyAFinder) {
+			this.reads = reads;
+			this.runs = polyAFinder.getPolyAStarts(reads);
+			this.otherRuns = (otherPolyAFinder == null) ? null : otherPolyAFinder.getPolyAStarts(reads);
+		}
+	}
+
+	/**
+	 * Log the number of reads trimmed, and write the OUTPUT_SUMMARY if it is set.
+	 */
+	public void report() {
 		log.info("Number of reads trimmed: ", this.readsTrimmed);
 		log.info("Number of reads completely trimmed: ", this.readsCompletelyTrimmed);
 		log.debug(String.format("differences: %d; old didn't clip: %d; new didn't clip: %d", numDiffs, numOldDidntClip,
 				numNewDidntClip));
 		if (this.OUTPUT_SUMMARY != null)
 			writeSummary(this.numBasesTrimmed);
-
-		return 0;
 	}
 
 	private void logTrimDifference(final PolyAFinder.PolyARun simpleRun, final PolyAFinder.PolyARun withAdapterRun,
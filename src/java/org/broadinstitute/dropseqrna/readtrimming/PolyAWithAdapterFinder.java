@@ -29,7 +29,7 @@ import picard.util.ClippingUtility;
 
 public class PolyAWithAdapterFinder implements PolyAFinder {
 
-    private static char A = 'A';
+    private static byte A = 'A';
 
     private final AdapterDescriptor adapter;
     private final int minAdapterMatch;
@@ -58,29 +58,35 @@ public class PolyAWithAdapterFinder implements PolyAFinder {
 
     @Override
     public PolyARun getPolyAStart(final SAMRecord r) {
-        return getPolyAStart(r.getReadString(), adapter.getAdapterSequence(r));
+        return getPolyAStart(r.getReadBases(), StringUtil.stringToBytes(adapter.getAdapterSequence(r)));
     }
 
     public PolyARun getPolyAStart(final String readString, final String adapterSequence) {
-        final byte[] readBases = StringUtil.stringToBytes(readString);
+        return getPolyAStart(StringUtil.stringToBytes(readString), StringUtil.stringToBytes(adapterSequence));
+    }
+
+    /**
+     * Works on the read bases in place, so the read doesn't need to be copied to a String.
+     */
+    public PolyARun getPolyAStart(final byte [] readBases, final byte [] adapterBases) {
         int adapterClipPosition = ClippingUtility.findIndexOfClipSequence(
                 readBases,
-                StringUtil.stringToBytes(adapterSequence),
+                adapterBases,
                 minAdapterMatch,
                 maxAdapterErrorRate);
         if (adapterClipPosition == ClippingUtility.NO_MATCH) {
-            adapterClipPosition = readString.length();
+            adapterClipPosition = readBases.length;
         } else if (adapterClipPosition == 0) {
             return new PolyARun(0, 0, 0);
         }
-        final SimplePolyAFinder.PolyARun ret = getPolyARun(readString, adapterClipPosition);
+        final SimplePolyAFinder.PolyARun ret = getPolyARun(readBases, adapterClipPosition);
 
         // If there was a short adapter match, but not enough poly A before it,
         // see if there would be enough poly A if the adapter considered not to match.
-        if (ret.isNoMatch() && adapterClipPosition < readString.length() &&
-                adapterClipPosition + dubiousAdapterMatchLength >= readString.length()) {
+        if (ret.isNoMatch() && adapterClipPosition < readBases.length &&
+                adapterClipPosition + dubiousAdapterMatchLength >= readBases.length) {
             // If did not find enough polyA looking before adapter, try again looking from end of read.
-            final SimplePolyAFinder.PolyARun tryWithoutAdapter = getPolyARun(readString, readString.length());
+            final SimplePolyAFinder.PolyARun tryWithoutAdapter = getPolyARun(readBases, readBases.length);
             if (!tryWithoutAdapter.isNoMatch()) {
                 return tryWithoutAdapter;
             }
@@ -89,10 +95,10 @@ public class PolyAWithAdapterFinder implements PolyAFinder {
 
     }
 
-    private PolyAFinder.PolyARun getPolyARun(String readBases, int adapterClipPosition) {
+    private PolyAFinder.PolyARun getPolyARun(byte [] readBases, int adapterClipPosition) {
         // Note whether there was actually adapter found, as opposed to just starting at the end of the read.
         final int realAdapterClipPosition;
-        if (adapterClipPosition < readBases.length() - 1) {
+        if (adapterClipPosition < readBases.length - 1) {
             realAdapterClipPosition = adapterClipPosition;
         } else {
             realAdapterClipPosition = -1;
@@ -115,7 +121,7 @@ public class PolyAWithAdapterFinder implements PolyAFinder {
 
         // Start just before the adapter
         for (int i = adapterClipPosition - 1; i >= 0; --i) {
-            if (readBases.charAt(i) == A) {
+            if (readBases[i] == A) {
                 final double errorRate = numMisMatches/(double)(adapterClipPosition - i);
                 if (adapterClipPosition - i >= minPolyABases && errorRate <= maxPolyAErrorRate) {
                     bestPolyARunStart = i;
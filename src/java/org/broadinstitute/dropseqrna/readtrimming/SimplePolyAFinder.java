@@ -24,6 +24,7 @@
 package org.broadinstitute.dropseqrna.readtrimming;
 
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.StringUtil;
 
 /**
  * Finds runs of PolyAs (lots of A's in a row) in a sequence.
@@ -48,11 +49,18 @@ public class SimplePolyAFinder implements PolyAFinder {
 	 */
 	@Override
     public PolyARun getPolyAStart(final SAMRecord rec) {
-        return getPolyAStart(rec.getReadString());
+        return getPolyAStart(rec.getReadBases());
     }
 
     public PolyARun getPolyAStart(final String readString) {
-        char [] seq = readString.toUpperCase().toCharArray();
+        return getPolyAStart(StringUtil.stringToBytes(readString));
+    }
+
+    /**
+     * Scans the bases in place, so the read bases don't need to be copied to a String.
+     * @param seq the read bases.  Lower case a is treated as A.
+     */
+    public PolyARun getPolyAStart(final byte [] seq) {
 
 		boolean inRun=false;
 		int numInRun=0;
@@ -63,18 +71,18 @@ public class SimplePolyAFinder implements PolyAFinder {
         int bestRunLength= -1;
         int nextRunStartPos = -1;
 		for (int i=0; i<seq.length; i++)  {
-			char s = seq[i];
+			boolean isA = isA(seq[i]);
 			// keep the run going if you're in one.
-			if (s=='A' && inRun) {
+			if (isA && inRun) {
 				numInRun++;
-                if (seq[i-1] != 'A' && nextRunStartPos == -1) {
+                if (!isA(seq[i-1]) && nextRunStartPos == -1) {
                     // If hit a mismatch but continuing, remember where the first A was after the first mismatch
                     nextRunStartPos = i;
                 }
 			}
 		
 			// Get the run going if you're starting one.  
-			if (s=='A' & !inRun) {
+			if (isA & !inRun) {
 				numInRun++;
 				inRun=true;
 				runStartPos=i;
@@ -82,7 +90,7 @@ public class SimplePolyAFinder implements PolyAFinder {
 			} 
 			// if you're in a run and this isn't an A, then you accumulate errors, and maybe leave the run if you have too many errors.
 			// if you haven't accumulated too many errors, keep the run going as if it was an OK base.
-			if (s!='A' & inRun) {
+			if (!isA & inRun) {
 				numError++;
 				numInRun++;
 				if (numError>this.numMismatchBases) {
@@ -104,7 +112,7 @@ public class SimplePolyAFinder implements PolyAFinder {
 				
 				
 			}
-			if (s!='A' & !inRun) {
+			if (!isA & !inRun) {
 				// you really don't do much here.
 			}
 				
@@ -123,6 +131,10 @@ public class SimplePolyAFinder implements PolyAFinder {
 		// otherwise, return -1 because you don't have a start postion for a run.
 		return PolyARun.NO_MATCH_RUN;
 	}
+
+	private static boolean isA (final byte b) {
+		return b=='A' || b=='a';
+	}
 	
 	
 	
@@ -31,11 +31,14 @@ import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.SamHeaderUtil;
+import org.broadinstitute.dropseqrna.utils.TransformingIterator;
+import org.broadinstitute.dropseqrna.utils.io.SamIOUtil;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.StandardOptionDefinitions;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Iterator;
 
 @CommandLineProgramProperties(summary = "Trim the given sequence from the beginning of reads",
         oneLineSummary = "Trim the given sequence from the beginning of reads",
@@ -64,6 +67,9 @@ public class TrimStartingSequence extends CommandLineProgram {
 	@Argument (doc="The tag to set for trimmed reads.  This tags the first base to keep in the read.  6 would mean to trim the first 5 bases.")
 	public String TRIM_TAG="ZS";
 
+	@Argument(doc=SamIOUtil.NUM_IO_THREADS_DOC, minValue=1)
+	public int NUM_IO_THREADS=1;
+
 	private Integer readsTrimmed=0;
 	private int numReadsTotal=0;
 	private Histogram<Integer> numBasesTrimmed= new Histogram<Integer>();
@@ -75,29 +81,49 @@ public class TrimStartingSequence extends CommandLineProgram {
 		IOUtil.assertFileIsWritable(OUTPUT);
 		final ProgressLogger progress = new ProgressLogger(log);
 
-		SamReader bamReader = SamReaderFactory.makeDefault().open(this.INPUT);
+		SamReader bamReader = SamIOUtil.openReader(SamReaderFactory.makeDefault(), this.INPUT, NUM_IO_THREADS);
 		SAMFileHeader header = bamReader.getFileHeader();
 		SamHeaderUtil.addPgRecord(header, this);
-        SAMFileWriter writer= new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT);
-
-        TrimSequenceTemplate t = new TrimSequenceTemplate(this.SEQUENCE);
+        SAMFileWriter writer= SamIOUtil.makeSAMOrBAMWriter(header, true, OUTPUT, NUM_IO_THREADS);
 
-        for (SAMRecord r: bamReader) {
-        	SAMRecord rr =  hardClipBarcodeFromRecord(r, t, this.NUM_BASES, this.MISMATCHES);
-        	writer.addAlignment(rr);
-        	progress.record(r);
-        	this.numReadsTotal++;
-        }
+        Iterator<SAMRecord> iter = getTrimmingIterator(bamReader.iterator(), progress);
+        while (iter.hasNext())
+        	writer.addAlignment(iter.next());
 
         CloserUtil.close(bamReader);
 
         writer.close();
-        log.info("Number of reads trimmed: " + this.readsTrimmed, " total reads: " + this.numReadsTotal);
-        if (this.OUTPUT_SUMMARY!=null) writeSummary(this.numBasesTrimmed);
+        report();
 
 		return 0;
 	}
 
+	/**
+	 * Trim reads as they are read from an iterator.  Once the iterator has been consumed, call report to log the number of
+	 * reads trimmed and write the OUTPUT_SUMMARY.
+	 */
+	public Iterator<SAMRecord> getTrimmingIterator (final Iterator<SAMRecord> reads, final ProgressLogger progress) {
+		final TrimSequenceTemplate t = new TrimSequenceTemplate(this.SEQUENCE);
+		return new TransformingIterator<SAMRecord, SAMRecord>(reads) {
+			@Override
+			public SAMRecord next() {
+				SAMRecord r = this.underlyingIterator.next();
+				SAMRecord rr = hardClipBarcodeFromRecord(r, t, NUM_BASES, MISMATCHES);
+				progress.record(r);
+				numReadsTotal++;
+				return rr;
+			}
+		};
+	}
+
+	/**
+	 * Log the number of reads trimmed, and write the OUTPUT_SUMMARY if it is set.
+	 */
+	public void report () {
+		log.info("Number of reads trimmed: " + this.readsTrimmed, " total reads: " + this.numReadsTotal);
+		if (this.OUTPUT_SUMMARY!=null) writeSummary(this.numBasesTrimmed);
+	}
+
 	private void writeSummary (final Histogram<Integer> h) {
 
 		MetricsFile<TrimMetric, Integer> mf = new MetricsFile<TrimMetric, Integer>();
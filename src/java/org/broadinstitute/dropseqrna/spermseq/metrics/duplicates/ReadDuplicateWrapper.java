@@ -53,9 +53,8 @@ public class ReadDuplicateWrapper extends
 		int coordinate = getCoordinate(rec);
 		//Interval i = new Interval(rec.getReferenceName(), coordinate, coordinate);
 		//String value = IntervalTagComparator.toString(i);
-		// encode the string manually as an interval, don't use the full encoding as it's not needed!
-		String value = rec.getReferenceName() + IntervalTagComparator.ENCODE_DELIMITER + coordinate;
-		rec.setAttribute(this.tag, value);
+		// encode the position in binary, so sorting doesn't have to parse it.
+		rec.setAttribute(this.tag, IntervalTagComparator.toBinary(rec.getReferenceIndex(), coordinate, coordinate));
 		queueRecordForOutput(rec);
 	}
 
@@ -35,6 +35,7 @@ import org.broadinstitute.dropseqrna.barnyard.BarcodeListRetrieval;
 import org.broadinstitute.dropseqrna.barnyard.ParseBarcodeFile;
 import org.broadinstitute.dropseqrna.cmdline.SpermSeq;
 import org.broadinstitute.dropseqrna.utils.*;
+import org.broadinstitute.dropseqrna.utils.readiterators.CellBarcodeShardingIterator;
 import org.broadinstitute.dropseqrna.utils.readiterators.MissingTagFilteringIterator;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamFileMergeUtil;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamHeaderAndIterator;
@@ -93,6 +94,10 @@ public class SpermSeqMarkDuplicates extends CommandLineProgram  {
     @Argument(shortName = StandardOptionDefinitions.SORT_ORDER_SHORT_NAME)
     public SAMFileHeader.SortOrder SORT_ORDER = SAMFileHeader.SortOrder.coordinate;
 
+	@Argument(doc="Number of threads to mark duplicates with.  When greater than 1, reads are split into this many shards by cell barcode, "
+			+ "and each shard is sorted and processed in parallel.  The output is the same for any number of threads.", minValue=1)
+	public int NUM_THREADS=1;
+
 	private final String POS_TAG="ZZ";
 	private ScoringStrategy DUPLICATE_SCORING_STRATEGY = ScoringStrategy.SUM_OF_BASE_QUALITIES;
 	private final String AGGREGATE_NAME="ALL";
@@ -160,9 +165,23 @@ public class SpermSeqMarkDuplicates extends CommandLineProgram  {
 	            new StringTagComparator(this.CELL_BARCODE_TAG), new StringTagComparator(this.MOLECULAR_BARCODE_TAG), new IntervalTagComparator(this.POS_TAG, headerAndIterator.header.getSequenceDictionary()));
 	    // add the position tag.
 	    final ReadDuplicateWrapper sortingIteratorWrapper = new ReadDuplicateWrapper(filteringIterator, POS_TAG);
-	    final CloseableIterator<SAMRecord> sortingIterator =
-	            SamRecordSortingIteratorFactory.create(headerAndIterator.header, sortingIteratorWrapper, comparator, new ProgressLogger(this.log));
-	    final GroupingIterator<SAMRecord> groupingIterator = new GroupingIterator<>(sortingIterator, comparator);
+
+	    // each batch has a single cell barcode, so the duplicate flags can be set on the cell barcode shards in parallel.
+	    // metrics are gathered here as the batches come back in order.
+	    final Iterator<List<SAMRecord>> batchIterator;
+	    if (this.NUM_THREADS>1)
+	    	batchIterator = new CellBarcodeShardingIterator<>(headerAndIterator.header, sortingIteratorWrapper, this.CELL_BARCODE_TAG, comparator,
+	    			this::setDuplicateFlags, this.NUM_THREADS, new ProgressLogger(log));
+	    else {
+	    	final CloseableIterator<SAMRecord> sortingIterator =
+	    			SamRecordSortingIteratorFactory.create(headerAndIterator.header, sortingIteratorWrapper, comparator, new ProgressLogger(this.log));
+	    	batchIterator = new TransformingIterator<List<SAMRecord>, List<SAMRecord>>(new GroupingIterator<>(sortingIterator, comparator)) {
+	    		@Override
+	    		public List<SAMRecord> next() {
+	    			return setDuplicateFlags(this.underlyingIterator.next());
+	    		}
+	    	};
+	    }
 
 		Map<String, PCRDuplicateMetrics> metricsMap = getPerCellMetricsMap(cellBarcodes);
 
@@ -172,22 +191,22 @@ public class SpermSeqMarkDuplicates extends CommandLineProgram  {
 		int maxBatchSize=0;
 		BatchStats stats=null;
 
-		while (groupingIterator.hasNext()) {
-			Collection<SAMRecord> batch = groupingIterator.next();
+		while (batchIterator.hasNext()) {
+			Collection<SAMRecord> batch = batchIterator.next();
 			if (batch.size()>maxBatchSize) {
 				maxBatchSize=batch.size();
-				stats=new BatchStats(this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG, this.POS_TAG, batch.iterator().next(), batch.size());
+				stats=new BatchStats(this.CELL_BARCODE_TAG, this.MOLECULAR_BARCODE_TAG, this.POS_TAG, headerAndIterator.header.getSequenceDictionary(), batch.iterator().next(), batch.size());
 				if (this.VERBOSE) log.info(stats);
 			}
-			Collection<SAMRecord> result = markDuplicates(batch, metricsMap);
-			for (SAMRecord r: result) {
+			addDuplicateMetrics(batch, metricsMap);
+			for (SAMRecord r: batch) {
 				r.setAttribute(this.POS_TAG, null);
 				writer.addAlignment(r);
 				plWriter.record(r);
 			}
 		}
 		if (stats!=null) log.info("Maximum Batch Size " + stats);
-		CloserUtil.close(groupingIterator);
+		CloserUtil.close(batchIterator);
 		return metricsMap;
 	}
 
@@ -197,11 +216,11 @@ public class SpermSeqMarkDuplicates extends CommandLineProgram  {
 		private String molBC;
 		private String pos;
 
-		public BatchStats (final String cellBarcodeTag, final String molBCTag, final String posTag, final SAMRecord r, final int batchSize) {
+		public BatchStats (final String cellBarcodeTag, final String molBCTag, final String posTag, final SAMSequenceDictionary dict, final SAMRecord r, final int batchSize) {
 			this.batchSize=batchSize;
 			this.cellBarcode = r.getStringAttribute(cellBarcodeTag);
 			this.molBC = r.getStringAttribute(molBCTag);
-			this.pos = r.getStringAttribute(posTag);
+			this.pos = IntervalTagComparator.binaryToString((int []) r.getAttribute(posTag), dict);
 		}
 
 		@Override
@@ -265,6 +284,16 @@ public class SpermSeqMarkDuplicates extends CommandLineProgram  {
 	 * @return The input read collection with the duplicate flag set appropriately on each read.
 	 */
 	Collection<SAMRecord> markDuplicates (final Collection<SAMRecord> batch, final Map<String, PCRDuplicateMetrics> metricsMap) {
+		setDuplicateFlags(batch);
+		addDuplicateMetrics(batch, metricsMap);
+		return batch;
+	}
+
+	/**
+	 * Select the highest scoring mapped read of the batch as not duplicated, and mark all other mapped reads as duplicates.
+	 * This does not touch any state outside the batch, so batches can be processed in parallel.
+	 */
+	<T extends Collection<SAMRecord>> T setDuplicateFlags (final T batch) {
 		if (batch.size()==0) return (batch); // if there's 0 reads, you can't mark duplicates.
 
 		// map read names to scores
@@ -282,35 +311,36 @@ public class SpermSeqMarkDuplicates extends CommandLineProgram  {
 			}
 		}
 
-		// assign the scores.
+		// only modify mapped reads.
+		for (SAMRecord rec: batch)
+			if (!rec.getReadUnmappedFlag())
+				rec.setDuplicateReadFlag(!rec.getReadName().equals(topRead));
+		return batch;
+	}
+
+	/**
+	 * Add the reads of a batch that has been through setDuplicateFlags to the global and per-cell metrics.
+	 */
+	private void addDuplicateMetrics (final Collection<SAMRecord> batch, final Map<String, PCRDuplicateMetrics> metricsMap) {
 		for (SAMRecord rec: batch) {
 			PCRDuplicateMetrics cell = metricsMap.get(rec.getAttribute(this.CELL_BARCODE_TAG));
 			this.globalMetrics.NUM_READS++;
 			if (cell!=null)
 				cell.NUM_READS++;
-			// only modify mapped reads.
 			// only count mapped reads for duplicates.
 			if (!rec.getReadUnmappedFlag()) {
 				globalMetrics.NUM_MAPPED_READS++;
 				if (cell!=null)
 					cell.NUM_MAPPED_READS++;
-				if (rec.getReadName().equals(topRead))
-					rec.setDuplicateReadFlag(false);
-				else {
-					rec.setDuplicateReadFlag(true);
+				if (rec.getDuplicateReadFlag()) {
 					globalMetrics.NUM_DUPLICATES++;
 					if (cell!=null)
 						cell.NUM_DUPLICATES++;
 				}
 			}
 		}
-		return batch;
 	}
 
-
-
-
-
 	public static class PCRDuplicateMetrics extends MetricBase {
 		public String CELL_BARCODE;
 		public int NUM_READS;
@@ -334,7 +364,7 @@ public class SpermSeqMarkDuplicates extends CommandLineProgram  {
 	    // sort by Cell and molecular barcode
 	    @SuppressWarnings("unchecked")
 		final MultiComparator<SAMRecord> comparator = new MultiComparator<>(
-	            new StringTagComparator(this.CELL_BARCODE_TAG), new StringTagComparator(this.MOLECULAR_BARCODE_TAG), new StringTagComparator(this.POS_TAG));
+	            new StringTagComparator(this.CELL_BARCODE_TAG), new StringTagComparator(this.MOLECULAR_BARCODE_TAG), new IntervalTagComparator(this.POS_TAG, headerAndIterator.header.getSequenceDictionary()));
 
 	    // add the position tag.
 	    final ReadDuplicateWrapper sortingIteratorWrapper = new ReadDuplicateWrapper(filteringIterator, POS_TAG);
@@ -16,11 +16,15 @@ import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.DigitalAlleleC
 import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.DigitalAlleleCountsIterator;
 import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.MultiCellDigitalAlleleCounts;
 import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.MultiCellDigitalAlleleCountsIterator;
+import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.SNPUMIBasePileup;
 import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.SNPUMIBasePileupIterator;
+import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.SNPUMIBasePileupStore;
 import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.SortOrder;
 import org.broadinstitute.dropseqrna.cmdline.SpermSeq;
 import org.broadinstitute.dropseqrna.utils.CountChangingIteratorWrapper;
 import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.broadinstitute.dropseqrna.utils.ParallelTransformingIterator;
+import org.broadinstitute.dropseqrna.utils.TransformingIterator;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintStream;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamHeaderAndIterator;
 import org.broadinstitute.dropseqrna.utils.readiterators.StrandStrategy;
@@ -28,6 +32,7 @@ import org.broadinstitute.dropseqrna.utils.readiterators.StrandStrategy;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.Log;
@@ -71,6 +76,14 @@ public class GenotypeSperm extends CommandLineProgram {
 
 		@Argument(doc="The base quality of the read bases to be included.")
 		public Integer BASE_QUALITY=10;
+
+		@Argument(doc="Number of threads to use.  When greater than 1, the UMIs of each SNP are collapsed and its output formatted on worker threads "
+				+ "while the input is read.  Output is in the same order either way.", minValue=1)
+		public int NUM_THREADS=1;
+
+		@Argument(doc="If set, also write the SNP/gene/cell/UMI pileups to this file.  The file is indexed by SNP and cell, so the pileups of a few SNPs "
+				+ "or cells can be read back with SNPUMIBasePileupStore without reading the BAM again.", optional=true)
+		public File PILEUP_STORE=null;
 				
 		// @Argument (doc="Remove UMIs below this purity threshold.  A UMI's purity is determined as the number of reads of the most common base divided by the total number of reads.")
 		private Double UMI_PURITY_THRESHOLD=1.0;
@@ -97,33 +110,78 @@ public class GenotypeSperm extends CommandLineProgram {
 			SamReader reader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.EAGERLY_DECODE).open(this.INPUT);			
 			
 			SNPUMIBasePileupIterator sbpi = getIter(reader, snpIntervals, cellBarcodes);
-			
-			MultiCellDigitalAlleleCountsIterator multiIter = new MultiCellDigitalAlleleCountsIterator(new DigitalAlleleCountsIterator(sbpi, BASE_QUALITY));
+
+			Iterator<SNPUMIBasePileup> pileups = sbpi;
+			SNPUMIBasePileupStore.Writer storeWriter = null;
+			if (this.PILEUP_STORE!=null) {
+				SNPUMIBasePileupStore.Writer writer = new SNPUMIBasePileupStore.Writer(this.PILEUP_STORE, snpIntervals.getHeader().getSequenceDictionary());
+				storeWriter=writer;
+				pileups = new TransformingIterator<SNPUMIBasePileup, SNPUMIBasePileup>(sbpi) {
+					@Override
+					public SNPUMIBasePileup next() {
+						SNPUMIBasePileup p = this.underlyingIterator.next();
+						writer.add(p);
+						return p;
+					}
+				};
+			}
+
+			MultiCellDigitalAlleleCountsIterator multiIter = new MultiCellDigitalAlleleCountsIterator(
+					new DigitalAlleleCountsIterator(pileups, snpIntervals.getHeader().getSequenceDictionary(), BASE_QUALITY));
 
 			// sort cell barcodes alphabetically for output.
 			Collections.sort(cellBarcodes);
-			@SuppressWarnings("unused")
-			int counter=0;
-			while (multiIter.hasNext()) {
-				MultiCellDigitalAlleleCounts mcdac = multiIter.next();
-				processMCDAC(cellBarcodes, mcdac, out, AUTO_FLUSH_OUTPUTS);
-				counter++;
-				if (counter%PROGRESS_RATE==0) log.info("Processed " + counter + " SNPs");
+
+			// each SNP/GENE is independent, so it can be collapsed and formatted on worker threads.
+			// Results come back in the order the iterator produced them, so the output is the same either way.
+			Iterator<String> results;
+			if (this.NUM_THREADS>1) {
+				log.info("Processing SNPs with [" + this.NUM_THREADS + "] threads");
+				results = new ParallelTransformingIterator<>(multiIter, mcdac -> processMCDAC(cellBarcodes, mcdac), this.NUM_THREADS);
+			} else
+				results = new TransformingIterator<MultiCellDigitalAlleleCounts, String>(multiIter) {
+					@Override
+					public String next() {
+						return processMCDAC(cellBarcodes, this.underlyingIterator.next());
+					}
+				};
+
+			boolean complete=false;
+			try {
+				@SuppressWarnings("unused")
+				int counter=0;
+				while (results.hasNext()) {
+					String lines = results.next();
+					if (!lines.isEmpty()) {
+						out.print(lines);
+						if (AUTO_FLUSH_OUTPUTS) out.flush();
+					}
+					counter++;
+					if (counter%PROGRESS_RATE==0) log.info("Processed " + counter + " SNPs");
+				}
+				log.info("Processed " + counter +" total SNPs");
+				out.close();
+				CloserUtil.close(results);
+				multiIter.close();
+				complete=true;
+			} finally {
+				// a store missing some SNPs would look complete when it's read, so it is only kept if every SNP was processed.
+				if (storeWriter!=null) {
+					if (complete) storeWriter.close();
+					else storeWriter.discard();
+				}
 			}
-			log.info("Processed " + counter +" total SNPs");
-			out.close();
-			multiIter.close();
 			return 0;
 		}
 
 		/**
-		 * Takes all the cells for a SNP/GENE and writes out their summary statistics.
+		 * Takes all the cells for a SNP/GENE and formats their summary statistics.
+		 * This is called from worker threads when NUM_THREADS>1, so it must not touch any shared state.
 		 * @param cellBarcodes The list of cells to try and write out - this provides output ordering once you're past the SNP/GENE level.
 		 * @param mcdac
-		 * @param out The per-cell output stream
-		 * @param outSum The meta analysis output stream
+		 * @return The output lines for the non-empty cells, or an empty string if there are none.
 		 */
-		private void processMCDAC (final List<String> cellBarcodes, final MultiCellDigitalAlleleCounts mcdac, final PrintStream out, final boolean autoFlush) {
+		private String processMCDAC (final List<String> cellBarcodes, final MultiCellDigitalAlleleCounts mcdac) {
 
 			// collapses all DAC UMIs.
 			mcdac.collapseDACs(this.EDIT_DISTANCE);
@@ -132,19 +190,19 @@ public class GenotypeSperm extends CommandLineProgram {
 			DigitalAlleleCounts metaDAC = mcdac.getMetaAnalysis();
 			// if the meta analysis has no information (all reads filtered out?)  return.
 			if (metaDAC.isEmpty())
-				return;
-								
+				return "";
+
 			// loop over cells and write stats for non-empty objects.
+			StringBuilder lines = new StringBuilder();
 			for (String cell: cellBarcodes) {
 				DigitalAlleleCounts dac = mcdac.getDigitalAlleleCounts(cell);
-				if (dac!=null && !dac.isEmpty()) {					
-					writeStats(dac, out);
-					if (autoFlush) out.flush();
-				}
+				if (dac!=null && !dac.isEmpty())
+					lines.append(formatStats(dac)).append(System.lineSeparator());
 			}
+			return lines.toString();
 		}
 
-		private void writeStats (final DigitalAlleleCounts dac, final PrintStream out) {
+		private String formatStats (final DigitalAlleleCounts dac) {
 			List<String> line = new ArrayList<>();
 			line.add(dac.getSnpInterval().getContig());
 			line.add(Integer.toString(dac.getSnpInterval().getStart()));			
@@ -157,8 +215,7 @@ public class GenotypeSperm extends CommandLineProgram {
 			for (Character base: BASES)
 				line.add(Integer.toString(umiCounts.getCountForKey(base)));
 			
-			String h = StringUtils.join(line, "\t");
-			out.println(h);
+			return StringUtils.join(line, "\t");
 		}
 
 		private void writeHeader(final PrintStream out) {
@@ -102,58 +102,84 @@ public class BaseDistributionAtReadPosition extends CommandLineProgram {
 	}
 
 
+	/**
+	 * Gathers the base distribution for this program's arguments, and writes it to OUTPUT when finished.
+	 * Lets this program share a pass over the BAM with other programs.
+	 */
+	public ReadCollector getReadCollector () {
+		IOUtil.assertFileIsWritable(OUTPUT);
+		return new BaseDistributionCollector(this.READ_NUMBER, this.TAG, true);
+	}
+
 	BaseDistributionMetricCollection gatherBaseQualities (final File input, final int readNumber) {
-		ProgressLogger p = new ProgressLogger(this.log);
+		return gatherBaseQualities(input, new BaseDistributionCollector(readNumber, null, false));
+	}
 
+	BaseDistributionMetricCollection gatherBaseQualities (final File input, final String tag) {
+		return gatherBaseQualities(input, new BaseDistributionCollector(null, tag, false));
+	}
+
+	private BaseDistributionMetricCollection gatherBaseQualities (final File input, final BaseDistributionCollector collector) {
+		ProgressLogger p = new ProgressLogger(this.log);
 		SamReader inputSam = SamReaderFactory.makeDefault().open(input);
-		BaseDistributionMetricCollection c = new BaseDistributionMetricCollection();
 
-		MAIN_LOOP:
 		for (final SAMRecord samRecord : inputSam) {
-
 			p.record(samRecord);
-			if (samRecord.isSecondaryOrSupplementary()) continue;
+			collector.acceptRead(samRecord);
+		}
+
+		CloserUtil.close(inputSam);
+		return (collector.c);
+	}
+
+	/**
+	 * Gathers bases from the tag if it is set, otherwise from the read bases of the given read number.
+	 */
+	private class BaseDistributionCollector implements ReadCollector {
+		private final Integer readNumber;
+		private final String tag;
+		private final boolean writeOutput;
+		private final BaseDistributionMetricCollection c = new BaseDistributionMetricCollection();
+
+		BaseDistributionCollector (final Integer readNumber, final String tag, final boolean writeOutput) {
+			this.readNumber=readNumber;
+			this.tag=tag;
+			this.writeOutput=writeOutput;
+		}
+
+		@Override
+		public void acceptRead(final SAMRecord samRecord) {
+			if (samRecord.isSecondaryOrSupplementary()) return;
+			if (this.tag!=null)
+				addTagBases(samRecord);
+			else
+				addReadBases(samRecord);
+		}
+
+		private void addReadBases (final SAMRecord samRecord) {
 			boolean readPaired = samRecord.getReadPairedFlag();
 
 			boolean firstRead=false;
 			if (!readPaired & readNumber==2)
-				continue;
+				return;
 			else if (!readPaired & readNumber==1)
 				firstRead=true;
 			else
 				firstRead = samRecord.getFirstOfPairFlag();
 
 			// if you're looking for the first read and this isn't, or looking for the 2nd read and this isn't, then go to the next read.
-			if ((firstRead && readNumber!=1) || (!firstRead && readNumber==1)) continue MAIN_LOOP;
-
-			byte [] bases = samRecord.getReadBases();
+			if ((firstRead && readNumber!=1) || (!firstRead && readNumber==1)) return;
 
-			for (int i=0; i<bases.length; i++) {
-				char base = (char) (bases[i]);
-				int idx=i+1;
-				c.addBase(base, idx);
-			}
+			addBases(samRecord.getReadBases());
 		}
 
-		CloserUtil.close(inputSam);
-		return (c);
-
-
-	}
-
-	BaseDistributionMetricCollection gatherBaseQualities (final File input, final String tag) {
-		ProgressLogger pl = new ProgressLogger(this.log);
-		SamReader inputSam = SamReaderFactory.makeDefault().open(input);
-
-		BaseDistributionMetricCollection c = new BaseDistributionMetricCollection();
-		// MAIN_LOOP:
-		for (final SAMRecord samRecord : inputSam) {
-			pl.record(samRecord);
-			if (samRecord.isSecondaryOrSupplementary()) continue;
+		private void addTagBases (final SAMRecord samRecord) {
 			String b = samRecord.getStringAttribute(tag);
-			if (b==null) continue;
+			if (b==null) return;
+			addBases(b.getBytes());
+		}
 
-			byte [] bases = b.getBytes();
+		private void addBases (final byte [] bases) {
 			for (int i=0; i<bases.length; i++) {
 				char base = (char) (bases[i]);
 				int idx=i+1;
@@ -161,14 +187,12 @@ public class BaseDistributionAtReadPosition extends CommandLineProgram {
 			}
 		}
 
-		CloserUtil.close(inputSam);
-		return (c);
-
+		@Override
+		public void finish() {
+			if (writeOutput) writeOutput(c, OUTPUT);
+		}
 	}
 
-
-
-
 	/** Stock main method. */
 	public static void main(final String[] args) {
 		System.exit(new BaseDistributionAtReadPosition().instanceMain(args));
@@ -57,9 +57,11 @@ public class BaseDistributionMetric extends MetricBase implements Serializable {
 	}
 
 	void addBase(final Character base) {
-		int count = map.get(base);
-		count++;
-		map.put(base, count);
+		addBase(base, 1);
+	}
+
+	void addBase(final Character base, final int count) {
+		map.put(base, map.get(base)+count);
 	}
 
 	public int getCount(final Character base) {
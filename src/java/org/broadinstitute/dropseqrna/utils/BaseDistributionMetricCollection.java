@@ -52,6 +52,15 @@ public class BaseDistributionMetricCollection implements Serializable {
 		m.addBase(base);
 	}
 
+	public void addBase (final char base, final int position, final int count) {
+		BaseDistributionMetric m = this.collection.get(position);
+		if (m==null) {
+			m = new BaseDistributionMetric();
+			this.collection.put(position, m);
+		}
+		m.addBase(base, count);
+	}
+
 	public void addBases (final String bases) {
 		char [] b = bases.toCharArray();
 		for (int i=0; i<b.length; i++)
@@ -38,13 +38,13 @@ import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.barnyard.DigitalExpression;
 import org.broadinstitute.dropseqrna.barnyard.DigitalExpression.DESummary;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
+import org.broadinstitute.dropseqrna.utils.io.SamIOUtil;
 
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
@@ -130,6 +130,9 @@ public class FilterBam extends CommandLineProgram{
 			"  If set to a value >= 1, the program will fail if fewer than this many reads pass filters.", optional = true)
 	public Double PASSING_READ_THRESHOLD;
 
+	@Argument(doc=SamIOUtil.NUM_IO_THREADS_DOC, minValue=1)
+	public int NUM_IO_THREADS=1;
+
 	//@Argument (doc="File with one or more TAG:Value combinations, for example ZC:Z:AAACCCTTGGG.  Any read with any of the tags in the file will be retained.")
 
 	private static final String UNION="UNION";
@@ -147,11 +150,11 @@ public class FilterBam extends CommandLineProgram{
 		IOUtil.assertFileIsWritable(OUTPUT);
 		buildPatterns();
 
-		SamReader in = SamReaderFactory.makeDefault().open(INPUT);
+		SamReader in = SamIOUtil.openReader(SamReaderFactory.makeDefault(), INPUT, NUM_IO_THREADS);
 
 		SAMFileHeader fileHeader = editSequenceDictionary(in.getFileHeader().clone());
 		SamHeaderUtil.addPgRecord(fileHeader, this);
-		SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(fileHeader, true, OUTPUT);
+		SAMFileWriter out = SamIOUtil.makeSAMOrBAMWriter(fileHeader, true, OUTPUT, NUM_IO_THREADS);
 		ProgressLogger progLog=new ProgressLogger(log);
 
 		final boolean sequencesRemoved = fileHeader.getSequenceDictionary().getSequences().size() != in.getFileHeader().getSequenceDictionary().getSequences().size();
@@ -39,6 +39,7 @@ import htsjdk.samtools.util.StringUtil;
  * then comparing intervals.
  * If a sequence dictionary is supplied, then the use the sequenceIndex integer to sort the objects
  * instead of the String representation of the sequence.
+ * Tags encoded with toBinary are int arrays that already hold the sequence index, and are compared without parsing.
  * @author nemesh
  *
  */
@@ -77,9 +78,15 @@ public class IntervalTagComparator implements Comparator<SAMRecord> {
 
     @Override
     public int compare(final SAMRecord rec1, final SAMRecord rec2) {
+    	Object value1 = rec1.getAttribute(tag);
+    	Object value2 = rec2.getAttribute(tag);
+    	// binary tags are compared without any parsing.
+    	if (value1 instanceof int[] && value2 instanceof int[])
+			return compareBinary((int[]) value1, (int[]) value2);
+
     	// instead of parsing the interval fully, parse chromosome, then start/end.
-    	String [] rec1Split = getFirstSplit(rec1);
-    	String [] rec2Split = getFirstSplit(rec2);
+    	String [] rec1Split = getFirstSplit(value1);
+    	String [] rec2Split = getFirstSplit(value2);
 
     	String rec1Contig=rec1Split[0];
     	String rec2Contig=rec2Split[0];
@@ -120,9 +127,7 @@ public class IntervalTagComparator implements Comparator<SAMRecord> {
 
     }
 
-    private String [] getFirstSplit(final SAMRecord rec) {
-
-    	Object strIntervalRec = rec.getAttribute(tag);
+    private String [] getFirstSplit(final Object strIntervalRec) {
     	if (!(strIntervalRec instanceof String))
 			throw new IllegalArgumentException(SAMTagUtil.getSingleton().makeStringTag(this.tag) + " does not have a String value");
     	String intervalString = (String) strIntervalRec;
@@ -146,6 +151,55 @@ public class IntervalTagComparator implements Comparator<SAMRecord> {
 
     }
 
+    /**
+     * Encode an interval as a binary tag value that can be compared without parsing.
+     * The contig is stored as its index in the sequence dictionary, so contigs sort in dictionary order.
+     * @param contigIndex The index of the contig in the sequence dictionary
+     * @param start The start of the interval
+     * @param end The end of the interval
+     * @return The tag value.
+     */
+    public static int [] toBinary (final int contigIndex, final int start, final int end) {
+    	return new int [] {contigIndex, start, end};
+    }
+
+    /**
+     * Encode an interval as a binary tag value that can be compared without parsing.
+     * @param contigIndex The index of the contig in the sequence dictionary
+     * @param start The start of the interval
+     * @param end The end of the interval
+     * @param id Breaks ties between intervals at the same position.  Usually the index of the interval in a list
+     * sorted by compare(Interval, Interval, SAMSequenceDictionary), which can be used to decode the tag back into the full interval.
+     * @return The tag value.
+     */
+    public static int [] toBinary (final int contigIndex, final int start, final int end, final int id) {
+    	return new int [] {contigIndex, start, end, id};
+    }
+
+    /**
+     * Convert a binary tag value to the same String representation as toString, without the strand or name.
+     * @param value The binary tag value
+     * @param dict The sequence dictionary used to encode the contig index
+     * @return A string representation of the interval.
+     */
+    public static String binaryToString (final int [] value, final SAMSequenceDictionary dict) {
+    	String contig = value[0]==-1 ? "*" : dict.getSequence(value[0]).getSequenceName();
+    	return contig + ENCODE_DELIMITER + value[1] + "-" + value[2];
+    }
+
+    /**
+     * Compare two binary tag values on contig index, start, end, then id.
+     */
+    public static int compareBinary (final int [] value1, final int [] value2) {
+    	int length = Math.min(value1.length, value2.length);
+    	for (int i=0; i<length; i++) {
+    		int result = Integer.compare(value1[i], value2[i]);
+    		if (result!=0)
+				return result;
+    	}
+    	return value1.length - value2.length;
+    }
+
     public static int compare (final Interval i1, final Interval i2, final SAMSequenceDictionary dict) {
     	int result = 0;
     	// if there's a sequence dictionary, compare on the index of the sequence instead of the contig name.
@@ -0,0 +1,231 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.broadinstitute.dropseqrna.TranscriptomeException;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.ProgressLogger;
+
+/**
+ * Reads a BAM once, and hands each record to a number of collectors.
+ *
+ * With a single thread, every collector sees each record on the thread that reads the BAM.
+ * With more threads, the collectors are spread over that many consumer threads.  The reading thread hands records to the consumers
+ * in batches, through a bounded queue per consumer, so a slow collector holds back the reader instead of filling up memory.
+ * Records are shared between consumers, so they are decoded eagerly before they are handed out, and collectors must not modify them.
+ *
+ * Each collector's finish() is called once all records have been read.  If any collector fails, the first failure is rethrown
+ * after all consumers have stopped.
+ * @author nemesh
+ *
+ */
+public class MultiReadCollector {
+
+	private static final Log log = Log.getInstance(MultiReadCollector.class);
+
+	public static final int DEFAULT_BATCH_SIZE=1000;
+	public static final int DEFAULT_BATCHES_IN_FLIGHT=8;
+
+	// sentinels that tell a consumer the input is done, or was abandoned because the reader failed.
+	private static final List<SAMRecord> END_OF_INPUT = new ArrayList<>(0);
+	private static final List<SAMRecord> ABORT = new ArrayList<>(0);
+
+	private final List<ReadCollector> collectors;
+	private final int numThreads;
+	private final int batchSize;
+	private final int batchesInFlight;
+
+	/**
+	 * @param collectors The collectors that each record is handed to.
+	 * @param numThreads The number of consumer threads to run the collectors on.  If 1, the collectors run on the calling thread.
+	 * @param batchSize The number of records handed to a consumer at a time.
+	 * @param batchesInFlight The number of batches that can be waiting for each consumer before the reader blocks.
+	 */
+	public MultiReadCollector (final List<ReadCollector> collectors, final int numThreads, final int batchSize, final int batchesInFlight) {
+		if (numThreads<1) throw new IllegalArgumentException("numThreads must be at least 1");
+		if (batchSize<1) throw new IllegalArgumentException("batchSize must be at least 1");
+		if (batchesInFlight<1) throw new IllegalArgumentException("batchesInFlight must be at least 1");
+		this.collectors=new ArrayList<>(collectors);
+		this.numThreads=Math.min(numThreads, Math.max(1, collectors.size()));
+		this.batchSize=batchSize;
+		this.batchesInFlight=batchesInFlight;
+	}
+
+	public MultiReadCollector (final List<ReadCollector> collectors, final int numThreads) {
+		this(collectors, numThreads, DEFAULT_BATCH_SIZE, DEFAULT_BATCHES_IN_FLIGHT);
+	}
+
+	/**
+	 * Read the BAM and hand every record to the collectors.
+	 * @param input The BAM to read.
+	 */
+	public void collect (final File input) {
+		SamReaderFactory factory = SamReaderFactory.makeDefault();
+		// lazily decoded records are not safe to share between threads.
+		if (this.numThreads>1) factory=factory.enable(SamReaderFactory.Option.EAGERLY_DECODE);
+		SamReader reader = factory.open(input);
+		try {
+			collect(reader.iterator());
+		} finally {
+			CloserUtil.close(reader);
+		}
+	}
+
+	/**
+	 * Hand every record to the collectors, then finish them.
+	 * If the records are shared across threads, they must already be fully decoded.
+	 * @param iterator The records to collect.
+	 */
+	public void collect (final Iterator<SAMRecord> iterator) {
+		if (this.numThreads==1)
+			collectSerial(iterator);
+		else
+			collectParallel(iterator);
+	}
+
+	private void collectSerial (final Iterator<SAMRecord> iterator) {
+		ProgressLogger pl = new ProgressLogger(log);
+		while (iterator.hasNext()) {
+			SAMRecord r = iterator.next();
+			pl.record(r);
+			for (ReadCollector c: this.collectors)
+				c.acceptRead(r);
+		}
+		for (ReadCollector c: this.collectors)
+			c.finish();
+	}
+
+	private void collectParallel (final Iterator<SAMRecord> iterator) {
+		List<Consumer> consumers = new ArrayList<>(this.numThreads);
+		for (int i=0; i<this.numThreads; i++)
+			consumers.add(new Consumer(i));
+		for (int i=0; i<this.collectors.size(); i++)
+			consumers.get(i % this.numThreads).collectors.add(this.collectors.get(i));
+		for (Consumer c: consumers)
+			c.start();
+
+		ProgressLogger pl = new ProgressLogger(log);
+		List<SAMRecord> batch = new ArrayList<>(this.batchSize);
+		List<SAMRecord> lastBatch = ABORT;
+		try {
+			while (iterator.hasNext()) {
+				SAMRecord r = iterator.next();
+				pl.record(r);
+				batch.add(r);
+				if (batch.size()==this.batchSize) {
+					handOff(batch, consumers);
+					batch = new ArrayList<>(this.batchSize);
+				}
+			}
+			if (!batch.isEmpty()) handOff(batch, consumers);
+			lastBatch = END_OF_INPUT;
+		} finally {
+			// let the consumers stop, even if the reader failed.  They only finish their collectors if all input was read.
+			handOff(lastBatch, consumers);
+			for (Consumer c: consumers)
+				c.join();
+		}
+
+		for (Consumer c: consumers)
+			if (c.failure!=null) {
+				if (c.failure instanceof RuntimeException) throw (RuntimeException) c.failure;
+				if (c.failure instanceof Error) throw (Error) c.failure;
+				throw new TranscriptomeException(c.failure.getMessage(), c.failure);
+			}
+	}
+
+	private void handOff (final List<SAMRecord> batch, final List<Consumer> consumers) {
+		try {
+			for (Consumer c: consumers)
+				c.queue.put(batch);
+		} catch (InterruptedException e) {
+			throw new TranscriptomeException("Interrupted while handing records to collectors", e);
+		}
+	}
+
+	/**
+	 * Runs a subset of the collectors on its own thread.  After a failure the consumer keeps draining its queue so the reader never blocks on it.
+	 */
+	private class Consumer implements Runnable {
+		private final List<ReadCollector> collectors = new ArrayList<>();
+		private final BlockingQueue<List<SAMRecord>> queue = new ArrayBlockingQueue<>(batchesInFlight);
+		private final Thread thread;
+		private volatile Throwable failure=null;
+
+		Consumer (final int index) {
+			this.thread = new Thread(this, MultiReadCollector.class.getSimpleName() + "-consumer-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		void start () {
+			this.thread.start();
+		}
+
+		void join () {
+			try {
+				this.thread.join();
+			} catch (InterruptedException e) {
+				throw new TranscriptomeException("Interrupted while waiting for collectors", e);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				List<SAMRecord> batch;
+				while ((batch=queue.take())!=END_OF_INPUT) {
+					if (batch==ABORT) return;
+					if (failure!=null) continue;
+					try {
+						for (SAMRecord r: batch)
+							for (ReadCollector c: collectors)
+								c.acceptRead(r);
+					} catch (Throwable t) {
+						failure=t;
+					}
+				}
+				if (failure==null)
+					for (ReadCollector c: collectors)
+						c.finish();
+			} catch (InterruptedException e) {
+				failure=e;
+			} catch (Throwable t) {
+				failure=t;
+			}
+		}
+	}
+
+}
@@ -23,26 +23,51 @@
  */
 package org.broadinstitute.dropseqrna.utils;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
  * Keeps track of the number of times an object has been seen.
+ *
+ * Counts are held as primitive ints in parallel arrays, with a hash table of chained entry indexes, so counting doesn't box an Integer
+ * or allocate a map entry for each key.  The table uses the same hash spreading, table sizes and chain order as a HashMap,
+ * so keys are iterated in the same order a HashMap of the counts would use, and output that follows key order is unchanged.
+ * (The exception is a bucket holding 8 or more keys, which HashMap turns into a tree.)
  * @author nemesh
  *
  * @param <T> The type of object to count.  Object needs to have an equals method implemented!
  */
 public class ObjectCounter<T extends Comparable<T>> {
 
-	private Map<T, Integer> countMap;
+	private static final int DEFAULT_CAPACITY=16;
+	private static final float LOAD_FACTOR=0.75f;
+	// stands in for a null key, so a free entry can be null.
+	private static final Object NULL_KEY=new Object();
+	private static final int NONE=-1;
+
+	// the first entry of each bucket.  Allocated on the first increment.
+	private int [] table;
+	// entries, linked into bucket chains by next.  Removed entries are chained into a free list.
+	private Object [] keys;
+	private int [] counts;
+	private int [] hashes;
+	private int [] next;
+	private int numEntriesUsed;
+	private int freeEntry;
+	private int size;
 
 	public ObjectCounter () {
-		countMap = new HashMap<>();
+		this.table=null;
+		this.size=0;
 	}
 
 	/**
@@ -50,12 +75,12 @@ public class ObjectCounter<T extends Comparable<T>> {
 	 */
 	public ObjectCounter (final ObjectCounter<T> counter) {
 		this();
-		for (T key: counter.getKeys())
-			this.countMap.put(key, counter.getCountForKey(key));
+		for (int e: counter.getEntries())
+			addToEntry(counter.keys[e], counter.counts[e], true);
 	}
 
 	public boolean hasKey (final T object) {
-		return this.countMap.containsKey(object);
+		return findEntry(maskNull(object))!=NONE;
 	}
 
 	public void increment (final T object) {
@@ -76,80 +101,89 @@ public class ObjectCounter<T extends Comparable<T>> {
 	 * @param object
 	 */
 	public void increment (final ObjectCounter<T> object) {
-		for (T key : object.getKeys()) {
-			Integer count = object.getCountForKey(key);
-			this.incrementByCount(key, count);
-		}
+		for (int e: object.getEntries())
+			addToEntry(object.keys[e], object.counts[e], false);
 	}
 
 	public void clear() {
-		this.countMap.clear();
+		if (table!=null) {
+			Arrays.fill(table, NONE);
+			Arrays.fill(keys, null);
+		}
+		numEntriesUsed=0;
+		freeEntry=NONE;
+		size=0;
 	}
 
 	public void incrementByCount (final T object, final int size) {
-		Integer count = countMap.get(object);
-		if (count==null)
-			countMap.put(object, size);
-		else {
-			count+=size;
-			countMap.put(object, count);
-		}
+		addToEntry(maskNull(object), size, false);
 	}
 
 	public void setCount(final T object, final int count) {
-		countMap.put(object, count);
+		addToEntry(maskNull(object), count, true);
 	}
 
 	public void remove (final T object) {
-		this.countMap.remove(object);
+		if (table==null) return;
+		final Object maskedKey=maskNull(object);
+		final int hash=hash(maskedKey);
+		final int bucket=hash & (table.length-1);
+		int previous=NONE;
+		for (int e=table[bucket]; e!=NONE; previous=e, e=next[e])
+			if (hashes[e]==hash && keyEquals(keys[e], maskedKey)) {
+				if (previous==NONE) table[bucket]=next[e];
+				else next[previous]=next[e];
+				keys[e]=null;
+				next[e]=freeEntry;
+				freeEntry=e;
+				size--;
+				return;
+			}
 	}
 
 	public Collection<T> getKeys () {
-		return countMap.keySet();
+		return new KeySet();
 	}
 
 	public int getSize () {
-		return countMap.size();
+		return size;
 	}
 
 	public int getCountForKey (final T key) {
-		Integer count = countMap.get(key);
-		if (count==null) return 0;
-		return count;
+		int e = findEntry(maskNull(key));
+		if (e==NONE) return 0;
+		return counts[e];
 	}
 
 	public Collection<Integer> getCounts() {
-		return (this.countMap.values());
+		List<Integer> result = new ArrayList<>(size);
+		for (int e: getEntries())
+			result.add(counts[e]);
+		return result;
 	}
 
 	public int getTotalCount() {
 		int result = 0;
-		for (T key: this.countMap.keySet()) {
-			int t = getCountForKey(key);
-			result+=t;
-		}
+		for (int e: getEntries())
+			result+=counts[e];
 		return result;
 	}
 
 	public int getNumberOfSize(final int size) {
 		int result = 0;
-		for (T key: this.countMap.keySet()) {
-			int t = getCountForKey(key);
-			if (t==size) result++;
-		}
+		for (int e: getEntries())
+			if (counts[e]==size) result++;
 		return result;
 	}
 
 	public T getMode () {
 		T max = null;
 		int maxCount=0;
-		for (T key: this.getKeys()) {
-			int count=this.getCountForKey(key);
-			if (count>maxCount) {
-				max = key;
-				maxCount=count;
+		for (int e: getEntries())
+			if (counts[e]>maxCount) {
+				max = keyAt(e);
+				maxCount=counts[e];
 			}
-		}
 		return (max);
 	}
 
@@ -160,13 +194,11 @@ public class ObjectCounter<T extends Comparable<T>> {
 	public T getMin() {
 		T min=null;
 		int minCount=Integer.MAX_VALUE;
-		for (T key: this.getKeys()) {
-			int count=this.getCountForKey(key);
-			if (count<minCount) {
-				min = key;
-				minCount=count;
+		for (int e: getEntries())
+			if (counts[e]<minCount) {
+				min = keyAt(e);
+				minCount=counts[e];
 			}
-		}
 		return (min);
 
 	}
@@ -176,7 +208,7 @@ public class ObjectCounter<T extends Comparable<T>> {
 		List<Integer> counts = new ArrayList<>(reversed.keySet());
 		Collections.sort(counts);
 		if (decreasing) Collections.reverse(counts);
-		List<T> keys = new ArrayList<>();
+		List<T> keys = new ArrayList<>(size);
 		for (int i: counts) {
 			List<T> t = reversed.get(i);
 			Collections.sort(t);
@@ -186,14 +218,14 @@ public class ObjectCounter<T extends Comparable<T>> {
 	}
 
 	public Map<Integer, List<T>> getReverseMapping () {
-		Map<Integer, List<T>> result = new HashMap<>(this.countMap.size());
-		for (T key : this.countMap.keySet()) {
-			Integer v =getCountForKey(key);
-			List<T> l = result.get(v);
-			if (l==null)
+		Map<Integer, List<T>> result = new HashMap<>();
+		for (int e: getEntries()) {
+			List<T> l = result.get(counts[e]);
+			if (l==null) {
 				l=new ArrayList<>();
-			l.add(key);
-			result.put(v, l);
+				result.put(counts[e], l);
+			}
+			l.add(keyAt(e));
 		}
 		return result;
 	}
@@ -202,13 +234,7 @@ public class ObjectCounter<T extends Comparable<T>> {
 	 * Filters this counter to that only entries with at least <count> number of reads remain.
 	 */
 	public void filterByMinCount (final int count) {
-		Map<T, Integer> result = new HashMap<>();
-		for (T key: this.countMap.keySet()) {
-			Integer value = countMap.get(key);
-			if (value>=count)
-				result.put(key, value);
-		}
-		this.countMap=result;
+		retain(e -> counts[e]>=count);
 	}
 
 	/**
@@ -216,25 +242,29 @@ public class ObjectCounter<T extends Comparable<T>> {
 	 * @param keys A collection of keys to restrict the data to.
 	 */
 	public void subset (final Set<T> keys) {
-		Map<T, Integer> newMap = new HashMap<>();
-		for (T k: countMap.keySet())
-			if (keys.contains(k))
-				newMap.put(k, this.countMap.get(k));
-
-		this.countMap=newMap;
+		retain(e -> keys.contains(keyAt(e)));
 	}
 
 	@Override
 	public String toString () {
-		return this.countMap.toString();
+		StringBuilder b = new StringBuilder("{");
+		for (int e: getEntries()) {
+			if (b.length()>1) b.append(", ");
+			b.append(keyAt(e)).append('=').append(counts[e]);
+		}
+		return b.append('}').toString();
 	}
 
+	/**
+	 * The same hash code as a Map of the keys to their counts.
+	 */
 	@Override
 	public int hashCode() {
 		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((countMap == null) ? 0 : countMap.hashCode());
-		return result;
+		int mapHash = 0;
+		for (int e: getEntries())
+			mapHash += (keys[e]==NULL_KEY ? 0 : keys[e].hashCode()) ^ counts[e];
+		return prime + mapHash;
 	}
 
 	@Override
@@ -245,16 +275,188 @@ public class ObjectCounter<T extends Comparable<T>> {
 			return false;
 		if (getClass() != obj.getClass())
 			return false;
-		ObjectCounter other = (ObjectCounter) obj;
-		if (countMap == null) {
-			if (other.countMap != null)
-				return false;
-		} else if (!countMap.equals(other.countMap))
+		ObjectCounter<?> other = (ObjectCounter<?>) obj;
+		if (size!=other.size)
 			return false;
+		for (int e: getEntries()) {
+			int o = other.findEntry(keys[e]);
+			if (o==NONE || other.counts[o]!=counts[e])
+				return false;
+		}
 		return true;
 	}
 
+	private static Object maskNull (final Object key) {
+		return key==null ? NULL_KEY : key;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T keyAt (final int entry) {
+		Object key = keys[entry];
+		return key==NULL_KEY ? null : (T) key;
+	}
+
+	private static boolean keyEquals (final Object key, final Object maskedKey) {
+		return key==maskedKey || key.equals(maskedKey);
+	}
+
+	/**
+	 * Spread the hash the same way as HashMap.
+	 */
+	private static int hash (final Object maskedKey) {
+		int h = maskedKey==NULL_KEY ? 0 : maskedKey.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return The entry holding the key, or NONE if the key isn't present.
+	 */
+	private int findEntry (final Object maskedKey) {
+		if (table==null) return NONE;
+		final int hash=hash(maskedKey);
+		for (int e=table[hash & (table.length-1)]; e!=NONE; e=next[e])
+			if (hashes[e]==hash && keyEquals(keys[e], maskedKey))
+				return e;
+		return NONE;
+	}
+
+	/**
+	 * Add a count to a key, or set the key's count if replace is true.  Adds the key to the end of its bucket if it isn't present.
+	 */
+	private void addToEntry (final Object maskedKey, final int count, final boolean replace) {
+		if (table==null) {
+			allocate(DEFAULT_CAPACITY);
+			clear();
+		}
+		final int hash=hash(maskedKey);
+		final int bucket=hash & (table.length-1);
+		int last=NONE;
+		for (int e=table[bucket]; e!=NONE; last=e, e=next[e])
+			if (hashes[e]==hash && keyEquals(keys[e], maskedKey)) {
+				counts[e] = replace ? count : counts[e]+count;
+				return;
+			}
+		int e;
+		if (freeEntry!=NONE) {
+			e=freeEntry;
+			freeEntry=next[e];
+		} else
+			e=numEntriesUsed++;
+		keys[e]=maskedKey;
+		counts[e]=count;
+		hashes[e]=hash;
+		next[e]=NONE;
+		if (last==NONE) table[bucket]=e;
+		else next[last]=e;
+		if (++size > table.length*LOAD_FACTOR)
+			resize(table.length*2);
+	}
+
+	private void allocate (final int capacity) {
+		table=new int [capacity];
+		keys=new Object [capacity];
+		counts=new int [capacity];
+		hashes=new int [capacity];
+		next=new int [capacity];
+	}
+
+	/**
+	 * Double the table.  As in HashMap, each chain is split in two, keeping the order of its entries.
+	 */
+	private void resize (final int capacity) {
+		final int [] order=getEntries();
+		final Object [] oldKeys=keys;
+		final int [] oldCounts=counts;
+		final int [] oldHashes=hashes;
+		allocate(capacity);
+		Arrays.fill(table, NONE);
+		final int [] tails=new int [capacity];
+		Arrays.fill(tails, NONE);
+		for (int i=0; i<order.length; i++) {
+			final int old=order[i];
+			keys[i]=oldKeys[old];
+			counts[i]=oldCounts[old];
+			hashes[i]=oldHashes[old];
+			next[i]=NONE;
+			final int bucket=hashes[i] & (capacity-1);
+			if (tails[bucket]==NONE) table[bucket]=i;
+			else next[tails[bucket]]=i;
+			tails[bucket]=i;
+		}
+		numEntriesUsed=order.length;
+		freeEntry=NONE;
+	}
+
+	/**
+	 * @return The entries in iteration order:  by bucket, then by position in the bucket's chain.
+	 */
+	private int [] getEntries () {
+		final int [] result=new int [size];
+		if (table==null) return result;
+		int i=0;
+		for (int bucket=0; bucket<table.length; bucket++)
+			for (int e=table[bucket]; e!=NONE; e=next[e])
+				result[i++]=e;
+		return result;
+	}
+
+	private interface EntryFilter {
+		boolean keep (int entry);
+	}
+
+	/**
+	 * Rebuild the counter from scratch with the entries that pass the filter, in iteration order.
+	 */
+	private void retain (final EntryFilter filter) {
+		final int [] order=getEntries();
+		final Object [] oldKeys=keys;
+		final int [] oldCounts=counts;
+		final boolean [] keep = new boolean [order.length];
+		for (int i=0; i<order.length; i++)
+			keep[i] = filter.keep(order[i]);
+		table=null;
+		size=0;
+		for (int i=0; i<order.length; i++)
+			if (keep[i])
+				addToEntry(oldKeys[order[i]], oldCounts[order[i]], true);
+	}
+
+	/**
+	 * A read only view of the keys.
+	 */
+	private class KeySet extends AbstractSet<T> {
+
+		@Override
+		public Iterator<T> iterator() {
+			return new Iterator<T>() {
+				private final int [] entries=getEntries();
+				private final Object [] entryKeys=keys;
+				private int index=0;
+
+				@Override
+				public boolean hasNext() {
+					return index<entries.length;
+				}
+
+				@SuppressWarnings("unchecked")
+				@Override
+				public T next() {
+					if (index==entries.length) throw new NoSuchElementException();
+					Object key = entryKeys[entries[index++]];
+					return key==NULL_KEY ? null : (T) key;
+				}
+			};
+		}
 
+		@Override
+		public int size() {
+			return size;
+		}
 
+		@Override
+		public boolean contains(final Object o) {
+			return findEntry(maskNull(o))!=NONE;
+		}
+	}
 
 }
@@ -0,0 +1,174 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.broadinstitute.dropseqrna.TranscriptomeException;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IterableOnceIterator;
+
+/**
+ * A 1 to 1 transforming iterator that runs the transform on a pool of worker threads.
+ *
+ * A background reader thread pulls records from the underlying iterator and submits them to the worker pool,
+ * while the futures for the results are held in a bounded FIFO.  Results are returned in the same order as the
+ * input records, so the output is identical to applying the transform serially.  The size of the FIFO bounds
+ * the number of records in flight, which limits memory use when the consumer is slower than the workers.
+ *
+ * The transform must be thread-safe, and should not share mutable state across records.
+ * The underlying iterator is only accessed by the reader thread.
+ *
+ * @param <INPUT> The input iterator object type
+ * @param <OUTPUT> The output iterator object type
+ */
+public class ParallelTransformingIterator<INPUT,OUTPUT> extends IterableOnceIterator<OUTPUT> implements CloseableIterator<OUTPUT> {
+
+	private final Iterator<INPUT> underlyingIterator;
+	private final Function<INPUT, OUTPUT> transform;
+	private final ExecutorService workers;
+	private final BlockingQueue<Future<OUTPUT>> pending;
+	private final Thread reader;
+	// marks the end of the input in the pending queue.
+	private final Future<OUTPUT> endOfInput = CompletableFuture.completedFuture(null);
+
+	private Future<OUTPUT> nextResult=null;
+	private boolean exhausted=false;
+
+	/**
+	 * @param underlyingIterator The records to transform
+	 * @param transform The transform to apply to each record.  Must be thread-safe.
+	 * @param numThreads The number of worker threads to run the transform on.
+	 * @param maxRecordsInFlight The maximum number of records that have been read but not yet returned by next().
+	 */
+	public ParallelTransformingIterator (final Iterator<INPUT> underlyingIterator, final Function<INPUT, OUTPUT> transform, final int numThreads, final int maxRecordsInFlight) {
+		if (numThreads<1) throw new IllegalArgumentException("numThreads must be at least 1");
+		if (maxRecordsInFlight<1) throw new IllegalArgumentException("maxRecordsInFlight must be at least 1");
+		this.underlyingIterator=underlyingIterator;
+		this.transform=transform;
+		this.pending=new ArrayBlockingQueue<>(maxRecordsInFlight);
+		this.workers=Executors.newFixedThreadPool(numThreads, r -> {
+			Thread t = new Thread(r, ParallelTransformingIterator.class.getSimpleName() + "-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		this.reader=new Thread(this::readInput, ParallelTransformingIterator.class.getSimpleName() + "-reader");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	/**
+	 * Uses a buffer of 4 records per thread, which is enough to keep the workers busy while the consumer
+	 * handles the head of the queue.
+	 */
+	public ParallelTransformingIterator (final Iterator<INPUT> underlyingIterator, final Function<INPUT, OUTPUT> transform, final int numThreads) {
+		this(underlyingIterator, transform, numThreads, numThreads*4);
+	}
+
+	private void readInput () {
+		try {
+			while (underlyingIterator.hasNext()) {
+				final INPUT rec = underlyingIterator.next();
+				pending.put(workers.submit(() -> transform.apply(rec)));
+			}
+			pending.put(endOfInput);
+		} catch (InterruptedException e) {
+			// the iterator was closed before the input was exhausted.
+		} catch (Throwable t) {
+			// hand the failure to the consumer, in order.
+			CompletableFuture<OUTPUT> failure = new CompletableFuture<>();
+			failure.completeExceptionally(t);
+			try {
+				pending.put(failure);
+			} catch (InterruptedException e) {
+				// closed, nobody is listening.
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (nextResult==null && !exhausted) {
+			try {
+				nextResult=pending.take();
+			} catch (InterruptedException e) {
+				throw new TranscriptomeException("Interrupted while waiting for the next record", e);
+			}
+			if (nextResult==endOfInput) {
+				nextResult=null;
+				exhausted=true;
+				workers.shutdown();
+			}
+		}
+		return nextResult!=null;
+	}
+
+	@Override
+	public OUTPUT next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		final Future<OUTPUT> result = nextResult;
+		nextResult=null;
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			throw new TranscriptomeException("Interrupted while waiting for the next record", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new TranscriptomeException(cause.getMessage(), cause);
+		}
+	}
+
+	@Override
+	public void close() {
+		reader.interrupt();
+		workers.shutdownNow();
+		try {
+			// wait for the reader to let go of the underlying iterator before closing it.
+			reader.join();
+		} catch (InterruptedException e) {
+			throw new TranscriptomeException("Interrupted while closing", e);
+		}
+		CloserUtil.close(underlyingIterator);
+		try {
+			super.close();
+		} catch (IOException e) {
+			throw new TranscriptomeException(e.getMessage(), e);
+		}
+	}
+
+}
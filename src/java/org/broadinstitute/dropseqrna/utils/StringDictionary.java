@@ -0,0 +1,72 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns each distinct string an id, in the order they are first seen.
+ *
+ * This lets records that repeat the same small set of strings (cell barcodes, genes, UMIs) hold or spill an int instead of the string,
+ * and every record decoded with the same dictionary shares a single copy of each string.  This is not thread-safe.
+ */
+public class StringDictionary {
+	private final Map<String, Integer> ids = new HashMap<>();
+	private final List<String> values = new ArrayList<>();
+
+	/**
+	 * @return The id of the string, adding it to the dictionary if it hasn't been seen before.
+	 */
+	public int getId (final String s) {
+		Integer id = ids.get(s);
+		if (id==null) {
+			id=values.size();
+			ids.put(s, id);
+			values.add(s);
+		}
+		return id;
+	}
+
+	/**
+	 * @return The string with this id.
+	 */
+	public String get (final int id) {
+		return values.get(id);
+	}
+
+	public int size () {
+		return values.size();
+	}
+
+	/**
+	 * Compare two ids by the strings they stand for.
+	 */
+	public int compare (final int id1, final int id2) {
+		if (id1==id2) return 0;
+		return values.get(id1).compareTo(values.get(id2));
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
+import org.broadinstitute.dropseqrna.cmdline.DropSeq;
+import org.broadinstitute.dropseqrna.readtrimming.PolyATrimmer;
+import org.broadinstitute.dropseqrna.readtrimming.TrimStartingSequence;
+import org.broadinstitute.dropseqrna.utils.io.SamIOUtil;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.ProgressLogger;
+import picard.cmdline.CommandLineProgram;
+import picard.cmdline.StandardOptionDefinitions;
+
+/**
+ * Runs the pre-alignment steps of the Drop-seq alignment pipeline in a single pass over an unaligned BAM:
+ * cell barcode tagging and molecular barcode tagging (TagBamWithReadSequenceExtended), rejection of reads with low quality
+ * barcodes (FilterBam TAG_REJECT), adapter trimming (TrimStartingSequence) and polyA trimming (PolyATrimmer).
+ *
+ * Each step is run by the same code as the standalone program, and writes the same summary file, but reads are passed from
+ * one step to the next in memory instead of through an intermediate BAM.
+ * @author nemesh
+ *
+ */
+@CommandLineProgramProperties(summary = "Tags reads with their cell and molecular barcodes, filters reads with low quality barcodes, " +
+		"and trims the starting adapter sequence and polyA tails, in a single pass over an unaligned BAM.  This is equivalent to running " +
+		"TagBamWithReadSequenceExtended for the cell barcode, TagBamWithReadSequenceExtended for the molecular barcode, FilterBam, " +
+		"TrimStartingSequence and PolyATrimmer one after the other.",
+        oneLineSummary = "Tags, filters and trims an unaligned BAM in a single pass",
+        programGroup = DropSeq.class)
+public class TagAndTrimUnalignedBam extends CommandLineProgram {
+
+	private final Log log = Log.getInstance(TagAndTrimUnalignedBam.class);
+
+	@Argument(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc = "The input unaligned SAM or BAM file to analyze.")
+	public File INPUT;
+
+	@Argument(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "The output BAM, tagged, filtered and trimmed.")
+	public File OUTPUT;
+
+	@Argument(doc = "The barcodes can be from the first or second read [1/2].")
+	public Integer BARCODED_READ=1;
+
+	@Argument(doc="Base range of the cell barcode, seperated by a dash.  IE: 1-12.  Can extract multiple ranges by seperating them by a colon.")
+	public String CELL_BARCODE_BASE_RANGE="1-12";
+
+	@Argument(doc="The cell barcode tag.")
+	public String CELL_BARCODE_TAG="XC";
+
+	@Argument(doc = "Summary of cell barcode base quality", optional=true)
+	public File CELL_BARCODE_SUMMARY;
+
+	@Argument(doc="Base range of the molecular barcode, seperated by a dash.  IE: 13-20.  Can extract multiple ranges by seperating them by a colon.")
+	public String MOLECULAR_BARCODE_BASE_RANGE="13-20";
+
+	@Argument(doc="The molecular barcode tag.")
+	public String MOLECULAR_BARCODE_TAG="XM";
+
+	@Argument(doc = "Summary of molecular barcode base quality", optional=true)
+	public File MOLECULAR_BARCODE_SUMMARY;
+
+	@Argument(doc = "Discard the barcoded read after the barcodes have been extracted.  The remaining read is marked as unpaired.")
+	public Boolean DISCARD_READ=true;
+
+	@Argument (doc="Minimum base quality required for barcodes")
+	public Integer BASE_QUALITY=10;
+
+	@Argument (doc="Number of bases below minimum base quality to fail a barcode.")
+	public Integer NUM_BASES_BELOW_QUALITY=1;
+
+	@Argument (doc="The tag for the barcode quality.  The number of bases that are below the quality threshold.  Reads with this tag set are filtered.")
+	public String TAG_QUALITY="XQ";
+
+	@Argument(doc="A file containing a summary of the number of reads accepted and rejected by barcode quality.", optional=true)
+	public File FILTER_SUMMARY;
+
+	@Argument(doc="If set to a a value < 1, the program will fail if fewer than this fraction of reads pass the barcode quality filter." +
+			"  If set to a value >= 1, the program will fail if fewer than this many reads pass the filter.", optional = true)
+	public Double PASSING_READ_THRESHOLD;
+
+	@Argument(doc="The adapter sequence to look for at the start of reads.")
+	public String ADAPTER_SEQUENCE="AAGCAGTGGTATCAACGCAGAGTGAATGGG";
+
+	@Argument(doc="How many mismatches are acceptable in the adapter sequence.")
+	public Integer ADAPTER_MISMATCHES=0;
+
+	@Argument(doc="How many bases at the begining of the adapter sequence must match before trimming occurs.")
+	public Integer ADAPTER_NUM_BASES=5;
+
+	@Argument(doc = "The adapter trimming summary statistics", optional=true)
+	public File ADAPTER_TRIMMING_SUMMARY;
+
+	@Argument(doc = "Use the new polyA trimming algorithm, which also looks for the adapter following the polyA.")
+	public boolean USE_NEW_TRIMMER = true;
+
+	@Argument(doc = "How many mismatches are acceptable in the polyA sequence (old trim algo).")
+	public Integer POLY_A_MISMATCHES = 0;
+
+	@Argument(doc = "How many bases of polyA qualifies as a run of A's (old trim algo).")
+	public Integer POLY_A_NUM_BASES = 6;
+
+	@Argument(doc = "The polyA trimming summary statistics", optional=true)
+	public File POLY_A_TRIMMING_SUMMARY;
+
+	@Argument(doc=SamIOUtil.NUM_IO_THREADS_DOC, minValue=1)
+	public int NUM_IO_THREADS=1;
+
+	@Override
+	protected int doWork() {
+		IOUtil.assertFileIsReadable(INPUT);
+		IOUtil.assertFileIsWritable(OUTPUT);
+		for (File f: new File [] {CELL_BARCODE_SUMMARY, MOLECULAR_BARCODE_SUMMARY, FILTER_SUMMARY, ADAPTER_TRIMMING_SUMMARY, POLY_A_TRIMMING_SUMMARY})
+			if (f!=null) IOUtil.assertFileIsWritable(f);
+
+		TagBamWithReadSequenceExtended cellTagger = getBarcodeTagger(CELL_BARCODE_BASE_RANGE, CELL_BARCODE_TAG, false, CELL_BARCODE_SUMMARY);
+		TagBamWithReadSequenceExtended molecularTagger = getBarcodeTagger(MOLECULAR_BARCODE_BASE_RANGE, MOLECULAR_BARCODE_TAG, DISCARD_READ, MOLECULAR_BARCODE_SUMMARY);
+		FilterBam filter = getFilter();
+		TrimStartingSequence adapterTrimmer = getAdapterTrimmer();
+		PolyATrimmer polyATrimmer = getPolyATrimmer();
+		final FilteredReadsMetric filterMetric = new FilteredReadsMetric();
+
+		SamReader in = SamIOUtil.openReader(SamReaderFactory.makeDefault(), INPUT, NUM_IO_THREADS);
+		SAMFileHeader header = in.getFileHeader();
+		ProgressLogger progress = new ProgressLogger(log, 1000000, "Wrote");
+
+		// each step pulls reads from the previous one.  Only the last step logs its progress.
+		Iterator<SAMRecord> iter = CustomBAMIterators.getQuerynameSortedRecords(in);
+		iter = cellTagger.getTaggingIterator(iter, getSilentProgressLogger());
+		iter = molecularTagger.getTaggingIterator(iter, getSilentProgressLogger());
+		iter = new FilteredIterator<SAMRecord>(iter) {
+			@Override
+			public boolean filterOut(final SAMRecord rec) {
+				boolean reject = filter.filterRead(rec);
+				if (reject) filterMetric.READS_REJECTED++;
+				else filterMetric.READS_ACCEPTED++;
+				return reject;
+			}
+		};
+		iter = adapterTrimmer.getTrimmingIterator(iter, getSilentProgressLogger());
+		iter = polyATrimmer.getTrimmingIterator(iter, progress);
+
+		SamHeaderUtil.addPgRecord(header, this);
+		// only assume reads are correctly sorted for output if the input BAM is queryname sorted.
+		boolean assumeSorted = header.getSortOrder().equals(SortOrder.queryname);
+		SAMFileWriter writer = SamIOUtil.makeSAMOrBAMWriter(header, assumeSorted, OUTPUT, NUM_IO_THREADS);
+		while (iter.hasNext())
+			writer.addAlignment(iter.next());
+		CloserUtil.close(iter);
+		CloserUtil.close(in);
+		writer.close();
+		log.info("Total " + progress.getCount() + " reads written.");
+
+		cellTagger.writeSummary();
+		molecularTagger.writeSummary();
+		writeFilterSummary(filterMetric);
+		adapterTrimmer.report();
+		polyATrimmer.report();
+		FilterProgramUtils.reportAndCheckFilterResults("reads", filterMetric.READS_ACCEPTED, filterMetric.READS_REJECTED,
+				PASSING_READ_THRESHOLD, log);
+		return 0;
+	}
+
+	private TagBamWithReadSequenceExtended getBarcodeTagger (final String baseRange, final String tagName, final boolean discardRead, final File summary) {
+		TagBamWithReadSequenceExtended result = new TagBamWithReadSequenceExtended();
+		result.BASE_RANGE=baseRange;
+		result.TAG_NAME=tagName;
+		result.DISCARD_READ=discardRead;
+		result.SUMMARY=summary;
+		result.BARCODED_READ=this.BARCODED_READ;
+		result.BASE_QUALITY=this.BASE_QUALITY;
+		result.NUM_BASES_BELOW_QUALITY=this.NUM_BASES_BELOW_QUALITY;
+		result.TAG_QUALITY=this.TAG_QUALITY;
+		return result;
+	}
+
+	private FilterBam getFilter () {
+		FilterBam result = new FilterBam();
+		result.TAG_REJECT=Collections.singletonList(this.TAG_QUALITY);
+		result.STRIP_REF_PREFIX=Collections.emptyList();
+		result.buildPatterns();
+		return result;
+	}
+
+	private TrimStartingSequence getAdapterTrimmer () {
+		TrimStartingSequence result = new TrimStartingSequence();
+		result.SEQUENCE=this.ADAPTER_SEQUENCE;
+		result.MISMATCHES=this.ADAPTER_MISMATCHES;
+		result.NUM_BASES=this.ADAPTER_NUM_BASES;
+		result.OUTPUT_SUMMARY=this.ADAPTER_TRIMMING_SUMMARY;
+		return result;
+	}
+
+	private PolyATrimmer getPolyATrimmer () {
+		PolyATrimmer result = new PolyATrimmer();
+		result.USE_NEW_TRIMMER=this.USE_NEW_TRIMMER;
+		result.MISMATCHES=this.POLY_A_MISMATCHES;
+		result.NUM_BASES=this.POLY_A_NUM_BASES;
+		result.OUTPUT_SUMMARY=this.POLY_A_TRIMMING_SUMMARY;
+		return result;
+	}
+
+	/**
+	 * The intermediate steps don't log their progress, the reads they see are counted when they are written.
+	 */
+	private ProgressLogger getSilentProgressLogger () {
+		return new ProgressLogger(log, Integer.MAX_VALUE);
+	}
+
+	private void writeFilterSummary (final FilteredReadsMetric metrics) {
+		if (this.FILTER_SUMMARY!=null) {
+			MetricsFile<FilteredReadsMetric, Integer> outSummary = getMetricsFile();
+			outSummary.addMetric(metrics);
+			outSummary.write(this.FILTER_SUMMARY);
+		}
+	}
+
+	/** Stock main method. */
+	public static void main(final String[] args) {
+		System.exit(new TagAndTrimUnalignedBam().instanceMain(args));
+	}
+}
@@ -31,13 +31,18 @@ import org.broadinstitute.barclay.argparser.Argument;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.dropseqrna.cmdline.DropSeq;
 import org.broadinstitute.dropseqrna.utils.BaseQualityFilter.FailedBaseMetric;
+import org.broadinstitute.dropseqrna.utils.io.SamIOUtil;
 import org.broadinstitute.dropseqrna.utils.readpairs.ReadPair;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.StandardOptionDefinitions;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 
 @CommandLineProgramProperties(summary = "Adds a BAM tag to every read of the defined range of bases of the sequence of the 1st or 2nd read.  " +
         "Reads must be paired for this program to run.",
@@ -87,6 +92,11 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 	@Argument (doc="The tag for the barcode quality.  The number of bases that are below the quality threshold.")
 	public String TAG_QUALITY="XQ";
 
+	@Argument(doc=SamIOUtil.NUM_IO_THREADS_DOC, minValue=1)
+	public int NUM_IO_THREADS=1;
+
+	private BaseQualityFilter filter;
+
 	@Override
 	protected int doWork() {
 		if (this.TAG_BARCODED_READ && this.DISCARD_READ) {
@@ -101,25 +111,82 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 		IOUtil.assertFileIsWritable(OUTPUT);
 
 		// get the header.
-		SamReader inputSam = SamReaderFactory.makeDefault().open(INPUT);
+		SamReader inputSam = SamIOUtil.openReader(SamReaderFactory.makeDefault(), INPUT, NUM_IO_THREADS);
 		SAMFileHeader h= inputSam.getFileHeader();
-		PeekableIterator<SAMRecord> iter = new PeekableIterator<>(CustomBAMIterators.getQuerynameSortedRecords(inputSam));
+		ProgressLogger progress = new ProgressLogger(this.log);
+		CloseableIterator<SAMRecord> iter = getTaggingIterator(CustomBAMIterators.getQuerynameSortedRecords(inputSam), progress);
 
 		SamHeaderUtil.addPgRecord(h, this);
 		// only assume reads are correctly sorted for output if the input BAM is queryname sorted.
 		boolean assumeSorted = h.getSortOrder().equals(SortOrder.queryname);
-		SAMFileWriter writer= new SAMFileWriterFactory().makeSAMOrBAMWriter(h, assumeSorted, OUTPUT);
+		SAMFileWriter writer= SamIOUtil.makeSAMOrBAMWriter(h, assumeSorted, OUTPUT, NUM_IO_THREADS);
 
-		List<BaseRange> baseRanges = BaseRange.parseBaseRange(this.BASE_RANGE);
+		while (iter.hasNext())
+			writer.addAlignment(iter.next());
 
-		BaseQualityFilter filter = new BaseQualityFilter(baseRanges, this.BASE_QUALITY);
+		log.info("Total of " + progress.getCount() + " reads processed.");
+		writer.close();
+		writeSummary();
+		CloserUtil.close(inputSam);
+		CloserUtil.close(iter);
+		return (0);
+	}
 
+	/**
+	 * Tag reads as they are read from an iterator.  Reads with the same name must be adjacent, as they are in a queryname sorted BAM.
+	 * Paired reads are recorded in the progress logger.
+	 * Once the iterator has been consumed, call writeSummary to write the SUMMARY file.
+	 */
+	public CloseableIterator<SAMRecord> getTaggingIterator (final Iterator<SAMRecord> queryNameSortedReads, final ProgressLogger progress) {
+		List<BaseRange> baseRanges = BaseRange.parseBaseRange(this.BASE_RANGE);
+		this.filter = new BaseQualityFilter(baseRanges, this.BASE_QUALITY);
 		// this.metric = new FailedBaseMetric(BaseRange.getTotalRangeSize(this.BASE_RANGE));
+		return new TaggingIterator(queryNameSortedReads, this.filter, progress);
+	}
 
-		ProgressLogger progress = new ProgressLogger(this.log);
+	/**
+	 * Write the barcode quality summary to SUMMARY if it is set.
+	 */
+	public void writeSummary () {
+		if (this.SUMMARY!=null) writeOutput (this.filter.getMetric(), this.SUMMARY);
+	}
 
-		while (iter.hasNext()) {
-			//log.info(count);
+	/**
+	 * Tags each read or read pair as it is read, and queues the reads that are kept for output.
+	 */
+	private class TaggingIterator extends IterableOnceIterator<SAMRecord> implements CloseableIterator<SAMRecord> {
+
+		private final PeekableIterator<SAMRecord> iter;
+		private final BaseQualityFilter filter;
+		private final ProgressLogger progress;
+		private final Queue<SAMRecord> outputQueue = new LinkedList<>();
+		private final ObjectSink<SAMRecord> sink = outputQueue::add;
+
+		TaggingIterator (final Iterator<SAMRecord> queryNameSortedReads, final BaseQualityFilter filter, final ProgressLogger progress) {
+			this.iter = new PeekableIterator<>(queryNameSortedReads);
+			this.filter=filter;
+			this.progress=progress;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (outputQueue.isEmpty() && iter.hasNext())
+				processNext();
+			return !outputQueue.isEmpty();
+		}
+
+		@Override
+		public SAMRecord next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return outputQueue.remove();
+		}
+
+		@Override
+		public void close() {
+			CloserUtil.close(iter);
+		}
+
+		private void processNext() {
 			SAMRecord r1 = iter.next();
 			SAMRecord r2 = iter.peek();
 
@@ -129,8 +196,8 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 				sameName=r1.getReadName().equals(r2.getReadName());
 
 			if (!sameName) {
-				processSingleRead(r1, filter, writer, this.HARD_CLIP_BASES);
-				continue;
+				processSingleRead(r1, filter, sink, HARD_CLIP_BASES);
+				return;
 			}
 
 			// check to see if the two reads are properly paired if they have the same name
@@ -145,22 +212,15 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 			r1=p.getRead1();
 			r2=p.getRead2();
 			if (BARCODED_READ==1)
-				processReadPair(r1, r2, filter, writer, this.DISCARD_READ, this.HARD_CLIP_BASES);
+				processReadPair(r1, r2, filter, sink, DISCARD_READ, HARD_CLIP_BASES);
 			if (BARCODED_READ==2)
-				processReadPair(r2, r1, filter, writer, this.DISCARD_READ, this.HARD_CLIP_BASES);
+				processReadPair(r2, r1, filter, sink, DISCARD_READ, HARD_CLIP_BASES);
 			progress.record(r1);
 			progress.record(r2);
-
 		}
-		log.info("Total of " + progress.getCount() + " reads processed.");
-		writer.close();
-		if (this.SUMMARY!=null) writeOutput (filter.getMetric(), this.SUMMARY);
-		CloserUtil.close(inputSam);
-		CloserUtil.close(iter);
-		return (0);
 	}
 
-	void processSingleRead(final SAMRecord barcodedRead, final BaseQualityFilter filter, final SAMFileWriter writer, final boolean hardClipBases) {
+	void processSingleRead(final SAMRecord barcodedRead, final BaseQualityFilter filter, final ObjectSink<SAMRecord> sink, final boolean hardClipBases) {
 		int numBadBases = filter.scoreBaseQuality(barcodedRead);
 		String seq = barcodedRead.getReadString();
 		// does this have an off by 1 error?  I think it's 0 based so should be ok.
@@ -185,7 +245,7 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
         }
 		SAMRecord result = barcodedRead;
 		if (hardClipBases) result = hardClipBasesFromRead(barcodedRead, filter.getBaseRanges());
-		writer.addAlignment(result);
+		sink.add(result);
 	}
 
 	static SAMRecord hardClipBasesFromRead (final SAMRecord r, final List<BaseRange> baseRanges) {
@@ -219,7 +279,7 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 	}
 
 	void processReadPair (SAMRecord barcodedRead, final SAMRecord otherRead, final BaseQualityFilter filter,
-						  final SAMFileWriter writer, final boolean discardRead, final boolean hardClipBases) {
+						  final ObjectSink<SAMRecord> sink, final boolean discardRead, final boolean hardClipBases) {
 		int numBadBases= filter.scoreBaseQuality(barcodedRead);
 		String seq = barcodedRead.getReadString();
 		String baseQualities = BaseRange.getSequenceForBaseRange(filter.getBaseRanges(),  barcodedRead.getBaseQualityString());
@@ -240,9 +300,9 @@ public class TagBamWithReadSequenceExtended extends CommandLineProgram {
 
 		} else {
 			if (hardClipBases) barcodedRead = hardClipBasesFromRead(barcodedRead, filter.getBaseRanges());
-			writer.addAlignment(barcodedRead);
+			sink.add(barcodedRead);
         }
-        writer.addAlignment(otherRead);
+        sink.add(otherRead);
 	}
 
 
@@ -0,0 +1,44 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+/**
+ * An index over a fixed list of barcodes that narrows down which barcodes need to be compared to a query barcode.
+ * Barcodes are identified by their position in the list the index was built from.
+ *
+ * Candidates are a superset of the barcodes within the index's edit distance of the query:  an index may return
+ * barcodes that are further away, but must never leave out a barcode that is close enough.  Callers still compute the
+ * edit distance of each candidate, so results are the same as comparing against every barcode.
+ * @author nemesh
+ *
+ */
+public interface BarcodeCandidateIndex {
+
+	/**
+	 * @param barcode The query barcode.
+	 * @return The positions of barcodes that may be within the edit distance of the query, in ascending order with no duplicates.
+	 */
+	public int [] getCandidates (final String barcode);
+
+}
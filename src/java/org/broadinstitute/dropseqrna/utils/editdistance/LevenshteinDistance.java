@@ -106,6 +106,23 @@ public class LevenshteinDistance {
 		return r;
 	}
 
+	/**
+	 * Tests if two strings are within editDistance of each other by getIndelSlidingWindowEditDistance.
+	 * Strings that can be packed (see PackedBarcode) are first tested with PackedBarcode.exceedsIndelEditDistance, which rejects most
+	 * unrelated strings without building the alignment matrix.  Only strings that pass need the full computation.
+	 * @param str1
+	 * @param str2
+	 * @param editDistance The maximum edit distance
+	 * @return true if getIndelSlidingWindowEditDistance(str1, str2) <= editDistance
+	 */
+	public static boolean isWithinIndelSlidingWindowEditDistance (final String str1, final String str2, final int editDistance) {
+		if (PackedBarcode.canEncode(str1) && PackedBarcode.canEncode(str2) &&
+				PackedBarcode.exceedsIndelEditDistance(PackedBarcode.encodeBases(str1), PackedBarcode.encodeNMask(str1), str1.length(),
+						PackedBarcode.encodeBases(str2), PackedBarcode.encodeNMask(str2), str2.length(), editDistance))
+			return false;
+		return getIndelSlidingWindowEditDistance(str1, str2) <= editDistance;
+	}
+
 	/**
 	 * 1) Compute comparison string as above.
 	 * a. Starting from the beginning of the comparison string, add 1 to the edit distance for each "S" up to an "I" or "D"
@@ -34,8 +34,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 
+import org.broadinstitute.dropseqrna.TranscriptomeException;
 import org.broadinstitute.dropseqrna.metrics.UmiSharingMetrics;
 import org.broadinstitute.dropseqrna.metrics.umisharing.ParentEditDistanceMatcher;
 import org.broadinstitute.dropseqrna.metrics.umisharing.ParentEditDistanceMatcher.TagValues;
@@ -162,14 +164,24 @@ public class MapBarcodesByEditDistance {
 
 		long startTime = System.currentTimeMillis();
 
+		// on large inputs, only compare barcodes that share a segment.
+		BarcodeCandidateIndex index = null;
+		if (barcodeList.size()>=PackedBarcodeList.MIN_SIZE_FOR_INDEX && PigeonholeBarcodeIndex.canIndex(barcodeList, editDistance))
+			index = new PigeonholeBarcodeIndex(barcodeList, editDistance);
+
 		// process [i] vs [i+1:(end-1)]
 		// can't collapse the last barcode with nothing...
 		int len=barcodeListArrays.size();
 		for (int i=0; i<(len-1); i++) {
 			String smallBC = barcodeList.get(i);
-			List<char [] > largerBarcodes= barcodeListArrays.subList(i+1, len);
-			// get the small barcode as the char []
-			Set<String> largerRelatedBarcodes = processHammingDistanceEqualSizedStrings(barcodeListArrays.get(i), largerBarcodes, editDistance);
+			Set<String> largerRelatedBarcodes;
+			if (index!=null)
+				largerRelatedBarcodes = processHammingDistanceIndexed(i, barcodeList, barcodeListArrays, index, editDistance);
+			else {
+				List<char [] > largerBarcodes= barcodeListArrays.subList(i+1, len);
+				// get the small barcode as the char []
+				largerRelatedBarcodes = processHammingDistanceEqualSizedStrings(barcodeListArrays.get(i), largerBarcodes, editDistance);
+			}
 
 			// if there's just 1 larger neighbor, the result is unambiguous.
 			if (largerRelatedBarcodes.size()==1 ) {
@@ -219,6 +231,24 @@ public class MapBarcodesByEditDistance {
 		return result;
 	}
 
+	/**
+	 * Find the barcodes after position [i] in the list that are within editDistance of barcode [i], only testing the candidates from the index.
+	 * @param position The position of the barcode to test
+	 * @param barcodes All barcodes, which the index was built from
+	 * @param barcodeArrays The same barcodes as char []
+	 * @param index An index over barcodes
+	 * @param editDistance
+	 * @return
+	 */
+	private Set<String> processHammingDistanceIndexed (final int position, final List<String> barcodes, final List<char []> barcodeArrays, final BarcodeCandidateIndex index, final int editDistance) {
+		char [] barcode = barcodeArrays.get(position);
+		Set<String> result = new HashSet<>();
+		for (int c: index.getCandidates(barcodes.get(position)))
+			if (c>position && HammingDistance.getHammingDistanceEqualSizedStrings(barcode, barcodeArrays.get(c)) <= editDistance)
+				result.add(barcodes.get(c));
+		return result;
+	}
+
 	/**
 	 * Make sure all character arrays are the same size so you can use the short-cut hamming distance that doesn't do this check.
 	 * @param charArrays
@@ -352,6 +382,9 @@ public class MapBarcodesByEditDistance {
 	public Set<String> processSingleBarcode(final String barcode, final List<String> comparisonBarcodes, final boolean findIndels, final int editDistance) {
 		Set<String> closeBarcodes =null;
 
+		if (comparisonBarcodes instanceof PackedBarcodeList && PackedBarcode.canEncode(barcode))
+			return processSingleBarcodePacked(barcode, (PackedBarcodeList) comparisonBarcodes, findIndels, editDistance);
+
 		// Replaced with java 8 lambda method. woot?
 		if (this.NUM_THREADS>1 ) {
 			 closeBarcodes=processSingleBarcodeMultithreaded(barcode, comparisonBarcodes, findIndels, editDistance);
@@ -374,10 +407,12 @@ public class MapBarcodesByEditDistance {
 	 * @return
 	 */
 	public Set<String> processSingleBarcodeMultithreaded(final String barcode, final List<String> comparisonBarcodes, final boolean findIndels, final int editDistance) {
+		if (comparisonBarcodes instanceof PackedBarcodeList && PackedBarcode.canEncode(barcode))
+			return processSingleBarcodePacked(barcode, (PackedBarcodeList) comparisonBarcodes, findIndels, editDistance);
 		Set<String> result = Collections.EMPTY_SET;
 		try {
 			if (findIndels)
-				result = forkJoinPool.submit(() -> comparisonBarcodes.parallelStream().filter(x -> LevenshteinDistance.getIndelSlidingWindowEditDistance(barcode, x) <= editDistance).collect(Collectors.toSet())).get();
+				result = forkJoinPool.submit(() -> comparisonBarcodes.parallelStream().filter(x -> LevenshteinDistance.isWithinIndelSlidingWindowEditDistance(barcode, x, editDistance)).collect(Collectors.toSet())).get();
 			else
 				result = forkJoinPool.submit(() -> comparisonBarcodes.parallelStream().filter(x -> HammingDistance.getHammingDistance(barcode, x) <= editDistance).collect(Collectors.toSet())).get();
 		} catch (InterruptedException e) {
@@ -388,6 +423,37 @@ public class MapBarcodesByEditDistance {
 		return result;
 	}
 
+	/**
+	 * Search barcodes that have already been packed.  Uses the thread pool if NUM_THREADS>1.
+	 * @param barcode
+	 * @param comparisonBarcodes
+	 * @param findIndels
+	 * @param editDistance
+	 * @return
+	 */
+	private Set<String> processSingleBarcodePacked(final String barcode, final PackedBarcodeList comparisonBarcodes, final boolean findIndels, final int editDistance) {
+		if (this.NUM_THREADS==1)
+			return comparisonBarcodes.getBarcodesWithinEditDistance(barcode, findIndels, editDistance, false);
+		return getResult(forkJoinPool.submit(() -> comparisonBarcodes.getBarcodesWithinEditDistance(barcode, findIndels, editDistance, true)));
+	}
+
+	/**
+	 * Wait for a search on the thread pool.  A failed or interrupted search is rethrown, as an empty result would silently collapse nothing.
+	 */
+	private static <T> T getResult (final ForkJoinTask<T> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TranscriptomeException("Interrupted while searching barcodes", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new TranscriptomeException("Error searching barcodes", cause);
+		}
+	}
+
 	/**
 	 * The Java lambda way.
 	 * @param barcode
@@ -398,6 +464,10 @@ public class MapBarcodesByEditDistance {
 	 */
 	public int [] getEditDistanceDistributioneMultithreaded(final String barcode, final Collection<String> comparisonBarcodes, final boolean findIndels) {
 		int [] result=null;
+		if (comparisonBarcodes instanceof PackedBarcodeList && PackedBarcode.canEncode(barcode)) {
+			PackedBarcodeList packed = (PackedBarcodeList) comparisonBarcodes;
+			return getResult(forkJoinPool.submit(() -> packed.getEditDistances(barcode, findIndels, this.NUM_THREADS>1)));
+		}
 		try {
 			if (findIndels)
 				result = forkJoinPool.submit(() -> comparisonBarcodes.parallelStream().mapToInt(x -> LevenshteinDistance.getIndelSlidingWindowEditDistance(barcode, x)).toArray()).get();
@@ -441,23 +511,24 @@ public class MapBarcodesByEditDistance {
 	 */
 	public <T extends Comparable<T>,M> FindSimilarEntitiesResult<T,M> collapseBarcodesGeneric(List<T> coreBarcodes, ObjectCounter<T> entityCounts, FindSimilarEntities<T,M> function, final int minSizeToCollapse) {
 		// don't allow side effects to modify input lists.
-		coreBarcodes = new ArrayList<T>(coreBarcodes);
 		entityCounts = new ObjectCounter<T>(entityCounts);
 
 		FindSimilarEntitiesResult<T,M> result = new FindSimilarEntitiesResult<>();
 		int count = 0;
 		int numBCCollapsed=0;
 
-		List<T> barcodeList = entityCounts.getKeysOrderedByCount(true);
+		List<T> barcodeList = packIfPossible(entityCounts.getKeysOrderedByCount(true));
 		int coreBarcodeCount=coreBarcodes.size();
 		long startTime = System.currentTimeMillis();
-		while (coreBarcodes.isEmpty()==false) {
-			T b = coreBarcodes.get(0);
+		// core barcodes that have been collapsed into a larger barcode are skipped instead of removed from the core list.
+		Set<T> collapsedBarcodes = new HashSet<>();
+		for (T b: coreBarcodes) {
+			if (collapsedBarcodes.contains(b))
+				continue;
 			int barcodeSize=entityCounts.getCountForKey(b);
 			if (barcodeSize<minSizeToCollapse)
 				break;  			
 			count++;
-			coreBarcodes.remove(b);
 			barcodeList.remove(b);
 			FindSimilarEntitiesResult<T,M> singleResult = function.find(b, barcodeList, entityCounts);
 			
@@ -474,7 +545,7 @@ public class MapBarcodesByEditDistance {
 			result.addMetrics(singleResult.getCollapseMetric());
 			
 			barcodeList.removeAll(closeBC);
-			coreBarcodes.removeAll(closeBC);
+			collapsedBarcodes.addAll(closeBC);
 			if (this.REPORT_PROGRESS_INTERVAL!=0 && count % this.REPORT_PROGRESS_INTERVAL == 0) {
 				if (entityCounts.getSize()>10000) log.info("Processed [" + count + "] records, totals BC Space left [" + barcodeList.size() +"]", " # collapsed this set [" + numBCCollapsed+"]");
 				numBCCollapsed=0;
@@ -489,6 +560,18 @@ public class MapBarcodesByEditDistance {
 		return (result);
 	}
 
+	/**
+	 * If all barcodes are short DNA sequences, hold them in a PackedBarcodeList so edit distance searches can use the packed form.
+	 * Otherwise, return the list unchanged.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> List<T> packIfPossible (final List<T> barcodes) {
+		for (T b: barcodes)
+			if (!(b instanceof String) || !PackedBarcode.canEncode((String) b))
+				return barcodes;
+		return (List<T>) new PackedBarcodeList((List<String>) barcodes);
+	}
+
 
 	/******************************************************
 	 * TO BE DELETED
@@ -0,0 +1,237 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+import java.util.Collection;
+
+/**
+ * A barcode of up to 32 bases packed into a long, 2 bits per base, with a second long marking which positions are N.
+ * Base i occupies bits [2i, 2i+1].  A=0, C=1, G=2, T=3, and N is stored as 0 with the low bit of its position set in the N mask.
+ *
+ * This lets barcode collapse compare barcodes with a handful of bitwise operations instead of scanning char [] copies of Strings.
+ * Distances are the same as those computed on the Strings by HammingDistance and LevenshteinDistance.
+ * @author nemesh
+ *
+ */
+public final class PackedBarcode implements Comparable<PackedBarcode> {
+
+	public static final int MAX_LENGTH=32;
+
+	// the low bit of every 2-bit base.
+	private static final long LOW_BITS=0x5555555555555555L;
+
+	private final String barcode;
+	private final long bases;
+	private final long nMask;
+
+	public PackedBarcode (final String barcode) {
+		if (!canEncode(barcode))
+			throw new IllegalArgumentException("Barcode [" + barcode +"] must be at most " + MAX_LENGTH + " bases of A/C/G/T/N");
+		this.barcode=barcode;
+		this.bases=encodeBases(barcode);
+		this.nMask=encodeNMask(barcode);
+	}
+
+	public String getBarcode() {
+		return barcode;
+	}
+
+	public int length() {
+		return barcode.length();
+	}
+
+	public long getBases() {
+		return bases;
+	}
+
+	public long getNMask() {
+		return nMask;
+	}
+
+	public int getHammingDistance (final PackedBarcode other) {
+		return getHammingDistance(this.bases, this.nMask, this.length(), other.bases, other.nMask, other.length());
+	}
+
+	/**
+	 * @return true if a barcode can be packed:  it has at most 32 bases, all of which are A, C, G, T or N.
+	 */
+	public static boolean canEncode (final String barcode) {
+		if (barcode==null || barcode.length()>MAX_LENGTH) return false;
+		for (int i=0; i<barcode.length(); i++)
+			switch (barcode.charAt(i)) {
+				case 'A': case 'C': case 'G': case 'T': case 'N': break;
+				default: return false;
+			}
+		return true;
+	}
+
+	/**
+	 * @return true if every barcode can be packed.
+	 */
+	public static boolean canEncode (final Collection<String> barcodes) {
+		for (String b: barcodes)
+			if (!canEncode(b)) return false;
+		return true;
+	}
+
+	public static long encodeBases (final String barcode) {
+		long result=0;
+		for (int i=0; i<barcode.length(); i++) {
+			long code;
+			switch (barcode.charAt(i)) {
+				case 'C': code=1; break;
+				case 'G': code=2; break;
+				case 'T': code=3; break;
+				default: code=0;
+			}
+			result |= code << (2*i);
+		}
+		return result;
+	}
+
+	public static long encodeNMask (final String barcode) {
+		long result=0;
+		for (int i=0; i<barcode.length(); i++)
+			if (barcode.charAt(i)=='N')
+				result |= 1L << (2*i);
+		return result;
+	}
+
+	/**
+	 * The number of positions that differ between two packed barcodes, plus the difference in their lengths.
+	 * This is the same as HammingDistance.getHammingDistance on the unpacked strings.
+	 */
+	public static int getHammingDistance (final long bases1, final long nMask1, final int length1, final long bases2, final long nMask2, final int length2) {
+		int shorter=Math.min(length1, length2);
+		// fold each 2-bit difference down to its low bit, then add in positions where only one barcode is N.
+		long x = bases1 ^ bases2;
+		long diff = ((x | (x >>> 1)) & LOW_BITS) | (nMask1 ^ nMask2);
+		if (shorter<MAX_LENGTH)
+			diff &= (1L << (2*shorter)) -1;
+		return Long.bitCount(diff) + Math.abs(length1-length2);
+	}
+
+	/**
+	 * Tests if two barcodes are certainly further apart than editDistance by LevenshteinDistance.getIndelSlidingWindowEditDistance.
+	 *
+	 * The indel corrected edit distance is at least half of the Levenshtein distance computed with a substitution cost of 2 and
+	 * indel costs of 1, so only that distance has to be tested.  See getIndelDistance.
+	 *
+	 * If this returns false, the barcodes may or may not be within editDistance, and the full computation on the Strings is needed.
+	 * @return true if the barcodes are further apart than editDistance.
+	 */
+	public static boolean exceedsIndelEditDistance (final long bases1, final long nMask1, final int length1, final long bases2, final long nMask2, final int length2, final int editDistance) {
+		// the largest substitution weighted distance that can still give an indel corrected distance of editDistance.
+		final int limit=2*editDistance+1;
+		return getIndelDistance(bases1, nMask1, length1, bases2, nMask2, length2, limit) > limit;
+	}
+
+	/**
+	 * The Levenshtein distance between two barcodes with a substitution cost of 2 and indel costs of 1.  A substitution then costs the same as
+	 * a deletion and an insertion, so this is length1+length2-2*LCS, where LCS is the length of the longest common subsequence.
+	 *
+	 * The LCS is found with the bit-parallel algorithm of Hyyro (2004), which processes one base of the second barcode per step
+	 * over all positions of the first barcode at once.  Positions use the same 2-bit spacing as the packed bases, with the odd bits held at 1
+	 * so that carries pass through them.  Nothing is allocated.
+	 * @param limit Stop as soon as the distance is certain to be larger than this, and return limit+1.
+	 * @return The distance, or limit+1 if the distance is larger than limit.
+	 */
+	public static int getIndelDistance (final long bases1, final long nMask1, final int length1, final long bases2, final long nMask2, final int length2, final int limit) {
+		final int lengthSum=length1+length2;
+		if (lengthSum - 2*Math.min(length1, length2) > limit) return limit+1;
+		final long positions = getPositionMask(length1);
+		// the positions of each base in the first barcode.  An N only matches an N.
+		final long notN = positions & ~nMask1;
+		final long eqA=getMatches(bases1, 0, notN);
+		final long eqC=getMatches(bases1, LOW_BITS, notN);
+		final long eqG=getMatches(bases1, LOW_BITS<<1, notN);
+		final long eqT=getMatches(bases1, -1L, notN);
+		final long eqN=nMask1 & positions;
+
+		long v=-1L;
+		for (int j=0; j<length2; j++) {
+			final int shift=2*j;
+			long match;
+			if (((nMask2 >>> shift) & 1)!=0)
+				match=eqN;
+			else
+				switch ((int) ((bases2 >>> shift) & 3)) {
+					case 0: match=eqA; break;
+					case 1: match=eqC; break;
+					case 2: match=eqG; break;
+					default: match=eqT;
+				}
+			final long u = v & match;
+			v = (v + u) | (v - u);
+			// every remaining base could at best extend the common subsequence by one.
+			final int lcsBound = Math.min(Long.bitCount(~v & positions) + (length2-j-1), length1);
+			if (lengthSum - 2*lcsBound > limit) return limit+1;
+		}
+		return lengthSum - 2*Long.bitCount(~v & positions);
+	}
+
+	/**
+	 * @return The low bit of each base position of a barcode of this length.
+	 */
+	private static long getPositionMask (final int length) {
+		if (length>=MAX_LENGTH) return LOW_BITS;
+		return LOW_BITS & ((1L << (2*length)) -1);
+	}
+
+	/**
+	 * @param repeatedBase A base repeated at every position, for example LOW_BITS for all C.
+	 * @return The low bit of each position in mask where the packed bases equal the base.
+	 */
+	private static long getMatches (final long bases, final long repeatedBase, final long mask) {
+		long x = bases ^ repeatedBase;
+		return ~(x | (x >>> 1)) & mask;
+	}
+
+	/**
+	 * Orders the same way as the unpacked Strings.
+	 */
+	@Override
+	public int compareTo(final PackedBarcode o) {
+		return this.barcode.compareTo(o.barcode);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) return true;
+		if (obj == null || getClass() != obj.getClass()) return false;
+		PackedBarcode other = (PackedBarcode) obj;
+		return this.bases==other.bases && this.nMask==other.nMask && this.length()==other.length();
+	}
+
+	@Override
+	public int hashCode() {
+		return barcode.hashCode();
+	}
+
+	@Override
+	public String toString () {
+		return this.barcode;
+	}
+
+}
@@ -0,0 +1,240 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A list of barcodes that also holds the packed form of each barcode, so edit distance searches against the list
+ * don't need to re-read the Strings.  Barcodes are packed once when the list is built.
+ *
+ * This is used as the search space during barcode collapse, which only ever removes barcodes from the list.
+ * Removing a barcode by value only marks it as removed, so collapse doesn't pay to shift the list for every barcode
+ * it removes.  The list is compacted the next time it is read by position.
+ *
+ * Hamming distance searches on large lists use a PigeonholeBarcodeIndex to find candidate barcodes instead of
+ * comparing against every barcode.  Indexes are built on first use for each edit distance, over all barcodes the
+ * list started with.  Removed barcodes are skipped when candidates are checked.
+ * @author nemesh
+ *
+ */
+public class PackedBarcodeList extends AbstractList<String> {
+
+	// below this size, scanning all barcodes is cheaper than building an index.
+	public static final int MIN_SIZE_FOR_INDEX=100;
+
+	// the barcodes the list started with, by their original position.
+	private final String [] barcodes;
+	private final long [] bases;
+	private final long [] nMasks;
+	private final int [] lengths;
+	private final Map<String, Integer> positions;
+	private final boolean hasDuplicates;
+	private final BitSet removed;
+	private final Map<Integer, BarcodeCandidateIndex> hammingIndexes;
+
+	// the original positions of barcodes still in the list, in list order.  Only valid if not stale.
+	private int [] order;
+	private boolean orderStale;
+	private int size;
+
+	/**
+	 * @param barcodes The barcodes to hold.  All barcodes must pass PackedBarcode.canEncode.
+	 */
+	public PackedBarcodeList (final List<String> barcodes) {
+		this.size=barcodes.size();
+		this.barcodes=new String [size];
+		this.bases=new long [size];
+		this.nMasks=new long [size];
+		this.lengths=new int [size];
+		this.positions=new HashMap<>();
+		int i=0;
+		for (String b: barcodes) {
+			if (!PackedBarcode.canEncode(b))
+				throw new IllegalArgumentException("Barcode [" + b +"] can not be packed");
+			this.barcodes[i]=b;
+			this.bases[i]=PackedBarcode.encodeBases(b);
+			this.nMasks[i]=PackedBarcode.encodeNMask(b);
+			this.lengths[i]=b.length();
+			// for duplicate barcodes, remove by value finds the first copy, as in other lists.
+			this.positions.putIfAbsent(b, i);
+			i++;
+		}
+		this.hasDuplicates=positions.size()!=size;
+		this.removed=new BitSet(size);
+		this.hammingIndexes=new HashMap<>();
+		this.order=IntStream.range(0, size).toArray();
+		this.orderStale=false;
+	}
+
+	@Override
+	public String get(final int index) {
+		checkIndex(index);
+		return barcodes[getOrder()[index]];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean contains(final Object o) {
+		Integer position = positions.get(o);
+		return position!=null && !removed.get(position);
+	}
+
+	@Override
+	public String remove(final int index) {
+		checkIndex(index);
+		int [] o = getOrder();
+		int position = o[index];
+		System.arraycopy(o, index+1, o, index, size-index-1);
+		markRemoved(position);
+		return barcodes[position];
+	}
+
+	@Override
+	public boolean remove(final Object o) {
+		Integer position = positions.get(o);
+		if (position==null || removed.get(position))
+			return false;
+		markRemoved(position);
+		orderStale=true;
+		return true;
+	}
+
+	@Override
+	public boolean removeAll(final Collection<?> c) {
+		boolean changed=false;
+		for (Object o: c)
+			changed|=remove(o);
+		return changed;
+	}
+
+	/**
+	 * Find the barcodes within editDistance of a barcode.
+	 * @param barcode The barcode to test.  Must pass PackedBarcode.canEncode.
+	 * @param findIndels If true, use LevenshteinDistance.getIndelSlidingWindowEditDistance, otherwise use Hamming distance.
+	 * @param editDistance The maximum edit distance.
+	 * @param parallel If true, test barcodes in parallel on the calling thread's ForkJoinPool.
+	 * @return The barcodes within edit distance.
+	 */
+	public Set<String> getBarcodesWithinEditDistance (final String barcode, final boolean findIndels, final int editDistance, final boolean parallel) {
+		final PackedBarcode b = new PackedBarcode(barcode);
+		IntStream candidates;
+		BarcodeCandidateIndex index = findIndels ? null : getHammingIndex(editDistance);
+		if (index!=null)
+			candidates=Arrays.stream(index.getCandidates(barcode));
+		else
+			candidates=IntStream.range(0, barcodes.length);
+		if (parallel) candidates=candidates.parallel();
+		return candidates.filter(i -> !removed.get(i) && isWithinEditDistance(b, i, findIndels, editDistance)).mapToObj(i -> barcodes[i]).collect(Collectors.toSet());
+	}
+
+	/**
+	 * Find the edit distance from a barcode to every barcode in this list.
+	 * @param barcode The barcode to test.  Must pass PackedBarcode.canEncode.
+	 * @param findIndels If true, use LevenshteinDistance.getIndelSlidingWindowEditDistance, otherwise use Hamming distance.
+	 * @param parallel If true, test barcodes in parallel on the calling thread's ForkJoinPool.
+	 * @return The edit distances, in the order of this list.
+	 */
+	public int [] getEditDistances (final String barcode, final boolean findIndels, final boolean parallel) {
+		final PackedBarcode b = new PackedBarcode(barcode);
+		IntStream positionStream = Arrays.stream(getOrder(), 0, size);
+		if (parallel) positionStream=positionStream.parallel();
+		if (findIndels)
+			return positionStream.map(i -> LevenshteinDistance.getIndelSlidingWindowEditDistance(barcode, barcodes[i])).toArray();
+		return positionStream.map(i -> PackedBarcode.getHammingDistance(b.getBases(), b.getNMask(), b.length(), bases[i], nMasks[i], lengths[i])).toArray();
+	}
+
+	/**
+	 * @return An index for Hamming distance searches at this edit distance, or null if the list is too small or the barcodes can't be indexed.
+	 */
+	private synchronized BarcodeCandidateIndex getHammingIndex (final int editDistance) {
+		if (barcodes.length<MIN_SIZE_FOR_INDEX) return null;
+		if (hammingIndexes.containsKey(editDistance))
+			return hammingIndexes.get(editDistance);
+		List<String> all = Arrays.asList(barcodes);
+		BarcodeCandidateIndex index = PigeonholeBarcodeIndex.canIndex(all, editDistance) ? new PigeonholeBarcodeIndex(all, editDistance) : null;
+		hammingIndexes.put(editDistance, index);
+		return index;
+	}
+
+	private boolean isWithinEditDistance (final PackedBarcode b, final int index, final boolean findIndels, final int editDistance) {
+		if (!findIndels)
+			return PackedBarcode.getHammingDistance(b.getBases(), b.getNMask(), b.length(), bases[index], nMasks[index], lengths[index]) <= editDistance;
+		// most pairs are rejected by the packed test, only the rest need the full indel computation.
+		if (PackedBarcode.exceedsIndelEditDistance(b.getBases(), b.getNMask(), b.length(), bases[index], nMasks[index], lengths[index], editDistance))
+			return false;
+		return LevenshteinDistance.getIndelSlidingWindowEditDistance(b.getBarcode(), barcodes[index]) <= editDistance;
+	}
+
+	private void markRemoved (final int position) {
+		removed.set(position);
+		// a later copy of a duplicate barcode becomes the one found by value.
+		String b = barcodes[position];
+		if (positions.get(b)==position) {
+			positions.remove(b);
+			if (hasDuplicates)
+				for (int i=position+1; i<barcodes.length; i++)
+					if (!removed.get(i) && barcodes[i].equals(b)) {
+						positions.put(b, i);
+						break;
+					}
+		}
+		size--;
+		modCount++;
+	}
+
+	/**
+	 * @return The original positions of the barcodes still in the list, dropping removed barcodes if needed.
+	 */
+	private int [] getOrder () {
+		if (orderStale) {
+			int newSize=0;
+			for (int i=0; i<order.length && newSize<size; i++)
+				if (!removed.get(order[i]))
+					order[newSize++]=order[i];
+			order=Arrays.copyOf(order, newSize);
+			orderStale=false;
+		}
+		return order;
+	}
+
+	private void checkIndex (final int index) {
+		if (index<0 || index>=size)
+			throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+	}
+
+}
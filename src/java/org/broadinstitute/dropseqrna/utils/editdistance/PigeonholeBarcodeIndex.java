@@ -0,0 +1,139 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Finds candidate barcodes within a Hamming distance by the pigeonhole principle.
+ * Each barcode is split into editDistance+1 segments.  Two barcodes of the same length that differ at no more than
+ * editDistance positions must share at least one segment exactly, so only barcodes that share a segment with the query
+ * need to be compared.
+ *
+ * Each segment is stored as a sorted array of (segment hash, barcode position) pairs.  Hash collisions only add
+ * candidates, which are removed when the caller verifies the distance.
+ * @author nemesh
+ *
+ */
+public class PigeonholeBarcodeIndex implements BarcodeCandidateIndex {
+
+	// shorter segments match too many barcodes to be worth indexing.
+	public static final int MIN_SEGMENT_LENGTH=3;
+
+	private final int length;
+	private final int numBarcodes;
+	private final int [] segmentStarts;
+	// for each segment, the segment hash in the high 32 bits and the barcode position in the low 32 bits, sorted.
+	private final long [][] segments;
+
+	/**
+	 * @param barcodes The barcodes to index.  All barcodes must be the same length.
+	 * @param editDistance The maximum Hamming distance queries will be run at.
+	 */
+	public PigeonholeBarcodeIndex (final List<String> barcodes, final int editDistance) {
+		if (!canIndex(barcodes, editDistance))
+			throw new IllegalArgumentException("Barcodes must all be the same length, and at least " + MIN_SEGMENT_LENGTH*(editDistance+1) + " bases long");
+		this.length=barcodes.get(0).length();
+		this.numBarcodes=barcodes.size();
+		int numSegments=editDistance+1;
+		this.segmentStarts=new int [numSegments+1];
+		for (int i=0; i<=numSegments; i++)
+			segmentStarts[i]=(i*length)/numSegments;
+		this.segments=new long [numSegments][numBarcodes];
+		for (int i=0; i<numBarcodes; i++) {
+			String b = barcodes.get(i);
+			for (int s=0; s<numSegments; s++)
+				segments[s][i]=toEntry(hashSegment(b, s), i);
+		}
+		for (long [] segment: segments)
+			Arrays.sort(segment);
+	}
+
+	/**
+	 * @return true if the barcodes are all the same length, and long enough to split into editDistance+1 segments of at least MIN_SEGMENT_LENGTH bases.
+	 */
+	public static boolean canIndex (final List<String> barcodes, final int editDistance) {
+		if (barcodes.isEmpty() || editDistance<0) return false;
+		int length = barcodes.get(0).length();
+		if (length < MIN_SEGMENT_LENGTH*(editDistance+1)) return false;
+		for (String b: barcodes)
+			if (b.length()!=length) return false;
+		return true;
+	}
+
+	/**
+	 * Barcodes of a different length than the indexed barcodes can't be split into matching segments, so all barcodes are candidates.
+	 */
+	@Override
+	public int [] getCandidates(final String barcode) {
+		if (barcode.length()!=length)
+			return IntStream.range(0, numBarcodes).toArray();
+		int [] result = new int [16];
+		int count=0;
+		for (int s=0; s<segments.length; s++) {
+			long [] segment=segments[s];
+			int hash=hashSegment(barcode, s);
+			for (int i=lowerBound(segment, toEntry(hash, 0)); i<segment.length && (int) (segment[i]>>>32)==hash; i++) {
+				if (count==result.length) result=Arrays.copyOf(result, count*2);
+				result[count++]=(int) segment[i];
+			}
+		}
+		if (count==0) return new int [0];
+		// a barcode can share more than one segment with the query.
+		Arrays.sort(result, 0, count);
+		int numUnique=1;
+		for (int i=1; i<count; i++)
+			if (result[i]!=result[numUnique-1])
+				result[numUnique++]=result[i];
+		return Arrays.copyOf(result, numUnique);
+	}
+
+	private int hashSegment (final String barcode, final int segment) {
+		int hash=segment;
+		for (int i=segmentStarts[segment]; i<segmentStarts[segment+1]; i++)
+			hash=(hash ^ barcode.charAt(i)) * 0x9E3779B1;
+		return hash;
+	}
+
+	private static long toEntry (final int hash, final int position) {
+		return ((long) hash << 32) | position;
+	}
+
+	/**
+	 * @return The first index in the sorted array with a value >= key.
+	 */
+	private static int lowerBound (final long [] sorted, final long key) {
+		int low=0;
+		int high=sorted.length;
+		while (low<high) {
+			int mid=(low+high)>>>1;
+			if (sorted[mid]<key) low=mid+1;
+			else high=mid;
+		}
+		return low;
+	}
+
+}
@@ -0,0 +1,195 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads, writes, inflates and deflates single BGZF blocks.
+ * A block is held as a byte array that starts with the 18 byte header and ends with the CRC and uncompressed size.
+ * @author nemesh
+ *
+ */
+final class BgzfBlocks {
+
+	// deflate stored (uncompressed) blocks have a 5 byte header and hold at most this many bytes.
+	private static final int STORED_HEADER_LENGTH = 5;
+	static final int MAX_STORED_LENGTH = MAX_COMPRESSED_BLOCK_SIZE - BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH - STORED_HEADER_LENGTH;
+
+	private BgzfBlocks () {}
+
+	/**
+	 * @return the next block in the stream, or null if the stream is at its end.
+	 */
+	static byte [] readBlock (final InputStream in) throws IOException {
+		byte [] header = new byte [BLOCK_HEADER_LENGTH];
+		int n = readFully(in, header, 0, BLOCK_HEADER_LENGTH);
+		if (n==0) return null;
+		if (n<BLOCK_HEADER_LENGTH) throw new IOException("Truncated BGZF block header");
+		int blockLength = getBlockLength(header, 0);
+		byte [] block = Arrays.copyOf(header, blockLength);
+		if (readFully(in, block, BLOCK_HEADER_LENGTH, blockLength-BLOCK_HEADER_LENGTH)<blockLength-BLOCK_HEADER_LENGTH)
+			throw new IOException("Truncated BGZF block");
+		return block;
+	}
+
+	private static int readFully (final InputStream in, final byte [] buf, final int offset, final int length) throws IOException {
+		int total=0;
+		while (total<length) {
+			int n = in.read(buf, offset+total, length-total);
+			if (n<0) break;
+			total+=n;
+		}
+		return total;
+	}
+
+	/**
+	 * @return The total length of the block whose header starts at offset.
+	 */
+	static int getBlockLength (final byte [] buf, final int offset) throws IOException {
+		if (buf[offset]!=GZIP_ID1 || (buf[offset+1] & 0xFF)!=GZIP_ID2 || buf[offset+2]!=GZIP_CM_DEFLATE || buf[offset+3]!=GZIP_FLG ||
+				unpackShort(buf, offset+10)!=GZIP_XLEN || buf[offset+12]!=BGZF_ID1 || buf[offset+13]!=BGZF_ID2)
+			throw new IOException("Invalid BGZF block header");
+		return unpackShort(buf, offset+BLOCK_LENGTH_OFFSET)+1;
+	}
+
+	static int getUncompressedLength (final byte [] block) {
+		return unpackInt(block, block.length-4);
+	}
+
+	static int getCrc (final byte [] block) {
+		return unpackInt(block, block.length-8);
+	}
+
+	/**
+	 * Inflate the block into the start of data, which must be large enough to hold the uncompressed bytes.
+	 */
+	static void inflate (final Inflater inflater, final byte [] block, final byte [] data) throws IOException {
+		final int length = getUncompressedLength(block);
+		inflater.reset();
+		inflater.setInput(block, BLOCK_HEADER_LENGTH, block.length-BLOCK_HEADER_LENGTH-BLOCK_FOOTER_LENGTH);
+		try {
+			int n = inflater.inflate(data, 0, length);
+			if (n!=length) throw new IOException("Expected " + length + " bytes in BGZF block, but inflated " + n);
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid deflate data in BGZF block", e);
+		}
+	}
+
+	/**
+	 * Compress the data into a single block.  If compressing doesn't make it small enough to fit, the data is stored uncompressed.
+	 * @param buffer scratch space for the compressed data, at least MAX_COMPRESSED_BLOCK_SIZE long
+	 * @param crc the CRC32 of the data
+	 */
+	static byte [] deflate (final Deflater deflater, final byte [] buffer, final byte [] data, final int length, final int crc) {
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		final int maxCompressed = MAX_COMPRESSED_BLOCK_SIZE - BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH;
+		int n = deflater.deflate(buffer, 0, maxCompressed);
+		if (!deflater.finished())
+			return store(data, 0, length, crc);
+		return makeBlock(buffer, n, crc, length);
+	}
+
+	/**
+	 * Store the data uncompressed, in as many blocks as it takes.
+	 * @param crc the CRC32 of the data, or any value if the data needs more than one block, in which case the CRC of each block is recalculated.
+	 * @return The blocks, one after the other.
+	 */
+	static byte [] store (final byte [] data, final int offset, final int length, final int crc) {
+		if (length<=MAX_STORED_LENGTH)
+			return storeBlock(data, offset, length, crc);
+		CRC32 crc32 = new CRC32();
+		int firstLength=length/2;
+		crc32.update(data, offset, firstLength);
+		byte [] first = storeBlock(data, offset, firstLength, (int) crc32.getValue());
+		crc32.reset();
+		crc32.update(data, offset+firstLength, length-firstLength);
+		byte [] second = storeBlock(data, offset+firstLength, length-firstLength, (int) crc32.getValue());
+		byte [] result = Arrays.copyOf(first, first.length+second.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+	private static byte [] storeBlock (final byte [] data, final int offset, final int length, final int crc) {
+		byte [] stored = new byte [length+STORED_HEADER_LENGTH];
+		// final block, no compression.
+		stored[0]=1;
+		packShort(stored, 1, length);
+		packShort(stored, 3, ~length);
+		System.arraycopy(data, offset, stored, STORED_HEADER_LENGTH, length);
+		return makeBlock(stored, stored.length, crc, length);
+	}
+
+	private static byte [] makeBlock (final byte [] compressed, final int compressedLength, final int crc, final int uncompressedLength) {
+		final int blockLength = BLOCK_HEADER_LENGTH + compressedLength + BLOCK_FOOTER_LENGTH;
+		byte [] block = new byte [blockLength];
+		block[0]=GZIP_ID1;
+		block[1]=(byte) GZIP_ID2;
+		block[2]=GZIP_CM_DEFLATE;
+		block[3]=GZIP_FLG;
+		// mtime is 0
+		block[8]=GZIP_XFL;
+		block[9]=(byte) GZIP_OS_UNKNOWN;
+		packShort(block, 10, GZIP_XLEN);
+		block[12]=BGZF_ID1;
+		block[13]=BGZF_ID2;
+		packShort(block, 14, BGZF_LEN);
+		packShort(block, BLOCK_LENGTH_OFFSET, blockLength-1);
+		System.arraycopy(compressed, 0, block, BLOCK_HEADER_LENGTH, compressedLength);
+		packInt(block, blockLength-8, crc);
+		packInt(block, blockLength-4, uncompressedLength);
+		return block;
+	}
+
+	private static int unpackShort (final byte [] buf, final int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset+1] & 0xFF) << 8);
+	}
+
+	private static int unpackInt (final byte [] buf, final int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset+1] & 0xFF) << 8) | ((buf[offset+2] & 0xFF) << 16) | ((buf[offset+3] & 0xFF) << 24);
+	}
+
+	private static void packShort (final byte [] buf, final int offset, final int value) {
+		buf[offset]=(byte) value;
+		buf[offset+1]=(byte) (value >>> 8);
+	}
+
+	private static void packInt (final byte [] buf, final int offset, final int value) {
+		buf[offset]=(byte) value;
+		buf[offset+1]=(byte) (value >>> 8);
+		buf[offset+2]=(byte) (value >>> 16);
+		buf[offset+3]=(byte) (value >>> 24);
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockGunzipper;
+
+/**
+ * Compresses the blocks of a BGZF stream on a pool of worker threads.
+ *
+ * The stream written to this should be BGZF written without compression (compression level 0), for example by a BAM writer.
+ * Each block is compressed at the requested level on a worker thread, and the blocks are written to the underlying stream in order.
+ * As the compressed offsets change, an index can't be created while writing through this stream.
+ *
+ * The number of blocks waiting to be written is bounded, so a slow underlying stream holds back the writer instead of filling up memory.
+ * @author nemesh
+ *
+ */
+public class ParallelBlockDeflatingOutputStream extends OutputStream {
+
+	private final OutputStream out;
+	private final int maxBlocksInFlight;
+	private final ExecutorService workers;
+	private final Queue<Future<byte []>> pending = new ArrayDeque<>();
+	private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> BlockGunzipper.getDefaultInflaterFactory().makeInflater(true));
+	private final ThreadLocal<Deflater> deflaters;
+	private final ThreadLocal<byte []> buffers = ThreadLocal.withInitial(() -> new byte [MAX_COMPRESSED_BLOCK_SIZE]);
+
+	// the block currently being written.
+	private final byte [] block = new byte [MAX_COMPRESSED_BLOCK_SIZE];
+	private int blockPosition=0;
+	private int blockLength=BLOCK_HEADER_LENGTH;
+	private boolean closed=false;
+
+	/**
+	 * @param out The stream to write the compressed blocks to.
+	 * @param compressionLevel The compression level to compress blocks at.
+	 * @param numThreads The number of threads to compress blocks on.
+	 */
+	public ParallelBlockDeflatingOutputStream (final OutputStream out, final int compressionLevel, final int numThreads) {
+		if (numThreads<1) throw new IllegalArgumentException("numThreads must be at least 1");
+		this.out=out;
+		this.maxBlocksInFlight=numThreads*4;
+		this.deflaters=ThreadLocal.withInitial(() -> BlockCompressedOutputStream.getDefaultDeflaterFactory().makeDeflater(compressionLevel, true));
+		this.workers=Executors.newFixedThreadPool(numThreads, r -> {
+			Thread t = new Thread(r, ParallelBlockDeflatingOutputStream.class.getSimpleName() + "-worker");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		write(new byte [] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(final byte [] b, int off, int len) throws IOException {
+		while (len>0) {
+			int n = Math.min(len, blockLength-blockPosition);
+			System.arraycopy(b, off, block, blockPosition, n);
+			blockPosition+=n;
+			off+=n;
+			len-=n;
+			if (blockPosition==blockLength) {
+				if (blockLength==BLOCK_HEADER_LENGTH)
+					// now the header is here, the length of the rest of the block is known.
+					blockLength=BgzfBlocks.getBlockLength(block, 0);
+				if (blockPosition==blockLength) {
+					submit(Arrays.copyOf(block, blockLength));
+					blockPosition=0;
+					blockLength=BLOCK_HEADER_LENGTH;
+				}
+			}
+		}
+	}
+
+	private void submit (final byte [] uncompressedBlock) throws IOException {
+		pending.add(workers.submit(() -> compress(uncompressedBlock)));
+		if (pending.size()>maxBlocksInFlight)
+			writeNext();
+	}
+
+	private byte [] compress (final byte [] uncompressedBlock) throws IOException {
+		final int length = BgzfBlocks.getUncompressedLength(uncompressedBlock);
+		// empty blocks, such as the EOF marker, are written as they are.
+		if (length==0) return uncompressedBlock;
+		byte [] data = new byte [length];
+		BgzfBlocks.inflate(inflaters.get(), uncompressedBlock, data);
+		return BgzfBlocks.deflate(deflaters.get(), buffers.get(), data, length, BgzfBlocks.getCrc(uncompressedBlock));
+	}
+
+	private void writeNext () throws IOException {
+		try {
+			out.write(pending.remove().get());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for a block to be compressed", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Writes all complete blocks to the underlying stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+		while (!pending.isEmpty())
+			writeNext();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed=true;
+		try {
+			if (blockPosition!=0) throw new IOException("Stream closed part way through a BGZF block");
+			flush();
+		} finally {
+			workers.shutdownNow();
+			out.close();
+		}
+	}
+
+}
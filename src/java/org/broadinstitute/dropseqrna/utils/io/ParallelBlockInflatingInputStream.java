@@ -0,0 +1,177 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Inflater;
+
+import htsjdk.samtools.util.BlockGunzipper;
+import htsjdk.samtools.util.CloserUtil;
+
+/**
+ * Inflates the blocks of a BGZF stream on a pool of worker threads.
+ *
+ * The blocks are handed on uncompressed, but still framed as BGZF blocks, so the result can be read by anything that reads
+ * BGZF - such as a SamReader - which then only has to copy the bytes out of each block.  As the compressed offsets change,
+ * this is only suitable for reading a file from start to end, not for indexed access.
+ *
+ * A background reader thread reads compressed blocks and submits them to the worker pool, while the futures for the results
+ * are held in a bounded FIFO.  This keeps the blocks in order and limits the number of blocks in memory.
+ * @author nemesh
+ *
+ */
+public class ParallelBlockInflatingInputStream extends InputStream {
+
+	private final InputStream in;
+	private final ExecutorService workers;
+	private final BlockingQueue<Future<byte []>> pending;
+	private final Thread reader;
+	// marks the end of the input in the pending queue.
+	private final Future<byte []> endOfInput = CompletableFuture.completedFuture(null);
+	private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> BlockGunzipper.getDefaultInflaterFactory().makeInflater(true));
+
+	private byte [] current = new byte [0];
+	private int position=0;
+	private boolean exhausted=false;
+
+	/**
+	 * @param in The BGZF stream to read.
+	 * @param numThreads The number of threads to inflate blocks on.
+	 */
+	public ParallelBlockInflatingInputStream (final InputStream in, final int numThreads) {
+		if (numThreads<1) throw new IllegalArgumentException("numThreads must be at least 1");
+		this.in=in;
+		this.pending=new ArrayBlockingQueue<>(numThreads*4);
+		this.workers=Executors.newFixedThreadPool(numThreads, r -> {
+			Thread t = new Thread(r, ParallelBlockInflatingInputStream.class.getSimpleName() + "-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		this.reader=new Thread(this::readBlocks, ParallelBlockInflatingInputStream.class.getSimpleName() + "-reader");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	private void readBlocks () {
+		try {
+			byte [] block;
+			while ((block=BgzfBlocks.readBlock(in))!=null) {
+				// empty blocks, such as the EOF marker, carry nothing.
+				if (BgzfBlocks.getUncompressedLength(block)==0) continue;
+				final byte [] b = block;
+				pending.put(workers.submit(() -> uncompress(b)));
+			}
+			pending.put(endOfInput);
+		} catch (InterruptedException e) {
+			// the stream was closed before the input was exhausted.
+		} catch (Throwable t) {
+			// hand the failure to the consumer, in order.
+			CompletableFuture<byte []> failure = new CompletableFuture<>();
+			failure.completeExceptionally(t);
+			try {
+				pending.put(failure);
+			} catch (InterruptedException e) {
+				// closed, nobody is listening.
+			}
+		}
+	}
+
+	private byte [] uncompress (final byte [] block) throws IOException {
+		byte [] data = new byte [BgzfBlocks.getUncompressedLength(block)];
+		BgzfBlocks.inflate(inflaters.get(), block, data);
+		return BgzfBlocks.store(data, 0, data.length, BgzfBlocks.getCrc(block));
+	}
+
+	/**
+	 * @return false if there are no more bytes to read.
+	 */
+	private boolean fill () throws IOException {
+		while (position==current.length) {
+			if (exhausted) return false;
+			final Future<byte []> next;
+			try {
+				next=pending.take();
+				if (next==endOfInput) {
+					exhausted=true;
+					workers.shutdown();
+					return false;
+				}
+				current=next.get();
+				position=0;
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for the next block", e);
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				if (cause instanceof Error) throw (Error) cause;
+				throw new IOException(cause);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) return -1;
+		return current[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte [] b, final int off, final int len) throws IOException {
+		if (len==0) return 0;
+		if (!fill()) return -1;
+		int n = Math.min(len, current.length-position);
+		System.arraycopy(current, position, b, off, n);
+		position+=n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current.length-position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.interrupt();
+		workers.shutdownNow();
+		try {
+			// wait for the reader to let go of the underlying stream before closing it.
+			reader.join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while closing", e);
+		}
+		CloserUtil.close(in);
+	}
+
+}
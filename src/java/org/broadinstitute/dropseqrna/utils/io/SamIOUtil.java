@@ -0,0 +1,116 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import htsjdk.samtools.BamFileIoUtils;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Opens BAM files for reading and writing with BGZF inflate and deflate spread over several threads.
+ *
+ * With 1 thread, or when the multithreaded streams can't be used, files are opened exactly as the factories would open them.
+ * Reading in parallel only supports reading the whole file from the start, so readers opened this way can't be queried.
+ * Writing in parallel compresses at the default compression level (the COMPRESSION_LEVEL argument of the program), and isn't used
+ * if an index or MD5 file is to be created while writing, as those are computed from the compressed blocks.
+ * @author nemesh
+ *
+ */
+public class SamIOUtil {
+
+	private static final Log log = Log.getInstance(SamIOUtil.class);
+
+	public static final String NUM_IO_THREADS_DOC = "Number of threads used to decompress input BAMs and compress output BAMs.  Indexes and MD5 files are not created when writing with more than 1 thread.";
+
+	private static final int BUFFER_SIZE = 1024*1024;
+
+	/**
+	 * Open a SAM/BAM/CRAM file for reading.  BAM files are inflated on numThreads threads.
+	 */
+	public static SamReader openReader (final SamReaderFactory factory, final File input, final int numThreads) {
+		if (numThreads<=1 || !isBlockCompressed(input))
+			return factory.open(input);
+		try {
+			log.info("Reading " + input.getAbsolutePath() + " with [" + numThreads + "] threads");
+			return factory.open(SamInputResource.of(new ParallelBlockInflatingInputStream(new BufferedInputStream(new FileInputStream(input), BUFFER_SIZE), numThreads)));
+		} catch (FileNotFoundException e) {
+			throw new RuntimeIOException("Could not open " + input.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Open a SAM/BAM/CRAM file for writing, as SAMFileWriterFactory.makeSAMOrBAMWriter does.  BAM files are deflated on numThreads threads.
+	 * SAMFileWriterFactory doesn't say whether it will write an index or MD5 file, so they are passed here and set on the factory.
+	 * Only the factory's own BAM writer can create them, so if either is requested the BAM is written on a single thread.
+	 */
+	public static SAMFileWriter makeSAMOrBAMWriter (final SAMFileWriterFactory factory, final boolean createIndex, final boolean createMd5File,
+			final SAMFileHeader header, final boolean presorted, final File output, final int numThreads) {
+		factory.setCreateIndex(createIndex).setCreateMd5File(createMd5File);
+		if (numThreads<=1 || !output.getName().endsWith(BamFileIoUtils.BAM_FILE_EXTENSION) || factory.getCompressionLevel()==0 ||
+				createIndex || createMd5File)
+			return factory.makeSAMOrBAMWriter(header, presorted, output);
+		try {
+			log.info("Writing " + output.getAbsolutePath() + " with [" + numThreads + "] threads");
+			ParallelBlockDeflatingOutputStream out = new ParallelBlockDeflatingOutputStream(new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE),
+					factory.getCompressionLevel(), numThreads);
+			// blocks are written uncompressed, and compressed by the stream.
+			return new SAMFileWriterFactory(factory).setCompressionLevel(0).makeBAMWriter(header, presorted, out);
+		} catch (FileNotFoundException e) {
+			throw new RuntimeIOException("Could not open " + output.getAbsolutePath() + " for writing", e);
+		}
+	}
+
+	/**
+	 * Open a SAM/BAM/CRAM file for writing with a default SAMFileWriterFactory, which creates an index and MD5 file if the htsjdk defaults say to.
+	 */
+	public static SAMFileWriter makeSAMOrBAMWriter (final SAMFileHeader header, final boolean presorted, final File output, final int numThreads) {
+		return makeSAMOrBAMWriter(new SAMFileWriterFactory(), SAMFileWriterFactory.getDefaultCreateIndexWhileWriting(),
+				SAMFileWriterFactory.getDefaultCreateMd5File(), header, presorted, output, numThreads);
+	}
+
+	private static boolean isBlockCompressed (final File input) {
+		if (!input.isFile()) return false;
+		try {
+			return IOUtil.isBlockCompressed(input.toPath());
+		} catch (IOException e) {
+			throw new RuntimeIOException("Could not read " + input.getAbsolutePath(), e);
+		}
+	}
+
+}
@@ -0,0 +1,304 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.readiterators;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.broadinstitute.dropseqrna.TranscriptomeException;
+import org.broadinstitute.dropseqrna.utils.GroupingIterator;
+import org.broadinstitute.dropseqrna.utils.SortingIteratorFactory;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriterImpl;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.IterableOnceIterator;
+import htsjdk.samtools.util.ProgressLogger;
+import htsjdk.samtools.util.TempStreamFactory;
+
+/**
+ * Sorts and groups reads the same way as a SamRecordSortingIteratorFactory + GroupingIterator pair, but splits the work into
+ * independent shards by cell barcode so that the sort and the per-group processing run in parallel.
+ *
+ * In one pass over the input, reads are hash-partitioned by the value of the cell barcode tag into numShards temporary files.
+ * Each shard is then sorted and grouped on its own thread, and the group function is applied to each group.  All the reads of a
+ * cell are in the same shard, so as long as the comparator orders by cell barcode first, no group spans two shards.
+ * The results are merged back in the order of the comparator, so the output is the same as sorting all the reads at once and
+ * applying the group function serially.
+ *
+ * The group function is called from the shard threads, so it must be thread-safe, and must not change the fields of
+ * the reads the comparator looks at.  Accumulate anything that is shared across cells on the consumer thread instead.
+ *
+ * @param <OUTPUT> The result of processing a single group of reads.
+ */
+public class CellBarcodeShardingIterator<OUTPUT> extends IterableOnceIterator<OUTPUT> implements CloseableIterator<OUTPUT> {
+
+	// the number of processed groups each shard can get ahead of the consumer.
+	private static final int MAX_GROUPS_IN_FLIGHT=100;
+
+	private final SAMFileHeader header;
+	private final Comparator<SAMRecord> comparator;
+	private final Function<List<SAMRecord>, OUTPUT> groupFunction;
+	private final int maxRecordsInRamPerShard;
+	private final List<File> shardFiles;
+	private final List<BlockingQueue<ProcessedGroup<OUTPUT>>> shardResults;
+	private final ExecutorService workers;
+
+	// the next unconsumed group from each shard, or null if it has not been taken from the queue yet.
+	private final List<ProcessedGroup<OUTPUT>> heads;
+	private final boolean [] exhausted;
+
+	/**
+	 * @param header The header of the input reads, used to spill reads to disk.
+	 * @param underlyingIterator The reads to process.  This is read and closed by the constructor.
+	 * @param cellBarcodeTag The tag to shard reads by.
+	 * @param comparator Defines the sort order, and which reads are grouped together.  Must order by cell barcode first.
+	 * @param groupFunction The function applied to each group of reads that are equal according to the comparator.  Must be thread-safe.
+	 * @param numShards The number of shards, each of which is sorted and processed on its own thread.
+	 * @param progressLogger Pass null if not interested in progress.
+	 */
+	public CellBarcodeShardingIterator (final SAMFileHeader header, final Iterator<SAMRecord> underlyingIterator, final String cellBarcodeTag,
+			final Comparator<SAMRecord> comparator, final Function<List<SAMRecord>, OUTPUT> groupFunction, final int numShards, final ProgressLogger progressLogger) {
+		if (numShards<1) throw new IllegalArgumentException("numShards must be at least 1");
+		this.header=header;
+		this.comparator=comparator;
+		this.groupFunction=groupFunction;
+		this.maxRecordsInRamPerShard=Math.max(1, SAMFileWriterImpl.getDefaultMaxRecordsInRam()/numShards);
+		this.shardFiles=partition(underlyingIterator, cellBarcodeTag, numShards, progressLogger);
+
+		this.shardResults=new ArrayList<>(numShards);
+		this.heads=new ArrayList<>(numShards);
+		this.exhausted=new boolean [numShards];
+		// one thread per shard, so a shard that is waiting for the consumer never holds up a shard the consumer is waiting for.
+		// The pool starts a new thread for each of the first numShards tasks, so thread i processes shard i.
+		final AtomicInteger shardIndex = new AtomicInteger();
+		this.workers=Executors.newFixedThreadPool(numShards, r -> {
+			Thread t = new Thread(r, CellBarcodeShardingIterator.class.getSimpleName() + "-shard-" + shardIndex.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+		for (int i=0; i<numShards; i++) {
+			final BlockingQueue<ProcessedGroup<OUTPUT>> queue = new ArrayBlockingQueue<>(MAX_GROUPS_IN_FLIGHT);
+			final File shardFile = this.shardFiles.get(i);
+			this.shardResults.add(queue);
+			this.heads.add(null);
+			this.workers.submit(() -> processShard(shardFile, queue));
+		}
+		this.workers.shutdown();
+	}
+
+	/**
+	 * Write each read to the shard for its cell barcode.  Reads without a cell barcode all go to the same shard.
+	 */
+	private List<File> partition (final Iterator<SAMRecord> iter, final String cellBarcodeTag, final int numShards, final ProgressLogger progressLogger) {
+		final List<File> files = new ArrayList<>(numShards);
+		final List<OutputStream> streams = new ArrayList<>(numShards);
+		final List<BAMRecordCodec> codecs = new ArrayList<>(numShards);
+		final TempStreamFactory tempStreamFactory = new TempStreamFactory();
+		try {
+			for (int i=0; i<numShards; i++) {
+				final File f = File.createTempFile("cellBarcodeShard." + i + ".", ".tmp", IOUtil.getDefaultTmpDir());
+				f.deleteOnExit();
+				files.add(f);
+				final OutputStream os = tempStreamFactory.wrapTempOutputStream(new BufferedOutputStream(new FileOutputStream(f), Defaults.BUFFER_SIZE), Defaults.BUFFER_SIZE);
+				streams.add(os);
+				final BAMRecordCodec codec = new BAMRecordCodec(this.header);
+				codec.setOutputStream(os);
+				codecs.add(codec);
+			}
+			while (iter.hasNext()) {
+				final SAMRecord r = iter.next();
+				if (progressLogger!=null)
+					progressLogger.record(r);
+				final Object cellBarcode = r.getAttribute(cellBarcodeTag);
+				final int shard = cellBarcode==null ? 0 : Math.floorMod(cellBarcode.hashCode(), numShards);
+				codecs.get(shard).encode(r);
+			}
+			for (OutputStream os: streams)
+				os.close();
+		} catch (IOException e) {
+			IOUtil.deleteFiles(files);
+			throw new TranscriptomeException("Could not write cell barcode shard", e);
+		} finally {
+			CloserUtil.close(iter);
+		}
+		return files;
+	}
+
+	/**
+	 * Sort and group a single shard, and hand the processed groups to the consumer in order.
+	 */
+	private void processShard (final File shardFile, final BlockingQueue<ProcessedGroup<OUTPUT>> queue) {
+		try {
+			final CloseableIterator<SAMRecord> sortedIterator;
+			try (InputStream is = new TempStreamFactory().wrapTempInputStream(new FileInputStream(shardFile), Defaults.BUFFER_SIZE)) {
+				final BAMRecordCodec codec = new BAMRecordCodec(this.header);
+				codec.setInputStream(is);
+				sortedIterator = SortingIteratorFactory.create(SAMRecord.class, new ShardReader(codec), this.comparator, new BAMRecordCodec(this.header),
+						this.maxRecordsInRamPerShard, null);
+			}
+			IOUtil.deleteFiles(shardFile);
+			final GroupingIterator<SAMRecord> groupingIterator = new GroupingIterator<>(sortedIterator, this.comparator);
+			try {
+				for (List<SAMRecord> group: groupingIterator)
+					queue.put(new ProcessedGroup<>(group.get(0), this.groupFunction.apply(group), null));
+			} finally {
+				CloserUtil.close(groupingIterator);
+			}
+			queue.put(new ProcessedGroup<>(null, null, null));
+		} catch (InterruptedException e) {
+			// the iterator was closed before the shard was finished.
+		} catch (Throwable t) {
+			// hand the failure to the consumer.
+			try {
+				queue.put(new ProcessedGroup<>(null, null, t));
+			} catch (InterruptedException e) {
+				// closed, nobody is listening.
+			}
+		}
+	}
+
+	/**
+	 * Make sure the head of each shard that isn't finished is available.
+	 */
+	private void fillHeads () {
+		for (int i=0; i<this.heads.size(); i++) {
+			if (this.exhausted[i] || this.heads.get(i)!=null) continue;
+			final ProcessedGroup<OUTPUT> group;
+			try {
+				group=this.shardResults.get(i).take();
+			} catch (InterruptedException e) {
+				throw new TranscriptomeException("Interrupted while waiting for the next group", e);
+			}
+			if (group.failure!=null) {
+				if (group.failure instanceof RuntimeException) throw (RuntimeException) group.failure;
+				if (group.failure instanceof Error) throw (Error) group.failure;
+				throw new TranscriptomeException(group.failure.getMessage(), group.failure);
+			}
+			if (group.firstRecord==null)
+				this.exhausted[i]=true;
+			else
+				this.heads.set(i, group);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		fillHeads();
+		for (ProcessedGroup<OUTPUT> g: this.heads)
+			if (g!=null) return true;
+		return false;
+	}
+
+	@Override
+	public OUTPUT next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		int best=-1;
+		for (int i=0; i<this.heads.size(); i++) {
+			final ProcessedGroup<OUTPUT> g = this.heads.get(i);
+			if (g!=null && (best==-1 || this.comparator.compare(g.firstRecord, this.heads.get(best).firstRecord)<0))
+				best=i;
+		}
+		final ProcessedGroup<OUTPUT> result = this.heads.get(best);
+		this.heads.set(best, null);
+		return result.output;
+	}
+
+	@Override
+	public void close() {
+		this.workers.shutdownNow();
+		// shards that were finished have already deleted their files.
+		for (File f: this.shardFiles)
+			if (f.exists())
+				IOUtil.deleteFiles(f);
+		try {
+			super.close();
+		} catch (IOException e) {
+			throw new TranscriptomeException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * The result of processing a group, with the first record of the group to order it against the groups of other shards.
+	 * A group with no first record marks the end of the shard.
+	 */
+	private static class ProcessedGroup<OUTPUT> {
+		private final SAMRecord firstRecord;
+		private final OUTPUT output;
+		private final Throwable failure;
+
+		ProcessedGroup (final SAMRecord firstRecord, final OUTPUT output, final Throwable failure) {
+			this.firstRecord=firstRecord;
+			this.output=output;
+			this.failure=failure;
+		}
+	}
+
+	/**
+	 * Reads back the records of a shard file.
+	 */
+	private static class ShardReader implements Iterator<SAMRecord> {
+		private final BAMRecordCodec codec;
+		private SAMRecord next;
+
+		ShardReader (final BAMRecordCodec codec) {
+			this.codec=codec;
+			this.next=codec.decode();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.next!=null;
+		}
+
+		@Override
+		public SAMRecord next() {
+			if (this.next==null) throw new NoSuchElementException();
+			final SAMRecord result = this.next;
+			this.next=this.codec.decode();
+			return result;
+		}
+	}
+}
@@ -27,6 +27,7 @@ import com.google.common.collect.Interner;
 import com.google.common.collect.Interners;
 import htsjdk.samtools.*;
 import htsjdk.samtools.util.IOUtil;
+import org.broadinstitute.dropseqrna.utils.io.SamIOUtil;
 import picard.PicardException;
 
 import java.io.File;
@@ -46,6 +47,19 @@ public class SamFileMergeUtil {
     public static SamHeaderAndIterator mergeInputs(final List<File> inputs,
                                                    final boolean maintainSort,
                                                    final SamReaderFactory samReaderFactory) {
+        return mergeInputs(inputs, maintainSort, samReaderFactory, 1);
+    }
+
+    /**
+     * Use this overload to inflate BAM inputs on several threads.
+     * @param maintainSort If true, all inputs must be sorted the same way, and they are merge sorted.  If false, inputs
+     *                     are merged in arbitrary order.
+     * @param numIOThreads The number of threads to inflate each BAM input on.  See {@link SamIOUtil}.
+     */
+    public static SamHeaderAndIterator mergeInputs(final List<File> inputs,
+                                                   final boolean maintainSort,
+                                                   final SamReaderFactory samReaderFactory,
+                                                   final int numIOThreads) {
         if (inputs.isEmpty()) {
             throw new IllegalArgumentException("At least one input must be provided");
         }
@@ -55,7 +69,7 @@ public class SamFileMergeUtil {
         SAMFileHeader.SortOrder inputSortOrder = null;
         for (final File inFile : inputs) {
             IOUtil.assertFileIsReadable(inFile);
-            final SamReader in = samReaderFactory.open(inFile);
+            final SamReader in = SamIOUtil.openReader(samReaderFactory, inFile, numIOThreads);
             readers.add(in);
             final SAMFileHeader header = in.getFileHeader();
             header.setSequenceDictionary(sequenceDictionaryInterner.intern(header.getSequenceDictionary()));
@@ -23,25 +23,41 @@
  */
 package org.broadinstitute.dropseqrna.utils.readiterators;
 
+import htsjdk.samtools.SAMFileWriterImpl;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.util.*;
 import org.broadinstitute.dropseqrna.barnyard.Utils;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.UMICollection;
 import org.broadinstitute.dropseqrna.utils.*;
+import org.broadinstitute.dropseqrna.utils.io.VarInt;
 import picard.annotation.LocusFunction;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 
 public class UMIIterator implements CloseableIterator<UMICollection>  {
 
     private static final Log log = Log.getInstance(UMIIterator.class);
     private static final ProgressLogger prog = new ProgressLogger(log);
 
-	private final GroupingIterator<SAMRecord> atoi;
-	private final String geneTag;
+	// Sorting whole SAMRecords spills them to disk, so each read is reduced to ids for its gene, cell and UMI before sorting.
+	// These are much smaller than a SAMRecord, so many more of them fit in RAM.
+	private static final int MAX_RECORDS_IN_RAM = SAMFileWriterImpl.getDefaultMaxRecordsInRam()*10;
+
+	private final GroupingIterator<GeneCellUMI> atoi;
 	private final String cellBarcodeTag;
-	private final String molecularBarcodeTag;
-    private final StringInterner stringCache = new StringInterner();
+	// Each distinct string is held once, and UMI strings are shared across (cell, gene).
+	private final StringDictionary genes = new StringDictionary();
+	private final StringDictionary cells = new StringDictionary();
+	private final StringDictionary molecularBarcodes = new StringDictionary();
 
 	/**
 	 * Construct an object that generates UMI objects from a BAM file
@@ -98,17 +114,16 @@ public class UMIIterator implements CloseableIterator<UMICollection>  {
                        final Collection<String> cellBarcodes,
                        final boolean cellFirstSort) {
 
-        this.geneTag=geneTag;
         this.cellBarcodeTag=cellBarcodeTag;
-        this.molecularBarcodeTag=molecularBarcodeTag;
 
-        final StringTagComparator cellBarcodeTagComparator = new StringTagComparator(cellBarcodeTag);
-        final StringTagComparator geneExonTagComparator = new StringTagComparator(geneTag);
-        final MultiComparator<SAMRecord> multiComparator;
+        final Comparator<GeneCellUMI> geneComparator = (a, b) -> genes.compare(a.gene, b.gene);
+        final Comparator<GeneCellUMI> cellComparator = (a, b) -> cells.compare(a.cell, b.cell);
+        final Comparator<GeneCellUMI> comparator;
 		if (cellFirstSort)
-			multiComparator = new MultiComparator<>(cellBarcodeTagComparator, geneExonTagComparator);
+			comparator = cellComparator.thenComparing(geneComparator);
 		else
-			multiComparator = new MultiComparator<>(geneExonTagComparator, cellBarcodeTagComparator);
+			comparator = geneComparator.thenComparing(cellComparator);
+
         // Filter records before sorting, to reduce I/O
 		MissingTagFilteringIterator filteringIterator =
                 new MissingTagFilteringIterator(headerAndIterator.iterator, cellBarcodeTag, geneTag, molecularBarcodeTag);
@@ -125,13 +140,25 @@ public class UMIIterator implements CloseableIterator<UMICollection>  {
 		// Filter/assign reads based on functional annotations
 		GeneFunctionIteratorWrapper gfteratorWrapper = new GeneFunctionIteratorWrapper(filteringIterator3, geneTag, geneStrandTag, geneFunctionTag, assignReadsToAllGenes, strandStrategy, acceptedLociFunctions);
 
-        CloseableIterator<SAMRecord> sortedAlignmentIterator = SamRecordSortingIteratorFactory.create(
-                headerAndIterator.header, gfteratorWrapper, multiComparator, prog);
+		// Only the tags are needed after this point.
+		Iterator<GeneCellUMI> geneCellUMIIterator = new TransformingIterator<SAMRecord, GeneCellUMI>(gfteratorWrapper) {
+			@Override
+			public GeneCellUMI next() {
+				SAMRecord r = this.underlyingIterator.next();
+				prog.record(r);
+				return new GeneCellUMI(genes.getId(r.getStringAttribute(geneTag)), cells.getId(Utils.getCellBC(r, cellBarcodeTag)),
+						molecularBarcodes.getId(r.getStringAttribute(molecularBarcodeTag)));
+			}
+		};
+
+		// The sorting collection is stable, so within a (cell, gene) UMIs are seen in the same order as the reads.
+        CloseableIterator<GeneCellUMI> sortedIterator = SortingIteratorFactory.create(GeneCellUMI.class,
+        		geneCellUMIIterator, comparator, new GeneCellUMICodec(), MAX_RECORDS_IN_RAM, null);
 
         // Not really -- merge sort is ongoing.
         log.info("Sorting finished.");
 
-		this.atoi = new GroupingIterator<>(sortedAlignmentIterator, multiComparator);
+		this.atoi = new GroupingIterator<>(sortedIterator, comparator);
 	}
 
     /**
@@ -143,26 +170,14 @@ public class UMIIterator implements CloseableIterator<UMICollection>  {
 		if (!this.atoi.hasNext())
 			return null;
 
-		Collection<SAMRecord> records = this.atoi.next();
-		PeekableIterator<SAMRecord> recordCollectionIter = new PeekableIterator<>(records.iterator());
+		List<GeneCellUMI> records = this.atoi.next();
 
-		// the next record is the first of the "batch"
-		SAMRecord r = recordCollectionIter.peek();
-		String currentGene = r.getStringAttribute(geneTag);
-		String currentCell = Utils.getCellBC(r, cellBarcodeTag);
-		UMICollection umi = new UMICollection(currentCell, currentGene);
+		// the first record is the first of the "batch"
+		GeneCellUMI r = records.get(0);
+		UMICollection umi = new UMICollection(cells.get(r.cell), genes.get(r.gene));
 
-		while (recordCollectionIter.hasNext()) {
-			// if there's a next read, set up the current gene/cell variables.
-			r=recordCollectionIter.next();
-            // Cache the UMI.  Note that within a single (cell, gene), the ObjectCounter effectively caches the UMI string,
-            // but they are not cached *across* (cell, gene), so this should help.
-			String molecularBarcode = stringCache.intern(r.getStringAttribute(this.molecularBarcodeTag));
-			umi.incrementMolecularBarcodeCount(molecularBarcode);
-
-		}
-		// I ran out of reads
-		recordCollectionIter.close();
+		for (GeneCellUMI rec: records)
+			umi.incrementMolecularBarcodeCount(molecularBarcodes.get(rec.umi));
 		return (umi);
 	}
 
@@ -181,5 +196,68 @@ public class UMIIterator implements CloseableIterator<UMICollection>  {
 		return this.atoi.hasNext();
 	}
 
+	/**
+	 * The gene, cell and molecular barcode of a read, as ids of the strings.
+	 */
+	private static class GeneCellUMI {
+		private final int gene;
+		private final int cell;
+		private final int umi;
+
+		GeneCellUMI (final int gene, final int cell, final int umi) {
+			this.gene=gene;
+			this.cell=cell;
+			this.umi=umi;
+		}
+	}
+
+	private static class GeneCellUMICodec implements SortingCollection.Codec<GeneCellUMI> {
+		private DataOutputStream outputStream = null;
+		private DataInputStream inputStream = null;
+
+		@Override
+		public void setOutputStream(final OutputStream stream) {
+			this.outputStream = new DataOutputStream(stream);
+		}
+
+		@Override
+		public void setInputStream(final InputStream stream) {
+			this.inputStream = new DataInputStream(stream);
+		}
+
+		@Override
+		public void encode(final GeneCellUMI val) {
+			try {
+				VarInt.write(this.outputStream, val.gene);
+				VarInt.write(this.outputStream, val.cell);
+				VarInt.write(this.outputStream, val.umi);
+			} catch (final IOException ioe) {
+				throw new RuntimeIOException("Could not encode UMI record for a sorting collection: " + ioe.getMessage(), ioe);
+			}
+		}
+
+		@Override
+		public GeneCellUMI decode() {
+			final int gene;
+			try {
+				gene = VarInt.read(this.inputStream);
+			} catch (EOFException e) {
+				return null;
+			} catch (IOException e) {
+				throw new RuntimeIOException("Exception reading UMI record from temporary file.", e);
+			}
+			try {
+				return new GeneCellUMI(gene, VarInt.read(this.inputStream), VarInt.read(this.inputStream));
+			} catch (IOException e) {
+				throw new RuntimeIOException("Exception reading UMI record from temporary file.", e);
+			}
+		}
+
+		@Override
+		public SortingCollection.Codec<GeneCellUMI> clone() {
+			return new GeneCellUMICodec();
+		}
+	}
+
 
 }
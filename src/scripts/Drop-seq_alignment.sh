@@ -129,31 +129,16 @@ tag_with_gene_exon=""
 
 # Stage 1: pre-alignment tag and trim
 
-# cellular tag
-$echo_prefix ${dropseq_root}/TagBamWithReadSequenceExtended SUMMARY=${outdir}/unaligned_tagged_Cellular.bam_summary.txt \
-  BASE_RANGE=1-12 BASE_QUALITY=10 BARCODED_READ=1 DISCARD_READ=false TAG_NAME=XC NUM_BASES_BELOW_QUALITY=1 \
-  INPUT=${unmapped_bam} OUTPUT=$tmpdir/unaligned_tagged_Cell.bam
-files_to_delete="$files_to_delete $tmpdir/unaligned_tagged_Cell.bam"
-
-# molecular tag
-$echo_prefix ${dropseq_root}/TagBamWithReadSequenceExtended SUMMARY=${outdir}/unaligned_tagged_Molecular.bam_summary.txt \
-  BASE_RANGE=13-20 BASE_QUALITY=10 BARCODED_READ=1 DISCARD_READ=true TAG_NAME=XM NUM_BASES_BELOW_QUALITY=1 \
-  INPUT=$tmpdir/unaligned_tagged_Cell.bam OUTPUT=$tmpdir/unaligned_tagged_CellMolecular.bam
-files_to_delete="$files_to_delete $tmpdir/unaligned_tagged_CellMolecular.bam"
-
-# quality filter
-$echo_prefix ${dropseq_root}/FilterBam TAG_REJECT=XQ INPUT=$tmpdir/unaligned_tagged_CellMolecular.bam \
-  OUTPUT=$tmpdir/unaligned_tagged_filtered.bam
-files_to_delete="$files_to_delete $tmpdir/unaligned_tagged_filtered.bam"
-
-# read trimming
-$echo_prefix ${dropseq_root}/TrimStartingSequence OUTPUT_SUMMARY=${outdir}/adapter_trimming_report.txt \
-  SEQUENCE=AAGCAGTGGTATCAACGCAGAGTGAATGGG MISMATCHES=0 NUM_BASES=5 INPUT=$tmpdir/unaligned_tagged_filtered.bam \
-  OUTPUT=$tmpdir/unaligned_tagged_trimmed_smart.bam
-files_to_delete="$files_to_delete $tmpdir/unaligned_tagged_trimmed_smart.bam"
-
-$echo_prefix ${dropseq_root}/PolyATrimmer OUTPUT=${tagged_unmapped_bam} OUTPUT_SUMMARY=${outdir}/polyA_trimming_report.txt \
-  MISMATCHES=0 NUM_BASES=6 NEW=true INPUT=$tmpdir/unaligned_tagged_trimmed_smart.bam
+# cellular tag, molecular tag, quality filter, adapter trimming and polyA trimming, in a single pass
+$echo_prefix ${dropseq_root}/TagAndTrimUnalignedBam INPUT=${unmapped_bam} OUTPUT=${tagged_unmapped_bam} \
+  CELL_BARCODE_SUMMARY=${outdir}/unaligned_tagged_Cellular.bam_summary.txt \
+  MOLECULAR_BARCODE_SUMMARY=${outdir}/unaligned_tagged_Molecular.bam_summary.txt \
+  ADAPTER_TRIMMING_SUMMARY=${outdir}/adapter_trimming_report.txt \
+  POLY_A_TRIMMING_SUMMARY=${outdir}/polyA_trimming_report.txt \
+  BARCODED_READ=1 CELL_BARCODE_BASE_RANGE=1-12 CELL_BARCODE_TAG=XC MOLECULAR_BARCODE_BASE_RANGE=13-20 MOLECULAR_BARCODE_TAG=XM \
+  DISCARD_READ=true BASE_QUALITY=10 NUM_BASES_BELOW_QUALITY=1 TAG_QUALITY=XQ \
+  ADAPTER_SEQUENCE=AAGCAGTGGTATCAACGCAGAGTGAATGGG ADAPTER_MISMATCHES=0 ADAPTER_NUM_BASES=5 \
+  POLY_A_MISMATCHES=0 POLY_A_NUM_BASES=6 USE_NEW_TRIMMER=true
 files_to_delete="$files_to_delete ${tagged_unmapped_bam}"
 
 
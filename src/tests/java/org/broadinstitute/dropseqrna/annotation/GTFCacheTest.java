@@ -0,0 +1,164 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.annotation;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.OverlapDetector;
+import org.broadinstitute.dropseqrna.utils.DropSeqSamUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import picard.annotation.Gene;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+public class GTFCacheTest {
+
+	File GTF_FILE1 = new File("testdata/org/broadinstitute/transcriptome/annotation/human_ISG15.gtf.gz");
+	File SD = new File("testdata/org/broadinstitute/transcriptome/annotation/human_g1k_v37_decoy_50.dict");
+
+	@Test
+	public void testCacheRoundTrip() throws IOException {
+		File gtf = copyGTF();
+		File cacheDir = createTempDir();
+		SAMSequenceDictionary dict = DropSeqSamUtil.loadSequenceDictionary(SD);
+		GTFCache cache = new GTFCache(gtf, dict, cacheDir);
+
+		OverlapDetector<Gene> parsed = loadWithCache(gtf, dict, cacheDir);
+		Assert.assertTrue(cache.getCacheFile().exists());
+		OverlapDetector<GeneFromGTF> cached = cache.read();
+		Assert.assertNotNull(cached);
+		Assert.assertFalse(cached.getAll().isEmpty());
+		Assert.assertEquals(describe(cached.getAll()), describe(parsed.getAll()));
+		// and the reader uses the cache.
+		Assert.assertEquals(describe(loadWithCache(gtf, dict, cacheDir).getAll()), describe(parsed.getAll()));
+	}
+
+	@Test
+	public void testCachingOff() throws IOException {
+		File gtf = copyGTF();
+		SAMSequenceDictionary dict = DropSeqSamUtil.loadSequenceDictionary(SD);
+		Assert.assertNull(System.getProperty(GTFCache.CACHE_DIR_PROPERTY));
+		Assert.assertNull(GTFCache.getCacheDirectory());
+		Assert.assertFalse(GeneAnnotationReader.loadAnnotationsFile(gtf, dict).getAll().isEmpty());
+		File [] files = gtf.getParentFile().listFiles();
+		Assert.assertEquals(files.length, 1);
+	}
+
+	@Test
+	public void testStaleCache() throws IOException {
+		File gtf = copyGTF();
+		File cacheDir = createTempDir();
+		SAMSequenceDictionary dict = DropSeqSamUtil.loadSequenceDictionary(SD);
+		loadWithCache(gtf, dict, cacheDir);
+		Assert.assertNotNull(new GTFCache(gtf, dict, cacheDir).read());
+
+		// a different sequence dictionary.
+		SAMSequenceDictionary otherDict = new SAMSequenceDictionary(new ArrayList<>(dict.getSequences()));
+		otherDict.addSequence(new SAMSequenceRecord("extra_contig", 1000));
+		Assert.assertNull(new GTFCache(gtf, otherDict, cacheDir).read());
+
+		// a truncated cache.
+		File cacheFile = GTFCache.getCacheFile(gtf, cacheDir);
+		try (RandomAccessFile f = new RandomAccessFile(cacheFile, "rw")) {
+			f.setLength(f.length()/2);
+		}
+		Assert.assertNull(new GTFCache(gtf, dict, cacheDir).read());
+
+		// a changed GTF.
+		loadWithCache(gtf, dict, cacheDir);
+		Assert.assertNotNull(new GTFCache(gtf, dict, cacheDir).read());
+		Files.write(gtf.toPath(), new byte [] {0}, java.nio.file.StandardOpenOption.APPEND);
+		Assert.assertNull(new GTFCache(gtf, dict, cacheDir).read());
+	}
+
+	@Test
+	public void testUnreadableGTF() throws IOException {
+		File cacheDir = createTempDir();
+		File gtf = new File(cacheDir, "missing.gtf");
+		SAMSequenceDictionary dict = DropSeqSamUtil.loadSequenceDictionary(SD);
+		GTFCache cache = new GTFCache(gtf, dict, cacheDir);
+		// only a warning.
+		cache.write(Collections.emptyList());
+		Assert.assertFalse(cache.getCacheFile().exists());
+		Assert.assertNull(cache.read());
+	}
+
+	private OverlapDetector<Gene> loadWithCache (final File gtf, final SAMSequenceDictionary dict, final File cacheDir) {
+		GTFCache.getCacheFile(gtf, cacheDir).deleteOnExit();
+		System.setProperty(GTFCache.CACHE_DIR_PROPERTY, cacheDir.getAbsolutePath());
+		try {
+			return GeneAnnotationReader.loadAnnotationsFile(gtf, dict);
+		} finally {
+			System.clearProperty(GTFCache.CACHE_DIR_PROPERTY);
+		}
+	}
+
+	private File copyGTF () throws IOException {
+		File dir = createTempDir();
+		File gtf = new File(dir, GTF_FILE1.getName());
+		IOUtil.copyFile(GTF_FILE1, gtf);
+		gtf.deleteOnExit();
+		return gtf;
+	}
+
+	private File createTempDir () throws IOException {
+		File dir = Files.createTempDirectory("GTFCacheTest").toFile();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private List<String> describe (final Collection<? extends Gene> genes) {
+		List<String> result = new ArrayList<>();
+		for (Gene g: genes) {
+			GeneFromGTF gene = (GeneFromGTF) g;
+			StringBuilder b = new StringBuilder();
+			b.append(gene.getContig()).append(":").append(gene.getStart()).append("-").append(gene.getEnd()).append(gene.isNegativeStrand())
+					.append(" ").append(gene.getName()).append(" ").append(gene.getGeneID()).append(" ").append(gene.getFeatureType())
+					.append(" ").append(gene.getTranscriptType()).append(" ").append(gene.getGeneVersion());
+			List<String> transcripts = new ArrayList<>();
+			for (GeneFromGTF.TranscriptFromGTF t: gene.getTranscripts()) {
+				StringBuilder tb = new StringBuilder();
+				tb.append(t.name).append(" ").append(t.transcriptionStart).append("-").append(t.transcriptionEnd).append(" ").append(t.codingStart)
+						.append("-").append(t.codingEnd).append(" ").append(t.getTranscriptName()).append(" ").append(t.getTranscriptID())
+						.append(" ").append(t.getTranscriptType());
+				for (Gene.Transcript.Exon e: t.exons)
+					tb.append(" ").append(e.start).append("-").append(e.end);
+				transcripts.add(tb.toString());
+			}
+			Collections.sort(transcripts);
+			result.add(b.toString() + transcripts);
+		}
+		Collections.sort(result);
+		return result;
+	}
+}
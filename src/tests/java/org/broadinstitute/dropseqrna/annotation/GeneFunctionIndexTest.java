@@ -0,0 +1,132 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.annotation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.OverlapDetector;
+import picard.annotation.Gene;
+import picard.annotation.LocusFunction;
+
+public class GeneFunctionIndexTest {
+
+	File GTF = new File ("testdata/org/broadinstitute/dropseq/annotation/test.gtf.gz");
+	File BAM = new File ("testdata/org/broadinstitute/dropseq/annotation/test.bam");
+
+	private static final String [] CIGARS = {"60M", "1M", "20M500N40M", "10M100N10M2000N10M", "30M5I25M", "5S50M10D5M"};
+
+	@Test
+	public void testMatchesAnnotationUtils() {
+		SamReader reader = SamReaderFactory.makeDefault().open(BAM);
+		SAMFileHeader header = reader.getFileHeader();
+		OverlapDetector<Gene> geneOverlapDetector = GeneAnnotationReader.loadAnnotationsFile(GTF, header.getSequenceDictionary());
+		GeneFunctionIndex index = new GeneFunctionIndex(geneOverlapDetector.getAll());
+		GeneFunctionIndex.ReadFunctionalData data = index.newReadFunctionalData();
+
+		int numReads=0;
+		int numWithGenes=0;
+		// the reads in the BAM.
+		for (SAMRecord r: reader) {
+			if (r.getReadUnmappedFlag()) continue;
+			numWithGenes+=compare(r, geneOverlapDetector, index, data);
+			numReads++;
+		}
+		CloserUtil.close(reader);
+
+		// reads with a variety of alignments tiled across each gene and its flanks.
+		SAMRecord r = new SAMRecord(header);
+		for (Gene g: geneOverlapDetector.getAll()) {
+			r.setReferenceName(g.getContig());
+			for (int start=g.getStart()-3000; start<=g.getEnd()+3000; start+=97)
+				for (String cigar: CIGARS) {
+					r.setAlignmentStart(Math.max(1, start));
+					r.setCigarString(cigar);
+					numWithGenes+=compare(r, geneOverlapDetector, index, data);
+					numReads++;
+				}
+		}
+		Assert.assertTrue(numWithGenes>0);
+		Assert.assertTrue(numWithGenes<numReads);
+	}
+
+	@Test
+	public void testUnknownContig() {
+		SamReader reader = SamReaderFactory.makeDefault().open(BAM);
+		SAMFileHeader header = reader.getFileHeader();
+		OverlapDetector<Gene> geneOverlapDetector = GeneAnnotationReader.loadAnnotationsFile(GTF, header.getSequenceDictionary());
+		CloserUtil.close(reader);
+		GeneFunctionIndex index = new GeneFunctionIndex(geneOverlapDetector.getAll());
+		GeneFunctionIndex.ReadFunctionalData data = index.newReadFunctionalData();
+
+		// a contig with no genes.
+		String contig = header.getSequenceDictionary().getSequences().stream().map(x -> x.getSequenceName())
+				.filter(x -> geneOverlapDetector.getAll().stream().noneMatch(g -> g.getContig().equals(x))).findFirst().get();
+		SAMRecord r = new SAMRecord(header);
+		r.setReferenceName(contig);
+		r.setAlignmentStart(1000);
+		r.setCigarString("60M");
+		index.getFunctionalDataForRead(r, data);
+		Assert.assertEquals(data.size(), 0);
+	}
+
+	/**
+	 * @return 1 if the read overlaps any genes, 0 otherwise.
+	 */
+	private int compare (final SAMRecord r, final OverlapDetector<Gene> geneOverlapDetector, final GeneFunctionIndex index, final GeneFunctionIndex.ReadFunctionalData data) {
+		Map<Gene, List<LocusFunction>> expectedMap = AnnotationUtils.getInstance().getFunctionalDataForRead(r, geneOverlapDetector);
+		List<String> expected = new ArrayList<>();
+		for (Gene g: expectedMap.keySet()) {
+			List<LocusFunction> functions = new ArrayList<>(expectedMap.get(g));
+			Collections.sort(functions);
+			expected.add(g.getName() + functions.toString());
+		}
+		Collections.sort(expected);
+
+		index.getFunctionalDataForRead(r, data);
+		Assert.assertFalse(data.hasDuplicateGeneNames());
+		List<String> actual = new ArrayList<>();
+		for (int i=0; i<data.size(); i++) {
+			List<LocusFunction> functions = new ArrayList<>();
+			for (LocusFunction f: LocusFunction.values())
+				if ((data.getFunctions(i) & (1 << f.ordinal()))!=0)
+					functions.add(f);
+			actual.add(index.getGene(data.getGeneId(i)).getName() + functions.toString());
+		}
+		// genes come out sorted by name.
+		Assert.assertEquals(actual, expected, r.getReferenceName() + ":" + r.getAlignmentStart() + " " + r.getCigarString());
+		return (data.size()>0) ? 1 : 0;
+	}
+}
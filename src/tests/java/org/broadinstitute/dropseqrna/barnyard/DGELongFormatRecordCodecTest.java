@@ -0,0 +1,66 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import htsjdk.samtools.util.SortingCollection;
+
+public class DGELongFormatRecordCodecTest {
+
+	@Test
+	public void testRoundTrip() {
+		DGELongFormatRecord [] records = {
+				new DGELongFormatRecord("ACGTACGTACGT", "GENE_A", 1),
+				new DGELongFormatRecord("ACGTACGTACGT", "GENE_B", 127),
+				new DGELongFormatRecord("TTTTACGTACGT", "GENE_A", 128),
+				new DGELongFormatRecord("TTTTACGTACGT", "GENE_C", Integer.MAX_VALUE),
+				new DGELongFormatRecord("GGGGACGTACGT", "GENE_B", 0)
+		};
+
+		// SortingCollection writes and reads spill files with different clones of the codec.
+		DGELongFormatRecordCodec writerCodec = new DGELongFormatRecordCodec();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writerCodec.setOutputStream(out);
+		for (DGELongFormatRecord r: records)
+			writerCodec.encode(r);
+
+		SortingCollection.Codec<DGELongFormatRecord> readerCodec = writerCodec.clone();
+		readerCodec.setInputStream(new ByteArrayInputStream(out.toByteArray()));
+		for (DGELongFormatRecord expected: records) {
+			DGELongFormatRecord r = readerCodec.decode();
+			Assert.assertEquals(r.getCell(), expected.getCell());
+			Assert.assertEquals(r.getGene(), expected.getGene());
+			Assert.assertEquals(r.getCount(), expected.getCount());
+		}
+		Assert.assertNull(readerCodec.decode());
+
+		// 2 1-byte ids per record, counts of 1, 1, 2, 5 and 1 bytes.
+		Assert.assertEquals(out.size(), 10+10);
+	}
+}
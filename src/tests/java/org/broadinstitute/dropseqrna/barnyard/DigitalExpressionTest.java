@@ -33,6 +33,7 @@ import java.util.Random;
 
 import org.apache.commons.io.FileUtils;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.UMICollection;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.tools.DGEMatrix;
 import org.broadinstitute.dropseqrna.utils.TestUtils;
 import org.broadinstitute.dropseqrna.utils.io.ErrorCheckingPrintWriter;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamFileMergeUtil;
@@ -109,12 +110,13 @@ public class DigitalExpressionTest {
 
 	// DigitalExpression I=5cell3gene_retagged.bam SUMMARY=5cell3gene.dge_summary.txt O=5cell3gene.dge.txt OUTPUT_LONG_FORMAT=5cell3gene.dge_long.txt CELL_BC_FILE=5cell3gene.cellbarcodes.txt
 
-	@Test
-	public void testDoWork () {
+	@Test(dataProvider="numThreads")
+	public void testDoWork (final int numThreads) {
 		File outFile=null;
 		File summaryFile=null;
 		File cellBarcodesFile=null;
 		File longOutput=null;
+		File binaryOutput=null;
 		try {
 			outFile = File.createTempFile("testDigitalExpression.", ".digital_expression.txt");
 			summaryFile = File.createTempFile("testDigitalExpression.", ".digital_expression_summary.txt");
@@ -124,6 +126,8 @@ public class DigitalExpressionTest {
 			summaryFile.deleteOnExit();
 	        cellBarcodesFile.deleteOnExit();
 	        longOutput.deleteOnExit();
+	        binaryOutput=File.createTempFile("testDigitalExpression.", ".digital_expression.bin");
+	        binaryOutput.deleteOnExit();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -134,6 +138,8 @@ public class DigitalExpressionTest {
 		de.OUTPUT = outFile;
 		de.SUMMARY = summaryFile;
         de.OUTPUT_LONG_FORMAT=longOutput;
+        de.OUTPUT_BINARY_SPARSE=binaryOutput;
+        de.NUM_THREADS=numThreads;
         // the headers aren't going to match up because they contain specific path info.
         // de.UNIQUE_EXPERIMENT_ID = "test";
 
@@ -147,7 +153,18 @@ public class DigitalExpressionTest {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+        // the binary output holds the same matrix as the text output.
+        DGEMatrix expected = DGEMatrix.parseFile(EXPECTED_OUTFILE);
+        DGEMatrix binary = DGEMatrix.parseFile(binaryOutput);
+        Assert.assertEquals(binary.getGenes(), expected.getGenes());
+        Assert.assertEquals(binary.getCellBarcodes(), expected.getCellBarcodes());
+        Assert.assertEquals(binary.getExpressionMatrix(), expected.getExpressionMatrix());
+	}
 
+	// output must be identical regardless of the number of threads used to collapse UMIs.
+	@DataProvider(name="numThreads")
+	public Object[][] numThreads() {
+		return new Object[][] {{1}, {4}};
 	}
 
 	//TODO: set up the proper output files.
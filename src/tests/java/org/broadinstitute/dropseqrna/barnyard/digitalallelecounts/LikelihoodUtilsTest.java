@@ -27,6 +27,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.LikelihoodUtils;
 import org.testng.Assert;
@@ -274,6 +275,161 @@ public class LikelihoodUtilsTest {
 	}
 
 
+	@Test
+	public void testLogLikelihoodsForManyGenotypes () {
+		LikelihoodUtils u = LikelihoodUtils.getInstance();
+		byte ref = StringUtil.charToByte('A');
+		byte alt = StringUtil.charToByte('T');
+		GenotypeType [] genotypes = {GenotypeType.HOM_REF, GenotypeType.HET, GenotypeType.HOM_VAR, GenotypeType.NO_CALL, GenotypeType.HOM_REF};
+		Random random = new Random(1);
+		for (Double maxProb: Arrays.asList(null, 0.01)) {
+			for (Double genotypeQuality: Arrays.asList(null, 0.9)) {
+				byte [] bases = randomBases(random, 50);
+				byte [] qualities = randomQualities(random, 50);
+				double [] result = u.getLogLikelihoods(ref, alt, genotypes, bases, qualities, 0.5, genotypeQuality, maxProb);
+				Assert.assertEquals(result[0], naiveLogLikelihood(ref, ref, bases, qualities, genotypeQuality, maxProb), 1e-9);
+				Assert.assertEquals(result[1], naiveLogLikelihood(ref, alt, bases, qualities, genotypeQuality, maxProb), 1e-9);
+				Assert.assertEquals(result[2], naiveLogLikelihood(alt, alt, bases, qualities, genotypeQuality, maxProb), 1e-9);
+				Assert.assertEquals(result[3], 50*Math.log10(0.5), 1e-9);
+				Assert.assertEquals(result[4], result[0]);
+				Assert.assertEquals(result[1], u.getLogLikelihood(ref, alt, bases, qualities, genotypeQuality, maxProb), 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void testMixedModelArrays () {
+		LikelihoodUtils u = LikelihoodUtils.getInstance();
+		byte ref = StringUtil.charToByte('A');
+		byte alt = StringUtil.charToByte('T');
+		GenotypeType [] genotypes = {GenotypeType.HOM_REF, GenotypeType.HET, GenotypeType.HOM_VAR, GenotypeType.NO_CALL};
+		double [] mixture = {0.4, 0.3, 0.2, 0.1};
+		Random random = new Random(2);
+		for (Double maxProb: Arrays.asList(null, 0.01)) {
+			// enough observations that the product of likelihoods has to be rescaled.
+			byte [] bases = randomBases(random, 500);
+			byte [] qualities = randomQualities(random, 500);
+			double expected=0;
+			for (int i=0; i<bases.length; i++) {
+				double like = 0.4*naiveLikelihood(ref, ref, bases[i], qualities[i], maxProb) + 0.3*naiveLikelihood(ref, alt, bases[i], qualities[i], maxProb)
+						+ 0.2*naiveLikelihood(alt, alt, bases[i], qualities[i], maxProb) + 0.1*0.25;
+				expected+=Math.log10(like*0.9);
+			}
+			double result = u.getLogLikelihoodMixedModel(ref, alt, genotypes, mixture, bases, qualities, 0.25, 0.9, maxProb);
+			Assert.assertEquals(result, expected, 1e-7);
+		}
+	}
+
+	@Test
+	public void testLikelihoodManyObservations () {
+		LikelihoodUtils u = LikelihoodUtils.getInstance();
+		byte ref = StringUtil.charToByte('A');
+		byte alt = StringUtil.charToByte('T');
+		GenotypeType [] genotypes = {GenotypeType.HOM_REF, GenotypeType.HET, GenotypeType.HOM_VAR, GenotypeType.NO_CALL};
+		for (Double maxProb: new Double [] {null, 0.1})
+			for (char b: new char [] {'A', 'T', 'G'})
+				for (byte q=0; q<=40; q+=5) {
+					byte base = StringUtil.charToByte(b);
+					double [] likes = u.getLikelihoodManyObservations(ref, alt, Arrays.asList(genotypes), base, q, 0.25, null, maxProb);
+					Assert.assertEquals(likes[0], u.getLikelihood(ref, ref, base, q, null, maxProb), 1e-12);
+					Assert.assertEquals(likes[1], u.getLikelihood(ref, alt, base, q, null, maxProb), 1e-12);
+					Assert.assertEquals(likes[2], u.getLikelihood(alt, alt, base, q, null, maxProb), 1e-12);
+					Assert.assertEquals(likes[3], 0.25, 1e-12);
+				}
+	}
+
+	/**
+	 * Compares the per observation List implementation to the batch array implementation on many small pileups,
+	 * like the cell x SNP pileups scored during donor assignment.
+	 */
+	@Test(enabled=false)
+	public void testSpeed () {
+		LikelihoodUtils u = LikelihoodUtils.getInstance();
+		byte ref = StringUtil.charToByte('A');
+		byte alt = StringUtil.charToByte('T');
+		GenotypeType [] genotypes = {GenotypeType.HOM_REF, GenotypeType.HET, GenotypeType.HOM_VAR};
+		Random random = new Random(3);
+		int numPileups=2000000;
+		byte [][] bases = new byte [1000][];
+		byte [][] qualities = new byte [1000][];
+		List<List<Byte>> baseLists = new ArrayList<>();
+		List<List<Byte>> qualityLists = new ArrayList<>();
+		for (int i=0; i<bases.length; i++) {
+			int n = 1+random.nextInt(6);
+			bases[i]=randomBases(random, n);
+			qualities[i]=randomQualities(random, n);
+			List<Byte> b = new ArrayList<>();
+			List<Byte> q = new ArrayList<>();
+			for (int j=0; j<n; j++) {
+				b.add(bases[i][j]);
+				q.add(qualities[i][j]);
+			}
+			baseLists.add(b);
+			qualityLists.add(q);
+		}
+		double total=0;
+		long start = System.currentTimeMillis();
+		for (int i=0; i<numPileups; i++) {
+			int p = i % bases.length;
+			total+=naiveLogLikelihood(ref, ref, baseLists.get(p), qualityLists.get(p), null, null);
+			total+=naiveLogLikelihood(ref, alt, baseLists.get(p), qualityLists.get(p), null, null);
+			total+=naiveLogLikelihood(alt, alt, baseLists.get(p), qualityLists.get(p), null, null);
+		}
+		long listTime = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		for (int i=0; i<numPileups; i++) {
+			int p = i % bases.length;
+			double [] likes = u.getLogLikelihoods(ref, alt, genotypes, bases[p], qualities[p], null, null, null);
+			total-=likes[0]+likes[1]+likes[2];
+		}
+		long arrayTime = System.currentTimeMillis() - start;
+		Assert.assertEquals(total, 0, 1e-3);
+		System.out.println("per observation List implementation " + listTime + " ms, batch array implementation " + arrayTime + " ms");
+	}
+
+	private byte [] randomBases (final Random random, final int n) {
+		byte [] result = new byte [n];
+		for (int i=0; i<n; i++)
+			result[i]=StringUtil.charToByte("AATTCG".charAt(random.nextInt(6)));
+		return result;
+	}
+
+	private byte [] randomQualities (final Random random, final int n) {
+		byte [] result = new byte [n];
+		for (int i=0; i<n; i++)
+			result[i]=(byte) (1+random.nextInt(40));
+		return result;
+	}
+
+	private double naiveLogLikelihood (final byte a1, final byte a2, final byte [] bases, final byte [] qualities, final Double genotypeQuality, final Double maxProb) {
+		double result=0;
+		for (int i=0; i<bases.length; i++) {
+			double like = naiveLikelihood(a1, a2, bases[i], qualities[i], maxProb);
+			if (genotypeQuality!=null) like*=genotypeQuality;
+			result+=Math.log10(like);
+		}
+		return result;
+	}
+
+	// the way likelihoods were computed before the lookup tables: one observation at a time from boxed lists.
+	private double naiveLogLikelihood (final byte a1, final byte a2, final List<Byte> bases, final List<Byte> qualities, final Double genotypeQuality, final Double maxProb) {
+		double result=0;
+		for (int i=0; i<bases.size(); i++) {
+			double like = naiveLikelihood(a1, a2, bases.get(i), qualities.get(i), maxProb);
+			if (genotypeQuality!=null) like*=genotypeQuality;
+			result+=Math.log10(like);
+		}
+		return result;
+	}
+
+	private double naiveLikelihood (final byte a1, final byte a2, final byte base, final byte quality, final Double maxProb) {
+		double error = Math.pow(10, quality/ (double)-10);
+		if (maxProb!=null) error=Math.max(error, maxProb);
+		if (a1==a2)
+			return base==a1 ? 1-error : error;
+		return base==a1 || base==a2 ? ((1-error)/2)+(error/2) : error;
+	}
+
 	@DataProvider(name = "PhreadToProb")
 	//https://en.wikipedia.org/wiki/Phred_quality_score
 	public Object[][] createData1() {
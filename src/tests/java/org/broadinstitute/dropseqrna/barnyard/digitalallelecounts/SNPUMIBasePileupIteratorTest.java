@@ -23,12 +23,15 @@
  */
 package org.broadinstitute.dropseqrna.barnyard.digitalallelecounts;
 
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.util.IntervalList;
 import org.broadinstitute.dropseqrna.barnyard.ParseBarcodeFile;
 import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.SNPUMIBasePileup;
 import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.SNPUMIBasePileupIterator;
+import org.broadinstitute.dropseqrna.utils.readiterators.SamHeaderAndIterator;
 import org.broadinstitute.dropseqrna.utils.readiterators.StrandStrategy;
 import org.junit.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.annotation.LocusFunction;
 
@@ -77,6 +80,50 @@ public class SNPUMIBasePileupIteratorTest {
 	}
 
 
+	@Test(dataProvider="streamingData")
+	public void testStreamingMatchesSorting(final String bamPath, final SortOrder order) {
+		File bamFile = new File(bamPath);
+		List<String> cellBarcodes = ParseBarcodeFile.readCellBarcodeFile(cellBCFile);
+		IntervalList snpIntervals = IntervalList.fromFile(snpIntervalsFile);
+
+		SamHeaderAndIterator streamingInput = new SamHeaderAndIterator(bamFile);
+		Assert.assertTrue(SNPUMIBasePileupIterator.canStream(streamingInput.header, snpIntervals, order));
+		List<String> streamed = getPileups(streamingInput, snpIntervals, cellBarcodes, order);
+
+		// the same reads marked unsorted go through the sorting path.
+		SamHeaderAndIterator sortingInput = new SamHeaderAndIterator(bamFile);
+		sortingInput.header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+		Assert.assertFalse(SNPUMIBasePileupIterator.canStream(sortingInput.header, snpIntervals, order));
+		List<String> sorted = getPileups(sortingInput, snpIntervals, cellBarcodes, order);
+
+		Assert.assertFalse(sorted.isEmpty());
+		Assert.assertEquals(sorted, streamed);
+	}
+
+	@DataProvider(name="streamingData")
+	public Object[][] streamingData() {
+		String dir = "testdata/org/broadinstitute/dropseq/barnyard/digitalallelecounts/";
+		return new Object[][] {
+			{dir + "smallTest_snpUMIPileUp_retagged.sam", SortOrder.SNP_GENE},
+			{dir + "smallTest_snpUMIPileUp_retagged.sam", SortOrder.SNP_CELL},
+			{dir + "smallTest_retagged.sam", SortOrder.SNP_GENE},
+			{dir + "hek_5_cell_2_snp_testdata_retagged.bam", SortOrder.SNP_GENE},
+			{dir + "hek_5_cell_2_snp_testdata_retagged.bam", SortOrder.SNP_CELL},
+		};
+	}
+
+	private List<String> getPileups (final SamHeaderAndIterator input, final IntervalList snpIntervals, final List<String> cellBarcodes, final SortOrder order) {
+		SNPUMIBasePileupIterator sbpi = new SNPUMIBasePileupIterator(
+				input, snpIntervals, GENE_NAME_TAG, GENE_STRAND_TAG, GENE_FUNCTION_TAG,
+				LOCUS_FUNCTION_LIST, STRAND_STRATEGY, cellBarcodeTag,
+				molBCTag, snpTag, functionTag, readMQ, assignReadsToAllGenes, cellBarcodes, order);
+		List<String> result = new ArrayList<>();
+		while (sbpi.hasNext())
+			result.add(sbpi.next().toString());
+		sbpi.close();
+		return result;
+	}
+
 	private void checkAnswer (final SNPUMIBasePileup p) {
 		// G37, G37, G27
 		if (p.getCell().equals("ATCAGGGACAGA") && p.getMolecularBarcode().equals("CGGGGCTC")) {
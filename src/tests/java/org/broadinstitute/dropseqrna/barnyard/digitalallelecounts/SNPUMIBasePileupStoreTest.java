@@ -0,0 +1,246 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalallelecounts;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import org.broadinstitute.dropseqrna.barnyard.ParseBarcodeFile;
+import org.broadinstitute.dropseqrna.utils.readiterators.StrandStrategy;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.annotation.LocusFunction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class SNPUMIBasePileupStoreTest {
+
+	private final File bamFile = new File(
+			"testdata/org/broadinstitute/dropseq/barnyard/digitalallelecounts/hek_5_cell_2_snp_testdata_retagged.bam");
+	private final File cellBCFile = new File(
+			"testdata/org/broadinstitute/dropseq/barnyard/digitalallelecounts/hek_cells_cell_barcodes.txt");
+	private final File snpIntervalsFile = new File(
+			"testdata/org/broadinstitute/dropseq/barnyard/digitalallelecounts/hek_cells_2snps.intervals");
+	private final List<LocusFunction> LOCUS_FUNCTION_LIST=new ArrayList<>(Arrays.asList(LocusFunction.CODING, LocusFunction.UTR));
+
+	@Test(dataProvider="sortOrders")
+	public void testQueries(final SortOrder order) throws IOException {
+		IntervalList snpIntervals = IntervalList.fromFile(snpIntervalsFile);
+		SAMSequenceDictionary dict = snpIntervals.getHeader().getSequenceDictionary();
+		List<SNPUMIBasePileup> expected = getPileups(snpIntervals, order);
+		Assert.assertFalse(expected.isEmpty());
+
+		File storeFile = File.createTempFile("SNPUMIBasePileupStoreTest.", SNPUMIBasePileupStore.STORE_EXTENSION);
+		storeFile.deleteOnExit();
+		SNPUMIBasePileupStore.Writer writer = new SNPUMIBasePileupStore.Writer(storeFile, dict);
+		writer.addAll(expected.iterator());
+		writer.close();
+
+		SNPUMIBasePileupStore store = new SNPUMIBasePileupStore(storeFile);
+		Assert.assertEquals(store.getSequenceDictionary().size(), dict.size());
+		Assert.assertEquals(toStrings(store.iterator()), toStrings(expected, null, null));
+
+		// one query per SNP.
+		Assert.assertEquals(store.getSNPIntervals().size(), 2);
+		for (Interval snp: store.getSNPIntervals()) {
+			List<String> result = toStrings(store.query(new Interval(snp.getContig(), snp.getStart()-10, snp.getEnd()+10)));
+			Assert.assertFalse(result.isEmpty());
+			Assert.assertEquals(result, toStrings(expected, snp, null));
+		}
+		// an interval with no SNPs, and a contig that isn't in the store.
+		Interval first = store.getSNPIntervals().get(0);
+		Assert.assertFalse(store.query(new Interval(first.getContig(), 1, first.getStart()-1)).hasNext());
+		Assert.assertFalse(store.query(new Interval("NOT_A_CONTIG", 1, 100)).hasNext());
+
+		// cells, alone and with an interval.
+		List<String> cells = Arrays.asList("ATCAGGGACAGA", "TACAATTAAGGC");
+		Assert.assertEquals(toStrings(store.queryCells(cells)), toStrings(expected, null, cells));
+		Assert.assertEquals(toStrings(store.query(first, cells)), toStrings(expected, first, cells));
+		Assert.assertFalse(store.queryCells(Collections.singletonList("NOT_A_CELL")).hasNext());
+		store.close();
+	}
+
+	@Test
+	public void testDigitalAlleleCountsFromStore() throws IOException {
+		IntervalList snpIntervals = IntervalList.fromFile(snpIntervalsFile);
+		SAMSequenceDictionary dict = snpIntervals.getHeader().getSequenceDictionary();
+		List<SNPUMIBasePileup> pileups = getPileups(snpIntervals, SortOrder.SNP_GENE);
+
+		File storeFile = File.createTempFile("SNPUMIBasePileupStoreTest.", SNPUMIBasePileupStore.STORE_EXTENSION);
+		storeFile.deleteOnExit();
+		SNPUMIBasePileupStore.Writer writer = new SNPUMIBasePileupStore.Writer(storeFile, dict);
+		writer.addAll(pileups.iterator());
+		writer.close();
+		SNPUMIBasePileupStore store = new SNPUMIBasePileupStore(storeFile);
+
+		DigitalAlleleCountsIterator expected = new DigitalAlleleCountsIterator(pileups.iterator(), dict, 10);
+		DigitalAlleleCountsIterator actual = new DigitalAlleleCountsIterator(store.iterator(), store.getSequenceDictionary(), 10);
+		int count=0;
+		while (expected.hasNext()) {
+			Assert.assertTrue(actual.hasNext());
+			DigitalAlleleCounts e = expected.next();
+			DigitalAlleleCounts a = actual.next();
+			Assert.assertEquals(a.getSnpInterval(), e.getSnpInterval());
+			Assert.assertEquals(a.getCell(), e.getCell());
+			Assert.assertEquals(a.getUMIAlleleCount().toString(), e.getUMIAlleleCount().toString());
+			Assert.assertEquals(a.getReadCounts().toString(), e.getReadCounts().toString());
+			count++;
+		}
+		Assert.assertFalse(actual.hasNext());
+		Assert.assertTrue(count>0);
+		store.close();
+	}
+
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testOutOfOrder() throws IOException {
+		IntervalList snpIntervals = IntervalList.fromFile(snpIntervalsFile);
+		List<SNPUMIBasePileup> pileups = getPileups(snpIntervals, SortOrder.SNP_GENE);
+		Collections.reverse(pileups);
+		File storeFile = File.createTempFile("SNPUMIBasePileupStoreTest.", SNPUMIBasePileupStore.STORE_EXTENSION);
+		storeFile.deleteOnExit();
+		SNPUMIBasePileupStore.Writer writer = new SNPUMIBasePileupStore.Writer(storeFile, snpIntervals.getHeader().getSequenceDictionary());
+		writer.addAll(pileups.iterator());
+	}
+
+	@Test
+	public void testIntervalQueries() throws IOException {
+		SAMSequenceDictionary dict = IntervalList.fromFile(snpIntervalsFile).getHeader().getSequenceDictionary();
+		// one SNP is longer than a base, so a query that starts inside it has to look before its own start.
+		List<Interval> snps = Arrays.asList(
+				new Interval("HUMAN_1", 100, 100, false, "a"), new Interval("HUMAN_1", 200, 200, false, "b"),
+				new Interval("HUMAN_1", 300, 310, false, "c"), new Interval("HUMAN_1", 400, 400, false, "d"),
+				new Interval("HUMAN_1", 500, 500, false, "e"), new Interval("HUMAN_2", 150, 150, false, "f"),
+				new Interval("HUMAN_3", 50, 50, false, "g"));
+		List<SNPUMIBasePileup> pileups = new ArrayList<>();
+		for (Interval snp: snps)
+			for (String cell: Arrays.asList("AAAA", "CCCC")) {
+				SNPUMIBasePileup p = new SNPUMIBasePileup(snp, "GENE", cell, "UMI");
+				p.addLocusFunction(LocusFunction.CODING);
+				p.addBaseAndQuality((byte) 'A', (byte) 30);
+				pileups.add(p);
+			}
+
+		File storeFile = File.createTempFile("SNPUMIBasePileupStoreTest.", SNPUMIBasePileupStore.STORE_EXTENSION);
+		storeFile.deleteOnExit();
+		SNPUMIBasePileupStore.Writer writer = new SNPUMIBasePileupStore.Writer(storeFile, dict);
+		writer.addAll(pileups.iterator());
+		writer.close();
+		// closing again does nothing.
+		writer.close();
+
+		SNPUMIBasePileupStore store = new SNPUMIBasePileupStore(storeFile);
+		Assert.assertEquals(store.getSNPIntervals(), snps);
+		Assert.assertEquals(getSNPNames(store.query(new Interval("HUMAN_1", 305, 350))), Arrays.asList("c"));
+		Assert.assertEquals(getSNPNames(store.query(new Interval("HUMAN_1", 310, 400))), Arrays.asList("c", "d"));
+		Assert.assertEquals(getSNPNames(store.query(new Interval("HUMAN_1", 311, 399))), Collections.emptyList());
+		Assert.assertEquals(getSNPNames(store.query(new Interval("HUMAN_1", 150, 450))), Arrays.asList("b", "c", "d"));
+		Assert.assertEquals(getSNPNames(store.query(new Interval("HUMAN_1", 1, 1000000))), Arrays.asList("a", "b", "c", "d", "e"));
+		Assert.assertEquals(getSNPNames(store.query(new Interval("HUMAN_2", 1, 1000))), Arrays.asList("f"));
+		Assert.assertEquals(getSNPNames(store.query(new Interval("HUMAN_3", 51, 1000))), Collections.emptyList());
+		Assert.assertEquals(getSNPNames(store.query(new Interval("HUMAN_1", 300, 500), Collections.singletonList("CCCC"))), Arrays.asList("c", "d", "e"));
+		Assert.assertEquals(store.query(new Interval("HUMAN_1", 100, 100)).next().getLocusFunctions(), Collections.singleton(LocusFunction.CODING));
+		store.close();
+	}
+
+	@Test
+	public void testIncompleteStore() throws IOException {
+		IntervalList snpIntervals = IntervalList.fromFile(snpIntervalsFile);
+		List<SNPUMIBasePileup> pileups = getPileups(snpIntervals, SortOrder.SNP_GENE);
+		File storeFile = File.createTempFile("SNPUMIBasePileupStoreTest.", SNPUMIBasePileupStore.STORE_EXTENSION);
+		storeFile.deleteOnExit();
+
+		// a store cut off before its index, as if the writer was never closed.
+		SNPUMIBasePileupStore.Writer writer = new SNPUMIBasePileupStore.Writer(storeFile, snpIntervals.getHeader().getSequenceDictionary());
+		writer.addAll(pileups.iterator());
+		writer.close();
+		try (RandomAccessFile f = new RandomAccessFile(storeFile, "rw")) {
+			f.seek(f.length()-Long.BYTES);
+			f.setLength(f.readLong());
+		}
+		try {
+			new SNPUMIBasePileupStore(storeFile);
+			Assert.fail("Expected a store without an index to be rejected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().contains("no index"), e.getMessage());
+		}
+
+		// discarding a writer deletes the file, and it can't be closed afterwards.
+		writer = new SNPUMIBasePileupStore.Writer(storeFile, snpIntervals.getHeader().getSequenceDictionary());
+		writer.addAll(pileups.iterator());
+		writer.discard();
+		Assert.assertFalse(storeFile.exists());
+		writer.close();
+		Assert.assertFalse(storeFile.exists());
+	}
+
+	@DataProvider(name="sortOrders")
+	public Object[][] sortOrders() {
+		return new Object[][] {{SortOrder.SNP_GENE}, {SortOrder.SNP_CELL}};
+	}
+
+	private List<SNPUMIBasePileup> getPileups (final IntervalList snpIntervals, final SortOrder order) {
+		List<String> cellBarcodes = ParseBarcodeFile.readCellBarcodeFile(cellBCFile);
+		SNPUMIBasePileupIterator sbpi = new SNPUMIBasePileupIterator(
+				bamFile, snpIntervals, "gn", "gs", "gf", LOCUS_FUNCTION_LIST, StrandStrategy.SENSE, "XC",
+				"XM", "YS", "XF", 10, true, cellBarcodes, order);
+		List<SNPUMIBasePileup> result = new ArrayList<>();
+		while (sbpi.hasNext())
+			result.add(sbpi.next());
+		sbpi.close();
+		return result;
+	}
+
+	private List<String> getSNPNames (final Iterator<SNPUMIBasePileup> iter) {
+		List<String> result = new ArrayList<>();
+		while (iter.hasNext()) {
+			String name = iter.next().getSnpID();
+			if (result.isEmpty() || !result.get(result.size()-1).equals(name))
+				result.add(name);
+		}
+		return result;
+	}
+
+	private List<String> toStrings (final Iterator<SNPUMIBasePileup> iter) {
+		List<String> result = new ArrayList<>();
+		while (iter.hasNext())
+			result.add(iter.next().toString());
+		return result;
+	}
+
+	private List<String> toStrings (final List<SNPUMIBasePileup> pileups, final Interval snp, final List<String> cells) {
+		List<String> result = new ArrayList<>();
+		for (SNPUMIBasePileup p: pileups)
+			if ((snp==null || p.getSNPInterval().equals(snp)) && (cells==null || cells.contains(p.getCell())))
+				result.add(p.toString());
+		return result;
+	}
+}
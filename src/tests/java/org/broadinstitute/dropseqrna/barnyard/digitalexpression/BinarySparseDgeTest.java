@@ -0,0 +1,184 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.barnyard.digitalexpression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.broadinstitute.dropseqrna.barnyard.ConvertToBinarySparseDge;
+import org.broadinstitute.dropseqrna.barnyard.digitalexpression.tools.DGEMatrix;
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketConstants;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class BinarySparseDgeTest {
+
+	private static final File DENSE_DGE = new File("testdata/org/broadinstitute/dropseq/cluster/P60ENTSTNRep1P1.subset.auto.digital_expression.txt");
+	private static final String DGE_DIR = "testdata/org/broadinstitute/transcriptome/barnyard/digitalexpression/";
+
+	@DataProvider(name = "inputs")
+	public Object[][] inputs() {
+		return new Object[][] {
+				{DENSE_DGE, null, null},
+				{new File(DGE_DIR, "dge_example1.txt.gz"), null, null},
+				{new File(DGE_DIR, "tenXMatrixMarket.mtx"), new File(DGE_DIR, "tenXMatrixMarketGenes.tsv"), new File(DGE_DIR, "tenXMatrixMarketCellBarcodes.tsv")}
+		};
+	}
+
+	@Test(dataProvider = "inputs")
+	public void testConvert(final File input, final File genes, final File cells) throws IOException {
+		final File output = File.createTempFile("BinarySparseDgeTest.", ".dge.bin");
+		output.deleteOnExit();
+		final List<String> args = new ArrayList<>(Arrays.asList("INPUT=" + input, "OUTPUT=" + output));
+		if (genes != null) {
+			args.add("GENES=" + genes);
+			args.add("CELL_BARCODES=" + cells);
+		}
+		Assert.assertEquals(new ConvertToBinarySparseDge().instanceMain(args.toArray(new String[args.size()])), 0);
+
+		final DGEMatrix expected = DGEMatrix.parseFile(input, genes, cells, null);
+		final DGEMatrix actual = DGEMatrix.parseFile(output);
+		Assert.assertEquals(actual.getGenes(), expected.getGenes());
+		Assert.assertEquals(actual.getCellBarcodes(), expected.getCellBarcodes());
+		Assert.assertEquals(actual.getExpressionMatrix(), expected.getExpressionMatrix());
+
+		final DgeHeader expectedHeader = DGEMatrix.parseDgeHeader(input);
+		final DgeHeader actualHeader = DGEMatrix.parseDgeHeader(output);
+		Assert.assertEquals(actualHeader.getNumLibraries(), expectedHeader.getNumLibraries());
+		Assert.assertEquals(actualHeader.getExpressionFormat(), expectedHeader.getExpressionFormat());
+		for (int i = 0; i < expectedHeader.getNumLibraries(); ++i)
+			Assert.assertEquals(actualHeader.getLibrary(i).getUei(), expectedHeader.getLibrary(i).getUei());
+	}
+
+	@Test
+	public void testSlices() throws IOException {
+		final DGEMatrix expected = DGEMatrix.parseFile(DENSE_DGE);
+		final File output = File.createTempFile("BinarySparseDgeTest.", ".dge.bin");
+		output.deleteOnExit();
+		expected.writeFile(output, true, DGEMatrix.FileFormat.BINARY_SPARSE);
+
+		final double[][] matrix = expected.getExpressionMatrix();
+		final BinarySparseDge dge = new BinarySparseDge(output);
+		Assert.assertEquals(dge.getElementType(), MatrixMarketConstants.ElementType.integer);
+		Assert.assertEquals(dge.getGenes(), expected.getGenes());
+		Assert.assertEquals(dge.getCellBarcodes(), expected.getCellBarcodes());
+
+		long numNonZero = 0;
+		for (int geneIndex = 0; geneIndex < dge.getNumGenes(); ++geneIndex) {
+			final double[] row = new double[dge.getNumCells()];
+			final BinarySparseDge.Slice slice = dge.getGene(geneIndex);
+			for (int i = 0; i < slice.size(); ++i) {
+				if (i > 0)
+					Assert.assertTrue(slice.getIndex(i) > slice.getIndex(i - 1));
+				row[slice.getIndex(i)] = slice.getIntValue(i);
+			}
+			Assert.assertEquals(row, matrix[geneIndex]);
+			numNonZero += slice.size();
+		}
+		Assert.assertEquals(dge.getNumNonZero(), numNonZero);
+
+		for (int cellIndex = 0; cellIndex < dge.getNumCells(); ++cellIndex) {
+			final double[] column = new double[dge.getNumGenes()];
+			final BinarySparseDge.Slice slice = dge.getCell(cellIndex);
+			for (int i = 0; i < slice.size(); ++i)
+				column[slice.getIndex(i)] = slice.getRealValue(i);
+			for (int geneIndex = 0; geneIndex < dge.getNumGenes(); ++geneIndex)
+				Assert.assertEquals(column[geneIndex], matrix[geneIndex][cellIndex]);
+		}
+
+		final String gene = expected.getGenes().get(3);
+		final String cell = expected.getCellBarcodes().get(5);
+		Assert.assertEquals(dge.getGeneIndex(gene), 3);
+		Assert.assertEquals(dge.getCellIndex(cell), 5);
+		Assert.assertEquals(dge.getGeneIndex("NoSuchGene"), -1);
+		dge.close();
+	}
+
+	@Test
+	public void testRealValues() throws IOException {
+		final List<String> cells = Arrays.asList("AAAA", "CCCC", "GGGG");
+		final List<String> genes = Arrays.asList("A", "B", "C", "D");
+		final double[][] values = {{0.5, 0, 1.25}, {0, 0, 0}, {3, 0, 0}, {0, 0.125, 7.75}};
+		final DGEMatrix expected = new DGEMatrix(cells, genes, values);
+		final File output = File.createTempFile("BinarySparseDgeTest.", ".dge.bin");
+		output.deleteOnExit();
+		expected.writeFile(output, false, DGEMatrix.FileFormat.BINARY_SPARSE);
+
+		final BinarySparseDge dge = new BinarySparseDge(output);
+		Assert.assertEquals(dge.getElementType(), MatrixMarketConstants.ElementType.real);
+		Assert.assertEquals(dge.getNumNonZero(), 5);
+		Assert.assertEquals(dge.getGene(1).size(), 0);
+		final BinarySparseDge.Slice cell = dge.getCell(2);
+		Assert.assertEquals(cell.size(), 2);
+		Assert.assertEquals(cell.getIndex(0), 0);
+		Assert.assertEquals(cell.getRealValue(0), 1.25);
+		Assert.assertEquals(cell.getIndex(1), 3);
+		Assert.assertEquals(cell.getRealValue(1), 7.75);
+		dge.close();
+
+		Assert.assertEquals(DGEMatrix.parseFile(output).getExpressionMatrix(), values);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testCellsOutOfOrder() throws IOException {
+		final File output = File.createTempFile("BinarySparseDgeTest.", ".dge.bin");
+		output.deleteOnExit();
+		final BinarySparseDgeWriter writer = new BinarySparseDgeWriter(output, MatrixMarketConstants.ElementType.integer,
+				Arrays.asList("AAAA", "CCCC"), null);
+		writer.addGene("A");
+		writer.writeValue(1, 1);
+		writer.writeValue(0, 1);
+	}
+
+	@Test
+	public void testElementTypeCodes() throws IOException {
+		final DGEMatrix matrix = new DGEMatrix(Arrays.asList("AAAA", "CCCC"), Arrays.asList("A", "B"), new double[][] {{1, 0}, {0, 2}});
+		final File output = File.createTempFile("BinarySparseDgeTest.", ".dge.bin");
+		output.deleteOnExit();
+		// the element type follows the magic and version.
+		final long elementTypeOffset = BinarySparseDge.MAGIC.length + Integer.BYTES;
+		for (final boolean integerFormat : new boolean[] {true, false}) {
+			matrix.writeFile(output, integerFormat, DGEMatrix.FileFormat.BINARY_SPARSE);
+			try (RandomAccessFile f = new RandomAccessFile(output, "r")) {
+				f.seek(elementTypeOffset);
+				Assert.assertEquals(f.readInt(), integerFormat ? 1 : 0);
+			}
+		}
+		try (RandomAccessFile f = new RandomAccessFile(output, "rw")) {
+			f.seek(elementTypeOffset);
+			f.writeInt(7);
+		}
+		try {
+			new BinarySparseDge(output);
+			Assert.fail("Expected an unknown element type to be rejected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().contains("element type code 7"), e.getMessage());
+		}
+	}
+}
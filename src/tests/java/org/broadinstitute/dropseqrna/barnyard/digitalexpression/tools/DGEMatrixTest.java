@@ -26,6 +26,7 @@ package org.broadinstitute.dropseqrna.barnyard.digitalexpression.tools;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 import org.junit.Assert;
@@ -337,6 +338,41 @@ public class DGEMatrixTest {
 
 	}
 
+	@Test
+	public void testRetain() {
+		final double [] [] data = {{1,0,2,0},{0,0,0,0},{3,4,0,5},{0,6,0,7}};
+		final List<String> cells = Arrays.asList("C1", "C2", "C3", "C4");
+		final List<String> genes = Arrays.asList("G1", "G2", "G3", "G4");
+		final BitSet genesToRetain = new BitSet();
+		genesToRetain.set(1);
+		genesToRetain.set(2);
+		genesToRetain.set(3);
+		final BitSet cellsToRetain = new BitSet();
+		cellsToRetain.set(1);
+		cellsToRetain.set(3);
+		final double [] [] expected = {{0,0},{4,5},{6,7}};
+
+		for (final boolean dense: new boolean[] {false, true}) {
+			final DGEMatrix result = new DGEMatrix(cells, genes, data);
+			if (dense)
+				result.toDenseMatrix();
+			result.retain(genesToRetain, cellsToRetain);
+			Assert.assertEquals(Arrays.asList("G2", "G3", "G4"), result.getGenes());
+			Assert.assertEquals(Arrays.asList("C2", "C4"), result.getCellBarcodes());
+			Assert.assertArrayEquals(expected, result.getExpressionMatrix());
+			final double [] expression = result.getExpression("G4");
+			Assert.assertEquals(6, expression[0], 0.001);
+			Assert.assertEquals(7, expression[1], 0.001);
+
+			// retaining a row with no values at the end must still leave a well-formed matrix.
+			result.retainGenes(Arrays.asList("G2", "G3"));
+			result.retainCellBarcodes(Arrays.asList("C4", "FAKE"));
+			Assert.assertArrayEquals(new double [] [] {{0},{5}}, result.getExpressionMatrix());
+			Assert.assertEquals(Arrays.asList("G2", "G3"), result.getGenes());
+			Assert.assertEquals(Arrays.asList("C4"), result.getCellBarcodes());
+		}
+	}
+
 	@Test
 	public void testMatrixMarketRoundTrip() throws IOException {
         final DGEMatrix original = DGEMatrix.parseFile(preMergedExample);
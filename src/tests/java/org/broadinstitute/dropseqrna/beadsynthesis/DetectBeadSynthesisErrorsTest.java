@@ -34,8 +34,16 @@ import org.apache.commons.io.FileUtils;
 import org.broadinstitute.dropseqrna.TranscriptomeException;
 import org.broadinstitute.dropseqrna.utils.CompareBAMTagValues;
 import org.junit.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloserUtil;
+
 
 public class DetectBeadSynthesisErrorsTest {
 
@@ -46,6 +54,13 @@ public class DetectBeadSynthesisErrorsTest {
 	private static File EXPECTED_SUMMARY = new File ("testdata/org/broadinstitute/dropseq/beadsynthesis/DetectBeadSynthesisErrors.summary");
 	private static File EXPECTED_BAM = new File ("testdata/org/broadinstitute/dropseq/beadsynthesis/DetectBeadSynthesisErrors.bam");
 
+	// reads from 5 cells, with synthesis errors injected into 2 of them by injectSynthesisErrors.
+	private static File SYNTHESIS_ERROR_SOURCE = new File ("testdata/org/broadinstitute/transcriptome/barnyard/5cell3gene_retagged.bam");
+	private static File EXPECTED_INJECTED_REPORT = new File ("testdata/org/broadinstitute/dropseq/beadsynthesis/DetectBeadSynthesisErrors.injected.report");
+	private static File EXPECTED_INJECTED_SUMMARY = new File ("testdata/org/broadinstitute/dropseq/beadsynthesis/DetectBeadSynthesisErrors.injected.summary");
+	// the read name, cell barcode and molecular barcode of each read in the repaired BAM.
+	private static File EXPECTED_INJECTED_BARCODES = new File ("testdata/org/broadinstitute/dropseq/beadsynthesis/DetectBeadSynthesisErrors.injected.barcodes");
+
 		@Test
 	public void testDoWork() {
 		DetectBeadSynthesisErrors gbse = new DetectBeadSynthesisErrors();
@@ -67,9 +82,6 @@ public class DetectBeadSynthesisErrorsTest {
 		gbse.REPORT=report;
 		gbse.OUTPUT_STATS=stats;
 
-		// test custom command line validation
-		gbse.MAX_BARCODE_ERRORS_IN_RAM=5;  // i want to test serialization/deserialization.
-
 		int result = gbse.doWork();
 		Assert.assertEquals(0, result);
 
@@ -100,6 +112,71 @@ public class DetectBeadSynthesisErrorsTest {
 	}
 
 
+	@Test(dataProvider="numThreads")
+	public void testRepairInjectedErrors(final int numThreads) throws IOException {
+		File input = getTempReportFile("DetectBeadSynthesisErrorsTest", ".injected.bam");
+		File report = getTempReportFile("DetectBeadSynthesisErrorsTest", ".report");
+		File stats = getTempReportFile("DetectBeadSynthesisErrorsTest", ".stats");
+		File summary = getTempReportFile("DetectBeadSynthesisErrorsTest", ".summary");
+		File cleanBAM = getTempReportFile("DetectBeadSynthesisErrorsTest", ".bam");
+		for (File f: Arrays.asList(input, report, stats, summary, cleanBAM))
+			f.deleteOnExit();
+		injectSynthesisErrors(SYNTHESIS_ERROR_SOURCE, input);
+
+		DetectBeadSynthesisErrors gbse = new DetectBeadSynthesisErrors();
+		gbse.INPUT=Arrays.asList(input);
+		gbse.MIN_UMIS_PER_CELL=5;
+		gbse.SUMMARY=summary;
+		gbse.OUTPUT=cleanBAM;
+		gbse.REPORT=report;
+		gbse.OUTPUT_STATS=stats;
+		gbse.NUM_THREADS=numThreads;
+		Assert.assertEquals(0, gbse.doWork());
+
+		Assert.assertEquals(FileUtils.readLines(EXPECTED_INJECTED_REPORT), FileUtils.readLines(report));
+		Assert.assertEquals(FileUtils.readLines(EXPECTED_INJECTED_SUMMARY), FileUtils.readLines(summary));
+		Assert.assertEquals(FileUtils.readLines(EXPECTED_INJECTED_BARCODES), getBarcodes(cleanBAM));
+	}
+
+	@DataProvider(name="numThreads")
+	public Object[][] numThreads() {
+		return new Object[][] {{1}, {3}};
+	}
+
+	/**
+	 * Copy a BAM, giving some of the UMIs of two cells a synthesis error.  The read with an error has the base at the
+	 * error position deleted from its cell barcode, so the first base of the UMI becomes the last base of the cell barcode,
+	 * and the UMI ends in a T.  Cell TTGCCTTACGCG gets the error at its last base, and ATCAGGGACAGA at base 11.
+	 */
+	static void injectSynthesisErrors (final File input, final File output) {
+		SamReader reader = SamReaderFactory.makeDefault().open(input);
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), true, output);
+		for (SAMRecord r: reader) {
+			String cell = r.getStringAttribute("XC");
+			String umi = r.getStringAttribute("XM");
+			int errorBase = -1;
+			if ("TTGCCTTACGCG".equals(cell)) errorBase=12;
+			if ("ATCAGGGACAGA".equals(cell)) errorBase=11;
+			// only UMIs starting with A or C, so every related barcode has enough UMIs to be detected and the intended sequence is unambiguous.
+			if (errorBase!=-1 && umi.hashCode()%2!=0 && (umi.charAt(0)=='A' || umi.charAt(0)=='C')) {
+				r.setAttribute("XC", cell.substring(0, errorBase-1) + cell.substring(errorBase) + umi.charAt(0));
+				r.setAttribute("XM", umi.substring(1) + "T");
+			}
+			writer.addAlignment(r);
+		}
+		writer.close();
+		CloserUtil.close(reader);
+	}
+
+	static List<String> getBarcodes (final File bam) {
+		List<String> result = new ArrayList<>();
+		SamReader reader = SamReaderFactory.makeDefault().open(bam);
+		for (SAMRecord r: reader)
+			result.add(r.getReadName() + "\t" + r.getStringAttribute("XC") + "\t" + r.getStringAttribute("XM"));
+		CloserUtil.close(reader);
+		return result;
+	}
+
 	@Test
 	public void padCellBarcodeTest1() {
 		DetectBeadSynthesisErrors gbse = new DetectBeadSynthesisErrors();
@@ -27,6 +27,7 @@ import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.TestUtil;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.DgeHeaderMerger;
 import org.broadinstitute.dropseqrna.barnyard.digitalexpression.tools.DGEMatrix;
+import org.broadinstitute.dropseqrna.matrixmarket.MatrixMarketReader;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -123,6 +124,92 @@ public class MergeDgeSparseTest {
         Assert.assertEquals(rawMatrix.getCellBarcodes().size(), expectedNumCells);
     }
 
+    /**
+     * Binary sparse input DGEs should merge to the same result as the text DGEs they were converted from.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBinaryInput() throws IOException {
+        final File tempDir = Files.createTempDirectory("MergeDgeSparseTest.").toFile();
+        tempDir.deleteOnExit();
+
+        final Yaml yamlConverter = new Yaml();
+        final Map textYamlMap = (Map)yamlConverter.load(IOUtil.openFileForReading(YAML));
+        final Map binaryYamlMap = (Map)yamlConverter.load(IOUtil.openFileForReading(YAML));
+        final List textDatasets = (List)textYamlMap.get(MergeDgeSparse.YamlKeys.DATASETS_KEY);
+        final List binaryDatasets = (List)binaryYamlMap.get(MergeDgeSparse.YamlKeys.DATASETS_KEY);
+        final String[] prefix = {"A", "B", "C"};
+        for (int i = 0; i < textDatasets.size(); ++i) {
+            final File textDge = new File((String)((Map)textDatasets.get(i)).get(MergeDgeSparse.YamlKeys.DatasetsKeys.PATH_KEY));
+            final File binaryDge = new File(tempDir, textDge.getName() + ".bin");
+            binaryDge.deleteOnExit();
+            DGEMatrix.parseFile(textDge).writeFile(binaryDge, true, DGEMatrix.FileFormat.BINARY_SPARSE, DGEMatrix.parseDgeHeader(textDge));
+            ((Map)binaryDatasets.get(i)).put(MergeDgeSparse.YamlKeys.DatasetsKeys.PATH_KEY, binaryDge.getPath());
+            ((Map)textDatasets.get(i)).put(MergeDgeSparse.YamlKeys.DatasetsKeys.NAME_KEY, prefix[i]);
+            ((Map)binaryDatasets.get(i)).put(MergeDgeSparse.YamlKeys.DatasetsKeys.NAME_KEY, prefix[i]);
+        }
+
+        final MergeDgeSparse textMerger = makeMerger(yamlConverter, textYamlMap, tempDir, "text");
+        final MergeDgeSparse binaryMerger = makeMerger(yamlConverter, binaryYamlMap, tempDir, "binary");
+        Assert.assertEquals(textMerger.doWork(), 0);
+        Assert.assertEquals(binaryMerger.doWork(), 0);
+
+        final DGEMatrix textMatrix = DGEMatrix.parseFile(textMerger.RAW_DGE_OUTPUT_FILE);
+        final DGEMatrix binaryMatrix = DGEMatrix.parseFile(binaryMerger.RAW_DGE_OUTPUT_FILE);
+        Assert.assertEquals(binaryMatrix.getGenes(), textMatrix.getGenes());
+        Assert.assertEquals(binaryMatrix.getCellBarcodes(), textMatrix.getCellBarcodes());
+        Assert.assertEquals(binaryMatrix.getExpressionMatrix(), textMatrix.getExpressionMatrix());
+        Assert.assertEquals(DGEMatrix.parseDgeHeader(binaryMerger.DGE_HEADER_OUTPUT_FILE).getNumLibraries(),
+                DGEMatrix.parseDgeHeader(textMerger.DGE_HEADER_OUTPUT_FILE).getNumLibraries());
+    }
+
+    /**
+     * The element count in the Matrix Market header should not include elements of genes removed by MIN_CELLS.
+     */
+    @Test
+    public void testElementCountWithGeneFilter() throws IOException {
+        final File tempDir = Files.createTempDirectory("MergeDgeSparseTest.").toFile();
+        tempDir.deleteOnExit();
+
+        final Yaml yamlConverter = new Yaml();
+        final Map yamlMap = (Map)yamlConverter.load(IOUtil.openFileForReading(YAML));
+        final MergeDgeSparse merger = makeMerger(yamlConverter, yamlMap, tempDir, "minCells");
+        merger.DGE_HEADER_OUTPUT_FILE = null;
+        merger.MIN_CELLS = 2;
+        Assert.assertEquals(merger.doWork(), 0);
+
+        final MatrixMarketReader reader = new MatrixMarketReader(merger.RAW_DGE_OUTPUT_FILE);
+        int numElements = 0;
+        for (final MatrixMarketReader.Element ignored : reader) {
+            ++numElements;
+        }
+        reader.close();
+        Assert.assertEquals(numElements, reader.getNumElements());
+        Assert.assertEquals(reader.getNumRows(), 74);
+    }
+
+    private MergeDgeSparse makeMerger(final Yaml yamlConverter, final Map yamlMap, final File tempDir, final String name) throws IOException {
+        final File yaml = new File(tempDir, name + ".yaml");
+        yaml.deleteOnExit();
+        final BufferedWriter yamlWriter = IOUtil.openFileForBufferedWriting(yaml);
+        yamlConverter.dump(yamlMap, yamlWriter);
+        yamlWriter.close();
+
+        final MergeDgeSparse merger = new MergeDgeSparse();
+        merger.YAML = yaml;
+        merger.CELL_SIZE_OUTPUT_FILE = new File(tempDir, name + ".cell_size.txt");
+        merger.DGE_HEADER_OUTPUT_FILE = new File(tempDir, name + ".dge_header.txt");
+        merger.RAW_DGE_OUTPUT_FILE = new File(tempDir, name + ".raw.dge.txt");
+        merger.SCALED_DGE_OUTPUT_FILE = new File(tempDir, name + ".scaled.dge.txt");
+        merger.FILTERED_GENE_RE = Collections.emptyList();
+        merger.MIN_GENES = 0;
+        for (final File f: Arrays.asList(merger.CELL_SIZE_OUTPUT_FILE, merger.DGE_HEADER_OUTPUT_FILE,
+                merger.RAW_DGE_OUTPUT_FILE, merger.SCALED_DGE_OUTPUT_FILE)) {
+            f.deleteOnExit();
+        }
+        return merger;
+    }
+
     @DataProvider(name="testBasicDataProvider")
     private Object[][] testBasicDataProvider() throws IOException {
         final List<File> selectedCellsFiles = new ArrayList<File>();
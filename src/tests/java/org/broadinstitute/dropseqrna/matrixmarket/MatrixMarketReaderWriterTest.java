@@ -23,14 +23,19 @@
  */
 package org.broadinstitute.dropseqrna.matrixmarket;
 
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 public class MatrixMarketReaderWriterTest {
@@ -121,6 +126,120 @@ public class MatrixMarketReaderWriterTest {
         reader.close();
     }
 
+    /**
+     * Writing with worker threads should produce the same file as writing serially, and reading in blocks should
+     * produce the same elements as the element iterator.
+     */
+    @Test(dataProvider = "numThreadsDataProvider")
+    public void testParallelReadWrite(final int numThreads) throws IOException {
+        final int numRows = 1000;
+        final int numCols = 1999;
+        final int zeroFrequency = 4;
+        final int numNonZeroElements = numRows * numCols - numRows * numCols/zeroFrequency;
+        final int[][] intMat = makeIntMatrix(numRows, numCols, -12345, 3, zeroFrequency);
+        final double[][] realMat = makeDoubleMatrix(numRows, numCols, -12345.6, 3.1, zeroFrequency);
+        for (final MatrixMarketConstants.ElementType elementType : MatrixMarketConstants.ElementType.values()) {
+            final File serialFile = File.createTempFile("MatrixMarketReaderWriterTest.", ".txt");
+            serialFile.deleteOnExit();
+            final File parallelFile = File.createTempFile("MatrixMarketReaderWriterTest.", ".txt.gz");
+            parallelFile.deleteOnExit();
+            for (final File mmFile : new File[]{serialFile, parallelFile}) {
+                final MatrixMarketWriter writer = new MatrixMarketWriter(mmFile, elementType, numRows, numCols,
+                        numNonZeroElements, makeNames("R", numRows), makeNames("C", numCols), null, null,
+                        mmFile == serialFile? 1: numThreads);
+                for (int i = 0; i < numRows; ++i) {
+                    for (int j = 0; j < numCols; ++j) {
+                        if (intMat[i][j] != 0) {
+                            if (elementType == MatrixMarketConstants.ElementType.integer) {
+                                writer.writeTriplet(i, j, intMat[i][j]);
+                            } else {
+                                writer.writeTriplet(i, j, realMat[i][j]);
+                            }
+                        }
+                    }
+                }
+                writer.close();
+            }
+            Assert.assertEquals(readLines(parallelFile), readLines(serialFile));
+
+            final MatrixMarketReader elementReader = new MatrixMarketReader(serialFile);
+            final Iterator<MatrixMarketReader.Element> elements = elementReader.iterator();
+            final MatrixMarketReader blockReader = new MatrixMarketReader(parallelFile);
+            final CloseableIterator<MatrixMarketReader.ElementBlock> blocks = blockReader.blockIterator(numThreads);
+            int numBlocks = 0;
+            while (blocks.hasNext()) {
+                ++numBlocks;
+                final MatrixMarketReader.ElementBlock block = blocks.next();
+                for (int i = 0; i < block.size; ++i) {
+                    final MatrixMarketReader.Element element = elements.next();
+                    Assert.assertEquals(block.rows[i], element.row);
+                    Assert.assertEquals(block.cols[i], element.col);
+                    Assert.assertEquals(block.intValue(i), element.intValue());
+                    Assert.assertEquals(block.realValue(i), element.realValue());
+                }
+            }
+            Assert.assertFalse(elements.hasNext());
+            Assert.assertTrue(numBlocks > 1);
+            blocks.close();
+            elementReader.close();
+        }
+    }
+
+    @DataProvider(name = "numThreadsDataProvider")
+    public Object[][] numThreadsDataProvider() {
+        return new Object[][] {{1}, {4}};
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*after it has been closed.*")
+    public void testWriteAfterClose() throws IOException {
+        final File mmFile = File.createTempFile("MatrixMarketReaderWriterTest.", ".txt");
+        mmFile.deleteOnExit();
+        final MatrixMarketWriter writer = new MatrixMarketWriter(mmFile, MatrixMarketConstants.ElementType.integer, 2, 2,
+                2, null, null, null, null, 2);
+        writer.writeTriplet(0, 0, 1);
+        writer.close();
+        writer.writeTriplet(1, 1, 2);
+    }
+
+    @Test
+    public void testBlockIteratorLineEndings() throws IOException {
+        // CRLF line endings and no newline at the end of the last line.
+        final String text = MatrixMarketConstants.MM_HEADER_INT + "\n3\t2\t3\r\n1 1 5\r\n3\t2\t-7\r\n2 1 +12";
+        final MatrixMarketReader reader = new MatrixMarketReader(new BufferedReader(new StringReader(text)), "test", null, null);
+        final CloseableIterator<MatrixMarketReader.ElementBlock> blocks = reader.blockIterator(2);
+        final MatrixMarketReader.ElementBlock block = blocks.next();
+        Assert.assertFalse(blocks.hasNext());
+        Assert.assertEquals(block.size, 3);
+        Assert.assertEquals(block.rows, new int[]{0, 2, 1});
+        Assert.assertEquals(block.cols, new int[]{0, 1, 0});
+        Assert.assertEquals(block.intValues, new int[]{5, -7, 12});
+        Assert.assertNull(block.realValues);
+        blocks.close();
+    }
+
+    @Test(expectedExceptions = RuntimeException.class, expectedExceptionsMessageRegExp = ".*bad data line.*")
+    public void testBlockIteratorBadLine() throws IOException {
+        final String text = MatrixMarketConstants.MM_HEADER_INT + "\n3\t2\t2\n1 1 5\n3 2 x\n";
+        final MatrixMarketReader reader = new MatrixMarketReader(new BufferedReader(new StringReader(text)), "test", null, null);
+        final CloseableIterator<MatrixMarketReader.ElementBlock> blocks = reader.blockIterator(1);
+        try {
+            blocks.next();
+        } finally {
+            blocks.close();
+        }
+    }
+
+    private List<String> readLines(final File file) throws IOException {
+        final BufferedReader reader = IOUtil.openFileForBufferedReading(file);
+        final List<String> ret = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            ret.add(line);
+        }
+        reader.close();
+        return ret;
+    }
+
     @DataProvider(name = "MMRWTDataProvider")
     public Object[][] MMRWTDataProvider() {
         return new Object[][] {
@@ -0,0 +1,85 @@
+package org.broadinstitute.dropseqrna.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.broadinstitute.dropseqrna.utils.TestUtils;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class GatherMultipleBamMetricsTest {
+
+	private static final File IN_FILE = new File("testdata/org/broadinstitute/transcriptome/barnyard/5cell3gene_retagged.bam");
+	private static final File IN_CELL_BARCODE_FILE = new File("testdata/org/broadinstitute/transcriptome/barnyard/5cell3gene.cellbarcodes.txt");
+	private static final File EXPECTED_COUNTS_XC = new File ("testdata/org/broadinstitute/dropseq/metrics/5cell3gene.counts_per_XC.txt");
+	private static final File EXPECTED_COUNTS_NM = new File ("testdata/org/broadinstitute/dropseq/metrics/5cell3gene.counts_per_NM.txt");
+	private static final File EXPECTED_READ_QUALITY = new File ("testdata/org/broadinstitute/dropseq/metrics/5cell3gene.read_quality_metrics.txt");
+	private static final File EXPECTED_BASE_DISTRIBUTION = new File("testdata/org/broadinstitute/dropseq/utils/BaseDistributionAtReadPosition.expected_output.txt");
+	private static final File EXPECTED_MOLECULAR_BARCODES = new File("testdata/org/broadinstitute/transcriptome/barnyard/5cell3gene_retagged.molBC.txt");
+	private static final File EXPECTED_TAG_OF_TAG = new File("testdata/org/broadinstitute/transcriptome/barnyard/tag_of_tag_XC_XM.txt");
+
+	@DataProvider(name="numThreads")
+	public Object[][] numThreads() {
+		return new Object[][] {{1}, {2}, {6}};
+	}
+
+	@Test(dataProvider="numThreads")
+	public void testDoWork(final int numThreads) throws IOException {
+		GatherMultipleBamMetrics g = new GatherMultipleBamMetrics();
+		g.INPUT=IN_FILE;
+		g.NUM_THREADS=numThreads;
+		g.TAG_HISTOGRAM_TAG=Arrays.asList("XC", "NM");
+		g.TAG_HISTOGRAM_OUTPUT=Arrays.asList(getTempFile(".counts_XC.txt"), getTempFile(".counts_NM.txt"));
+		g.READ_QUALITY_METRICS_OUTPUT=getTempFile(".read_quality_metrics.txt");
+		g.READ_QUALITY_METRICS_TAG="XC";
+		g.BASE_DISTRIBUTION_TAG=Collections.singletonList("XC");
+		g.BASE_DISTRIBUTION_TAG_OUTPUT=Collections.singletonList(getTempFile(".base_distribution.txt"));
+		g.CELL_BC_FILE=IN_CELL_BARCODE_FILE;
+		g.MOLECULAR_BARCODE_DISTRIBUTION_OUTPUT=getTempFile(".molBC.txt");
+		Assert.assertNull(g.customCommandLineValidation());
+
+		Assert.assertEquals(g.doWork(), 0);
+		Assert.assertTrue(TestUtils.testFilesSame(EXPECTED_COUNTS_XC, g.TAG_HISTOGRAM_OUTPUT.get(0)));
+		Assert.assertTrue(TestUtils.testFilesSame(EXPECTED_COUNTS_NM, g.TAG_HISTOGRAM_OUTPUT.get(1)));
+		Assert.assertTrue(TestUtils.testFilesSame(EXPECTED_READ_QUALITY, g.READ_QUALITY_METRICS_OUTPUT));
+		Assert.assertTrue(FileUtils.contentEquals(EXPECTED_BASE_DISTRIBUTION, g.BASE_DISTRIBUTION_TAG_OUTPUT.get(0)));
+		Assert.assertTrue(FileUtils.contentEquals(EXPECTED_MOLECULAR_BARCODES, g.MOLECULAR_BARCODE_DISTRIBUTION_OUTPUT));
+	}
+
+	@Test(dataProvider="numThreads")
+	public void testTagOfTag(final int numThreads) throws IOException {
+		GatherMultipleBamMetrics g = new GatherMultipleBamMetrics();
+		g.INPUT=IN_FILE;
+		g.NUM_THREADS=numThreads;
+		g.READ_MQ=0;
+		g.TAG_OF_TAG_PRIMARY_TAG="XC";
+		g.TAG_OF_TAG_SECONDARY_TAG="XM";
+		g.TAG_OF_TAG_OUTPUT=getTempFile(".tag_of_tag.txt");
+
+		Assert.assertEquals(g.doWork(), 0);
+		Assert.assertTrue(FileUtils.contentEquals(EXPECTED_TAG_OF_TAG, g.TAG_OF_TAG_OUTPUT));
+	}
+
+	@Test
+	public void testValidation() {
+		GatherMultipleBamMetrics g = new GatherMultipleBamMetrics();
+		g.INPUT=IN_FILE;
+		Assert.assertEquals(g.customCommandLineValidation().length, 1);
+		g.TAG_HISTOGRAM_TAG=Arrays.asList("XC", "NM");
+		g.TAG_HISTOGRAM_OUTPUT=Collections.singletonList(new File("foo.txt"));
+		Assert.assertEquals(g.customCommandLineValidation().length, 1);
+		g.TAG_OF_TAG_OUTPUT=new File("bar.txt");
+		Assert.assertEquals(g.customCommandLineValidation().length, 2);
+	}
+
+	private File getTempFile (final String suffix) throws IOException {
+		File f = File.createTempFile("GatherMultipleBamMetricsTest.", suffix);
+		f.deleteOnExit();
+		return f;
+	}
+
+}
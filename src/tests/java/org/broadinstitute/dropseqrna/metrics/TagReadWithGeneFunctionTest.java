@@ -11,6 +11,7 @@ import org.broadinstitute.dropseqrna.annotation.GeneAnnotationReader;
 import org.broadinstitute.dropseqrna.annotation.GeneFromGTF;
 import org.broadinstitute.dropseqrna.utils.CompareBAMTagValues;
 import org.testng.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import htsjdk.samtools.SAMFileHeader;
@@ -29,9 +30,10 @@ public class TagReadWithGeneFunctionTest {
 	File annotationsFile=new File ("testdata/org/broadinstitute/dropseq/metrics/mm10_Elp2.gtf");
 	File OUT_BAM = new File ("testdata/org/broadinstitute/dropseq/metrics/NucBYReg4Reg.MOUSE.GCTAAGTAAGAT.Elp2.gene_function_tagged.bam");
 
-	@Test
-	public void testDoWork() throws IOException {
+	@Test(dataProvider="numThreads")
+	public void testDoWork(final int numThreads) throws IOException {
 		TagReadWithGeneFunction t = new TagReadWithGeneFunction();
+		t.NUM_THREADS=numThreads;
 		File tempBAM = File.createTempFile("TagReadWithGeneFunctionTest", ".bam");
 		tempBAM.deleteOnExit();
 		File tempSummary=File.createTempFile("TagReadWithGeneFunctionTest", ".summary");
@@ -55,6 +57,11 @@ public class TagReadWithGeneFunctionTest {
 
 	}
 
+	@DataProvider(name="numThreads")
+	public Object[][] numThreads() {
+		return new Object[][] {{1}, {4}};
+	}
+
 	@Test
 	public void testTagIntronRead () {
 		SamReader inputSam = SamReaderFactory.makeDefault().open(testBAMFile);
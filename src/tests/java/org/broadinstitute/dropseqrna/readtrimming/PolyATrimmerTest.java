@@ -42,7 +42,7 @@ public class PolyATrimmerTest {
 
     // There are already tests of the real work, so just confirm that CLP runs to completion.
     @Test(dataProvider = "testClpDataProvider")
-    public void testClp(final boolean newTrimmer) throws IOException {
+    public void testClp(final boolean newTrimmer, final int numThreads) throws IOException {
         final File tempDir = Files.createTempDirectory("PolyATrimmerTest.").toFile();
         final Log.LogLevel saveLogLevel = Log.getGlobalLogLevel();
         Log.setGlobalLogLevel(Log.LogLevel.DEBUG);
@@ -59,6 +59,7 @@ public class PolyATrimmerTest {
             clp.NUM_BASES = 6;
             clp.VALIDATION_STRINGENCY = ValidationStringency.STRICT;
             clp.USE_NEW_TRIMMER = newTrimmer;
+            clp.NUM_THREADS = numThreads;
             Assert.assertEquals(clp.doWork(), 0);
             final File expectedResult = new File(TESTDATA_DIR, String.format("N701.%s_trimmer.sam", newTrimmer? "new": "old"));
             TestUtils.assertSamFilesSame(clp.OUTPUT, expectedResult);
@@ -71,8 +72,10 @@ public class PolyATrimmerTest {
     @DataProvider(name="testClpDataProvider")
     public Object[][]testClpDataProvider() {
         return new Object[][]{
-                new Object[]{true},
-                new Object[]{false},
+                new Object[]{true, 1},
+                new Object[]{false, 1},
+                new Object[]{true, 4},
+                new Object[]{false, 4},
         };
     }
 
@@ -33,6 +33,7 @@ import org.broadinstitute.dropseqrna.spermseq.metrics.duplicates.SpermSeqMarkDup
 import org.broadinstitute.dropseqrna.utils.GroupingIterator;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamFileMergeUtil;
 import org.broadinstitute.dropseqrna.utils.readiterators.SamHeaderAndIterator;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.File;
@@ -44,13 +45,19 @@ public class SpermSeqMarkDuplicatesTest {
 
 	File INPUT = new File ("testdata/org/broadinstitute/spermseq/metrics/duplicates/test_sorted.bam");
 
-	@Test
+	@DataProvider(name="numThreads")
+	public Object[][] numThreads() {
+		return new Object[][] {{1}, {3}};
+	}
+
+	@Test(dataProvider="numThreads")
 	// tests which reads are marked as duplicates by the read position strategy.
-	public void testDetectDuplicatesByReadPositionStrategy() throws IOException {
+	public void testDetectDuplicatesByReadPositionStrategy(final int numThreads) throws IOException {
 		String [] duplicateReadNames={"READ1:2", "READ2:3"};
 		Set<String> dupes = new HashSet<String>(Arrays.asList(duplicateReadNames));
 
 		SpermSeqMarkDuplicates d = new SpermSeqMarkDuplicates();
+		d.NUM_THREADS=numThreads;
 		d.INPUT=Arrays.asList(INPUT);
 		d.OUTPUT=File.createTempFile("testDetectDuplicatesByReadPositionStrategy.", ".bam");
 		d.OUTPUT.deleteOnExit();
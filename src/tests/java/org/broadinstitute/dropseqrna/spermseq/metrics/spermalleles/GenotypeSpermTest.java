@@ -2,9 +2,16 @@ package org.broadinstitute.dropseqrna.spermseq.metrics.spermalleles;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
+import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.SNPUMIBasePileup;
+import org.broadinstitute.dropseqrna.barnyard.digitalallelecounts.SNPUMIBasePileupStore;
 import org.testng.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 public class GenotypeSpermTest {
@@ -14,8 +21,8 @@ public class GenotypeSpermTest {
 	private static final File INTERVALS_FILE = new File("testdata/org/broadinstitute/spermseq/spermalleles/GenotypeSperm.intervals");
 	private static final File EXPECTED_RESULTS_FILE = new File("testdata/org/broadinstitute/spermseq/spermalleles/GenotypeSperm.result.txt");
 	
-  @Test
-  public void testFullProgram() {
+  @Test(dataProvider="numThreads")
+  public void testFullProgram(final int numThreads) {
 	  	File outFile=null;
 		try {
 			outFile = File.createTempFile("GenotypeSpermTest.", ".result.txt");
@@ -28,6 +35,7 @@ public class GenotypeSpermTest {
 		dsa.CELL_BC_FILE=CELL_BARCODE_FILE;
 		dsa.INTERVALS=INTERVALS_FILE;
 		dsa.OUTPUT=outFile;
+		dsa.NUM_THREADS=numThreads;
 		      
       int result = dsa.doWork();
       Assert.assertEquals(result, 0);
@@ -37,5 +45,42 @@ public class GenotypeSpermTest {
 			e.printStackTrace();
 		}
   }
+
+  @Test
+  public void testPileupStore() throws IOException {
+	  File outFile = File.createTempFile("GenotypeSpermTest.", ".result.txt");
+	  outFile.deleteOnExit();
+	  File storeFile = File.createTempFile("GenotypeSpermTest.", SNPUMIBasePileupStore.STORE_EXTENSION);
+	  storeFile.deleteOnExit();
+	  GenotypeSperm dsa = new GenotypeSperm();
+	  dsa.INPUT=BAM_FILE;
+	  dsa.CELL_BC_FILE=CELL_BARCODE_FILE;
+	  dsa.INTERVALS=INTERVALS_FILE;
+	  dsa.OUTPUT=outFile;
+	  dsa.PILEUP_STORE=storeFile;
+	  Assert.assertEquals(dsa.doWork(), 0);
+	  Assert.assertTrue (FileUtils.contentEquals(outFile, EXPECTED_RESULTS_FILE));
+
+	  // every SNP/cell in the output has pileups in the store.
+	  SNPUMIBasePileupStore store = new SNPUMIBasePileupStore(storeFile);
+	  Set<String> stored = new HashSet<>();
+	  Iterator<SNPUMIBasePileup> iter = store.iterator();
+	  while (iter.hasNext()) {
+		  SNPUMIBasePileup p = iter.next();
+		  stored.add(p.getChromosome() + ":" + p.getPosition() + ":" + p.getCell());
+	  }
+	  store.close();
+	  List<String> lines = FileUtils.readLines(outFile);
+	  Assert.assertTrue(lines.size()>1);
+	  for (String line: lines.subList(1, lines.size())) {
+		  String [] fields = line.split("\t");
+		  Assert.assertTrue(stored.contains(fields[0] + ":" + fields[1] + ":" + fields[2]), line);
+	  }
+  }
+
+  @DataProvider(name="numThreads")
+  public Object[][] numThreads() {
+	  return new Object[][] {{1}, {4}};
+  }
   
 }
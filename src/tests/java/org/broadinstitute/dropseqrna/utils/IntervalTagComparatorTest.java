@@ -338,6 +338,45 @@ public class IntervalTagComparatorTest {
 	}
 
 
+	@Test
+	public void testBinaryMatchesString () {
+		SamReader inputSam = SamReaderFactory.makeDefault().open(dictFile);
+		SAMSequenceDictionary dict= filterSD(inputSam.getFileHeader().getSequenceDictionary());
+		CloserUtil.close(inputSam);
+		IntervalTagComparator c = new IntervalTagComparator(this.intervalTag, dict);
+
+		Random random = new Random(1);
+		SAMRecordSetBuilder builder  = new SAMRecordSetBuilder();
+		List<SAMRecord> stringRecs = new ArrayList<>();
+		List<SAMRecord> binaryRecs = new ArrayList<>();
+		for (int i=0; i<200; i++) {
+			int contigIndex = random.nextInt(3);
+			int start = 1+random.nextInt(20);
+			int end = start+random.nextInt(3);
+			Interval interval = new Interval(dict.getSequence(contigIndex).getSequenceName(), start, end);
+			SAMRecord r1 = builder.addFrag("read"+i, 1, 1, false);
+			r1.setAttribute(this.intervalTag, IntervalTagComparator.toString(interval));
+			stringRecs.add(r1);
+			SAMRecord r2 = builder.addFrag("read"+i, 1, 1, false);
+			r2.setAttribute(this.intervalTag, IntervalTagComparator.toBinary(contigIndex, start, end));
+			binaryRecs.add(r2);
+			Assert.assertEquals(IntervalTagComparator.binaryToString((int []) r2.getAttribute(this.intervalTag), dict),
+					interval.getContig() + IntervalTagComparator.ENCODE_DELIMITER + start + "-" + end);
+		}
+		for (int i=0; i<stringRecs.size(); i++)
+			for (int j=0; j<stringRecs.size(); j++)
+				Assert.assertEquals(Integer.signum(c.compare(binaryRecs.get(i), binaryRecs.get(j))),
+						Integer.signum(c.compare(stringRecs.get(i), stringRecs.get(j))));
+	}
+
+	@Test
+	public void testBinaryId () {
+		// the id breaks ties between intervals at the same position.
+		Assert.assertTrue(IntervalTagComparator.compareBinary(IntervalTagComparator.toBinary(0, 5, 5, 1), IntervalTagComparator.toBinary(0, 5, 5, 0)) > 0);
+		Assert.assertTrue(IntervalTagComparator.compareBinary(IntervalTagComparator.toBinary(0, 5, 5, 1), IntervalTagComparator.toBinary(0, 6, 6, 0)) < 0);
+		Assert.assertEquals(IntervalTagComparator.compareBinary(IntervalTagComparator.toBinary(1, 5, 5, 3), IntervalTagComparator.toBinary(1, 5, 5, 3)), 0);
+	}
+
 	private List<SAMRecord> getRecords () {
 		SAMRecordSetBuilder builder  = new SAMRecordSetBuilder();
 
@@ -1,8 +1,12 @@
 package org.broadinstitute.dropseqrna.utils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import org.testng.annotations.Test;
@@ -82,4 +86,47 @@ public class ObjectCounterTest {
 
 
 	}
+
+	@Test
+	public void testMatchesHashMap () {
+		// counts and key iteration order should be the same as a HashMap, including through resizing, collisions and removal.
+		Random random = new Random(1);
+		ObjectCounter<String> o = new ObjectCounter<>();
+		Map<String, Integer> expected = new HashMap<>();
+		for (int i=0; i<20000; i++) {
+			// "Aa" and "BB" have the same hash code, so a few pairs of keys collide.
+			String key = random.nextInt(100)==0 ? (random.nextBoolean() ? "Aa" : "BB") + random.nextInt(3) : "K" + random.nextInt(2000);
+			int op = random.nextInt(10);
+			if (op==0) {
+				o.remove(key);
+				expected.remove(key);
+			} else if (op==1) {
+				o.setCount(key, 5);
+				expected.put(key, 5);
+			} else {
+				o.increment(key);
+				expected.put(key, expected.getOrDefault(key, 0)+1);
+			}
+		}
+		Assert.assertEquals(o.getSize(), expected.size());
+		Assert.assertEquals(new ArrayList<>(o.getKeys()), new ArrayList<>(expected.keySet()));
+		Assert.assertEquals(o.toString(), expected.toString());
+		for (String key: expected.keySet())
+			Assert.assertEquals(o.getCountForKey(key), expected.get(key).intValue());
+
+		ObjectCounter<String> copy = new ObjectCounter<>(o);
+		Assert.assertEquals(copy, o);
+		Assert.assertEquals(copy.hashCode(), o.hashCode());
+		copy.filterByMinCount(3);
+		// filtering builds a new map of the remaining counts.
+		Map<String, Integer> expectedFiltered = new HashMap<>();
+		for (String key: expected.keySet())
+			if (expected.get(key)>=3)
+				expectedFiltered.put(key, expected.get(key));
+		Assert.assertEquals(copy.toString(), expectedFiltered.toString());
+
+		o.increment((String) null);
+		Assert.assertTrue(o.hasKey(null));
+		Assert.assertEquals(o.getCountForKey(null), 1);
+	}
 }
@@ -0,0 +1,185 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.broadinstitute.dropseqrna.readtrimming.PolyATrimmer;
+import org.broadinstitute.dropseqrna.readtrimming.TrimStartingSequence;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.CloserUtil;
+
+public class TagAndTrimUnalignedBamTest {
+
+	// reads that have already been tagged and filtered, and are used to rebuild the barcode reads of an unaligned BAM.
+	private static final File TAGGED_READS = new File("testdata/org/broadinstitute/dropseq/readtrimming/N701.subset.tagged_filtered.sam");
+
+	@Test
+	public void testMatchesSeparatePrograms () throws IOException {
+		final File INPUT = makeUnalignedBam();
+
+		// run each step as Drop-seq_alignment.sh does.
+		TagBamWithReadSequenceExtended cellTagger = new TagBamWithReadSequenceExtended();
+		cellTagger.INPUT=INPUT;
+		cellTagger.OUTPUT=getTempFile(".bam");
+		cellTagger.SUMMARY=getTempFile(".cell_summary.txt");
+		cellTagger.BASE_RANGE="1-12";
+		cellTagger.BARCODED_READ=1;
+		cellTagger.DISCARD_READ=false;
+		cellTagger.TAG_NAME="XC";
+		Assert.assertEquals(cellTagger.doWork(), 0);
+
+		TagBamWithReadSequenceExtended molecularTagger = new TagBamWithReadSequenceExtended();
+		molecularTagger.INPUT=cellTagger.OUTPUT;
+		molecularTagger.OUTPUT=getTempFile(".bam");
+		molecularTagger.SUMMARY=getTempFile(".molecular_summary.txt");
+		molecularTagger.BASE_RANGE="13-20";
+		molecularTagger.BARCODED_READ=1;
+		molecularTagger.DISCARD_READ=true;
+		molecularTagger.TAG_NAME="XM";
+		Assert.assertEquals(molecularTagger.doWork(), 0);
+
+		FilterBam filter = new FilterBam();
+		filter.INPUT=molecularTagger.OUTPUT;
+		filter.OUTPUT=getTempFile(".bam");
+		filter.TAG_REJECT=Collections.singletonList("XQ");
+		filter.STRIP_REF_PREFIX=new ArrayList<>();
+		Assert.assertEquals(filter.doWork(), 0);
+
+		File adapterTrimmed = getTempFile(".bam");
+		File adapterTrimmingSummary = getTempFile(".adapter_trimming_report.txt");
+		Assert.assertEquals(new TrimStartingSequence().instanceMain(new String[] {
+				"INPUT=" + filter.OUTPUT, "OUTPUT=" + adapterTrimmed, "OUTPUT_SUMMARY=" + adapterTrimmingSummary,
+				"SEQUENCE=AAGCAGTGGTATCAACGCAGAGTGAATGGG", "MISMATCHES=0", "NUM_BASES=5"}), 0);
+
+		File polyATrimmed = getTempFile(".bam");
+		File polyATrimmingSummary = getTempFile(".polyA_trimming_report.txt");
+		Assert.assertEquals(new PolyATrimmer().instanceMain(new String[] {
+				"INPUT=" + adapterTrimmed, "OUTPUT=" + polyATrimmed, "OUTPUT_SUMMARY=" + polyATrimmingSummary,
+				"MISMATCHES=0", "NUM_BASES=6", "NEW=true"}), 0);
+
+		// the same, in a single pass.
+		TagAndTrimUnalignedBam clp = new TagAndTrimUnalignedBam();
+		clp.INPUT=INPUT;
+		clp.OUTPUT=getTempFile(".bam");
+		clp.CELL_BARCODE_SUMMARY=getTempFile(".cell_summary.txt");
+		clp.MOLECULAR_BARCODE_SUMMARY=getTempFile(".molecular_summary.txt");
+		clp.FILTER_SUMMARY=getTempFile(".filter_summary.txt");
+		clp.ADAPTER_TRIMMING_SUMMARY=getTempFile(".adapter_trimming_report.txt");
+		clp.POLY_A_TRIMMING_SUMMARY=getTempFile(".polyA_trimming_report.txt");
+		Assert.assertEquals(clp.doWork(), 0);
+
+		assertRecordsSame(clp.OUTPUT, polyATrimmed);
+		Assert.assertTrue(TestUtils.testFilesSame(cellTagger.SUMMARY, clp.CELL_BARCODE_SUMMARY));
+		Assert.assertTrue(TestUtils.testFilesSame(molecularTagger.SUMMARY, clp.MOLECULAR_BARCODE_SUMMARY));
+		Assert.assertTrue(TestUtils.testFilesSame(adapterTrimmingSummary, clp.ADAPTER_TRIMMING_SUMMARY));
+		Assert.assertTrue(TestUtils.testFilesSame(polyATrimmingSummary, clp.POLY_A_TRIMMING_SUMMARY));
+
+		List<FilteredReadsMetric> metrics = MetricsFile.readBeans(clp.FILTER_SUMMARY);
+		Assert.assertEquals(metrics.get(0).READS_ACCEPTED, countRecords(polyATrimmed));
+		Assert.assertEquals(metrics.get(0).READS_ACCEPTED + metrics.get(0).READS_REJECTED, countRecords(molecularTagger.OUTPUT));
+		Assert.assertTrue(metrics.get(0).READS_REJECTED > 0);
+	}
+
+	/**
+	 * Pair each tagged read with a barcode read made from its cell and molecular barcodes.  Some barcodes are given a
+	 * low quality base so that the quality filter has reads to reject.
+	 */
+	private File makeUnalignedBam () throws IOException {
+		File result = getTempFile(".bam");
+		SamReader reader = SamReaderFactory.makeDefault().open(TAGGED_READS);
+		SAMFileHeader header = reader.getFileHeader().clone();
+		header.setProgramRecords(new ArrayList<>());
+		SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, result);
+		int count=0;
+		for (SAMRecord r: reader) {
+			SAMRecord barcodeRead = new SAMRecord(header);
+			barcodeRead.setReadName(r.getReadName());
+			barcodeRead.setReadString(r.getStringAttribute("XC") + r.getStringAttribute("XM"));
+			byte [] quals = new byte [barcodeRead.getReadLength()];
+			Arrays.fill(quals, (byte) 30);
+			if (count % 7 == 0) quals[3]=2;
+			if (count % 11 == 0) quals[15]=2;
+			barcodeRead.setBaseQualities(quals);
+			barcodeRead.setFlags(77);
+			barcodeRead.setAttribute("RG", r.getAttribute("RG"));
+			r.clearAttributes();
+			r.setAttribute("RG", barcodeRead.getAttribute("RG"));
+			r.setFlags(141);
+			writer.addAlignment(barcodeRead);
+			writer.addAlignment(r);
+			count++;
+		}
+		CloserUtil.close(reader);
+		writer.close();
+		return result;
+	}
+
+	// the headers differ in their program records, so only the reads are compared.
+	private void assertRecordsSame (final File actual, final File expected) {
+		SamReader actualReader = SamReaderFactory.makeDefault().open(actual);
+		SamReader expectedReader = SamReaderFactory.makeDefault().open(expected);
+		SAMRecordIterator actualIterator = actualReader.iterator();
+		SAMRecordIterator expectedIterator = expectedReader.iterator();
+		while (expectedIterator.hasNext()) {
+			Assert.assertTrue(actualIterator.hasNext());
+			SAMRecord a = actualIterator.next();
+			SAMRecord e = expectedIterator.next();
+			Assert.assertEquals(a.getSAMString(), e.getSAMString());
+		}
+		Assert.assertFalse(actualIterator.hasNext());
+		CloserUtil.close(actualReader);
+		CloserUtil.close(expectedReader);
+	}
+
+	private long countRecords (final File bam) {
+		SamReader reader = SamReaderFactory.makeDefault().open(bam);
+		long count=0;
+		for (@SuppressWarnings("unused") SAMRecord r: reader)
+			count++;
+		CloserUtil.close(reader);
+		return count;
+	}
+
+	private File getTempFile (final String suffix) throws IOException {
+		File result = File.createTempFile("TagAndTrimUnalignedBamTest.", suffix);
+		result.deleteOnExit();
+		return result;
+	}
+}
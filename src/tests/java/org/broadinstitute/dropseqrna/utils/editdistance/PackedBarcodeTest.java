@@ -0,0 +1,198 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class PackedBarcodeTest {
+
+	private static final char [] BASES = {'A', 'C', 'G', 'T', 'N'};
+
+	@Test
+	public void testCanEncode() {
+		Assert.assertTrue(PackedBarcode.canEncode("ACGTN"));
+		Assert.assertTrue(PackedBarcode.canEncode(""));
+		Assert.assertTrue(PackedBarcode.canEncode("ACGTACGTACGTACGTACGTACGTACGTACGT"));
+		Assert.assertFalse(PackedBarcode.canEncode("ACGTACGTACGTACGTACGTACGTACGTACGTA"));
+		Assert.assertFalse(PackedBarcode.canEncode("ACGTacgt"));
+		Assert.assertFalse(PackedBarcode.canEncode("ACGT-"));
+		Assert.assertFalse(PackedBarcode.canEncode((String) null));
+		Assert.assertFalse(PackedBarcode.canEncode(Arrays.asList("AAAA", "AAXA")));
+	}
+
+	@Test
+	public void testHammingDistance() {
+		Assert.assertEquals(new PackedBarcode("AAAA").getHammingDistance(new PackedBarcode("AAAA")), 0);
+		Assert.assertEquals(new PackedBarcode("AAAA").getHammingDistance(new PackedBarcode("AAAT")), 1);
+		// N is only equal to N, even though it packs to the same bits as A.
+		Assert.assertEquals(new PackedBarcode("AAAN").getHammingDistance(new PackedBarcode("AAAA")), 1);
+		Assert.assertEquals(new PackedBarcode("AAAN").getHammingDistance(new PackedBarcode("AAAN")), 0);
+		Assert.assertEquals(new PackedBarcode("AAAN").getHammingDistance(new PackedBarcode("AAAC")), 1);
+		// length differences count as mismatches.
+		Assert.assertEquals(new PackedBarcode("AAAA").getHammingDistance(new PackedBarcode("AAAAGG")), 2);
+
+		Random random = new Random(1);
+		for (int i=0; i<10000; i++) {
+			String s1 = randomBarcode(random, 1+random.nextInt(PackedBarcode.MAX_LENGTH));
+			String s2 = mutate(random, s1, random.nextInt(4));
+			Assert.assertEquals(new PackedBarcode(s1).getHammingDistance(new PackedBarcode(s2)), HammingDistance.getHammingDistance(s1, s2), s1 + " " + s2);
+		}
+	}
+
+	@Test
+	public void testExceedsIndelEditDistance() {
+		Random random = new Random(2);
+		for (int i=0; i<10000; i++) {
+			String s1 = randomBarcode(random, 4+random.nextInt(12));
+			String s2 = mutate(random, s1, random.nextInt(5));
+			PackedBarcode p1 = new PackedBarcode(s1);
+			PackedBarcode p2 = new PackedBarcode(s2);
+			int ed = LevenshteinDistance.getIndelSlidingWindowEditDistance(s1, s2);
+			for (int editDistance=0; editDistance<4; editDistance++) {
+				boolean exceeds = PackedBarcode.exceedsIndelEditDistance(p1.getBases(), p1.getNMask(), p1.length(), p2.getBases(), p2.getNMask(), p2.length(), editDistance);
+				// the packed test may only reject barcodes that are actually too far apart.
+				if (exceeds)
+					Assert.assertTrue(ed > editDistance, s1 + " " + s2 + " ED=" + ed);
+			}
+		}
+	}
+
+	@Test
+	public void testIndelDistance() {
+		Random random = new Random(4);
+		for (int i=0; i<10000; i++) {
+			String s1 = randomBarcode(random, 1+random.nextInt(PackedBarcode.MAX_LENGTH));
+			String s2 = random.nextBoolean() ? mutate(random, s1, random.nextInt(6)) : randomBarcode(random, 1+random.nextInt(PackedBarcode.MAX_LENGTH));
+			PackedBarcode p1 = new PackedBarcode(s1);
+			PackedBarcode p2 = new PackedBarcode(s2);
+			int expected = LevenshteinDistance.getDistance(s1, s2, 1, 1, 2);
+			Assert.assertEquals(PackedBarcode.getIndelDistance(p1.getBases(), p1.getNMask(), p1.length(), p2.getBases(), p2.getNMask(), p2.length(), Integer.MAX_VALUE/2), expected, s1 + " " + s2);
+			// a limited search gives the distance if it's within the limit, and limit+1 otherwise.
+			int limit=random.nextInt(8);
+			Assert.assertEquals(PackedBarcode.getIndelDistance(p1.getBases(), p1.getNMask(), p1.length(), p2.getBases(), p2.getNMask(), p2.length(), limit), Math.min(expected, limit+1), s1 + " " + s2);
+		}
+		// N only matches N.
+		Assert.assertEquals(LevenshteinDistance.getDistance("ACNT", "ACAT", 1, 1, 2), 2);
+		PackedBarcode p1 = new PackedBarcode("ACNT");
+		PackedBarcode p2 = new PackedBarcode("ACAT");
+		Assert.assertEquals(PackedBarcode.getIndelDistance(p1.getBases(), p1.getNMask(), p1.length(), p2.getBases(), p2.getNMask(), p2.length(), 10), 2);
+	}
+
+	@Test
+	public void testIsWithinIndelSlidingWindowEditDistance() {
+		Random random = new Random(5);
+		for (int i=0; i<5000; i++) {
+			String s1 = randomBarcode(random, 4+random.nextInt(12));
+			String s2 = mutate(random, s1, random.nextInt(5));
+			int ed = LevenshteinDistance.getIndelSlidingWindowEditDistance(s1, s2);
+			for (int editDistance=0; editDistance<4; editDistance++)
+				Assert.assertEquals(LevenshteinDistance.isWithinIndelSlidingWindowEditDistance(s1, s2, editDistance), ed<=editDistance, s1 + " " + s2);
+		}
+		// strings that can't be packed use the full computation.
+		Assert.assertTrue(LevenshteinDistance.isWithinIndelSlidingWindowEditDistance("ACGTX", "ACGTA", 1));
+		Assert.assertFalse(LevenshteinDistance.isWithinIndelSlidingWindowEditDistance("ACGTX", "TGCAA", 1));
+	}
+
+	@Test
+	public void testPackedBarcodeList() {
+		List<String> barcodes = new ArrayList<>(Arrays.asList("AAAA", "AAAT", "AATT", "CCCC", "AAAN", "AAATT"));
+		PackedBarcodeList list = new PackedBarcodeList(barcodes);
+		Assert.assertEquals(list, barcodes);
+
+		Assert.assertEquals(list.getBarcodesWithinEditDistance("AAAA", false, 1, false), new HashSet<>(Arrays.asList("AAAA", "AAAT", "AAAN")));
+		Assert.assertEquals(list.getBarcodesWithinEditDistance("AAAA", false, 1, true), new HashSet<>(Arrays.asList("AAAA", "AAAT", "AAAN")));
+		Assert.assertEquals(list.getBarcodesWithinEditDistance("AAAA", true, 1, false), EDUtils.getInstance().getStringsWithinEditDistanceWithIndel("AAAA", barcodes, 1));
+		int [] expected = barcodes.stream().mapToInt(x -> HammingDistance.getHammingDistance("AAAT", x)).toArray();
+		Assert.assertEquals(list.getEditDistances("AAAT", false, false), expected);
+
+		list.remove("AAAT");
+		barcodes.remove("AAAT");
+		Assert.assertEquals(list, barcodes);
+		list.removeAll(Arrays.asList("AAAA", "CCCC"));
+		barcodes.removeAll(Arrays.asList("AAAA", "CCCC"));
+		Assert.assertEquals(list, barcodes);
+		Assert.assertEquals(list.getBarcodesWithinEditDistance("AAAA", false, 1, false), new HashSet<>(Arrays.asList("AAAN")));
+	}
+
+	@Test
+	public void testCollapseMatchesUnpacked() {
+		// barcodes with a character that can't be packed take the String path.  Results should be the same.
+		Random random = new Random(3);
+		List<String> parents = new ArrayList<>();
+		for (int i=0; i<20; i++)
+			parents.add(randomBarcode(random, 8));
+		ObjectCounter<String> packable = new org.broadinstitute.dropseqrna.utils.ObjectCounter<>();
+		ObjectCounter<String> unpackable = new org.broadinstitute.dropseqrna.utils.ObjectCounter<>();
+		for (String p: parents) {
+			for (int i=0; i<5; i++) {
+				String child = mutate(random, p, random.nextInt(3));
+				int count = 1+random.nextInt(100);
+				packable.incrementByCount(child, count);
+				unpackable.incrementByCount(child, count);
+			}
+		}
+		// a lower case barcode forces the unpacked search, but is too far away to collapse with anything.
+		unpackable.incrementByCount("xxxxxxxx", 1);
+		MapBarcodesByEditDistance mbed = new MapBarcodesByEditDistance(false);
+		for (boolean findIndels: new boolean [] {false, true}) {
+			Map<String, List<String>> packed = mbed.collapseBarcodes(packable, findIndels, 1);
+			Map<String, List<String>> unpacked = mbed.collapseBarcodes(unpackable, findIndels, 1);
+			unpacked.remove("xxxxxxxx");
+			Assert.assertEquals(packed, unpacked);
+		}
+	}
+
+	private String randomBarcode (final Random random, final int length) {
+		StringBuilder b = new StringBuilder();
+		for (int i=0; i<length; i++)
+			b.append(BASES[random.nextInt(BASES.length)]);
+		return b.toString();
+	}
+
+	/**
+	 * Make up to numChanges substitutions, insertions or deletions, keeping the barcode packable.
+	 */
+	private String mutate (final Random random, final String barcode, final int numChanges) {
+		StringBuilder b = new StringBuilder(barcode);
+		for (int i=0; i<numChanges && b.length()>1; i++) {
+			int pos = random.nextInt(b.length());
+			switch (random.nextInt(3)) {
+				case 0: b.setCharAt(pos, BASES[random.nextInt(BASES.length)]); break;
+				case 1: if (b.length()<PackedBarcode.MAX_LENGTH) b.insert(pos, BASES[random.nextInt(BASES.length)]); break;
+				default: b.deleteCharAt(pos);
+			}
+		}
+		return b.toString();
+	}
+
+}
@@ -0,0 +1,179 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.editdistance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.broadinstitute.dropseqrna.utils.ObjectCounter;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class PigeonholeBarcodeIndexTest {
+
+	private static final char [] BASES = {'A', 'C', 'G', 'T', 'N'};
+
+	@Test
+	public void testCanIndex() {
+		Assert.assertTrue(PigeonholeBarcodeIndex.canIndex(Arrays.asList("AAAAAA", "CCCCCC"), 1));
+		// segments would be too short.
+		Assert.assertFalse(PigeonholeBarcodeIndex.canIndex(Arrays.asList("AAAAAA", "CCCCCC"), 2));
+		// different lengths
+		Assert.assertFalse(PigeonholeBarcodeIndex.canIndex(Arrays.asList("AAAAAA", "CCCCCCC"), 1));
+		Assert.assertFalse(PigeonholeBarcodeIndex.canIndex(new ArrayList<>(), 1));
+	}
+
+	@Test
+	public void testCandidatesIncludeAllCloseBarcodes() {
+		Random random = new Random(1);
+		List<String> barcodes = makeBarcodes(random, 500, 12);
+		for (int editDistance=0; editDistance<4; editDistance++) {
+			PigeonholeBarcodeIndex index = new PigeonholeBarcodeIndex(barcodes, editDistance);
+			for (int i=0; i<100; i++) {
+				String query = mutate(random, barcodes.get(random.nextInt(barcodes.size())), editDistance);
+				Set<Integer> candidates = Arrays.stream(index.getCandidates(query)).boxed().collect(Collectors.toSet());
+				for (int j=0; j<barcodes.size(); j++)
+					if (HammingDistance.getHammingDistance(query, barcodes.get(j))<=editDistance)
+						Assert.assertTrue(candidates.contains(j), query + " " + barcodes.get(j));
+			}
+		}
+		// a query of a different length gets every barcode as a candidate.
+		PigeonholeBarcodeIndex index = new PigeonholeBarcodeIndex(barcodes, 1);
+		Assert.assertEquals(index.getCandidates("ACGTACGTACG").length, barcodes.size());
+	}
+
+	@Test
+	public void testPackedBarcodeListIndexedSearch() {
+		Random random = new Random(2);
+		List<String> barcodes = makeBarcodes(random, 1000, 12);
+		PackedBarcodeList packed = new PackedBarcodeList(barcodes);
+		List<String> unpacked = new ArrayList<>(barcodes);
+		for (int round=0; round<50; round++) {
+			String query = mutate(random, unpacked.get(random.nextInt(unpacked.size())), 1);
+			for (int editDistance=1; editDistance<3; editDistance++) {
+				Set<String> expected = EDUtils.getInstance().getStringsWithinEditDistance(query, unpacked, editDistance);
+				Assert.assertEquals(packed.getBarcodesWithinEditDistance(query, false, editDistance, false), expected);
+				Assert.assertEquals(packed.getBarcodesWithinEditDistance(query, false, editDistance, true), expected);
+			}
+			// remove some barcodes by value and by position, and make sure removed barcodes are not found.
+			List<String> toRemove = new ArrayList<>(packed.getBarcodesWithinEditDistance(query, false, 1, false));
+			packed.removeAll(toRemove);
+			unpacked.removeAll(toRemove);
+			int position = random.nextInt(unpacked.size());
+			Assert.assertEquals(packed.remove(position), unpacked.remove(position));
+			Assert.assertEquals(packed, unpacked);
+			Assert.assertFalse(packed.contains(toRemove.isEmpty() ? "" : toRemove.get(0)));
+		}
+	}
+
+	@Test
+	public void testIndexedCollapseMatchesUnindexed() {
+		// collapse large enough to use the index gives the same result as the original all-pairs collapse.
+		Random random = new Random(3);
+		ObjectCounter<String> counts = new ObjectCounter<>();
+		for (String parent: makeBarcodes(random, 200, 12)) {
+			counts.incrementByCount(parent, 100+random.nextInt(1000));
+			for (int i=0; i<5; i++)
+				counts.incrementByCount(mutate(random, parent, 1+random.nextInt(2)), 1+random.nextInt(20));
+		}
+		MapBarcodesByEditDistance mbed = new MapBarcodesByEditDistance(false);
+		List<String> core = counts.getKeysOrderedByCount(true).subList(0, 300);
+		for (int editDistance=1; editDistance<3; editDistance++) {
+			Map<String, List<String>> expected = collapseAllPairs(core, counts, editDistance);
+			Assert.assertEquals(mbed.collapseBarcodes(core, counts, false, editDistance), expected);
+		}
+	}
+
+	private Map<String, List<String>> collapseAllPairs (final List<String> coreBarcodes, final ObjectCounter<String> counts, final int editDistance) {
+		List<String> core = new ArrayList<>(coreBarcodes);
+		List<String> barcodeList = counts.getKeysOrderedByCount(true);
+		Map<String, List<String>> result = new HashMap<>();
+		while (!core.isEmpty()) {
+			String b = core.remove(0);
+			barcodeList.remove(b);
+			List<String> close = new ArrayList<>(EDUtils.getInstance().getStringsWithinEditDistance(b, barcodeList, editDistance));
+			Collections.sort(close);
+			result.put(b, close);
+			barcodeList.removeAll(close);
+			core.removeAll(close);
+		}
+		return result;
+	}
+
+	@Test
+	public void testIndexedBottomUpCollapse() {
+		Random random = new Random(4);
+		ObjectCounter<String> counts = new ObjectCounter<>();
+		for (String parent: makeBarcodes(random, 200, 12)) {
+			counts.incrementByCount(parent, 100+random.nextInt(1000));
+			for (int i=0; i<3; i++)
+				counts.incrementByCount(mutate(random, parent, 1), 1+random.nextInt(20));
+		}
+		BottomUpCollapseResult result = new MapBarcodesByEditDistance(false).bottomUpCollapse(counts, 1);
+		// check against an all-pairs search.
+		List<String> barcodes = counts.getKeysOrderedByCount(false);
+		Set<String> expectedAmbiguous = new HashSet<>();
+		for (int i=0; i<barcodes.size()-1; i++) {
+			String small = barcodes.get(i);
+			Set<String> larger = EDUtils.getInstance().getStringsWithinEditDistance(small, barcodes.subList(i+1, barcodes.size()), 1);
+			if (larger.size()==1) {
+				String large = larger.iterator().next();
+				if (counts.getCountForKey(small)<=counts.getCountForKey(large))
+					Assert.assertEquals(result.getLargerRelatedBarcode(small), large);
+			}
+			if (larger.size()>1)
+				expectedAmbiguous.add(small);
+		}
+		Assert.assertEquals(result.getAmbiguousBarcodes(), expectedAmbiguous);
+	}
+
+	private List<String> makeBarcodes (final Random random, final int count, final int length) {
+		Set<String> result = new HashSet<>();
+		while (result.size()<count) {
+			StringBuilder b = new StringBuilder();
+			for (int i=0; i<length; i++)
+				b.append(BASES[random.nextInt(BASES.length)]);
+			result.add(b.toString());
+		}
+		List<String> list = new ArrayList<>(result);
+		list.sort(null);
+		return list;
+	}
+
+	private String mutate (final Random random, final String barcode, final int numChanges) {
+		char [] b = barcode.toCharArray();
+		for (int i=0; i<numChanges; i++)
+			b[random.nextInt(b.length)]=BASES[random.nextInt(BASES.length)];
+		return new String(b);
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.broadinstitute.dropseqrna.utils.TestUtils;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.CloserUtil;
+
+public class SamIOUtilTest {
+
+	private static final File INPUT = new File("testdata/org/broadinstitute/transcriptome/utils/editdistance/DetectBeadSubstitutionErrors.bam");
+
+	@Test(dataProvider="threads")
+	public void testRoundTrip (final int readThreads, final int writeThreads) throws IOException {
+		File expected = File.createTempFile("SamIOUtilTest.", ".bam");
+		File output = File.createTempFile("SamIOUtilTest.", ".bam");
+		expected.deleteOnExit();
+		output.deleteOnExit();
+		copy(expected, 1, 1, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL);
+		copy(output, readThreads, writeThreads, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL);
+
+		Assert.assertEquals(BlockCompressedInputStream.checkTermination(output), BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK);
+		TestUtils.assertSamFilesSame(output, expected);
+	}
+
+	@Test
+	public void testCompressionLevel () throws IOException {
+		// the parallel writer should compress about as well as the single threaded writer at the same level.
+		File serial = File.createTempFile("SamIOUtilTest.", ".bam");
+		File parallel = File.createTempFile("SamIOUtilTest.", ".bam");
+		serial.deleteOnExit();
+		parallel.deleteOnExit();
+		copy(serial, 1, 1, 1);
+		copy(parallel, 1, 4, 1);
+		Assert.assertTrue(parallel.length() < serial.length() * 1.05);
+		TestUtils.assertSamFilesSame(parallel, serial);
+	}
+
+	@Test
+	public void testCreateIndex () throws IOException {
+		// an index can only be written by the factory's writer, so asking for one is respected even with several threads.
+		SamReader reader = SamReaderFactory.makeDefault().open(INPUT);
+		SAMFileHeader header = reader.getFileHeader().clone();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		List<SAMRecord> records = new ArrayList<>();
+		for (SAMRecord r: reader)
+			records.add(r);
+		CloserUtil.close(reader);
+		records.sort(new SAMRecordCoordinateComparator());
+
+		File output = File.createTempFile("SamIOUtilTest.", ".bam");
+		File index = new File(output.getParentFile(), output.getName().replaceAll("\\.bam$", BAMIndex.BAI_INDEX_SUFFIX));
+		output.deleteOnExit();
+		index.deleteOnExit();
+		SAMFileWriter writer = SamIOUtil.makeSAMOrBAMWriter(new SAMFileWriterFactory(), true, false, header, true, output, 4);
+		for (SAMRecord r: records)
+			writer.addAlignment(r);
+		writer.close();
+		Assert.assertTrue(index.exists());
+	}
+
+	private void copy (final File output, final int readThreads, final int writeThreads, final int compressionLevel) {
+		SamReader reader = SamIOUtil.openReader(SamReaderFactory.makeDefault(), INPUT, readThreads);
+		SAMFileWriter writer = SamIOUtil.makeSAMOrBAMWriter(new SAMFileWriterFactory().setCompressionLevel(compressionLevel), false, false,
+				reader.getFileHeader(), true, output, writeThreads);
+		for (SAMRecord r: reader)
+			writer.addAlignment(r);
+		CloserUtil.close(reader);
+		writer.close();
+	}
+
+	@DataProvider(name="threads")
+	public Object[][] threads() {
+		return new Object[][] {{1, 1}, {4, 1}, {1, 4}, {3, 5}};
+	}
+}
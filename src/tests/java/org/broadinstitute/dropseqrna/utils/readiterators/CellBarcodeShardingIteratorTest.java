@@ -0,0 +1,122 @@
+/*
+ * MIT License
+ *
+ * Copyright 2019 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.broadinstitute.dropseqrna.utils.readiterators;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.broadinstitute.dropseqrna.TranscriptomeException;
+import org.broadinstitute.dropseqrna.utils.GroupingIterator;
+import org.broadinstitute.dropseqrna.utils.MultiComparator;
+import org.broadinstitute.dropseqrna.utils.StringTagComparator;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+
+public class CellBarcodeShardingIteratorTest {
+
+	private static final File IN_FILE = new File("testdata/org/broadinstitute/transcriptome/barnyard/5cell3gene_retagged.bam");
+
+	@SuppressWarnings("unchecked")
+	private static final MultiComparator<SAMRecord> COMPARATOR = new MultiComparator<>(
+			new StringTagComparator("XC"), new StringTagComparator("gn"), new StringTagComparator("XM"));
+
+	@DataProvider(name="numShards")
+	public Object[][] numShards() {
+		return new Object[][] {{1}, {3}, {8}};
+	}
+
+	@Test(dataProvider="numShards")
+	public void testSameAsSerial(final int numShards) {
+		List<String> expected = new ArrayList<>();
+		SamReader reader = SamReaderFactory.makeDefault().open(IN_FILE);
+		CloseableIterator<SAMRecord> sortingIterator = SamRecordSortingIteratorFactory.create(reader.getFileHeader(), reader.iterator(), COMPARATOR, null);
+		for (List<SAMRecord> group: new GroupingIterator<>(sortingIterator, COMPARATOR))
+			expected.add(describe(group));
+		CloserUtil.close(reader);
+
+		reader = SamReaderFactory.makeDefault().open(IN_FILE);
+		CellBarcodeShardingIterator<String> iter = new CellBarcodeShardingIterator<>(reader.getFileHeader(), reader.iterator(), "XC", COMPARATOR,
+				CellBarcodeShardingIteratorTest::describe, numShards, null);
+		List<String> actual = new ArrayList<>();
+		while (iter.hasNext())
+			actual.add(iter.next());
+		iter.close();
+		CloserUtil.close(reader);
+
+		Assert.assertTrue(expected.size()>1);
+		Assert.assertEquals(actual, expected);
+	}
+
+	@Test(expectedExceptions=TranscriptomeException.class)
+	public void testGroupFunctionFailure() {
+		SamReader reader = SamReaderFactory.makeDefault().open(IN_FILE);
+		Iterator<String> iter = new CellBarcodeShardingIterator<>(reader.getFileHeader(), reader.iterator(), "XC", COMPARATOR,
+				group -> {throw new TranscriptomeException("failed");}, 2, null);
+		try {
+			while (iter.hasNext())
+				iter.next();
+		} finally {
+			CloserUtil.close(iter);
+			CloserUtil.close(reader);
+		}
+	}
+
+	@Test
+	public void testThreadNames() {
+		final int numShards = 3;
+		SamReader reader = SamReaderFactory.makeDefault().open(IN_FILE);
+		CellBarcodeShardingIterator<String> iter = new CellBarcodeShardingIterator<>(reader.getFileHeader(), reader.iterator(), "XC", COMPARATOR,
+				group -> group.get(0).getStringAttribute("XC") + " " + Thread.currentThread().getName(), numShards, null);
+		int count=0;
+		while (iter.hasNext()) {
+			String [] result = iter.next().split(" ");
+			// each shard is processed by the thread named after it.
+			int shard = Math.floorMod(result[0].hashCode(), numShards);
+			Assert.assertEquals(result[1], CellBarcodeShardingIterator.class.getSimpleName() + "-shard-" + shard);
+			count++;
+		}
+		iter.close();
+		CloserUtil.close(reader);
+		Assert.assertTrue(count>0);
+	}
+
+	private static String describe (final List<SAMRecord> group) {
+		SAMRecord first = group.get(0);
+		List<String> names = new ArrayList<>();
+		for (SAMRecord r: group)
+			names.add(r.getReadName());
+		Collections.sort(names);
+		return first.getStringAttribute("XC") + " " + first.getStringAttribute("gn") + " " + first.getStringAttribute("XM") + " " + names;
+	}
+}